@@ -0,0 +1,55 @@
+package edu.uw.cs;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.concurrent.*;
+
+/**
+ * Loading the flight catalog at startup, from the Flights table of an
+ * in-process database and from a {@link CatalogSnapshot} file. A server
+ * database adds a network transfer to the first, so it only gets slower.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CatalogLoadBenchmark {
+  @Param({"100000"})
+  public int flights;
+
+  private EmbeddedDatabase db;
+  private Path snapshot;
+
+  @Setup
+  public void setUp() throws Exception {
+    db = new EmbeddedDatabase(flights, 1);
+    snapshot = Files.createTempFile("catalog", ".snapshot");
+    try (ConnectionPool.Lease lease = db.pool().lease()) {
+      Files.delete(snapshot);
+      FlightCatalog.load(lease.connection(), snapshot, Dialect.H2);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    db.close();
+    Files.deleteIfExists(snapshot);
+  }
+
+  @Benchmark
+  public FlightCatalog fromTable() throws SQLException {
+    try (ConnectionPool.Lease lease = db.pool().lease()) {
+      return FlightCatalog.load(lease.connection());
+    }
+  }
+
+  @Benchmark
+  public FlightCatalog fromSnapshot() throws IOException {
+    return FlightCatalog.of(CatalogSnapshot.read(snapshot));
+  }
+}
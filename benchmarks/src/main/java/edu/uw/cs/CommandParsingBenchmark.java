@@ -0,0 +1,64 @@
+package edu.uw.cs;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.*;
+
+/**
+ * Cost of turning a command line into a call: tokenizing into strings,
+ * parsing into a reused {@link Command}, and dispatching commands that are
+ * answered before any transaction starts
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandParsingBenchmark {
+  private Query query;
+  private Session session;
+  private final Command command = new Command();
+
+  @Setup
+  public void setUp() {
+    // no pool: none of these commands reach the database
+    query = new Query();
+    session = new Session();
+  }
+
+  @Benchmark
+  public String[] tokenizeSearch() {
+    return FlightService.tokenize("search \"Seattle WA\" \"Boston MA\" 0 14 10");
+  }
+
+  @Benchmark
+  public String[] tokenizeBook() {
+    return FlightService.tokenize("book 12");
+  }
+
+  @Benchmark
+  public int parseSearch() {
+    return command.parse("search \"Seattle WA\" \"Boston MA\" 0 14 10").intToken(5);
+  }
+
+  @Benchmark
+  public int parseBook() {
+    return command.parse("book 12").intToken(1);
+  }
+
+  @Benchmark
+  public String executeBookNotLoggedIn() {
+    return FlightService.execute(query, session, "book 12");
+  }
+
+  @Benchmark
+  public String executeUnknownCommand() {
+    return FlightService.execute(query, session, "fly \"Seattle WA\" 3");
+  }
+
+  @Benchmark
+  public String executeBookMalformed() {
+    return FlightService.execute(query, session, "book twelve");
+  }
+}
@@ -0,0 +1,128 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Compares two JMH result files written with "-rf csv", such as the results of
+ * a baseline commit and of a change, and prints the change of every
+ * benchmark. Exits with status 1 if any benchmark got worse by more than the
+ * threshold, so it can gate a build.
+ * <p>
+ * Usage: CompareResults baseline.csv candidate.csv [threshold percent, default 10]
+ */
+public class CompareResults {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: CompareResults baseline.csv candidate.csv [threshold percent]");
+      System.exit(2);
+    }
+    double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+    Map<String, Result> baseline = read(Paths.get(args[0]));
+    Map<String, Result> candidate = read(Paths.get(args[1]));
+    int regressions = 0;
+    System.out.printf("%-70s %14s %14s %9s%n", "Benchmark", "Baseline", "Candidate", "Change");
+    for (Map.Entry<String, Result> e : candidate.entrySet()) {
+      Result now = e.getValue();
+      Result before = baseline.get(e.getKey());
+      if (before == null) {
+        System.out.printf("%-70s %14s %14.3f %9s  %s%n", e.getKey(), "-", now.score, "new", now.unit);
+        continue;
+      }
+      // positive means slower, whichever way the mode counts
+      double worse = 100 * (now.score - before.score) / before.score * (now.higherIsBetter() ? -1 : 1);
+      boolean regressed = worse > threshold;
+      if (regressed) {
+        regressions++;
+      }
+      System.out.printf("%-70s %14.3f %14.3f %+8.1f%%  %s%s%n", e.getKey(), before.score, now.score, worse,
+          now.unit, regressed ? "  REGRESSION" : "");
+    }
+    for (String name : baseline.keySet()) {
+      if (!candidate.containsKey(name)) {
+        System.out.printf("%-70s %14.3f %14s %9s%n", name, baseline.get(name).score, "-", "gone");
+      }
+    }
+    if (regressions > 0) {
+      System.out.println(regressions + " benchmark(s) slower by more than " + threshold + "%");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * One row of a JMH CSV result file
+   */
+  static class Result {
+    final String mode;
+    final double score;
+    final String unit;
+
+    Result(String mode, double score, String unit) {
+      this.mode = mode;
+      this.score = score;
+      this.unit = unit;
+    }
+
+    boolean higherIsBetter() {
+      return mode.equals("thrpt");
+    }
+  }
+
+  /**
+   * Reads a result file into rows keyed by benchmark name and parameters
+   */
+  static Map<String, Result> read(Path file) throws IOException {
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    Map<String, Result> results = new LinkedHashMap<>();
+    if (lines.isEmpty()) {
+      return results;
+    }
+    List<String> header = parse(lines.get(0));
+    int benchmark = header.indexOf("Benchmark");
+    int mode = header.indexOf("Mode");
+    int score = header.indexOf("Score");
+    int unit = header.indexOf("Unit");
+    for (String line : lines.subList(1, lines.size())) {
+      if (line.isBlank()) {
+        continue;
+      }
+      List<String> row = parse(line);
+      StringBuilder key = new StringBuilder(row.get(benchmark));
+      for (int i = 0; i < header.size(); i++) {
+        if (header.get(i).startsWith("Param: ") && i < row.size() && !row.get(i).isEmpty()) {
+          key.append(' ').append(header.get(i).substring(7)).append('=').append(row.get(i));
+        }
+      }
+      results.put(key.toString(), new Result(row.get(mode), Double.parseDouble(row.get(score)), row.get(unit)));
+    }
+    return results;
+  }
+
+  // Splits a CSV line, honoring double quotes
+  static List<String> parse(String line) {
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == '"') {
+        if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else {
+          quoted = !quoted;
+        }
+      } else if (c == ',' && !quoted) {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+    return fields;
+  }
+}
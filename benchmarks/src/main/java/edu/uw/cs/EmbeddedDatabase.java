@@ -0,0 +1,96 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * An in-memory {@link EmbeddedStorage} database with the application's tables
+ * and a synthetic Flights table, for benchmarks that run real transactions.
+ * <p>
+ * Flights connect a fixed set of cities on every day of the month. The same
+ * seed always gives the same flights, so results stay comparable between
+ * commits.
+ */
+public class EmbeddedDatabase implements AutoCloseable {
+  static final String[] CITIES = {
+      "Seattle WA", "Boston MA", "Chicago IL", "Denver CO", "Austin TX", "Miami FL", "Atlanta GA",
+      "Phoenix AZ", "Portland OR", "Detroit MI", "Dallas TX", "Newark NJ", "Honolulu HI", "Anchorage AK",
+      "Salt Lake City UT", "San Diego CA", "Las Vegas NV", "Minneapolis MN", "Nashville TN", "Orlando FL"};
+
+  private static final AtomicInteger NAMES = new AtomicInteger();
+
+  private static final String INSERT_FLIGHT = "INSERT INTO Flights VALUES (?,?,?,?,?,?,0,?,?,?)";
+
+  private final ConnectionPool pool;
+
+  /**
+   * Creates the tables and fills Flights
+   *
+   * @param flights number of flights to generate
+   * @param poolSize connections kept by the pool
+   */
+  public EmbeddedDatabase(int flights, int poolSize) throws SQLException, IOException {
+    this.pool = new ConnectionPool(EmbeddedStorage.inMemoryUrl("bench" + NAMES.incrementAndGet()), poolSize, 64,
+        60_000, 10_000);
+    new EmbeddedStorage().initialize(pool, new Properties());
+    try (ConnectionPool.Lease lease = pool.lease()) {
+      generateFlights(lease.connection(), flights, new Random(42));
+    }
+  }
+
+  private static void generateFlights(Connection conn, int flights, Random random) throws SQLException {
+    conn.setAutoCommit(false);
+    try (PreparedStatement insert = conn.prepareStatement(INSERT_FLIGHT)) {
+      for (int fid = 1; fid <= flights; fid++) {
+        String origin = CITIES[random.nextInt(CITIES.length)];
+        String dest = CITIES[random.nextInt(CITIES.length)];
+        while (dest.equals(origin)) {
+          dest = CITIES[random.nextInt(CITIES.length)];
+        }
+        insert.setInt(1, fid);
+        insert.setInt(2, 1 + random.nextInt(31));
+        insert.setString(3, random.nextBoolean() ? "AS" : "UA");
+        insert.setInt(4, random.nextInt(10_000));
+        insert.setString(5, origin);
+        insert.setString(6, dest);
+        insert.setInt(7, 30 + random.nextInt(600));
+        insert.setInt(8, 1 + random.nextInt(20));
+        insert.setInt(9, 50 + random.nextInt(950));
+        insert.addBatch();
+        if (fid % 1000 == 0) {
+          insert.executeBatch();
+        }
+      }
+      insert.executeBatch();
+    }
+    conn.commit();
+    conn.setAutoCommit(true);
+  }
+
+  public ConnectionPool pool() {
+    return pool;
+  }
+
+  /**
+   * A Query running on this database, with the given flights catalog or none
+   */
+  public Query query(boolean useCatalog) throws SQLException {
+    Query query = new Query();
+    query.openConnection(pool);
+    query.setDialect(Dialect.H2);
+    if (useCatalog) {
+      try (ConnectionPool.Lease lease = pool.lease()) {
+        query.setFlightCatalog(FlightCatalog.load(lease.connection()));
+      }
+    }
+    query.prepareStatements();
+    return query;
+  }
+
+  @Override
+  public void close() {
+    pool.close();
+  }
+}
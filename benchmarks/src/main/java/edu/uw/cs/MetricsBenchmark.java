@@ -0,0 +1,63 @@
+package edu.uw.cs;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.concurrent.*;
+
+/**
+ * What recording metrics adds to a command and to a statement execution, on
+ * their own. The statement is a stub that returns at once, so the timed
+ * variant differs from the plain one only by what {@link TimedStatement}
+ * does around it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@State(Scope.Thread)
+public class MetricsBenchmark {
+  private Metrics metrics;
+  private PreparedStatement plain;
+  private PreparedStatement timed;
+
+  @Setup
+  public void setUp() {
+    metrics = new Metrics(true);
+    // answers executeUpdate with 1 and everything else with null
+    InvocationHandler stub = (proxy, method, args) -> method.getReturnType() == int.class ? 1 : null;
+    plain = (PreparedStatement) Proxy.newProxyInstance(MetricsBenchmark.class.getClassLoader(),
+        new Class<?>[]{PreparedStatement.class}, stub);
+    timed = metrics.timed(plain, Query.GET_INDIRECT_FLIGHTS);
+  }
+
+  /**
+   * The two clock reads around a command, on their own
+   */
+  @Benchmark
+  public long clockReads() {
+    long start = System.nanoTime();
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * What FlightService.execute adds to a command when metrics are on
+   */
+  @Benchmark
+  public void command() {
+    long start = System.nanoTime();
+    metrics.command(Command.Type.SEARCH, System.nanoTime() - start, false);
+  }
+
+  @Benchmark
+  public int plainStatement() throws SQLException {
+    return plain.executeUpdate();
+  }
+
+  @Benchmark
+  public int timedStatement() throws SQLException {
+    return timed.executeUpdate();
+  }
+}
@@ -0,0 +1,34 @@
+package edu.uw.cs;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.*;
+
+/**
+ * One PBKDF2 password hash, as run by login and create
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PasswordHashBenchmark {
+  private final byte[] salt = new byte[16];
+  private PasswordHasher hasher;
+
+  @Setup
+  public void setUp() {
+    hasher = new PasswordHasher(Runtime.getRuntime().availableProcessors(), 1024);
+  }
+
+  @TearDown
+  public void tearDown() {
+    hasher.close();
+  }
+
+  @Benchmark
+  public byte[] hash() {
+    return hasher.hash("correct horse battery staple", salt);
+  }
+}
@@ -0,0 +1,90 @@
+package edu.uw.cs;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Assembling and rendering search results. The catalog searches leave the
+ * database out, so they measure the merge and the response text alone. The
+ * SQL search runs the same search against the database, whose
+ * GET_INDIRECT_FLIGHTS self-join the catalog's {@link ConnectionIndex}
+ * replaces; both must give the same answer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SearchBenchmark {
+  @Param({"20000"})
+  public int flights;
+
+  @Param({"10", "1000"})
+  public int itineraries;
+
+  private EmbeddedDatabase db;
+  private Query query;
+  private Query sqlQuery;
+  private Session session;
+  private Query.ItineraryItem[] found;
+  private Writer sink;
+
+  @Setup
+  public void setUp() throws Exception {
+    db = new EmbeddedDatabase(flights, 2);
+    query = db.query(true);
+    sqlQuery = db.query(false);
+    session = new Session();
+    String fromSql = sqlQuery.transaction_search(session, "Seattle WA", "Boston MA", false, 14, itineraries);
+    String fromCatalog = query.transaction_search(session, "Seattle WA", "Boston MA", false, 14, itineraries);
+    if (!fromCatalog.equals(fromSql)) {
+      throw new IllegalStateException("The catalog and the database disagree:\n" + fromCatalog + "\n" + fromSql);
+    }
+    found = session.itineraries;
+    sink = new Writer() {
+      @Override
+      public void write(char[] cbuf, int off, int len) {
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  @TearDown
+  public void tearDown() {
+    db.close();
+  }
+
+  @Benchmark
+  public String catalogSearch() {
+    return query.transaction_search(session, "Seattle WA", "Boston MA", false, 14, itineraries);
+  }
+
+  @Benchmark
+  public String sqlSearch() {
+    return sqlQuery.transaction_search(session, "Seattle WA", "Boston MA", false, 14, itineraries);
+  }
+
+  @Benchmark
+  public void streamedCatalogSearch() throws IOException {
+    query.transaction_search(session, "Seattle WA", "Boston MA", false, 14, itineraries, sink);
+  }
+
+  @Benchmark
+  public String render() {
+    ResponseWriter out = ResponseWriter.acquire();
+    for (int i = 0; i < found.length; i++) {
+      out.itinerary(i, found[i]);
+    }
+    return out.finish();
+  }
+}
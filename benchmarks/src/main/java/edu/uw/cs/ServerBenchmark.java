@@ -0,0 +1,99 @@
+package edu.uw.cs;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Searches through {@link FlightServer} in its platform-thread and
+ * virtual-thread modes. Every benchmark thread is a client with its own
+ * connection, so -t sets the number of sessions. The searches run in SQL
+ * against the embedded database. Each one is followed by "book 99999",
+ * answered without the database, to mark the end of its output. On runtimes
+ * without virtual threads both modes use the worker pool.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class ServerBenchmark {
+  private static final byte[] COMMANDS = "search \"Seattle WA\" \"Boston MA\" 0 14 1\nbook 99999\n"
+      .getBytes(StandardCharsets.UTF_8);
+  private static final String END_OF_RESPONSE = "Cannot book reservations";
+
+  @State(Scope.Benchmark)
+  public static class Server {
+    @Param({"20000"})
+    public int flights;
+
+    // the hw1.server_threads setting
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    EmbeddedDatabase db;
+    FlightServer server;
+
+    @Setup
+    public void setUp() throws Exception {
+      db = new EmbeddedDatabase(flights, 16);
+      Properties configProps = new Properties();
+      configProps.setProperty("hw1.server_port", "0");
+      configProps.setProperty("hw1.server_threads", threads);
+      configProps.setProperty("hw1.server_workers", "16");
+      server = FlightServer.fromConfig(db.query(false), configProps);
+      server.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+      server.shutdown(30, TimeUnit.SECONDS);
+      db.close();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Client {
+    Socket socket;
+    OutputStream out;
+    BufferedReader in;
+
+    @Setup
+    public void connect(Server server) throws IOException {
+      socket = new Socket("localhost", server.server.port());
+      socket.setSoTimeout(60_000);
+      out = socket.getOutputStream();
+      in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @TearDown
+    public void close() throws IOException {
+      out.write("quit\n".getBytes(StandardCharsets.UTF_8));
+      socket.close();
+    }
+  }
+
+  @Benchmark
+  public int search(Client client) throws IOException {
+    client.out.write(COMMANDS);
+    client.out.flush();
+    int lines = 0;
+    String line;
+    while ((line = client.in.readLine()) != null && !line.startsWith(END_OF_RESPONSE)) {
+      if (line.startsWith("Server busy")) {
+        // a shed search would count as a fast one
+        throw new IllegalStateException("The server shed a search");
+      }
+      lines++;
+    }
+    if (line == null) {
+      throw new EOFException("The server closed the connection");
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,89 @@
+package edu.uw.cs;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Whole commands against the embedded database: a search on the Flights
+ * table, and a book, pay and cancel cycle that leaves the user's balance and
+ * the flight's seats as they were. They run through
+ * {@link FlightService#execute(Query, Session, String)}, as every front end
+ * does, so that the command metrics are part of what is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Database {
+    @Param({"20000"})
+    public int flights;
+
+    // the hw1.metrics level, to measure what each one costs
+    @Param({"off", "commands", "all"})
+    public String metrics;
+
+    EmbeddedDatabase db;
+    Query query;
+    final AtomicInteger users = new AtomicInteger();
+
+    @Setup
+    public void setUp() throws Exception {
+      db = new EmbeddedDatabase(flights, 8);
+      Metrics recorded = metrics.equals("off") ? null : new Metrics(metrics.equals("all"));
+      // before the statements are prepared, so that they are timed
+      db.pool().setMetrics(recorded != null && recorded.timesStatements() ? recorded : null);
+      query = db.query(false);
+      query.setMetrics(recorded);
+      query.retryPolicy().setMetrics(recorded);
+    }
+
+    @TearDown
+    public void tearDown() {
+      db.close();
+    }
+  }
+
+  /**
+   * A logged in user with a bookable itinerary from the last search
+   */
+  @State(Scope.Thread)
+  public static class User {
+    Session session;
+
+    @Setup
+    public void setUp(Database database) {
+      String name = "bench" + database.users.incrementAndGet();
+      Query query = database.query;
+      query.transaction_createCustomer(name, "pw", 1_000_000);
+      session = new Session();
+      query.transaction_login(session, name, "pw");
+      query.transaction_search(session, "Seattle WA", "Boston MA", true, 14, 1);
+      if (session.itineraries == null || session.itineraries.length == 0) {
+        throw new IllegalStateException("No direct flight to book; use another seed or more flights");
+      }
+    }
+  }
+
+  @Benchmark
+  public String search(Database database, User user) {
+    return FlightService.execute(database.query, user.session, "search \"Seattle WA\" \"Boston MA\" 0 14 10");
+  }
+
+  @Benchmark
+  public String bookPayCancel(Database database, User user) {
+    Query query = database.query;
+    String booked = FlightService.execute(query, user.session, "book 0");
+    if (!booked.startsWith("Booked")) {
+      throw new IllegalStateException(booked);
+    }
+    int rid = Integer.parseInt(booked.substring(booked.lastIndexOf(' ') + 1).trim());
+    FlightService.execute(query, user.session, "pay " + rid);
+    return FlightService.execute(query, user.session, "cancel " + rid);
+  }
+}
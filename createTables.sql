@@ -1,3 +1,4 @@
-CREATE TABLE Users(uname VARCHAR(20) PRIMARY KEY, pwHash VARBINARY(max), pwSalt VARBINARY(max), balance INT);
+CREATE TABLE Users(uname VARCHAR(20) PRIMARY KEY, pwHash VARBINARY(max), pwSalt VARBINARY(max), balance INT, version INT NOT NULL DEFAULT 0, tokenGeneration INT NOT NULL DEFAULT 0);
 CREATE TABLE Reservations(rid INT PRIMARY KEY, paid BIT, uname VARCHAR(20) REFERENCES Users, flight1 INT REFERENCES FLIGHTS, flight2 INT REFERENCES FLIGHTS);
-CREATE TABLE ReservationID(rid INT PRIMARY KEY)
\ No newline at end of file
+CREATE TABLE ReservationID(rid INT PRIMARY KEY);
+CREATE TABLE SeatsRemaining(fid INT PRIMARY KEY REFERENCES FLIGHTS, seats INT);
@@ -0,0 +1,193 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Replays a command file through the transaction engine without a client.
+ * <p>
+ * The input uses the format of the cases/*.txt scripts: each user's commands,
+ * then a line starting with "*", then that user's expected output (ignored
+ * here), then another "*". A file without any "*" line is a single user's
+ * commands. Lines starting with "#" are comments.
+ * <p>
+ * Every user becomes a {@link Session}. Sessions run concurrently, and each
+ * session's commands are issued back to back. Runs of consecutive search and
+ * reservations commands share one connection and skip their own BEGIN/COMMIT
+ * (see {@link Query#runReadOnly}). Responses are written to the output file in
+ * the order of the input, one block per session followed by "*". The
+ * session at the head of the file streams its output as it goes.
+ */
+public class BatchRunner {
+  private final Query query;
+  private final int threads;
+
+  // output of sessions that are not yet at the head of the file
+  private Writer out;
+  private StringBuilder[] buffered;
+  private boolean[] finished;
+  private int head;
+
+  public BatchRunner(Query query, int threads) {
+    this.query = query;
+    this.threads = threads;
+  }
+
+  /**
+   * Reads the commands of each session from a cases-style script
+   */
+  static List<List<String>> parse(Path file) throws IOException {
+    List<List<String>> sessions = new ArrayList<>();
+    List<String> cmds = new ArrayList<>();
+    boolean isCmd = true;
+    boolean sawDelimiter = false;
+    for (String l : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+      if (l.startsWith("#")) {
+        continue;
+      } else if (l.startsWith("*")) {
+        sawDelimiter = true;
+        if (isCmd) {
+          sessions.add(cmds);
+          cmds = new ArrayList<>();
+        }
+        isCmd = !isCmd;
+      } else if (isCmd && !l.startsWith("|")) {
+        // Ignore trailing comments
+        String cmd = l.split("#", 2)[0];
+        if (!cmd.trim().isEmpty()) {
+          cmds.add(cmd);
+        }
+      }
+    }
+    if (!sawDelimiter || !cmds.isEmpty()) {
+      sessions.add(cmds);
+    }
+    return sessions;
+  }
+
+  /**
+   * Runs every session in the input file and writes their responses to the
+   * output file
+   *
+   * @return the number of commands run
+   */
+  public long run(Path input, Path output) throws IOException, InterruptedException {
+    List<List<String>> sessions = parse(input);
+    buffered = new StringBuilder[sessions.size()];
+    finished = new boolean[sessions.size()];
+    head = 0;
+    for (int i = 0; i < buffered.length; i++) {
+      buffered[i] = new StringBuilder();
+    }
+
+    long commands = 0;
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, sessions.size())));
+    try (Writer writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+      out = writer;
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < sessions.size(); i++) {
+        int index = i;
+        List<String> cmds = sessions.get(i);
+        commands += cmds.size();
+        futures.add(executor.submit(() -> {
+          runSession(index, cmds);
+          return null;
+        }));
+      }
+      for (Future<?> f : futures) {
+        try {
+          f.get();
+        } catch (ExecutionException e) {
+          throw new IOException("Batch session failed", e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+      out = null;
+    }
+    return commands;
+  }
+
+  private void runSession(int index, List<String> cmds) throws Exception {
+    Session session = new Session();
+    // each line is parsed once, into the session's command, which tells
+    // whether it runs alone or with the reads next to it
+    Command command = session.command;
+    int i = next(command, cmds, 0);
+    while (i < cmds.size()) {
+      if (!command.type().isReadOnly()) {
+        write(index, FlightService.execute(query, session, command));
+        i = next(command, cmds, i + 1);
+        continue;
+      }
+      // run the whole stretch of reads on one connection
+      int first = i;
+      i = query.runReadOnly(() -> {
+        int at = first;
+        do {
+          write(index, FlightService.execute(query, session, command));
+          at = next(command, cmds, at + 1);
+        } while (at < cmds.size() && command.type().isReadOnly());
+        return at;
+      });
+    }
+    write(index, "*\n");
+    finish(index);
+  }
+
+  // Parses the line at i, if there is one, and returns i
+  private static int next(Command command, List<String> cmds, int i) {
+    if (i < cmds.size()) {
+      command.parse(cmds.get(i));
+    }
+    return i;
+  }
+
+  private synchronized void write(int index, String response) throws IOException {
+    if (index == head) {
+      out.write(response);
+    } else {
+      buffered[index].append(response);
+    }
+  }
+
+  private synchronized void finish(int index) throws IOException {
+    finished[index] = true;
+    while (head < finished.length && finished[head]) {
+      head++;
+      if (head < finished.length) {
+        out.write(buffered[head].toString());
+        buffered[head] = null;
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Usage: BatchRunner input output [threads]
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: batch <input file> <output file> [threads]");
+      System.exit(1);
+    }
+    int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+    try (QueryFactory factory = QueryFactory.fromConfig()) {
+      long start = System.nanoTime();
+      Query query = factory.query();
+      long commands = new BatchRunner(query, threads).run(Paths.get(args[0]), Paths.get(args[1]));
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("Ran %d commands in %.2f s (%.1f commands/sec)%n", commands, seconds, commands / seconds);
+      System.out.println("Transactions " + query.retryPolicy());
+      if (query.searchCache() != null) {
+        System.out.println("Search cache " + query.searchCache());
+      }
+      if (query.reservationCache() != null) {
+        System.out.println("Reservation cache " + query.reservationCache());
+      }
+    }
+  }
+}
@@ -0,0 +1,196 @@
+package edu.uw.cs;
+
+import java.sql.*;
+
+/**
+ * Runs book, pay and cancel as one T-SQL batch each, so that a transaction
+ * costs a single round trip to the server instead of one per statement.
+ * <p>
+ * Each batch begins, checks, writes and commits (or rolls back) on the server
+ * and ends by selecting a status code, which the caller maps to its response.
+ * XACT_ABORT makes the server roll the whole batch back on any error, so a
+ * failed batch leaves nothing behind and can simply be run again.
+ */
+public class BatchedTransactions {
+  /** The transaction committed */
+  public static final int OK = 0;
+  /** book: the user already has a reservation on that day */
+  public static final int SAME_DAY = 1;
+  /** book: a flight is full or does not exist */
+  public static final int FULL = 2;
+  /** book: no reservation ID left; pay, cancel: no such reservation */
+  public static final int NOT_FOUND = 3;
+  /** pay: the balance does not cover the cost */
+  public static final int INSUFFICIENT_FUNDS = 4;
+
+  private static final String PROLOGUE = "SET NOCOUNT ON; SET XACT_ABORT ON; ";
+
+  private static final String BEGIN = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION; ";
+
+  // Counts the reservations of @fid; used when seats are not tracked
+  private static final String CHECK_CAPACITY =
+          "IF ISNULL((SELECT capacity FROM Flights WHERE fid = @fid), 0) " +
+                  "- (SELECT COUNT(*) FROM Reservations WHERE flight1 = @fid OR flight2 = @fid) <= 0 " +
+                  "SET @status = 2; ";
+
+  // Takes a seat on @fid from SeatsRemaining, creating its row on first use
+  private static final String TAKE_SEAT =
+          "IF NOT EXISTS (SELECT * FROM SeatsRemaining WHERE fid = @fid) " +
+                  "INSERT INTO SeatsRemaining(fid, seats) " +
+                  "SELECT fid, capacity - (SELECT COUNT(*) FROM Reservations WHERE flight1 = @fid OR flight2 = @fid) " +
+                  "FROM Flights WHERE fid = @fid; " +
+                  "UPDATE SeatsRemaining SET seats = seats - 1 WHERE fid = @fid AND seats > 0; " +
+                  "IF @@ROWCOUNT = 0 SET @status = 2; ";
+
+  private static final String RETURN_SEATS =
+          "UPDATE SeatsRemaining SET seats = seats + 1 WHERE fid = @fid1 OR fid = @fid2; ";
+
+  private static final BatchedTransactions COUNTING = new BatchedTransactions(false);
+  private static final BatchedTransactions WITH_SEAT_COUNTERS = new BatchedTransactions(true);
+
+  private final String book;
+  private final String pay;
+  private final String cancel;
+
+  private BatchedTransactions(boolean seatCounters) {
+    String capacity = seatCounters ? TAKE_SEAT : CHECK_CAPACITY;
+    this.book = PROLOGUE +
+            "DECLARE @user VARCHAR(20) = ?, @fid1 INT = ?, @fid2 INT = ?, @reserved INT = ?, " +
+            "@fid INT, @rid INT, @status INT = 0; " +
+            BEGIN +
+            "IF EXISTS (SELECT * FROM Reservations R, Flights F1, Flights F2 " +
+            "WHERE R.uname = @user AND F2.fid = R.flight1 AND F1.fid = @fid1 " +
+            "AND F1.day_of_month = F2.day_of_month) " +
+            "SET @status = 1; " +
+            "IF @status = 0 BEGIN SET @fid = @fid1; " + capacity + "END " +
+            "IF @status = 0 AND @fid2 IS NOT NULL BEGIN SET @fid = @fid2; " + capacity + "END " +
+            "IF @status = 0 BEGIN " +
+            "  IF @reserved IS NOT NULL SET @rid = @reserved " +
+            "  ELSE BEGIN UPDATE ReservationID SET @rid = rid = rid + 1; SET @rid = @rid - 1; END " +
+            "  IF @rid IS NULL SET @status = 3 " +
+            "  ELSE INSERT INTO Reservations(rid,paid,uname,flight1,flight2) VALUES (@rid,0,@user,@fid1,@fid2); " +
+            "END " +
+            "IF @status = 0 COMMIT TRANSACTION ELSE ROLLBACK TRANSACTION; " +
+            "SELECT @status AS status, @rid AS rid;";
+    this.pay = PROLOGUE +
+            "DECLARE @user VARCHAR(20) = ?, @rid INT = ?, @status INT = 0, @balance INT, @cost INT; " +
+            BEGIN +
+            "SELECT @balance = balance, @cost = SUM(price) FROM Users, Reservations, Flights " +
+            "WHERE Users.uname = @user AND Users.uname = Reservations.uname AND rid = @rid AND paid = 0 " +
+            "AND (flight1 = fid OR flight2 = fid) GROUP BY balance; " +
+            "IF @cost IS NULL SET @status = 3 " +
+            "ELSE IF @cost > @balance SET @status = 4 " +
+            "ELSE BEGIN " +
+            "  UPDATE Reservations SET paid = 1 WHERE rid = @rid AND uname = @user AND paid = 0; " +
+            "  UPDATE Users SET balance = balance - @cost WHERE uname = @user; " +
+            "  SET @balance = @balance - @cost; " +
+            "END " +
+            "COMMIT TRANSACTION; " +
+            "SELECT @status AS status, @balance AS balance, @cost AS cost;";
+    this.cancel = PROLOGUE +
+            "DECLARE @user VARCHAR(20) = ?, @rid INT = ?, @status INT = 0, @paid BIT, @fid1 INT, @fid2 INT, " +
+            "@refund INT = 0; " +
+            BEGIN +
+            "SELECT @paid = paid, @fid1 = flight1, @fid2 = flight2 FROM Reservations " +
+            "WHERE rid = @rid AND uname = @user; " +
+            "IF @fid1 IS NULL SET @status = 3 " +
+            "ELSE BEGIN " +
+            "  IF @paid = 1 SELECT @refund = SUM(price) FROM Flights WHERE fid = @fid1 OR fid = @fid2; " +
+            "  DELETE FROM Reservations WHERE rid = @rid; " +
+            "  UPDATE Users SET balance = balance + @refund WHERE uname = @user; " +
+            (seatCounters ? "  " + RETURN_SEATS : "") +
+            "END " +
+            "COMMIT TRANSACTION; " +
+            "SELECT @status AS status;";
+  }
+
+  /**
+   * The batches for a database that keeps the SeatsRemaining table up to date
+   * (see {@link SeatInventory}), or that counts reservations instead
+   */
+  public static BatchedTransactions of(boolean seatCounters) {
+    return seatCounters ? WITH_SEAT_COUNTERS : COUNTING;
+  }
+
+  /**
+   * Books the flights for the user.
+   *
+   * @param fid2       second flight, or null for a direct itinerary
+   * @param reservedId reservation ID taken in advance, or null to take the next
+   *                   one from the ReservationID table
+   * @return the status, and the reservation ID if it is {@link #OK}
+   */
+  public Outcome book(ConnectionPool.Lease lease, String user, int fid1, Integer fid2, Integer reservedId)
+          throws SQLException {
+    PreparedStatement statement = lease.prepare(book);
+    statement.clearParameters();
+    statement.setString(1, user);
+    statement.setInt(2, fid1);
+    statement.setObject(3, fid2, Types.INTEGER);
+    statement.setObject(4, reservedId, Types.INTEGER);
+    try (ResultSet results = run(statement)) {
+      return new Outcome(results.getInt("status"), results.getInt("rid"), 0);
+    }
+  }
+
+  /**
+   * Pays for the user's unpaid reservation.
+   *
+   * @return the status with the balance, which is the remaining balance if it
+   * is {@link #OK}, and the cost of the reservation
+   */
+  public Outcome pay(ConnectionPool.Lease lease, String user, int reservationId) throws SQLException {
+    PreparedStatement statement = lease.prepare(pay);
+    statement.clearParameters();
+    statement.setString(1, user);
+    statement.setInt(2, reservationId);
+    try (ResultSet results = run(statement)) {
+      return new Outcome(results.getInt("status"), results.getInt("balance"), results.getInt("cost"));
+    }
+  }
+
+  /**
+   * Cancels the user's reservation and refunds it if it was paid
+   */
+  public Outcome cancel(ConnectionPool.Lease lease, String user, int reservationId) throws SQLException {
+    PreparedStatement statement = lease.prepare(cancel);
+    statement.clearParameters();
+    statement.setString(1, user);
+    statement.setInt(2, reservationId);
+    try (ResultSet results = run(statement)) {
+      return new Outcome(results.getInt("status"), 0, 0);
+    }
+  }
+
+  // Runs the batch and moves to the row of its closing SELECT
+  private static ResultSet run(PreparedStatement statement) throws SQLException {
+    boolean isResultSet = statement.execute();
+    while (!isResultSet) {
+      if (statement.getUpdateCount() == -1) {
+        throw new SQLException("Batch returned no status");
+      }
+      isResultSet = statement.getMoreResults();
+    }
+    ResultSet results = statement.getResultSet();
+    if (!results.next()) {
+      results.close();
+      throw new SQLException("Batch returned no status");
+    }
+    return results;
+  }
+
+  /**
+   * What a batch reported back
+   */
+  public static class Outcome {
+    public final int status;
+    public final int value;
+    public final int cost;
+
+    Outcome(int status, int value, int cost) {
+      this.status = status;
+      this.value = value;
+      this.cost = cost;
+    }
+  }
+}
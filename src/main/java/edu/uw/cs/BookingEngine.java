@@ -0,0 +1,648 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Users, reservations and seat counts held in memory, so that login, create,
+ * book, pay, cancel and reservations need no database. Only Flights is read,
+ * once, when the engine is opened.
+ * <p>
+ * The rules are those of the transactions in {@link Query}: one reservation
+ * per user and day, no flight booked beyond its capacity, reservation IDs
+ * handed out from 1 without reuse, and no payment beyond the balance. User
+ * names are compared ignoring case, as the SQL Server collation does.
+ * <p>
+ * Each user's changes are serialized by one of {@link #STRIPES} locks chosen
+ * by the user name. Seats are counted per flight with compare-and-set, so
+ * bookings by different users only contend on a flight that is nearly full.
+ * <p>
+ * Every change is appended to a {@link WriteAheadLog} while its user's lock
+ * is held, so the log orders the changes to each user as they happened, and
+ * is synced before the change is acknowledged. Opening the engine replays the
+ * log, which brings back every acknowledged change after a crash. Once the
+ * log reaches {@link #COMPACT_SIZE} it is rewritten as the records of the
+ * current users and reservations, which keeps it below the 2 GB it can hold
+ * and the replay short.
+ */
+public class BookingEngine implements AutoCloseable {
+  static final int STRIPES = 256;
+  static final long COMPACT_SIZE = 1 << 30;
+
+  private static final String LOAD_FLIGHTS =
+          "SELECT fid,day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,capacity,price " +
+                  "FROM Flights";
+
+  // log record types
+  private static final byte CREATE = 1;
+  private static final byte BOOK = 2;
+  private static final byte PAY = 3;
+  private static final byte CANCEL = 4;
+  private static final byte NEXT_ID = 5;
+  private static final byte REVOKE = 6;
+
+  private final Map<Integer, Seats> flights;
+  private final ConcurrentMap<String, Account> accounts = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Integer, Reservation> reservations = new ConcurrentHashMap<>();
+  private final Lock[] stripes = new Lock[STRIPES];
+  private final AtomicInteger nextId = new AtomicInteger(1);
+  private final WriteAheadLog log;
+  private final long compactSize;
+  private final AtomicBoolean compacting = new AtomicBoolean();
+  // log size that starts the next compaction
+  private volatile long compactAt;
+
+  private BookingEngine(Collection<Query.Flight> flights, Path logFile, long compactSize) throws IOException {
+    Map<Integer, Seats> seats = new HashMap<>();
+    for (Query.Flight f : flights) {
+      seats.put(f.fid, new Seats(f));
+    }
+    this.flights = seats;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+    this.log = WriteAheadLog.open(logFile, this::apply);
+    this.compactSize = compactSize;
+    this.compactAt = compactSize;
+  }
+
+  /**
+   * Opens the engine on the given flights and log file, replaying whatever the
+   * log holds
+   */
+  public static BookingEngine open(Collection<Query.Flight> flights, Path logFile) throws IOException {
+    return open(flights, logFile, COMPACT_SIZE);
+  }
+
+  /**
+   * Opens the engine with the log compacted at the given size instead of
+   * {@link #COMPACT_SIZE}
+   */
+  static BookingEngine open(Collection<Query.Flight> flights, Path logFile, long compactSize) throws IOException {
+    return new BookingEngine(flights, logFile, compactSize);
+  }
+
+  /**
+   * Opens the engine on every flight in the Flights table, canceled or not
+   */
+  public static BookingEngine open(ConnectionPool pool, Path logFile) throws SQLException, IOException {
+    List<Query.Flight> flights = new ArrayList<>();
+    try (ConnectionPool.Lease lease = pool.lease();
+         Statement statement = lease.connection().createStatement();
+         ResultSet results = statement.executeQuery(LOAD_FLIGHTS)) {
+      while (results.next()) {
+        Query.Flight f = new Query.Flight();
+        f.fid = results.getInt("fid");
+        f.dayOfMonth = results.getInt("day_of_month");
+        f.carrierId = results.getString("carrier_id");
+        f.flightNum = results.getString("flight_num");
+        f.originCity = results.getString("origin_city");
+        f.destCity = results.getString("dest_city");
+        f.time = results.getInt("actual_time");
+        f.capacity = results.getInt("capacity");
+        f.price = results.getInt("price");
+        flights.add(f);
+      }
+    }
+    return open(flights, logFile);
+  }
+
+  /**
+   * Opens the engine on the log named by hw1.booking_engine_log, or returns
+   * null if it is not set
+   */
+  public static BookingEngine fromConfig(ConnectionPool pool, Properties configProps)
+          throws SQLException, IOException {
+    String logFile = configProps.getProperty("hw1.booking_engine_log", "").trim();
+    return logFile.isEmpty() ? null : open(pool, Paths.get(logFile));
+  }
+
+  /**
+   * Adds a user
+   *
+   * @return false if a user with the same name exists
+   */
+  public boolean createCustomer(String user, byte[] pwHash, byte[] pwSalt, int balance) throws IOException {
+    compactIfLarge();
+    String key = key(user);
+    Lock lock = lock(key);
+    int end;
+    lock.lock();
+    try {
+      if (accounts.containsKey(key)) {
+        return false;
+      }
+      end = log.append(createRecord(user, pwHash, pwSalt, balance));
+      accounts.put(key, new Account(user, pwHash, pwSalt, balance));
+    } finally {
+      lock.unlock();
+    }
+    log.sync(end);
+    return true;
+  }
+
+  private static ByteBuffer createRecord(String user, byte[] pwHash, byte[] pwSalt, int balance) {
+    byte[] name = user.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer record = ByteBuffer.allocate(1 + 4 + name.length + 4 + pwHash.length + 4 + pwSalt.length + 4);
+    record.put(CREATE).putInt(name.length).put(name).putInt(pwHash.length).put(pwHash)
+            .putInt(pwSalt.length).put(pwSalt).putInt(balance).flip();
+    return record;
+  }
+
+  /**
+   * The user with the given name, for checking a password, or null
+   */
+  public Account account(String user) {
+    return accounts.get(key(user));
+  }
+
+  /**
+   * Books the itinerary for the user
+   *
+   * @param fid2 second flight, or -1 for a direct itinerary
+   * @return OK with the reservation ID as its value, SAME_DAY, or FULL if a
+   * flight is full or unknown, as in {@link BatchedTransactions}
+   */
+  public BatchedTransactions.Outcome book(String user, int fid1, int fid2) throws IOException {
+    Seats seats1 = flights.get(fid1);
+    Seats seats2 = fid2 < 0 ? null : flights.get(fid2);
+    if (seats1 == null || (fid2 >= 0 && seats2 == null)) {
+      return new BatchedTransactions.Outcome(BatchedTransactions.FULL, 0, 0);
+    }
+    compactIfLarge();
+    String key = key(user);
+    Lock lock = lock(key);
+    int rid;
+    int end;
+    lock.lock();
+    try {
+      Account account = accounts.get(key);
+      if (account == null) {
+        return new BatchedTransactions.Outcome(BatchedTransactions.NOT_FOUND, 0, 0);
+      }
+      for (Reservation r : account.reservations.values()) {
+        if (r.flight1.flight.dayOfMonth == seats1.flight.dayOfMonth) {
+          return new BatchedTransactions.Outcome(BatchedTransactions.SAME_DAY, 0, 0);
+        }
+      }
+      if (!seats1.reserve()) {
+        return new BatchedTransactions.Outcome(BatchedTransactions.FULL, 0, 0);
+      }
+      if (seats2 != null && !seats2.reserve()) {
+        seats1.release();
+        return new BatchedTransactions.Outcome(BatchedTransactions.FULL, 0, 0);
+      }
+      rid = nextId.getAndIncrement();
+      try {
+        end = log.append(bookRecord(rid, account.name, fid1, fid2));
+      } catch (IOException e) {
+        seats1.release();
+        if (seats2 != null) {
+          seats2.release();
+        }
+        throw e;
+      }
+      Reservation r = new Reservation(rid, account, seats1, seats2);
+      account.reservations.put(rid, r);
+      reservations.put(rid, r);
+    } finally {
+      lock.unlock();
+    }
+    log.sync(end);
+    return new BatchedTransactions.Outcome(BatchedTransactions.OK, rid, 0);
+  }
+
+  private static ByteBuffer bookRecord(int rid, String user, int fid1, int fid2) {
+    byte[] name = user.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer record = ByteBuffer.allocate(1 + 4 + 4 + name.length + 4 + 4);
+    record.put(BOOK).putInt(rid).putInt(name.length).put(name).putInt(fid1).putInt(fid2).flip();
+    return record;
+  }
+
+  /**
+   * Pays for an unpaid reservation of the user
+   *
+   * @return OK with the remaining balance as its value, INSUFFICIENT_FUNDS
+   * with the balance and the cost, or NOT_FOUND
+   */
+  public BatchedTransactions.Outcome pay(String user, int rid) throws IOException {
+    compactIfLarge();
+    String key = key(user);
+    Lock lock = lock(key);
+    int balance;
+    int end;
+    lock.lock();
+    try {
+      Account account = accounts.get(key);
+      Reservation r = account == null ? null : account.reservations.get(rid);
+      if (r == null || r.paid) {
+        return new BatchedTransactions.Outcome(BatchedTransactions.NOT_FOUND, 0, 0);
+      }
+      int cost = r.cost();
+      if (cost > account.balance) {
+        return new BatchedTransactions.Outcome(BatchedTransactions.INSUFFICIENT_FUNDS, account.balance, cost);
+      }
+      end = log.append(payRecord(rid));
+      r.paid = true;
+      account.balance -= cost;
+      balance = account.balance;
+    } finally {
+      lock.unlock();
+    }
+    log.sync(end);
+    return new BatchedTransactions.Outcome(BatchedTransactions.OK, balance, 0);
+  }
+
+  private static ByteBuffer payRecord(int rid) {
+    return ByteBuffer.allocate(5).put(PAY).putInt(rid).flip();
+  }
+
+  /**
+   * Cancels a reservation of the user, refunding it if it was paid
+   *
+   * @return OK or NOT_FOUND
+   */
+  public BatchedTransactions.Outcome cancel(String user, int rid) throws IOException {
+    compactIfLarge();
+    String key = key(user);
+    Lock lock = lock(key);
+    int end;
+    lock.lock();
+    try {
+      Account account = accounts.get(key);
+      Reservation r = account == null ? null : account.reservations.get(rid);
+      if (r == null) {
+        return new BatchedTransactions.Outcome(BatchedTransactions.NOT_FOUND, 0, 0);
+      }
+      end = log.append(ByteBuffer.allocate(5).put(CANCEL).putInt(rid).flip());
+      remove(r);
+    } finally {
+      lock.unlock();
+    }
+    log.sync(end);
+    return new BatchedTransactions.Outcome(BatchedTransactions.OK, 0, 0);
+  }
+
+  /**
+   * The user's reservations in the order they were booked
+   */
+  public List<ReservationCache.Reservation> reservations(String user) {
+    String key = key(user);
+    Lock lock = lock(key);
+    lock.lock();
+    try {
+      Account account = accounts.get(key);
+      if (account == null) {
+        return Collections.emptyList();
+      }
+      List<ReservationCache.Reservation> list = new ArrayList<>(account.reservations.size());
+      for (Reservation r : account.reservations.values()) {
+        list.add(new ReservationCache.Reservation(r.rid, r.paid, r.flight1.flight,
+                r.flight2 == null ? null : r.flight2.flight));
+      }
+      return list;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The names of all users, as they were created
+   */
+  public List<String> users() {
+    List<String> users = new ArrayList<>(accounts.size());
+    for (Account account : accounts.values()) {
+      users.add(account.name);
+    }
+    return users;
+  }
+
+  /**
+   * The user's balance, or -1 if there is no such user
+   */
+  public int balance(String user) {
+    String key = key(user);
+    Lock lock = lock(key);
+    lock.lock();
+    try {
+      Account account = accounts.get(key);
+      return account == null ? -1 : account.balance;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The generation of the user's session tokens (see {@link SessionTokens}),
+   * or -1 if there is no such user
+   */
+  public int tokenGeneration(String user) {
+    String key = key(user);
+    Lock lock = lock(key);
+    lock.lock();
+    try {
+      Account account = accounts.get(key);
+      return account == null ? -1 : account.tokenGeneration;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Bumps the generation of the user's session tokens, which revokes the ones
+   * issued so far
+   *
+   * @return false if there is no such user
+   */
+  public boolean revokeTokens(String user) throws IOException {
+    compactIfLarge();
+    String key = key(user);
+    Lock lock = lock(key);
+    int end;
+    lock.lock();
+    try {
+      Account account = accounts.get(key);
+      if (account == null) {
+        return false;
+      }
+      end = log.append(revokeRecord(account.name, account.tokenGeneration + 1));
+      account.tokenGeneration++;
+    } finally {
+      lock.unlock();
+    }
+    log.sync(end);
+    return true;
+  }
+
+  private static ByteBuffer revokeRecord(String user, int generation) {
+    byte[] name = user.getBytes(StandardCharsets.UTF_8);
+    return ByteBuffer.allocate(1 + 4 + name.length + 4).put(REVOKE).putInt(name.length).put(name)
+            .putInt(generation).flip();
+  }
+
+  /**
+   * Seats booked on the flight, or -1 if it is unknown
+   */
+  public int booked(int fid) {
+    Seats seats = flights.get(fid);
+    return seats == null ? -1 : seats.booked.get();
+  }
+
+  /**
+   * Forgets every user and reservation and empties the log. Must not run
+   * alongside other changes.
+   */
+  public void clear() {
+    for (Lock lock : stripes) {
+      lock.lock();
+    }
+    try {
+      log.clear();
+      accounts.clear();
+      reservations.clear();
+      for (Seats seats : flights.values()) {
+        seats.booked.set(0);
+      }
+      nextId.set(1);
+    } finally {
+      for (Lock lock : stripes) {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Rewrites the log as the records that bring back the current users and
+   * reservations, without the history that led to them. Must not run
+   * alongside other changes; they start it themselves once the log reaches
+   * its compaction size.
+   */
+  public void compact() throws IOException {
+    for (Lock lock : stripes) {
+      lock.lock();
+    }
+    try {
+      List<ByteBuffer> records = new ArrayList<>();
+      // the ID of a canceled reservation is not handed out again
+      records.add(ByteBuffer.allocate(5).put(NEXT_ID).putInt(nextId.get()).flip());
+      for (Account account : accounts.values()) {
+        // paying again on replay takes the balance back down to what it is
+        int balance = account.balance;
+        for (Reservation r : account.reservations.values()) {
+          if (r.paid) {
+            balance += r.cost();
+          }
+        }
+        records.add(createRecord(account.name, account.pwHash, account.pwSalt, balance));
+        if (account.tokenGeneration > 0) {
+          records.add(revokeRecord(account.name, account.tokenGeneration));
+        }
+        for (Reservation r : account.reservations.values()) {
+          records.add(bookRecord(r.rid, account.name, r.flight1.flight.fid,
+                  r.flight2 == null ? -1 : r.flight2.flight.fid));
+          if (r.paid) {
+            records.add(payRecord(r.rid));
+          }
+        }
+      }
+      log.rewrite(records);
+      // a state that fills most of the log is not compacted again and again
+      compactAt = Math.max(compactSize, 2L * log.size());
+    } finally {
+      for (Lock lock : stripes) {
+        lock.unlock();
+      }
+    }
+  }
+
+  // Compacts before a change if the log is large, while no stripe is held
+  private void compactIfLarge() throws IOException {
+    if (log.size() >= compactAt && compacting.compareAndSet(false, true)) {
+      try {
+        compact();
+      } finally {
+        compacting.set(false);
+      }
+    }
+  }
+
+  /**
+   * Bytes of records in the log
+   */
+  public int logSize() {
+    return log.size();
+  }
+
+  // Applies a record while the log is replayed. Records are facts, so the
+  // rules are not checked again, but one that does not fit the state so far
+  // can only be a stale record from before a crash or a clear, and ends the
+  // replay: it returns false without changing anything.
+  private boolean apply(ByteBuffer record) {
+    byte type = record.get();
+    switch (type) {
+      case CREATE: {
+        String user = string(record);
+        byte[] pwHash = bytes(record);
+        byte[] pwSalt = bytes(record);
+        return accounts.putIfAbsent(key(user), new Account(user, pwHash, pwSalt, record.getInt())) == null;
+      }
+      case BOOK: {
+        int rid = record.getInt();
+        Account account = accounts.get(key(string(record)));
+        Seats seats1 = flights.get(record.getInt());
+        int fid2 = record.getInt();
+        Seats seats2 = fid2 < 0 ? null : flights.get(fid2);
+        if (account == null || seats1 == null || (fid2 >= 0 && seats2 == null) || reservations.containsKey(rid)) {
+          return false;
+        }
+        seats1.booked.incrementAndGet();
+        if (seats2 != null) {
+          seats2.booked.incrementAndGet();
+        }
+        Reservation r = new Reservation(rid, account, seats1, seats2);
+        account.reservations.put(rid, r);
+        reservations.put(rid, r);
+        nextId.accumulateAndGet(rid + 1, Math::max);
+        return true;
+      }
+      case PAY: {
+        Reservation r = reservations.get(record.getInt());
+        if (r == null || r.paid) {
+          return false;
+        }
+        r.paid = true;
+        r.account.balance -= r.cost();
+        return true;
+      }
+      case CANCEL: {
+        Reservation r = reservations.get(record.getInt());
+        if (r == null) {
+          return false;
+        }
+        remove(r);
+        return true;
+      }
+      case NEXT_ID:
+        nextId.accumulateAndGet(record.getInt(), Math::max);
+        return true;
+      case REVOKE: {
+        Account account = accounts.get(key(string(record)));
+        if (account == null) {
+          return false;
+        }
+        account.tokenGeneration = record.getInt();
+        return true;
+      }
+      default:
+        return false;
+    }
+  }
+
+  private void remove(Reservation r) {
+    if (r.paid) {
+      r.account.balance += r.cost();
+    }
+    r.flight1.release();
+    if (r.flight2 != null) {
+      r.flight2.release();
+    }
+    r.account.reservations.remove(r.rid);
+    reservations.remove(r.rid);
+  }
+
+  private static String string(ByteBuffer record) {
+    return new String(bytes(record), StandardCharsets.UTF_8);
+  }
+
+  private static byte[] bytes(ByteBuffer record) {
+    byte[] bytes = new byte[record.getInt()];
+    record.get(bytes);
+    return bytes;
+  }
+
+  private static String key(String user) {
+    return user.toLowerCase(Locale.ROOT);
+  }
+
+  private Lock lock(String key) {
+    return stripes[(key.hashCode() & Integer.MAX_VALUE) % STRIPES];
+  }
+
+  @Override
+  public void close() throws IOException {
+    log.close();
+  }
+
+  /**
+   * A user's name as created, password hash and salt
+   */
+  public static class Account {
+    public final String name;
+    final byte[] pwHash;
+    final byte[] pwSalt;
+    // guarded by the user's stripe lock, as is the rest
+    int balance;
+    // of the user's session tokens; bumped to revoke them
+    int tokenGeneration;
+    // by reservation ID, so in booking order
+    final SortedMap<Integer, Reservation> reservations = new TreeMap<>();
+
+    Account(String name, byte[] pwHash, byte[] pwSalt, int balance) {
+      this.name = name;
+      this.pwHash = pwHash;
+      this.pwSalt = pwSalt;
+      this.balance = balance;
+    }
+  }
+
+  static class Reservation {
+    final int rid;
+    final Account account;
+    final Seats flight1;
+    final Seats flight2;
+    boolean paid;
+
+    Reservation(int rid, Account account, Seats flight1, Seats flight2) {
+      this.rid = rid;
+      this.account = account;
+      this.flight1 = flight1;
+      this.flight2 = flight2;
+    }
+
+    int cost() {
+      return flight1.flight.price + (flight2 == null ? 0 : flight2.flight.price);
+    }
+  }
+
+  // A flight and the seats booked on it
+  static class Seats {
+    final Query.Flight flight;
+    final AtomicInteger booked = new AtomicInteger();
+
+    Seats(Query.Flight flight) {
+      this.flight = flight;
+    }
+
+    boolean reserve() {
+      int n;
+      do {
+        n = booked.get();
+        if (n >= flight.capacity) {
+          return false;
+        }
+      } while (!booked.compareAndSet(n, n + 1));
+      return true;
+    }
+
+    void release() {
+      booked.decrementAndGet();
+    }
+  }
+}
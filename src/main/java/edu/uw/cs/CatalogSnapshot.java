@@ -0,0 +1,281 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * The flights of a {@link FlightCatalog} in a binary file that loads far
+ * faster than the Flights table, so that a new node can serve searches soon
+ * after it starts.
+ * <p>
+ * The file is a header followed by one column per Flight field, each an int
+ * per flight. Carriers, flight numbers and cities are stored as indexes into
+ * a dictionary at the end, so each distinct string is stored and decoded
+ * once:
+ * <pre>
+ * header:     magic "FLTS", version, flights, strings, CRC32C of the rest (long),
+ *             the {@link Key} of the table it was taken from (two longs)
+ * columns:    fid, day_of_month, carrier_id, flight_num, origin_city,
+ *             dest_city, actual_time, capacity, price
+ * dictionary: strings + 1 offsets into the UTF-8 bytes that follow, then the bytes
+ * </pre>
+ * Reading maps the file and copies each column out in bulk. A file with
+ * another magic or version, a different length or a checksum that does not
+ * match is rejected.
+ */
+public final class CatalogSnapshot {
+  static final int MAGIC = 0x464C5453;
+  static final int VERSION = 2;
+  private static final int HEADER = 40;
+  private static final int COLUMNS = 9;
+  // a null string, which the columns may hold in principle
+  private static final int NULL = -1;
+
+  private CatalogSnapshot() {
+  }
+
+  /**
+   * The snapshot file named by hw1.flight_catalog_snapshot, or null if it is
+   * not set
+   */
+  public static Path fromConfig(Properties configProps) {
+    String file = configProps.getProperty("hw1.flight_catalog_snapshot", "").trim();
+    return file.isEmpty() ? null : Paths.get(file);
+  }
+
+  /**
+   * Writes the flights, read from a table with the given key, to the file,
+   * replacing it at once so that nobody reads it half written
+   */
+  public static void write(Collection<Query.Flight> flights, Key key, Path file) throws IOException {
+    Map<String, Integer> indexes = new HashMap<>();
+    List<byte[]> strings = new ArrayList<>();
+    int n = flights.size();
+    int[][] columns = new int[COLUMNS][n];
+    int i = 0;
+    for (Query.Flight f : flights) {
+      columns[0][i] = f.fid;
+      columns[1][i] = f.dayOfMonth;
+      columns[2][i] = index(indexes, strings, f.carrierId);
+      columns[3][i] = index(indexes, strings, f.flightNum);
+      columns[4][i] = index(indexes, strings, f.originCity);
+      columns[5][i] = index(indexes, strings, f.destCity);
+      columns[6][i] = f.time;
+      columns[7][i] = f.capacity;
+      columns[8][i] = f.price;
+      i++;
+    }
+    int bytes = 0;
+    for (byte[] s : strings) {
+      bytes += s.length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER + 4 * (COLUMNS * n + strings.size() + 1) + bytes);
+    buffer.position(HEADER);
+    for (int[] column : columns) {
+      buffer.asIntBuffer().put(column);
+      buffer.position(buffer.position() + 4 * n);
+    }
+    int offset = 0;
+    for (byte[] s : strings) {
+      buffer.putInt(offset);
+      offset += s.length;
+    }
+    buffer.putInt(offset);
+    for (byte[] s : strings) {
+      buffer.put(s);
+    }
+    buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, n).putInt(12, strings.size())
+            .putLong(16, checksum(buffer.slice(HEADER, buffer.capacity() - HEADER)))
+            .putLong(24, key.flights).putLong(32, key.checksum);
+
+    Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        buffer.rewind();
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(true);
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static int index(Map<String, Integer> indexes, List<byte[]> strings, String s) {
+    if (s == null) {
+      return NULL;
+    }
+    Integer index = indexes.get(s);
+    if (index == null) {
+      index = strings.size();
+      indexes.put(s, index);
+      strings.add(s.getBytes(StandardCharsets.UTF_8));
+    }
+    return index;
+  }
+
+  /**
+   * Reads the key of the table the file was taken from, without checking the
+   * rest of the file
+   *
+   * @throws IOException if it cannot be read or is not a snapshot of this
+   * version
+   */
+  public static Key readKey(Path file) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+        // read until full or at the end
+      }
+    }
+    if (header.hasRemaining()) {
+      throw invalid(file, "its length");
+    } else if (header.getInt(0) != MAGIC) {
+      throw invalid(file, "its magic number");
+    } else if (header.getInt(4) != VERSION) {
+      throw invalid(file, "version " + header.getInt(4));
+    }
+    return new Key(header.getLong(24), header.getLong(32));
+  }
+
+  /**
+   * Reads the flights from the file
+   *
+   * @throws IOException if it cannot be read or is not a valid snapshot
+   */
+  public static List<Query.Flight> read(Path file) throws IOException {
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER || channel.size() > Integer.MAX_VALUE) {
+        throw invalid(file, "its length");
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buffer.getInt(0) != MAGIC) {
+      throw invalid(file, "its magic number");
+    } else if (buffer.getInt(4) != VERSION) {
+      throw invalid(file, "version " + buffer.getInt(4));
+    }
+    int n = buffer.getInt(8);
+    int stringCount = buffer.getInt(12);
+    long dictionary = HEADER + 4L * COLUMNS * n;
+    if (n < 0 || stringCount < 0 || dictionary + 4L * (stringCount + 1) > buffer.capacity()) {
+      throw invalid(file, "its length");
+    }
+    int bytesStart = (int) dictionary + 4 * (stringCount + 1);
+    if ((long) bytesStart + buffer.getInt((int) dictionary + 4 * stringCount) != buffer.capacity()) {
+      throw invalid(file, "its length");
+    }
+    if (checksum(buffer.slice(HEADER, buffer.capacity() - HEADER)) != buffer.getLong(16)) {
+      throw invalid(file, "its checksum");
+    }
+
+    int[][] columns = new int[COLUMNS][n];
+    for (int c = 0; c < COLUMNS; c++) {
+      buffer.slice(HEADER + 4 * c * n, 4 * n).asIntBuffer().get(columns[c]);
+    }
+    String[] strings = new String[stringCount];
+    for (int s = 0; s < stringCount; s++) {
+      int from = buffer.getInt((int) dictionary + 4 * s);
+      int to = buffer.getInt((int) dictionary + 4 * (s + 1));
+      byte[] bytes = new byte[to - from];
+      buffer.get(bytesStart + from, bytes);
+      strings[s] = new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    List<Query.Flight> flights = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      Query.Flight f = new Query.Flight();
+      f.fid = columns[0][i];
+      f.dayOfMonth = columns[1][i];
+      f.carrierId = string(strings, columns[2][i]);
+      f.flightNum = string(strings, columns[3][i]);
+      f.originCity = string(strings, columns[4][i]);
+      f.destCity = string(strings, columns[5][i]);
+      f.time = columns[6][i];
+      f.capacity = columns[7][i];
+      f.price = columns[8][i];
+      flights.add(f);
+    }
+    return flights;
+  }
+
+  private static String string(String[] strings, int index) {
+    return index == NULL ? null : strings[index];
+  }
+
+  private static long checksum(ByteBuffer bytes) {
+    CRC32C crc = new CRC32C();
+    crc.update(bytes);
+    return crc.getValue();
+  }
+
+  /**
+   * Usage: CatalogSnapshot [file]
+   * <p>
+   * Writes the non-canceled flights of the configured database to the file,
+   * or to the one named by hw1.flight_catalog_snapshot
+   */
+  public static void main(String[] args) throws Exception {
+    Properties configProps = Query.loadConfig();
+    Path file = args.length > 0 ? Paths.get(args[0]) : fromConfig(configProps);
+    if (file == null) {
+      System.err.println("Usage: export-catalog [file], or set hw1.flight_catalog_snapshot");
+      System.exit(1);
+    }
+    try (QueryFactory factory = QueryFactory.fromConfig(configProps);
+         ConnectionPool.Lease lease = factory.pool().lease()) {
+      int flights = FlightCatalog.export(lease.connection(), file, factory.dialect());
+      System.out.println("Wrote " + flights + " flights to " + file);
+    }
+  }
+
+  private static IOException invalid(Path file, String what) {
+    return new IOException(file + " is not a flight catalog snapshot: unexpected " + what);
+  }
+
+  /**
+   * What a snapshot was taken of: the number of non-canceled flights and the
+   * database's checksum of their contents, so that changing any flight, or
+   * canceling one and restoring another, makes the snapshot out of date
+   */
+  public static final class Key {
+    final long flights;
+    final long checksum;
+
+    Key(long flights, long checksum) {
+      this.flights = flights;
+      this.checksum = checksum;
+    }
+
+    /**
+     * The key of the Flights table as it is now
+     */
+    static Key of(Connection conn, Dialect dialect) throws SQLException {
+      try (Statement statement = conn.createStatement();
+           ResultSet results = statement.executeQuery(dialect.flightsChecksum())) {
+        results.next();
+        // the checksum of no rows is NULL, read as 0
+        return new Key(results.getLong(1), results.getLong(2));
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && ((Key) o).flights == flights && ((Key) o).checksum == checksum;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(flights) * 31 + Long.hashCode(checksum);
+    }
+  }
+}
@@ -0,0 +1,283 @@
+package edu.uw.cs;
+
+import java.util.*;
+
+/**
+ * A command line split into tokens in one pass, with the command it names.
+ * <p>
+ * Tokens are separated by whitespace, and a token in double quotes may
+ * contain whitespace, as before with the regex {@code "([^"]*)"|(\S+)}.
+ * Parsing records where each token starts and ends and allocates nothing;
+ * only the tokens a command passes on as strings become strings, and numbers
+ * are read straight from the line. A command is reused for every line of its
+ * {@link Session}, so it must only be used by one thread at a time.
+ */
+final class Command {
+  /**
+   * The commands, each with its keyword and what it takes
+   */
+  enum Type {
+    CREATE("create", 4, "Error: Please provide a username, password, and initial amount in the account") {
+      @Override
+      String run(Query q, Session session, Command c) {
+        int amount = c.intToken(3);
+        return c.malformed ? PARSE_ERROR
+                : q.transaction_createCustomer(session, c.token(1), c.token(2), amount);
+      }
+    },
+    LOGIN("login", 3, "Error: Please provide a username and password") {
+      @Override
+      String run(Query q, Session session, Command c) {
+        return q.transaction_login(session, c.token(1), c.token(2));
+      }
+    },
+    RESUME("resume", 2, "Error: Please provide a session token") {
+      @Override
+      String run(Query q, Session session, Command c) {
+        return q.transaction_resume(session, c.token(1));
+      }
+    },
+    REVOKE("revoke", 0, null) {
+      @Override
+      String run(Query q, Session session, Command c) {
+        return q.transaction_revokeTokens(session);
+      }
+    },
+    SEARCH("search", 6, "Error: Please provide all search parameters <origin_city> <destination_city> <direct> "
+            + "<date> <nb itineraries>") {
+      @Override
+      String run(Query q, Session session, Command c) {
+        int day = c.intToken(4);
+        int count = c.intToken(5);
+        return c.malformed ? PARSE_ERROR : q.transaction_search(session, c.token(1), c.token(2), c.direct(),
+                day, count);
+      }
+    },
+    BOOK("book", 2, "Error: Please provide an itinerary_id") {
+      @Override
+      String run(Query q, Session session, Command c) {
+        int id = c.intToken(1);
+        return c.malformed ? PARSE_ERROR : q.transaction_book(session, id);
+      }
+    },
+    PAY("pay", 2, "Error: Please provide a reservation_id") {
+      @Override
+      String run(Query q, Session session, Command c) {
+        int id = c.intToken(1);
+        return c.malformed ? PARSE_ERROR : q.transaction_pay(session, id);
+      }
+    },
+    RESERVATIONS("reservations", 0, null) {
+      @Override
+      String run(Query q, Session session, Command c) {
+        return q.transaction_reservations(session);
+      }
+    },
+    CANCEL("cancel", 2, "Error: Please provide a reservation_id") {
+      @Override
+      String run(Query q, Session session, Command c) {
+        int id = c.intToken(1);
+        return c.malformed ? PARSE_ERROR : q.transaction_cancel(session, id);
+      }
+    },
+    QUIT("quit", 0, null) {
+      @Override
+      String run(Query q, Session session, Command c) {
+        return "Goodbye\n";
+      }
+    },
+    EMPTY("other", 0, null) {
+      @Override
+      String run(Query q, Session session, Command c) {
+        return "Please enter a command";
+      }
+    },
+    UNKNOWN("other", 0, null) {
+      @Override
+      String run(Query q, Session session, Command c) {
+        session.failed = true;
+        return "Error: unrecognized command '" + c.token(0) + "'";
+      }
+    };
+
+    static final String PARSE_ERROR = "Failed to parse integer";
+    // the types a first token can name
+    private static final Type[] NAMED = {CREATE, LOGIN, RESUME, REVOKE, SEARCH, BOOK, PAY, RESERVATIONS, CANCEL, QUIT};
+
+    /** The command's name in metrics, "other" for lines that name none */
+    final String keyword;
+    // tokens the command needs including its name, or 0 if it ignores them
+    private final int tokens;
+    private final String usage;
+
+    Type(String keyword, int tokens, String usage) {
+      this.keyword = keyword;
+      this.tokens = tokens;
+      this.usage = usage;
+    }
+
+    abstract String run(Query q, Session session, Command c);
+
+    /**
+     * Runs the command, or answers with its usage if it has the wrong number
+     * of tokens. Either way a command that was not carried out marks the
+     * session failed.
+     */
+    String execute(Query q, Session session, Command c) {
+      if (tokens != 0 && c.count != tokens) {
+        session.failed = true;
+        return usage;
+      }
+      String response = run(q, session, c);
+      if (c.malformed) {
+        session.failed = true;
+      }
+      return response;
+    }
+
+    /** Whether the command only reads from the database */
+    boolean isReadOnly() {
+      return this == SEARCH || this == RESERVATIONS;
+    }
+  }
+
+  private String line;
+  private Type type = Type.EMPTY;
+  private int count;
+  // where each token starts and ends; grown for longer lines and then kept
+  private int[] starts = new int[8];
+  private int[] ends = new int[8];
+  // set by intToken when a token is not an int
+  private boolean malformed;
+
+  /**
+   * Splits the line into tokens and finds the command it names
+   *
+   * @return this command
+   */
+  Command parse(String line) {
+    this.line = line;
+    count = 0;
+    malformed = false;
+    int n = line.length();
+    int i = 0;
+    while (i < n) {
+      char c = line.charAt(i);
+      if (isWhitespace(c)) {
+        i++;
+        continue;
+      }
+      if (c == '"') {
+        int close = line.indexOf('"', i + 1);
+        if (close >= 0) {
+          add(i + 1, close);
+          i = close + 1;
+          continue;
+        }
+      }
+      int end = i + 1;
+      while (end < n && !isWhitespace(line.charAt(end))) {
+        end++;
+      }
+      add(i, end);
+      i = end;
+    }
+    type = count == 0 ? Type.EMPTY : lookup();
+    return this;
+  }
+
+  private void add(int start, int end) {
+    if (count == starts.length) {
+      starts = Arrays.copyOf(starts, 2 * count);
+      ends = Arrays.copyOf(ends, 2 * count);
+    }
+    starts[count] = start;
+    ends[count] = end;
+    count++;
+  }
+
+  private Type lookup() {
+    int length = ends[0] - starts[0];
+    for (Type t : Type.NAMED) {
+      if (t.keyword.length() == length && line.startsWith(t.keyword, starts[0])) {
+        return t;
+      }
+    }
+    return Type.UNKNOWN;
+  }
+
+  // The characters \s matches
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  Type type() {
+    return type;
+  }
+
+  /** Number of tokens, including the command's name */
+  int count() {
+    return count;
+  }
+
+  /**
+   * The token as a string
+   */
+  String token(int i) {
+    return line.substring(starts[i], ends[i]);
+  }
+
+  /**
+   * The direct flag of a search: true only if its token is exactly "1"
+   */
+  boolean direct() {
+    return ends[3] - starts[3] == 1 && line.charAt(starts[3]) == '1';
+  }
+
+  /**
+   * Whether a token read by {@link #intToken} was not an int
+   */
+  boolean isMalformed() {
+    return malformed;
+  }
+
+  /**
+   * The token as a decimal int with an optional sign, as Integer.parseInt
+   * reads it. If it is not one, returns 0 and marks the command malformed.
+   */
+  int intToken(int i) {
+    int at = starts[i];
+    int end = ends[i];
+    boolean negative = false;
+    if (at < end && (line.charAt(at) == '-' || line.charAt(at) == '+')) {
+      negative = line.charAt(at) == '-';
+      at++;
+    }
+    if (at == end) {
+      malformed = true;
+      return 0;
+    }
+    // accumulate negatively, so that Integer.MIN_VALUE fits
+    int value = 0;
+    for (; at < end; at++) {
+      int digit = Character.digit(line.charAt(at), 10);
+      if (digit < 0 || value < (Integer.MIN_VALUE + digit) / 10) {
+        malformed = true;
+        return 0;
+      }
+      value = value * 10 - digit;
+    }
+    if (!negative && value == Integer.MIN_VALUE) {
+      malformed = true;
+      return 0;
+    }
+    return negative ? value : -value;
+  }
+
+  /**
+   * Runs the command with the given engine and session
+   */
+  String execute(Query q, Session session) {
+    return type.execute(q, session, this);
+  }
+}
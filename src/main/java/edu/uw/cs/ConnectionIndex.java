@@ -0,0 +1,153 @@
+package edu.uw.cs;
+
+import java.util.*;
+
+/**
+ * One-hop connection index built from a {@link FlightCatalog}.
+ * <p>
+ * For every (origin_city, day_of_month) the index keeps the outbound legs
+ * grouped by the hub they land in. An indirect search walks the hubs and does a
+ * bounded top-K merge over (first leg, second leg) pairs, which replaces the
+ * Flights self-join in GET_INDIRECT_FLIGHTS. Results come back ordered by total
+ * duration, then fid1, then fid2, just like the SQL query.
+ */
+public class ConnectionIndex {
+
+  /**
+   * Outbound legs from one origin, on one day, that land in the same hub
+   */
+  static class Hub {
+    final String city;
+    // sorted by (actual_time, fid)
+    final Query.Flight[] legs;
+
+    Hub(String city, Query.Flight[] legs) {
+      this.city = city;
+      this.legs = legs;
+    }
+  }
+
+  private static final Hub[] NO_HUBS = new Hub[0];
+
+  private final FlightCatalog catalog;
+  // origin city in lower case -> day of month -> hubs reachable on that day
+  private final Map<String, Hub[][]> outbound = new HashMap<>();
+
+  ConnectionIndex(FlightCatalog catalog) {
+    this.catalog = catalog;
+    for (String origin : catalog.origins()) {
+      List<List<Hub>> days = new ArrayList<>();
+      for (Map.Entry<String, Query.Flight[][]> route : catalog.routesFrom(origin).entrySet()) {
+        Query.Flight[][] byDay = route.getValue();
+        for (int day = 0; day < byDay.length; day++) {
+          if (byDay[day].length == 0) {
+            continue;
+          }
+          while (days.size() <= day) {
+            days.add(new ArrayList<>());
+          }
+          days.get(day).add(new Hub(route.getKey(), byDay[day]));
+        }
+      }
+      Hub[][] hubs = new Hub[days.size()][];
+      for (int day = 0; day < hubs.length; day++) {
+        hubs[day] = days.get(day).toArray(NO_HUBS);
+      }
+      outbound.put(origin, hubs);
+    }
+  }
+
+  /**
+   * Hubs reachable from {@code originCity} with a direct flight on the given day
+   */
+  Hub[] hubs(String originCity, int dayOfMonth) {
+    Hub[][] days = outbound.get(FlightCatalog.key(originCity));
+    if (days == null || dayOfMonth < 0 || dayOfMonth >= days.length) {
+      return NO_HUBS;
+    }
+    return days[dayOfMonth];
+  }
+
+  /**
+   * Returns at most {@code limit} two-leg itineraries from {@code originCity} to
+   * {@code destCity} where both legs fly on {@code dayOfMonth}, in the same
+   * order as GET_INDIRECT_FLIGHTS. Each element holds the first and second leg.
+   */
+  public List<Query.Flight[]> indirectFlights(String originCity, String destCity, int dayOfMonth, int limit) {
+    List<Query.Flight[]> results = new ArrayList<>();
+    Iterator<Query.Flight[]> it = indirectIterator(originCity, destCity, dayOfMonth);
+    while (results.size() < limit && it.hasNext()) {
+      results.add(it.next());
+    }
+    return results;
+  }
+
+  /**
+   * Walks every two-leg itinerary of {@link #indirectFlights} lazily, in the
+   * same order, so that a caller streaming results holds only the merge
+   * frontier instead of the whole list
+   */
+  public Iterator<Query.Flight[]> indirectIterator(String originCity, String destCity, int dayOfMonth) {
+    // Every hub contributes a sorted grid of (first leg, second leg) pairs whose
+    // rows and columns only grow in (total, fid1, fid2) order, so the grid can be
+    // walked lazily: the frontier starts at each hub's (0, 0) and popping (i, j)
+    // exposes (i, j + 1) and, from the first column, (i + 1, 0).
+    PriorityQueue<Pair> frontier = new PriorityQueue<>();
+    // lower-cased once rather than for every hub
+    String dest = FlightCatalog.key(destCity);
+    for (Hub hub : hubs(originCity, dayOfMonth)) {
+      Query.Flight[] second = catalog.flights(hub.city, dest, dayOfMonth);
+      if (second.length > 0) {
+        frontier.add(new Pair(hub.legs, second, 0, 0));
+      }
+    }
+    return new Iterator<Query.Flight[]>() {
+      @Override
+      public boolean hasNext() {
+        return !frontier.isEmpty();
+      }
+
+      @Override
+      public Query.Flight[] next() {
+        Pair p = frontier.remove();
+        if (p.j + 1 < p.second.length) {
+          frontier.add(new Pair(p.first, p.second, p.i, p.j + 1));
+        }
+        if (p.j == 0 && p.i + 1 < p.first.length) {
+          frontier.add(new Pair(p.first, p.second, p.i + 1, 0));
+        }
+        return new Query.Flight[]{p.first[p.i], p.second[p.j]};
+      }
+    };
+  }
+
+  /**
+   * A candidate itinerary on the merge frontier
+   */
+  private static class Pair implements Comparable<Pair> {
+    final Query.Flight[] first;
+    final Query.Flight[] second;
+    final int i;
+    final int j;
+    final int totalDuration;
+
+    Pair(Query.Flight[] first, Query.Flight[] second, int i, int j) {
+      this.first = first;
+      this.second = second;
+      this.i = i;
+      this.j = j;
+      this.totalDuration = first[i].time + second[j].time;
+    }
+
+    @Override
+    public int compareTo(Pair o) {
+      if (totalDuration != o.totalDuration) {
+        return Integer.compare(totalDuration, o.totalDuration);
+      }
+      if (first[i].fid != o.first[o.i].fid) {
+        return Integer.compare(first[i].fid, o.first[o.i].fid);
+      }
+      return Integer.compare(second[j].fid, o.second[o.j].fid);
+    }
+  }
+}
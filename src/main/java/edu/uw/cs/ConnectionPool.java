@@ -0,0 +1,348 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A bounded pool of application-to-database connections.
+ * <p>
+ * Connections are opened lazily up to {@code maxSize}, validated before being
+ * handed out if they sat idle for a while, and closed once they have been idle
+ * longer than the idle timeout. Each physical connection keeps its own cache of
+ * prepared statements so that a new session does not have to prepare them again.
+ */
+public class ConnectionPool implements AutoCloseable {
+  private static final int DEFAULT_MAX_SIZE = 10;
+  private static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+  private static final long DEFAULT_IDLE_TIMEOUT_SECONDS = 300;
+  private static final long DEFAULT_WAIT_SECONDS = 30;
+  // connections idle for less than this are handed out without a validity check
+  private static final long VALIDATE_AFTER_MILLIS = 5000;
+  private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+  private final String url;
+  private final int maxSize;
+  private final int statementCacheSize;
+  private final long idleTimeoutMillis;
+  private final long waitMillis;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition available = lock.newCondition();
+  // most recently returned connections first, so the warmest one is reused
+  private final Deque<PooledConnection> idle = new ArrayDeque<>();
+  private int total;
+  private boolean closed;
+
+  private final ScheduledExecutorService evictor;
+  private volatile Metrics metrics;
+
+  public ConnectionPool(String url, int maxSize, int statementCacheSize, long idleTimeoutMillis, long waitMillis) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("Pool size must be at least 1");
+    }
+    this.url = url;
+    this.maxSize = maxSize;
+    this.statementCacheSize = statementCacheSize;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.waitMillis = waitMillis;
+    this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "connection-pool-evictor");
+      t.setDaemon(true);
+      return t;
+    });
+    long period = Math.max(1000, idleTimeoutMillis / 2);
+    evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Creates a pool for the server in the configuration settings. Sizes and
+   * timeouts come from the optional hw1.pool_* settings.
+   */
+  public static ConnectionPool fromConfig(Properties configProps) {
+    return new ConnectionPool(Query.connectionUrl(configProps),
+            intSetting(configProps, "hw1.pool_size", DEFAULT_MAX_SIZE),
+            intSetting(configProps, "hw1.pool_statement_cache_size", DEFAULT_STATEMENT_CACHE_SIZE),
+            TimeUnit.SECONDS.toMillis(intSetting(configProps, "hw1.pool_idle_timeout_seconds",
+                    (int) DEFAULT_IDLE_TIMEOUT_SECONDS)),
+            TimeUnit.SECONDS.toMillis(intSetting(configProps, "hw1.pool_wait_seconds", (int) DEFAULT_WAIT_SECONDS)));
+  }
+
+  /**
+   * Times every execution of the statements prepared from now on. Pass null to
+   * stop timing newly prepared statements.
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  static int intSetting(Properties configProps, String key, int defaultValue) {
+    String value = configProps.getProperty(key);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    return Integer.parseInt(value.trim());
+  }
+
+  /**
+   * Borrows a connection, opening a new one if none is idle and the pool is not
+   * full. Blocks until one is returned otherwise.
+   *
+   * @throws SQLException if no connection became available in time or a new
+   *                      connection could not be opened
+   */
+  public Lease lease() throws SQLException {
+    PooledConnection pc = null;
+    lock.lock();
+    try {
+      long remaining = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+      while (pc == null) {
+        if (closed) {
+          throw new SQLException("Connection pool is closed");
+        }
+        if (!idle.isEmpty()) {
+          pc = idle.pollFirst();
+        } else if (total < maxSize) {
+          // reserve the slot, then connect outside the lock
+          total++;
+          break;
+        } else {
+          if (remaining <= 0) {
+            throw new SQLException("Timed out waiting for a database connection");
+          }
+          try {
+            remaining = available.awaitNanos(remaining);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+          }
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    if (pc != null && !isHealthy(pc)) {
+      pc.closeQuietly();
+      pc = null;
+    }
+    if (pc == null) {
+      try {
+        pc = new PooledConnection(open());
+      } catch (SQLException | RuntimeException e) {
+        discard();
+        throw e;
+      }
+    }
+    return new Lease(pc, false);
+  }
+
+  private Connection open() throws SQLException {
+    Connection conn = DriverManager.getConnection(url);
+    // By default, automatically commit after each statement
+    conn.setAutoCommit(true);
+    // Statements outside a transaction only read; every transaction sets the
+    // isolation level it needs
+    conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+    return conn;
+  }
+
+  private boolean isHealthy(PooledConnection pc) {
+    if (System.currentTimeMillis() - pc.lastUsed < VALIDATE_AFTER_MILLIS) {
+      return true;
+    }
+    try {
+      return pc.conn.isValid(VALIDATION_TIMEOUT_SECONDS);
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+
+  private void release(PooledConnection pc) {
+    boolean reusable;
+    try {
+      // a session must never see another session's half-finished transaction
+      if (!pc.conn.getAutoCommit()) {
+        pc.conn.rollback();
+        pc.conn.setAutoCommit(true);
+      }
+      reusable = !pc.conn.isClosed();
+    } catch (SQLException e) {
+      reusable = false;
+    }
+    if (!reusable) {
+      pc.closeQuietly();
+      discard();
+      return;
+    }
+
+    pc.lastUsed = System.currentTimeMillis();
+    lock.lock();
+    try {
+      if (closed) {
+        total--;
+      } else {
+        idle.addFirst(pc);
+        available.signal();
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    pc.closeQuietly();
+  }
+
+  // Gives back the slot of a connection that was closed instead of returned
+  private void discard() {
+    lock.lock();
+    try {
+      total--;
+      available.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void evictIdle() {
+    List<PooledConnection> expired = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    lock.lock();
+    try {
+      // the least recently used connections sit at the tail
+      while (!idle.isEmpty() && now - idle.peekLast().lastUsed > idleTimeoutMillis) {
+        expired.add(idle.pollLast());
+        total--;
+      }
+    } finally {
+      lock.unlock();
+    }
+    for (PooledConnection pc : expired) {
+      pc.closeQuietly();
+    }
+  }
+
+  /**
+   * Number of open physical connections, borrowed or idle
+   */
+  public int size() {
+    lock.lock();
+    try {
+      return total;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Closes every idle connection and stops handing out new ones. Borrowed
+   * connections are closed when they are returned.
+   */
+  @Override
+  public void close() {
+    List<PooledConnection> toClose;
+    lock.lock();
+    try {
+      closed = true;
+      toClose = new ArrayList<>(idle);
+      total -= idle.size();
+      idle.clear();
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    evictor.shutdownNow();
+    for (PooledConnection pc : toClose) {
+      pc.closeQuietly();
+    }
+  }
+
+  /**
+   * A physical connection together with its prepared statement cache
+   */
+  private class PooledConnection {
+    final Connection conn;
+    final Map<String, PreparedStatement> statements;
+    long lastUsed = System.currentTimeMillis();
+
+    PooledConnection(Connection conn) {
+      this.conn = conn;
+      this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+          if (size() > statementCacheSize) {
+            try {
+              eldest.getValue().close();
+            } catch (SQLException e) {
+            }
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+
+    void closeQuietly() {
+      try {
+        conn.close();
+      } catch (SQLException e) {
+      }
+    }
+  }
+
+  /**
+   * Exclusive use of one pooled connection. Closing the lease returns the
+   * connection to the pool; it does not close the connection itself.
+   */
+  public class Lease implements AutoCloseable {
+    private PooledConnection pc;
+    // shared leases borrow another lease's connection and do not return it
+    private final boolean shared;
+
+    private Lease(PooledConnection pc, boolean shared) {
+      this.pc = pc;
+      this.shared = shared;
+    }
+
+    /**
+     * Another handle on the same connection, for code that must not end this
+     * lease. Closing it does nothing.
+     */
+    public Lease share() {
+      return new Lease(pc, true);
+    }
+
+    public boolean isShared() {
+      return shared;
+    }
+
+    public Connection connection() {
+      return pc.conn;
+    }
+
+    /**
+     * Returns a prepared statement for the given SQL, reusing the one cached on
+     * this connection if there is one
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement statement = pc.statements.get(sql);
+      if (statement == null || statement.isClosed()) {
+        statement = pc.conn.prepareStatement(sql);
+        Metrics metrics = ConnectionPool.this.metrics;
+        if (metrics != null) {
+          statement = metrics.timed(statement, sql);
+        }
+        pc.statements.put(sql, statement);
+      }
+      return statement;
+    }
+
+    @Override
+    public void close() {
+      if (pc != null && !shared) {
+        release(pc);
+      }
+      pc = null;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package edu.uw.cs;
+
+/**
+ * The statements that a database writes differently from SQL Server, as
+ * supplied by its {@link Storage}.
+ * <p>
+ * The defaults are the T-SQL that {@link Query} was written for. H2 in its
+ * MSSQLServer mode accepts most of it (TOP (?), BEGIN TRANSACTION) but rejects
+ * "COMMIT TRANSACTION" and "ROLLBACK TRANSACTION", where it expects a
+ * savepoint name after TRANSACTION, and only splits a command into statements
+ * at semicolons. A backend found through {@link java.util.ServiceLoader}
+ * returns a Dialect of its own that overrides what its database needs.
+ */
+public interface Dialect {
+  /** The columns of Flights a {@link FlightCatalog} holds */
+  String FLIGHT_COLUMNS =
+          "fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price";
+
+  /** Microsoft SQL Server and Azure SQL Database */
+  Dialect SQL_SERVER = new Dialect() {
+    @Override
+    public String toString() {
+      return "SQL Server";
+    }
+  };
+
+  /** H2 in MSSQLServer compatibility mode */
+  Dialect H2 = new Dialect() {
+    @Override
+    public String flightsChecksum() {
+      // no CHECKSUM_AGG; a sum of row hashes is just as independent of order
+      return "SELECT COUNT(*), SUM(ORA_HASH(CONCAT_WS('|', " + FLIGHT_COLUMNS + "))) "
+              + "FROM Flights WHERE canceled = 0";
+    }
+
+    @Override
+    public String commit() {
+      return "COMMIT;";
+    }
+
+    @Override
+    public String rollback() {
+      return "ROLLBACK;";
+    }
+
+    @Override
+    public String batch(String... statements) {
+      return String.join("; ", statements);
+    }
+
+    @Override
+    public boolean supportsBatchedTransactions() {
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return "H2";
+    }
+  };
+
+  /**
+   * Ends the transaction begun with BEGIN TRANSACTION and keeps its changes
+   */
+  default String commit() {
+    return "COMMIT TRANSACTION;";
+  }
+
+  /**
+   * Ends the transaction begun with BEGIN TRANSACTION and undoes its changes
+   */
+  default String rollback() {
+    return "ROLLBACK TRANSACTION";
+  }
+
+  /**
+   * A query for the number of non-canceled flights and a checksum of their
+   * {@link #FLIGHT_COLUMNS}, both read as longs, which tells whether a
+   * {@link CatalogSnapshot} still matches the table
+   */
+  default String flightsChecksum() {
+    return "SELECT COUNT(*), CHECKSUM_AGG(BINARY_CHECKSUM(" + FLIGHT_COLUMNS + ")) "
+            + "FROM Flights WHERE canceled = 0";
+  }
+
+  /**
+   * The given statements as one command
+   */
+  default String batch(String... statements) {
+    return String.join(" ", statements);
+  }
+
+  /**
+   * Whether book, pay and cancel can run as the T-SQL batches of
+   * {@link BatchedTransactions}, which need variables and control flow (see
+   * {@link Query#setBatchedTransactions})
+   */
+  default boolean supportsBatchedTransactions() {
+    return true;
+  }
+}
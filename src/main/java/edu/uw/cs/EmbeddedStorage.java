@@ -0,0 +1,126 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * An H2 database running inside this process in SQL Server mode, so that a
+ * single node or a benchmark needs no server and no network round trips.
+ * <p>
+ * The database is kept in memory for the life of the process, or in a file
+ * if hw1.embedded_path is set. On first use it gets the tables of
+ * createTables.sql and a Flights table with the columns the application
+ * reads, filled from the CSV file named by hw1.embedded_flights if there is
+ * one. The CSV needs a header row naming those columns; others are ignored.
+ */
+public class EmbeddedStorage implements Storage {
+  static final String NAME = "embedded";
+
+  // MSSQLServer mode for the T-SQL syntax; H2 otherwise gives up on a lock
+  // after one second, where SQL Server waits
+  private static final String SETTINGS =
+          ";MODE=MSSQLServer;DATABASE_TO_UPPER=FALSE;CASE_INSENSITIVE_IDENTIFIERS=TRUE;LOCK_TIMEOUT=10000";
+
+  private static final String FLIGHT_COLUMNS =
+          "fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, canceled, actual_time, capacity, price";
+
+  static final String CREATE_FLIGHTS =
+          "CREATE TABLE Flights(fid INT PRIMARY KEY, day_of_month INT, carrier_id VARCHAR(7), flight_num INT, "
+                  + "origin_city VARCHAR(34), dest_city VARCHAR(34), canceled INT, actual_time INT, capacity INT, "
+                  + "price INT)";
+
+  private static final String LOAD_FLIGHTS =
+          "INSERT INTO Flights(" + FLIGHT_COLUMNS + ") SELECT " + FLIGHT_COLUMNS + " FROM CSVREAD('%s')";
+
+  private static final Pattern CREATE_TABLE = Pattern.compile("^CREATE\\s+TABLE\\s+", Pattern.CASE_INSENSITIVE);
+
+  private static final String COUNT_IDS = "SELECT COUNT(*) AS ids FROM ReservationID";
+
+  private static final String FIRST_ID = "INSERT INTO ReservationID VALUES (1)";
+
+  @Override
+  public String name() {
+    return NAME;
+  }
+
+  @Override
+  public Dialect dialect() {
+    return Dialect.H2;
+  }
+
+  @Override
+  public String connectionUrl(Properties configProps) {
+    String path = configProps.getProperty("hw1.embedded_path", "").trim();
+    return path.isEmpty() ? inMemoryUrl("flights") : "jdbc:h2:file:" + path + SETTINGS;
+  }
+
+  /**
+   * The URL of an in-memory database with the given name, which lives until
+   * the process exits
+   */
+  public static String inMemoryUrl(String database) {
+    return "jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1" + SETTINGS;
+  }
+
+  /**
+   * Creates whichever tables are missing, loads Flights if it was created and
+   * a CSV file is configured, and starts reservation IDs at 1
+   */
+  @Override
+  public void initialize(ConnectionPool pool, Properties configProps) throws SQLException, IOException {
+    try (ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement()) {
+      Set<String> tables = tables(lease.connection());
+      if (!tables.contains("flights")) {
+        s.execute(CREATE_FLIGHTS);
+        String csv = configProps.getProperty("hw1.embedded_flights", "").trim();
+        if (!csv.isEmpty()) {
+          // H2 reads the file's header while compiling, so it cannot be a parameter
+          s.executeUpdate(String.format(LOAD_FLIGHTS, csv.replace("'", "''")));
+        }
+      }
+      for (String statement : schema()) {
+        s.execute(CREATE_TABLE.matcher(statement).replaceFirst("CREATE TABLE IF NOT EXISTS "));
+      }
+      try (ResultSet results = s.executeQuery(COUNT_IDS)) {
+        results.next();
+        if (results.getInt("ids") == 0) {
+          s.execute(FIRST_ID);
+        }
+      }
+    }
+  }
+
+  private static Set<String> tables(Connection conn) throws SQLException {
+    Set<String> tables = new HashSet<>();
+    // only our schema: INFORMATION_SCHEMA has a Users table of its own
+    try (ResultSet results = conn.getMetaData().getTables(null, conn.getSchema(), "%", new String[]{"TABLE"})) {
+      while (results.next()) {
+        tables.add(results.getString("TABLE_NAME").toLowerCase(Locale.ROOT));
+      }
+    }
+    return tables;
+  }
+
+  /**
+   * The CREATE TABLE statements of createTables.sql, from the classpath or
+   * else the working directory
+   */
+  static List<String> schema() throws IOException {
+    String sql;
+    try (InputStream in = EmbeddedStorage.class.getResourceAsStream("/createTables.sql")) {
+      sql = in != null ? new String(in.readAllBytes(), StandardCharsets.UTF_8)
+              : new String(Files.readAllBytes(Paths.get("createTables.sql")), StandardCharsets.UTF_8);
+    }
+    List<String> statements = new ArrayList<>();
+    for (String statement : sql.split(";")) {
+      if (!statement.trim().isEmpty()) {
+        statements.add(statement.trim());
+      }
+    }
+    return statements;
+  }
+}
@@ -0,0 +1,268 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Read-only, in-memory copy of the Flights table.
+ * <p>
+ * Flights are bucketed by (origin_city, dest_city, day_of_month). Each bucket
+ * is sorted by (actual_time, fid) and never contains canceled flights, so a
+ * direct search is a map lookup plus a slice of the bucket. Cities are
+ * compared ignoring case, as the SQL Server collation does.
+ */
+public class FlightCatalog {
+  private static final String LOAD_FLIGHTS =
+          "SELECT fid,day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,capacity,price " +
+                  "FROM Flights WHERE canceled = 0";
+
+  /** Orders flights the same way GET_DIRECT_FLIGHTS does */
+  static final Comparator<Query.Flight> BY_TIME_AND_FID =
+          Comparator.comparingInt((Query.Flight f) -> f.time).thenComparingInt(f -> f.fid);
+
+  private static final Query.Flight[] NO_FLIGHTS = new Query.Flight[0];
+
+  // Catalog shared by every Query in this process, loaded on first use. Guarded
+  // by a lock rather than a monitor so a virtual thread loading it does not pin
+  // its carrier thread while it waits on JDBC.
+  private static final Lock sharedLock = new ReentrantLock();
+  private static volatile FlightCatalog shared;
+
+  // origin city -> dest city -> day of month -> flights sorted by (time, fid),
+  // with both cities in lower case
+  private final Map<String, Map<String, Query.Flight[][]>> routes;
+  private final int size;
+  // built with the catalog, so that indirect searches take no lock to reach it
+  private final ConnectionIndex connections;
+
+  private FlightCatalog(Map<String, Map<String, Query.Flight[][]>> routes, int size) {
+    this.routes = routes;
+    this.size = size;
+    this.connections = new ConnectionIndex(this);
+  }
+
+  /**
+   * Returns the process-wide catalog, loading it over the given connection the
+   * first time it is requested.
+   */
+  public static FlightCatalog getShared(Connection conn) throws SQLException {
+    if (shared == null) {
+      sharedLock.lock();
+      try {
+        if (shared == null) {
+          shared = load(conn);
+        }
+      } finally {
+        sharedLock.unlock();
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Same as {@link #getShared(Connection)}, but loads from the snapshot file
+   * if one is given (see {@link #load(Connection, Path, Dialect)})
+   */
+  public static FlightCatalog getShared(Connection conn, Path snapshot, Dialect dialect) throws SQLException {
+    if (snapshot == null) {
+      return getShared(conn);
+    }
+    if (shared == null) {
+      sharedLock.lock();
+      try {
+        if (shared == null) {
+          shared = load(conn, snapshot, dialect);
+        }
+      } finally {
+        sharedLock.unlock();
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Reads every non-canceled flight from the Flights table
+   */
+  public static FlightCatalog load(Connection conn) throws SQLException {
+    return of(readFlights(conn));
+  }
+
+  /**
+   * Reads the flights from the {@link CatalogSnapshot} file. If it is missing,
+   * not a valid snapshot, or was taken of non-canceled flights whose number or
+   * checksum (computed by the database, see {@link Dialect#flightsChecksum})
+   * differs from the Flights table's now, reads them from the table instead
+   * and writes the file, so that the next start can read it. If the file
+   * cannot be written, the flights read from the table are served all the
+   * same.
+   */
+  public static FlightCatalog load(Connection conn, Path snapshot, Dialect dialect) throws SQLException {
+    // taken before the flights are read, so a change in between makes the
+    // snapshot written below out of date rather than wrongly current
+    CatalogSnapshot.Key key = CatalogSnapshot.Key.of(conn, dialect);
+    if (Files.exists(snapshot)) {
+      try {
+        if (CatalogSnapshot.readKey(snapshot).equals(key)) {
+          return of(CatalogSnapshot.read(snapshot));
+        }
+      } catch (IOException e) {
+        // written by another version or damaged; replaced below
+      }
+    }
+    List<Query.Flight> flights = readFlights(conn);
+    try {
+      CatalogSnapshot.write(flights, key, snapshot);
+    } catch (IOException e) {
+      // a read-only directory or a full disk; the next start tries again
+    }
+    return of(flights);
+  }
+
+  /**
+   * Reads every non-canceled flight from the Flights table and writes them to
+   * the {@link CatalogSnapshot} file
+   *
+   * @return the number of flights written
+   */
+  public static int export(Connection conn, Path snapshot, Dialect dialect) throws SQLException, IOException {
+    CatalogSnapshot.Key key = CatalogSnapshot.Key.of(conn, dialect);
+    List<Query.Flight> flights = readFlights(conn);
+    CatalogSnapshot.write(flights, key, snapshot);
+    return flights.size();
+  }
+
+  private static List<Query.Flight> readFlights(Connection conn) throws SQLException {
+    List<Query.Flight> flights = new ArrayList<>();
+    Map<String, String> strings = new HashMap<>();
+    try (Statement statement = conn.createStatement();
+         ResultSet results = statement.executeQuery(LOAD_FLIGHTS)) {
+      while (results.next()) {
+        Query.Flight f = new Query.Flight();
+        f.fid = results.getInt("fid");
+        f.dayOfMonth = results.getInt("day_of_month");
+        f.carrierId = dedup(strings, results.getString("carrier_id"));
+        f.flightNum = dedup(strings, results.getString("flight_num"));
+        f.originCity = dedup(strings, results.getString("origin_city"));
+        f.destCity = dedup(strings, results.getString("dest_city"));
+        f.time = results.getInt("actual_time");
+        f.capacity = results.getInt("capacity");
+        f.price = results.getInt("price");
+        flights.add(f);
+      }
+    }
+    return flights;
+  }
+
+  /**
+   * Builds a catalog from already loaded, non-canceled flights
+   */
+  public static FlightCatalog of(Collection<Query.Flight> flights) {
+    // group into growable lists first, then freeze each bucket into a sorted array
+    Map<String, Map<String, List<List<Query.Flight>>>> grouped = new HashMap<>();
+    for (Query.Flight f : flights) {
+      List<List<Query.Flight>> days = grouped.computeIfAbsent(key(f.originCity), k -> new HashMap<>())
+              .computeIfAbsent(key(f.destCity), k -> new ArrayList<>());
+      while (days.size() <= f.dayOfMonth) {
+        days.add(null);
+      }
+      if (days.get(f.dayOfMonth) == null) {
+        days.set(f.dayOfMonth, new ArrayList<>());
+      }
+      days.get(f.dayOfMonth).add(f);
+    }
+
+    Map<String, Map<String, Query.Flight[][]>> routes = new HashMap<>();
+    for (Map.Entry<String, Map<String, List<List<Query.Flight>>>> origin : grouped.entrySet()) {
+      Map<String, Query.Flight[][]> dests = new HashMap<>();
+      for (Map.Entry<String, List<List<Query.Flight>>> dest : origin.getValue().entrySet()) {
+        List<List<Query.Flight>> days = dest.getValue();
+        Query.Flight[][] buckets = new Query.Flight[days.size()][];
+        for (int day = 0; day < buckets.length; day++) {
+          List<Query.Flight> bucket = days.get(day);
+          if (bucket == null) {
+            buckets[day] = NO_FLIGHTS;
+          } else {
+            buckets[day] = bucket.toArray(NO_FLIGHTS);
+            Arrays.sort(buckets[day], BY_TIME_AND_FID);
+          }
+        }
+        dests.put(dest.getKey(), buckets);
+      }
+      routes.put(origin.getKey(), dests);
+    }
+    return new FlightCatalog(routes, flights.size());
+  }
+
+  /**
+   * Direct flights for the route on the given day, sorted by (actual_time, fid).
+   * The returned array is shared and must not be modified.
+   */
+  Query.Flight[] flights(String originCity, String destCity, int dayOfMonth) {
+    Map<String, Query.Flight[][]> dests = routes.get(key(originCity));
+    if (dests == null) {
+      return NO_FLIGHTS;
+    }
+    Query.Flight[][] days = dests.get(key(destCity));
+    if (days == null || dayOfMonth < 0 || dayOfMonth >= days.length) {
+      return NO_FLIGHTS;
+    }
+    return days[dayOfMonth];
+  }
+
+  /**
+   * Returns at most {@code limit} direct flights, in the same order as
+   * GET_DIRECT_FLIGHTS
+   */
+  public List<Query.Flight> directFlights(String originCity, String destCity, int dayOfMonth, int limit) {
+    Query.Flight[] bucket = flights(originCity, destCity, dayOfMonth);
+    return Arrays.asList(bucket).subList(0, Math.max(0, Math.min(limit, bucket.length)));
+  }
+
+  /**
+   * Every destination with at least one direct flight from {@code originCity},
+   * in lower case, mapped to that route's flights indexed by day of month
+   */
+  Map<String, Query.Flight[][]> routesFrom(String originCity) {
+    Map<String, Query.Flight[][]> dests = routes.get(key(originCity));
+    return dests == null ? Collections.emptyMap() : dests;
+  }
+
+  /**
+   * Every origin city in the catalog, in lower case
+   */
+  Set<String> origins() {
+    return routes.keySet();
+  }
+
+  /**
+   * The city as the catalog is keyed by it
+   */
+  static String key(String city) {
+    return city == null ? null : city.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Returns the one-hop connection index over this catalog
+   */
+  public ConnectionIndex connections() {
+    return connections;
+  }
+
+  /**
+   * Number of flights held by the catalog
+   */
+  public int size() {
+    return size;
+  }
+
+  private static String dedup(Map<String, String> strings, String s) {
+    if (s == null) {
+      return null;
+    }
+    String existing = strings.putIfAbsent(s, s);
+    return existing == null ? s : existing;
+  }
+}
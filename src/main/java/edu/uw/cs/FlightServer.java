@@ -0,0 +1,535 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Multi-client TCP front-end for the Flights application.
+ * <p>
+ * Clients speak the same line-oriented protocol as the REPL: one command per
+ * line, answered with exactly the text {@link FlightService#execute} returns.
+ * A single selector thread does all socket I/O without blocking; commands run
+ * on a bounded worker pool, or each on its own virtual thread in virtual-thread
+ * mode so that sessions blocked on JDBC do not tie up a platform thread. Every
+ * connection gets its own {@link Session}, and its commands run one at a time
+ * in the order they arrived, so pipelined input is answered in order. "quit" is
+ * answered with "Goodbye" and closes the connection.
+ * <p>
+ * Large searches (see {@link Query#searchStreamThreshold()}) are sent in chunks
+ * while they run. A worker stops producing while {@link #MAX_UNSENT_CHUNKS} of
+ * its chunks wait for the socket, so a slow reader bounds the memory a search
+ * can take.
+ */
+public class FlightServer implements AutoCloseable {
+  /** Response sent when too many commands are waiting and a command is dropped */
+  static final String BUSY = Query.SERVER_BUSY;
+  private static final String GOODBYE = "Goodbye\n";
+  /** Response to a command that failed unexpectedly; the cause is logged here */
+  static final String INTERNAL_ERROR = "Error: the server failed to run the command\n";
+  /** Response to a command that was received but not run before a shutdown */
+  static final String SHUTTING_DOWN = "Server shutting down, command not run\n";
+  // queued in place of a command line that was too long, to answer it in order
+  private static final Object OVERLONG = new Object();
+
+  // stop reading from a client that has this many commands waiting
+  private static final int MAX_PENDING_COMMANDS = 64;
+  // longest accepted command line, in bytes
+  static final int MAX_LINE_LENGTH = 8192;
+  // a streamed response is handed to the selector in chunks of about this size
+  private static final int CHUNK_CHARS = 32 * 1024;
+  private static final int MAX_UNSENT_CHUNKS = 2;
+
+  private final Query query;
+  private final ExecutorService workers;
+  // commands queued or running across all clients
+  private final Semaphore inFlight;
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
+  // work handed back to the selector thread by the workers
+  private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+  private final Set<Client> clients = new HashSet<>();
+  private final Thread selectorThread;
+  private final CountDownLatch terminated = new CountDownLatch(1);
+  private volatile boolean shuttingDown;
+  // why the selector thread stopped, if it failed
+  private volatile IOException failure;
+
+  /**
+   * Binds the server socket. Call {@link #start()} to begin serving.
+   *
+   * @param query      engine that runs the transactions
+   * @param port       port to listen on, 0 for any free port
+   * @param workers    number of threads running commands
+   * @param queueLimit commands that may wait for a worker before new ones are
+   *                   answered with {@link #BUSY}
+   */
+  public FlightServer(Query query, int port, int workers, int queueLimit) throws IOException {
+    this(query, port, Executors.newFixedThreadPool(workers, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        return new Thread(r, "flight-server-worker-" + count.getAndIncrement());
+      }
+    }), workers + queueLimit);
+  }
+
+  /**
+   * Binds the server socket and runs commands on the given executor, which the
+   * server shuts down with itself.
+   *
+   * @param maxInFlight commands that may be queued or running at once before
+   *                    new ones are answered with {@link #BUSY}
+   */
+  public FlightServer(Query query, int port, ExecutorService workers, int maxInFlight) throws IOException {
+    this.query = query;
+    this.workers = workers;
+    this.inFlight = new Semaphore(maxInFlight);
+    this.selector = Selector.open();
+    this.serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(port));
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    this.selectorThread = new Thread(this::run, "flight-server-selector");
+  }
+
+  /**
+   * Creates a server from the hw1.server_* configuration settings. With
+   * hw1.server_threads = virtual every command runs on its own virtual thread
+   * and hw1.server_workers is ignored, unless the runtime has no virtual
+   * threads, in which case the server falls back to the worker pool.
+   */
+  public static FlightServer fromConfig(Query query, Properties configProps) throws IOException {
+    int cores = Runtime.getRuntime().availableProcessors();
+    int port = ConnectionPool.intSetting(configProps, "hw1.server_port", 5000);
+    int workers = ConnectionPool.intSetting(configProps, "hw1.server_workers", 4 * cores);
+    int queueLimit = ConnectionPool.intSetting(configProps, "hw1.server_queue_limit", 1024);
+    if (configProps.getProperty("hw1.server_threads", "platform").trim().equals("virtual")
+            && VirtualThreads.isSupported()) {
+      return new FlightServer(query, port, VirtualThreads.newThreadPerTaskExecutor(), queueLimit);
+    }
+    return new FlightServer(query, port, workers, queueLimit);
+  }
+
+  public void start() {
+    selectorThread.start();
+  }
+
+  /**
+   * The port the server is listening on
+   */
+  public int port() throws IOException {
+    return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+  }
+
+  /**
+   * Stops accepting connections and new commands, lets commands that already
+   * started finish and flushes their responses, answers the commands that were
+   * received but not started with {@link #SHUTTING_DOWN}, then closes every
+   * connection.
+   */
+  public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+    shuttingDown = true;
+    selector.wakeup();
+    terminated.await(timeout, unit);
+    workers.shutdownNow();
+  }
+
+  /**
+   * Blocks until the server has shut down
+   *
+   * @throws IOException if it stopped because the selector failed
+   */
+  public void awaitTermination() throws InterruptedException, IOException {
+    terminated.await();
+    if (failure != null) {
+      throw new IOException("Server stopped", failure);
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      shutdown(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        selector.select();
+        Runnable completion;
+        while ((completion = completions.poll()) != null) {
+          completion.run();
+        }
+        if (shuttingDown && beginShutdown()) {
+          break;
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+          } else {
+            Client client = (Client) key.attachment();
+            if (key.isReadable()) {
+              client.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              client.write();
+            }
+          }
+        }
+      }
+    } catch (IOException e) {
+      failure = e;
+    } finally {
+      for (Client client : new ArrayList<>(clients)) {
+        client.close();
+      }
+      try {
+        serverChannel.close();
+        selector.close();
+      } catch (IOException e) {
+      }
+      workers.shutdown();
+      terminated.countDown();
+    }
+  }
+
+  // Returns true once nothing is running and every response has been flushed
+  private boolean beginShutdown() throws IOException {
+    if (serverChannel.isOpen()) {
+      serverChannel.close();
+      workers.shutdown();
+    }
+    boolean idle = true;
+    for (Client client : new ArrayList<>(clients)) {
+      if (client.busy) {
+        // its waiting commands are answered after the running one
+        idle = false;
+        continue;
+      }
+      if (!client.closing && !client.pending.isEmpty()) {
+        byte[] answer = SHUTTING_DOWN.getBytes(StandardCharsets.UTF_8);
+        for (int i = client.pending.size(); i > 0; i--) {
+          client.outgoing.add(new Chunk(ByteBuffer.wrap(answer), null));
+        }
+        client.pending.clear();
+        client.write();
+      }
+      if (!client.outgoing.isEmpty()) {
+        idle = false;
+      } else {
+        client.close();
+      }
+    }
+    return idle;
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = serverChannel.accept()) != null) {
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      Client client = new Client(channel);
+      client.key = channel.register(selector, SelectionKey.OP_READ, client);
+      clients.add(client);
+    }
+  }
+
+  /**
+   * One connected client. Only touched by the selector thread, except for the
+   * session, which the worker running the client's current command owns.
+   */
+  private class Client {
+    final SocketChannel channel;
+    final Session session = new Session();
+    SelectionKey key;
+
+    final ByteBuffer in = ByteBuffer.allocate(4096);
+    final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    // the line being read is longer than MAX_LINE_LENGTH and is discarded
+    boolean overlong;
+    // command lines waiting to run, and OVERLONG for lines that were too long
+    final Deque<Object> pending = new ArrayDeque<>();
+    final Deque<Chunk> outgoing = new ArrayDeque<>();
+    // a command of this client is queued or running on a worker
+    boolean busy;
+    // no more input will be read; close once the output is flushed. Also read
+    // by a worker streaming to the client, to stop once it is gone
+    volatile boolean closing;
+
+    Client(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void read() {
+      int n;
+      try {
+        n = channel.read(in);
+      } catch (IOException e) {
+        n = -1;
+      }
+      if (n < 0) {
+        // the client went away; nobody is left to read the responses
+        pending.clear();
+        discardOutgoing();
+        closing = true;
+        closeIfDone();
+        return;
+      }
+      in.flip();
+      while (in.hasRemaining()) {
+        byte b = in.get();
+        if (b == '\n') {
+          String command = new String(line.toByteArray(), StandardCharsets.UTF_8);
+          line.reset();
+          if (command.endsWith("\r")) {
+            command = command.substring(0, command.length() - 1);
+          }
+          pending.add(overlong ? OVERLONG : command);
+          overlong = false;
+        } else if (line.size() < MAX_LINE_LENGTH) {
+          line.write(b);
+        } else {
+          overlong = true;
+          line.reset();
+        }
+      }
+      in.clear();
+      dispatch();
+    }
+
+    void dispatch() {
+      if (busy || closing || shuttingDown) {
+        updateInterest();
+        return;
+      }
+      Object next = pending.poll();
+      if (next == OVERLONG) {
+        complete("Error: command is longer than " + MAX_LINE_LENGTH + " bytes");
+        return;
+      }
+      if (next != null) {
+        String command = (String) next;
+        if (!inFlight.tryAcquire()) {
+          shed();
+          return;
+        }
+        busy = true;
+        try {
+          workers.execute(() -> {
+            String response;
+            try {
+              StreamWriter stream = new StreamWriter(this);
+              response = FlightService.execute(query, session, command, stream);
+              if (response == null) {
+                stream.flush();
+                response = "";
+              }
+            } catch (IOException e) {
+              // the client is gone; complete() closes the connection
+              response = "";
+            } catch (RuntimeException e) {
+              // the exception may describe the database, so it stays here
+              System.err.println("A command failed unexpectedly:");
+              e.printStackTrace();
+              response = INTERNAL_ERROR;
+            } finally {
+              inFlight.release();
+            }
+            String result = response;
+            completions.add(() -> complete(result));
+            selector.wakeup();
+          });
+        } catch (RejectedExecutionException e) {
+          inFlight.release();
+          shed();
+          return;
+        }
+      }
+      updateInterest();
+    }
+
+    // Answers a command that is not run because the server is full
+    void shed() {
+      Metrics metrics = query.metrics();
+      if (metrics != null) {
+        metrics.increment("server.shed");
+      }
+      complete(BUSY);
+    }
+
+    void complete(String response) {
+      busy = false;
+      if (closing) {
+        // the client disconnected while its command was running
+        closeIfDone();
+        return;
+      }
+      if (!response.isEmpty()) {
+        outgoing.add(new Chunk(ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8)), null));
+      }
+      if (response.equals(GOODBYE)) {
+        pending.clear();
+        closing = true;
+      }
+      write();
+      dispatch();
+    }
+
+    void write() {
+      try {
+        while (!outgoing.isEmpty()) {
+          Chunk chunk = outgoing.peek();
+          channel.write(chunk.buffer);
+          if (chunk.buffer.hasRemaining()) {
+            break;
+          }
+          outgoing.poll().sent();
+        }
+      } catch (IOException e) {
+        discardOutgoing();
+        closing = true;
+      }
+      closeIfDone();
+      updateInterest();
+    }
+
+    void updateInterest() {
+      if (!key.isValid()) {
+        return;
+      }
+      int ops = 0;
+      if (!closing && !shuttingDown && pending.size() < MAX_PENDING_COMMANDS) {
+        ops |= SelectionKey.OP_READ;
+      }
+      if (!outgoing.isEmpty()) {
+        ops |= SelectionKey.OP_WRITE;
+      }
+      key.interestOps(ops);
+    }
+
+    void closeIfDone() {
+      if (closing && !busy && outgoing.isEmpty()) {
+        close();
+      }
+    }
+
+    /**
+     * Takes a chunk of a streamed response from a worker
+     */
+    void send(Chunk chunk) {
+      if (closing) {
+        // the client disconnected; the worker stops at its next chunk
+        chunk.sent();
+        return;
+      }
+      outgoing.add(chunk);
+      write();
+    }
+
+    // Drops unsent output, unblocking workers waiting for it to go out
+    void discardOutgoing() {
+      for (Chunk chunk : outgoing) {
+        chunk.sent();
+      }
+      outgoing.clear();
+    }
+
+    void close() {
+      closing = true;
+      discardOutgoing();
+      clients.remove(this);
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  /**
+   * Output waiting for the socket, with what to do once it is written
+   */
+  private static class Chunk {
+    final ByteBuffer buffer;
+    final Runnable onSent;
+
+    Chunk(ByteBuffer buffer, Runnable onSent) {
+      this.buffer = buffer;
+      this.onSent = onSent;
+    }
+
+    void sent() {
+      if (onSent != null) {
+        onSent.run();
+      }
+    }
+  }
+
+  /**
+   * Hands a response streamed by a worker to the selector thread in chunks,
+   * blocking the worker while too many of them are unsent
+   */
+  private class StreamWriter extends Writer {
+    private final Client client;
+    private final Semaphore unsent = new Semaphore(MAX_UNSENT_CHUNKS);
+    private final StringBuilder buffer = new StringBuilder(CHUNK_CHARS);
+
+    StreamWriter(Client client) {
+      this.client = client;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      buffer.append(cbuf, off, len);
+      if (buffer.length() >= CHUNK_CHARS) {
+        send();
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      send();
+    }
+
+    @Override
+    public void close() throws IOException {
+      send();
+    }
+
+    private void send() throws IOException {
+      if (buffer.length() == 0) {
+        return;
+      }
+      try {
+        unsent.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the client");
+      }
+      if (client.closing) {
+        throw new IOException("Client disconnected");
+      }
+      Chunk chunk = new Chunk(ByteBuffer.wrap(buffer.toString().getBytes(StandardCharsets.UTF_8)),
+              unsent::release);
+      buffer.setLength(0);
+      completions.add(() -> client.send(chunk));
+      selector.wakeup();
+    }
+  }
+}
@@ -2,126 +2,120 @@ package edu.uw.cs;
 
 import java.io.*;
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.*;
 import java.sql.*;
 
 public class FlightService {
-
   /**
    * Execute the specified command on the database query connection
    */
   public static String execute(Query q, String command) {
-    String[] tokens = tokenize(command.trim());
-    String response;
-
-    // empty input
-    if (tokens.length == 0) {
-      response = "Please enter a command";
-    }
+    return execute(q, q.session(), command);
+  }
 
-    // login
-    else if (tokens[0].equals("login")) {
-      if (tokens.length == 3) {
-        String username = tokens[1];
-        String password = tokens[2];
-        response = q.transaction_login(username, password);
-      } else {
-        response = "Error: Please provide a username and password";
-      }
-    }
+  /**
+   * Execute the specified command for the given session
+   */
+  public static String execute(Query q, Session session, String command) {
+    return execute(q, session, session.command.parse(command));
+  }
 
-    // create
-    else if (tokens[0].equals("create")) {
-      if (tokens.length == 4) {
-        String username = tokens[1];
-        String password = tokens[2];
-        int initAmount = Integer.parseInt(tokens[3]);
-        response = q.transaction_createCustomer(username, password, initAmount);
-      } else {
-        response = "Error: Please provide a username, password, and initial amount in the account";
-      }
+  /**
+   * Execute a command already parsed, such as the session's own
+   */
+  static String execute(Query q, Session session, Command command) {
+    session.failed = false;
+    Metrics metrics = q.metrics();
+    if (metrics == null) {
+      return command.execute(q, session);
     }
+    long start = System.nanoTime();
+    String response = command.execute(q, session);
+    metrics.command(command.type(), System.nanoTime() - start, session.failed);
+    return response;
+  }
 
-    // search
-    else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
-        String originCity = tokens[1];
-        String destinationCity = tokens[2];
-        boolean direct = tokens[3].equals("1");
-        try {
-          int day = Integer.valueOf(tokens[4]);
-          int count = Integer.valueOf(tokens[5]);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
-        } catch (NumberFormatException e) {
-          response = "Failed to parse integer";
+  /**
+   * Executes the command for the given session. A search for at least
+   * {@link Query#searchStreamThreshold()} itineraries writes its response to
+   * {@code out} while it runs and returns null; every other command returns
+   * its response without writing anything.
+   */
+  public static String execute(Query q, Session session, String command, Writer out) throws IOException {
+    Command c = session.command.parse(command);
+    int threshold = q.searchStreamThreshold();
+    if (threshold > 0 && c.type() == Command.Type.SEARCH && c.count() == 6) {
+      int day = c.intToken(4);
+      int count = c.intToken(5);
+      if (!c.isMalformed() && count >= threshold) {
+        session.failed = false;
+        Metrics metrics = q.metrics();
+        long start = metrics != null ? System.nanoTime() : 0;
+        q.transaction_search(session, c.token(1), c.token(2), c.direct(), day, count, out);
+        if (metrics != null) {
+          metrics.command(Command.Type.SEARCH, System.nanoTime() - start, session.failed);
         }
-      } else {
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
-      }
-    }
-
-    // book
-    else if (tokens[0].equals("book")) {
-      if (tokens.length == 2) {
-        int itinerary_id = Integer.parseInt(tokens[1]);
-        response = q.transaction_book(itinerary_id);
-      } else {
-        response = "Error: Please provide an itinerary_id";
+        return null;
       }
     }
+    return execute(q, session, c);
+  }
 
-    // reservations
-    else if (tokens[0].equals("reservations")) {
-      response = q.transaction_reservations();
+  /**
+   * Establishes an application-to-database connection and runs the Flights
+   * application REPL. With the argument "server", serves many clients over TCP
+   * until the process is stopped; with "batch input output", replays a command
+   * file (see {@link BatchRunner}); with "load", runs many simulated users and
+   * reports latencies (see {@link LoadGenerator}); with "export-catalog",
+   * writes the flight catalog snapshot (see {@link CatalogSnapshot})
+   * 
+   * @param args
+   * @throws IOException
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && args[0].equals("server")) {
+      serve();
+      return;
     }
-
-    // pay
-    else if (tokens[0].equals("pay")) {
-      if (tokens.length == 2) {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        response = q.transaction_pay(reservation_id);
-      } else {
-        response = "Error: Please provide a reservation_id";
-      }
+    if (args.length > 0 && args[0].equals("batch")) {
+      BatchRunner.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
     }
-
-    // cancel
-    else if (tokens[0].equals("cancel")) {
-      if (tokens.length == 2) {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        response = q.transaction_cancel(reservation_id);
-      } else {
-        response = "Error: Please provide a reservation_id";
-      }
+    if (args.length > 0 && args[0].equals("load")) {
+      LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
     }
-
-    // quit
-    else if (tokens[0].equals("quit")) {
-      response = "Goodbye\n";
+    if (args.length > 0 && args[0].equals("export-catalog")) {
+      CatalogSnapshot.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
     }
 
-    // unknown command
-    else {
-      response = "Error: unrecognized command '" + tokens[0] + "'";
+    /* prepare the database connection stuff */
+    try (QueryFactory factory = QueryFactory.fromConfig()) {
+      Query q = factory.newQuery();
+      menu(q);
+      q.closeConnection();
     }
-
-    return response;
   }
 
   /**
-   * Establishes an application-to-database connection and runs the Flights
-   * application REPL
-   * 
-   * @param args
-   * @throws IOException
+   * Runs the multi-client server configured in dbconn.properties. Stopping the
+   * process lets running commands finish before connections are closed.
    */
-  public static void main(String[] args) throws IOException, SQLException {
-    /* prepare the database connection stuff */
-    Query q = new Query();
-    q.openConnection();
-    q.prepareStatements();
-    menu(q);
-    q.closeConnection();
+  private static void serve() throws IOException, SQLException, InterruptedException {
+    QueryFactory factory = QueryFactory.fromConfig();
+    FlightServer server = FlightServer.fromConfig(factory.query(), Query.loadConfig());
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        server.shutdown(30, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      factory.close();
+    }));
+    server.start();
+    System.out.println("Listening on port " + server.port());
+    server.awaitTermination();
   }
 
   /**
@@ -132,12 +126,15 @@ public class FlightService {
    * @throws IOException
    */
   private static void menu(Query q) throws IOException {
+    Writer stdout = new BufferedWriter(new OutputStreamWriter(System.out));
     while (true) {
       // print the command options
       System.out.println();
       System.out.println(" *** Please enter one of the following commands *** ");
       System.out.println("> create <username> <password> <initial amount>");
       System.out.println("> login <username> <password>");
+      System.out.println("> resume <session token>");
+      System.out.println("> revoke");
       System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
       System.out.println("> book <itinerary id>");
       System.out.println("> pay <reservation id>");
@@ -150,8 +147,11 @@ public class FlightService {
       System.out.print("> ");
       String command = r.readLine();
 
-      // execute the given input command
-      String response = execute(q, command);
+      // execute the given input command; large searches print as they go
+      String response = execute(q, q.session(), command, stdout);
+      if (response == null) {
+        continue;
+      }
       System.out.print(response);
       if (response.equals("Goodbye\n")) {
         break;
@@ -162,16 +162,18 @@ public class FlightService {
   /**
    * Tokenize a string into a string array
    */
-  private static String[] tokenize(String command) {
-    String regex = "\"([^\"]*)\"|(\\S+)";
-    Matcher m = Pattern.compile(regex).matcher(command);
-    List<String> tokens = new ArrayList<>();
-    while (m.find()) {
-      if (m.group(1) != null)
-        tokens.add(m.group(1));
-      else
-        tokens.add(m.group(2));
+  static String[] tokenize(String command) {
+    return tokenize(new Command().parse(command));
+  }
+
+  /**
+   * The tokens of an already parsed command
+   */
+  static String[] tokenize(Command c) {
+    String[] tokens = new String[c.count()];
+    for (int i = 0; i < tokens.length; i++) {
+      tokens[i] = c.token(i);
     }
-    return tokens.toArray(new String[0]);
+    return tokens;
   }
 }
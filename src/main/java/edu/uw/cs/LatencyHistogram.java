@@ -0,0 +1,114 @@
+package edu.uw.cs;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counts latencies in buckets whose width grows with the value, so that any
+ * percentile is known to within about 3% while the histogram stays a fixed
+ * array of counters.
+ * <p>
+ * Values below 64 ns get a bucket each. Above that, every power of two is
+ * split into 32 equal buckets. Recording is a single atomic increment, so many
+ * threads may record into the same histogram.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  // enough buckets for any positive long
+  private static final int BUCKETS = (63 - SUB_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  /**
+   * Records one latency in nanoseconds; negative values count as 0
+   */
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(bucket(value));
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  public long count() {
+    return count.sum();
+  }
+
+  /** Longest latency recorded, in nanoseconds */
+  public long max() {
+    return max.get();
+  }
+
+  /** Mean latency in nanoseconds, or 0 if nothing was recorded */
+  public double mean() {
+    long n = count();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * The latency in nanoseconds that the given fraction of the recorded values
+   * does not exceed, rounded up to the end of its bucket but never above the
+   * maximum. 0 if nothing was recorded.
+   *
+   * @param fraction between 0 and 1, such as 0.99 for the 99th percentile
+   */
+  public long percentile(double fraction) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += counts.get(i);
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(fraction * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highestValue(i), max());
+      }
+    }
+    return max();
+  }
+
+  /**
+   * Forgets every recorded value
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    count.reset();
+    sum.reset();
+    max.reset();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("count=%d mean=%.3fms p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms", count(),
+            mean() / 1e6, percentile(0.5) / 1e6, percentile(0.99) / 1e6, percentile(0.999) / 1e6,
+            max() / 1e6);
+  }
+
+  static int bucket(long value) {
+    if (value < 2 * SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    // value >>> shift keeps the leading bit and SUB_BITS more, 32 to 63
+    return shift * SUB_BUCKETS + (int) (value >>> shift);
+  }
+
+  // Largest value that falls into the bucket
+  static long highestValue(int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lowest = (long) (bucket - shift * SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,636 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+
+/**
+ * Replays many simulated users at once against the configured database and
+ * reports throughput, latency percentiles per command, retries and deadlocks,
+ * and correctness violations.
+ * <p>
+ * Users come either from cases-style scripts or from a generator. Every
+ * session of a script is one user; scripts are copied until there are enough
+ * users, and the user names of each copy get a suffix of their own, so that
+ * copies do not collide while the sessions of one copy still share names as
+ * the script intends. Generated users create an account, log in, and then
+ * issue a random mix of reads (search, reservations) and writes (book, pay,
+ * cancel) over routes taken from the Flights table.
+ * <p>
+ * Each user runs its commands back to back. With virtual threads every user
+ * is in flight at once and the connection pool decides how many reach the
+ * database. Once all users are done, the tables, or the {@link BookingEngine}
+ * if there is one, are checked for overbooked flights, negative balances and
+ * users with two reservations on one day; reservation IDs handed out twice
+ * are caught from the responses as they arrive.
+ */
+public class LoadGenerator {
+  private static final Pattern BOOKED = Pattern.compile("^Booked flight\\(s\\), reservation ID: (\\d+)$",
+          Pattern.MULTILINE);
+
+  private static final String GET_ROUTES =
+          "SELECT DISTINCT origin_city, dest_city, day_of_month FROM Flights WHERE canceled = 0";
+
+  private static final String CHECK_OVERBOOKED =
+          "SELECT F.fid, F.capacity, COUNT(*) AS booked FROM Flights F, Reservations R "
+                  + "WHERE R.flight1 = F.fid OR R.flight2 = F.fid "
+                  + "GROUP BY F.fid, F.capacity HAVING COUNT(*) > F.capacity";
+
+  private static final String CHECK_BALANCES = "SELECT uname, balance FROM Users WHERE balance < 0";
+
+  private static final String GET_CAPACITIES = "SELECT fid, capacity FROM Flights";
+
+  private static final String CHECK_SAME_DAY =
+          "SELECT R.uname, F.day_of_month, COUNT(*) AS booked FROM Reservations R, Flights F "
+                  + "WHERE R.flight1 = F.fid GROUP BY R.uname, F.day_of_month HAVING COUNT(*) > 1";
+
+  // platform threads to fall back on for thousands of users without virtual threads
+  private static final int MAX_PLATFORM_THREADS = 1024;
+
+  private final Query query;
+  private final ConnectionPool pool;
+  private final int threads;
+
+  /**
+   * @param query   engine the users run their commands on
+   * @param pool    pool to borrow a connection from for the checks after the run
+   * @param threads users running at the same time, or 0 to run every user on
+   *                its own virtual thread
+   */
+  public LoadGenerator(Query query, ConnectionPool pool, int threads) {
+    this.query = query;
+    this.pool = pool;
+    this.threads = threads;
+  }
+
+  /**
+   * The commands of one simulated user
+   */
+  public interface User {
+    /**
+     * The next command, given the response to the previous one (null before
+     * the first command), or null once the user is done
+     */
+    String next(String previousResponse);
+  }
+
+  /**
+   * A route and day that flights exist for, to search on
+   */
+  public static final class Route {
+    final String originCity;
+    final String destCity;
+    final int dayOfMonth;
+
+    public Route(String originCity, String destCity, int dayOfMonth) {
+      this.originCity = originCity;
+      this.destCity = destCity;
+      this.dayOfMonth = dayOfMonth;
+    }
+  }
+
+  /**
+   * Runs every user to the end, then checks the tables
+   */
+  public Report run(List<? extends User> users) throws InterruptedException, SQLException {
+    Report report = new Report(users.size(), query.retryPolicy());
+    ExecutorService executor = threads <= 0 && VirtualThreads.isSupported()
+            ? VirtualThreads.newThreadPerTaskExecutor()
+            : Executors.newFixedThreadPool(Math.max(1, Math.min(threads > 0 ? threads : MAX_PLATFORM_THREADS,
+            users.size())));
+    long start = System.nanoTime();
+    try {
+      for (User user : users) {
+        executor.execute(() -> runUser(user, report));
+      }
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    report.finish(System.nanoTime() - start);
+    checkTables(report);
+    return report;
+  }
+
+  private void runUser(User user, Report report) {
+    Session session = new Session();
+    String response = null;
+    String command;
+    while ((command = user.next(response)) != null) {
+      Command parsed = session.command.parse(command);
+      Command.Type type = parsed.type();
+      boolean failed;
+      long start = System.nanoTime();
+      try {
+        response = FlightService.execute(query, session, parsed);
+        failed = session.failed;
+      } catch (RuntimeException e) {
+        response = "Error: " + e + "\n";
+        failed = true;
+      }
+      report.record(type.keyword, System.nanoTime() - start, failed);
+      if (type == Command.Type.BOOK) {
+        Matcher m = BOOKED.matcher(response);
+        if (m.find() && !report.reservationIds.add(Integer.parseInt(m.group(1)))) {
+          report.violation("Reservation ID " + m.group(1) + " was handed out twice");
+        }
+      }
+    }
+  }
+
+  /**
+   * Looks for overbooked flights, negative balances and users with more than
+   * one reservation on a day, in the booking engine if the query has one
+   */
+  void checkTables(Report report) throws SQLException {
+    BookingEngine engine = query.bookingEngine();
+    if (engine != null) {
+      checkEngine(engine, report);
+      return;
+    }
+    try (ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement()) {
+      try (ResultSet results = s.executeQuery(CHECK_OVERBOOKED)) {
+        while (results.next()) {
+          report.violation("Flight " + results.getInt("fid") + " has " + results.getInt("booked")
+                  + " reservations but capacity " + results.getInt("capacity"));
+        }
+      }
+      try (ResultSet results = s.executeQuery(CHECK_BALANCES)) {
+        while (results.next()) {
+          report.violation("User " + results.getString("uname") + " has balance " + results.getInt("balance"));
+        }
+      }
+      try (ResultSet results = s.executeQuery(CHECK_SAME_DAY)) {
+        while (results.next()) {
+          report.violation("User " + results.getString("uname") + " has " + results.getInt("booked")
+                  + " reservations on day " + results.getInt("day_of_month"));
+        }
+      }
+    }
+  }
+
+  // The same checks on the engine's users and reservations. A flight's
+  // reservations are also compared with its seat count, which the engine
+  // keeps separately.
+  private void checkEngine(BookingEngine engine, Report report) throws SQLException {
+    Map<Integer, Integer> reserved = new HashMap<>();
+    List<String> users = engine.users();
+    Collections.sort(users);
+    for (String user : users) {
+      int balance = engine.balance(user);
+      if (balance < 0) {
+        report.violation("User " + user + " has balance " + balance);
+      }
+      Map<Integer, Integer> days = new TreeMap<>();
+      for (ReservationCache.Reservation r : engine.reservations(user)) {
+        days.merge(r.flight1.dayOfMonth, 1, Integer::sum);
+        reserved.merge(r.flight1.fid, 1, Integer::sum);
+        if (r.flight2 != null) {
+          reserved.merge(r.flight2.fid, 1, Integer::sum);
+        }
+      }
+      for (Map.Entry<Integer, Integer> day : days.entrySet()) {
+        if (day.getValue() > 1) {
+          report.violation("User " + user + " has " + day.getValue() + " reservations on day " + day.getKey());
+        }
+      }
+    }
+    try (ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement();
+         ResultSet results = s.executeQuery(GET_CAPACITIES)) {
+      while (results.next()) {
+        int fid = results.getInt("fid");
+        int capacity = results.getInt("capacity");
+        int booked = reserved.getOrDefault(fid, 0);
+        if (booked > capacity) {
+          report.violation("Flight " + fid + " has " + booked + " reservations but capacity " + capacity);
+        }
+        if (booked != engine.booked(fid)) {
+          report.violation("Flight " + fid + " has " + booked + " reservations but " + engine.booked(fid)
+                  + " seats taken");
+        }
+      }
+    }
+  }
+
+  /**
+   * Users replaying the sessions of the scripts, each script copied as often
+   * as needed to get at least the given number of users
+   *
+   * @param scripts the sessions of each script, as read by
+   *                {@link BatchRunner#parse}
+   */
+  public static List<User> scripted(List<List<List<String>>> scripts, int users) {
+    if (scripts.stream().allMatch(List::isEmpty)) {
+      throw new IllegalArgumentException("The scripts have no sessions");
+    }
+    List<User> scripted = new ArrayList<>();
+    Command parser = new Command();
+    for (int copy = 0; scripted.size() < users; copy++) {
+      String suffix = "_" + Integer.toString(copy, 36);
+      for (List<List<String>> sessions : scripts) {
+        for (List<String> commands : sessions) {
+          List<String> renamed = new ArrayList<>(commands.size());
+          for (String command : commands) {
+            renamed.add(rename(parser, command, suffix));
+          }
+          scripted.add(new ScriptedUser(renamed));
+        }
+        if (scripted.size() >= users) {
+          break;
+        }
+      }
+    }
+    return scripted;
+  }
+
+  // Appends the suffix to the user name of create and login, parsing the
+  // command with the given parser
+  static String rename(Command parser, String command, String suffix) {
+    Command.Type type = parser.parse(command.trim()).type();
+    if (parser.count() < 2 || !(type == Command.Type.CREATE || type == Command.Type.LOGIN)) {
+      return command;
+    }
+    String[] tokens = FlightService.tokenize(parser);
+    tokens[1] = tokens[1] + suffix;
+    return String.join(" ", tokens);
+  }
+
+  /**
+   * Users that each log in and then run the given number of random commands
+   *
+   * @param readPercent share of the commands that are searches or
+   *                    reservations; the rest book, pay or cancel
+   */
+  public static List<User> generated(int users, int commands, int readPercent, List<Route> routes, long seed) {
+    if (routes.isEmpty()) {
+      throw new IllegalArgumentException("No routes to search");
+    }
+    List<User> generated = new ArrayList<>(users);
+    for (int i = 0; i < users; i++) {
+      generated.add(new GeneratedUser("load" + i, commands, readPercent, routes, new Random(seed + i)));
+    }
+    return generated;
+  }
+
+  /**
+   * Up to the given number of routes with flights, picked at random
+   */
+  public static List<Route> routes(ConnectionPool pool, int limit, long seed) throws SQLException {
+    List<Route> routes = new ArrayList<>();
+    try (ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement();
+         ResultSet results = s.executeQuery(GET_ROUTES)) {
+      while (results.next()) {
+        routes.add(new Route(results.getString("origin_city"), results.getString("dest_city"),
+                results.getInt("day_of_month")));
+      }
+    }
+    // the database returns them in no particular order
+    routes.sort(Comparator.comparing((Route r) -> r.originCity).thenComparing(r -> r.destCity)
+            .thenComparingInt(r -> r.dayOfMonth));
+    Collections.shuffle(routes, new Random(seed));
+    return routes.size() > limit ? new ArrayList<>(routes.subList(0, limit)) : routes;
+  }
+
+  private static class ScriptedUser implements User {
+    private final List<String> commands;
+    private int next;
+
+    ScriptedUser(List<String> commands) {
+      this.commands = commands;
+    }
+
+    @Override
+    public String next(String previousResponse) {
+      return next < commands.size() ? commands.get(next++) : null;
+    }
+  }
+
+  /**
+   * Creates an account, logs in and picks each further command at random,
+   * booking from its last search and paying for or canceling what it booked
+   */
+  static class GeneratedUser implements User {
+    private static final int BALANCE = 100_000;
+    private static final int ITINERARIES = 10;
+
+    private final String name;
+    private final int commands;
+    private final int readPercent;
+    private final List<Route> routes;
+    private final Random random;
+
+    private int step;
+    private String lastType;
+    private int lastRid;
+    private int itineraries;
+    private final List<Integer> unpaid = new ArrayList<>();
+    private final List<Integer> booked = new ArrayList<>();
+
+    GeneratedUser(String name, int commands, int readPercent, List<Route> routes, Random random) {
+      this.name = name;
+      this.commands = commands;
+      this.readPercent = readPercent;
+      this.routes = routes;
+      this.random = random;
+    }
+
+    @Override
+    public String next(String previousResponse) {
+      if (previousResponse != null) {
+        observe(previousResponse);
+      }
+      int current = step++;
+      if (current == 0) {
+        lastType = "create";
+        return "create " + name + " " + name + " " + BALANCE;
+      } else if (current == 1) {
+        lastType = "login";
+        return "login " + name + " " + name;
+      } else if (current < commands + 2) {
+        return pick();
+      } else if (current == commands + 2) {
+        lastType = "quit";
+        return "quit";
+      }
+      return null;
+    }
+
+    // Remembers what the previous command found or changed
+    private void observe(String response) {
+      switch (lastType) {
+        case "search":
+          itineraries = 0;
+          for (int i = response.indexOf("Itinerary "); i >= 0; i = response.indexOf("\nItinerary ", i + 1)) {
+            itineraries++;
+          }
+          break;
+        case "book":
+          Matcher m = BOOKED.matcher(response);
+          if (m.find()) {
+            int rid = Integer.parseInt(m.group(1));
+            unpaid.add(rid);
+            booked.add(rid);
+          }
+          break;
+        case "pay":
+          if (response.startsWith("Paid reservation")) {
+            unpaid.remove(Integer.valueOf(lastRid));
+          }
+          break;
+        case "cancel":
+          if (response.startsWith("Canceled reservation")) {
+            unpaid.remove(Integer.valueOf(lastRid));
+            booked.remove(Integer.valueOf(lastRid));
+          }
+          break;
+        default:
+          break;
+      }
+    }
+
+    private String pick() {
+      if (random.nextInt(100) < readPercent) {
+        return random.nextInt(5) == 0 ? reservations() : search();
+      }
+      int choice = random.nextInt(10);
+      if (choice < 5 && itineraries > 0) {
+        lastType = "book";
+        return "book " + random.nextInt(itineraries);
+      } else if (choice < 8 && !unpaid.isEmpty()) {
+        lastType = "pay";
+        lastRid = unpaid.get(random.nextInt(unpaid.size()));
+        return "pay " + lastRid;
+      } else if (!booked.isEmpty()) {
+        lastType = "cancel";
+        lastRid = booked.get(random.nextInt(booked.size()));
+        return "cancel " + lastRid;
+      }
+      // nothing to write yet: look for something to book
+      return search();
+    }
+
+    private String search() {
+      Route route = routes.get(random.nextInt(routes.size()));
+      lastType = "search";
+      // mostly direct, since indirect searches cost far more
+      return "search \"" + route.originCity + "\" \"" + route.destCity + "\" " + (random.nextInt(4) == 0 ? 0 : 1)
+              + " " + route.dayOfMonth + " " + ITINERARIES;
+    }
+
+    private String reservations() {
+      lastType = "reservations";
+      return "reservations";
+    }
+  }
+
+  /**
+   * What a run measured
+   */
+  public static final class Report {
+    private final int users;
+    private final RetryPolicy retry;
+    private final ConcurrentMap<String, CommandStats> commands = new ConcurrentHashMap<>();
+    private final Map<String, long[]> retriesBefore = new HashMap<>();
+    private final Map<String, long[]> retriesDuring = new TreeMap<>();
+    private final List<String> violations = Collections.synchronizedList(new ArrayList<>());
+    final Set<Integer> reservationIds = ConcurrentHashMap.newKeySet();
+    private long elapsedNanos;
+
+    Report(int users, RetryPolicy retry) {
+      this.users = users;
+      this.retry = retry;
+      for (String operation : retry.operations()) {
+        retriesBefore.put(operation, retryCounts(operation));
+      }
+    }
+
+    void record(String type, long nanos, boolean failed) {
+      CommandStats stats = commands.computeIfAbsent(type, k -> new CommandStats());
+      stats.latency.record(nanos);
+      if (failed) {
+        stats.errors.increment();
+      }
+    }
+
+    void violation(String violation) {
+      violations.add(violation);
+    }
+
+    // Keeps what the retry policy counted during the run
+    void finish(long elapsedNanos) {
+      this.elapsedNanos = elapsedNanos;
+      for (String operation : retry.operations()) {
+        long[] after = retryCounts(operation);
+        long[] before = retriesBefore.getOrDefault(operation, new long[after.length]);
+        for (int i = 0; i < after.length; i++) {
+          after[i] -= before[i];
+        }
+        retriesDuring.put(operation, after);
+      }
+    }
+
+    private long[] retryCounts(String operation) {
+      return new long[]{retry.retries(operation), retry.deadlocks(operation), retry.failures(operation)};
+    }
+
+    public int users() {
+      return users;
+    }
+
+    public long commands() {
+      long total = 0;
+      for (CommandStats stats : commands.values()) {
+        total += stats.latency.count();
+      }
+      return total;
+    }
+
+    public double seconds() {
+      return elapsedNanos / 1e9;
+    }
+
+    /** Latencies of the command type, or null if none ran */
+    public LatencyHistogram latency(String type) {
+      CommandStats stats = commands.get(type);
+      return stats == null ? null : stats.latency;
+    }
+
+    /** Commands of the type that were not carried out (see {@link Session}) or threw */
+    public long errors(String type) {
+      CommandStats stats = commands.get(type);
+      return stats == null ? 0 : stats.errors.sum();
+    }
+
+    /** Retries of the transaction during the run */
+    public long retries(String operation) {
+      long[] counts = retriesDuring.get(operation);
+      return counts == null ? 0 : counts[0];
+    }
+
+    /** Deadlocks and serialization failures of the transaction during the run */
+    public long deadlocks(String operation) {
+      long[] counts = retriesDuring.get(operation);
+      return counts == null ? 0 : counts[1];
+    }
+
+    /** Transactions given up during the run */
+    public long failures(String operation) {
+      long[] counts = retriesDuring.get(operation);
+      return counts == null ? 0 : counts[2];
+    }
+
+    public List<String> violations() {
+      return violations;
+    }
+
+    public void print(PrintStream out) {
+      out.printf("Ran %d commands for %d users in %.2f s (%.1f commands/sec)%n", commands(), users, seconds(),
+              commands() / Math.max(seconds(), 1e-9));
+      out.printf("%-13s %8s %7s %9s %9s %9s %9s %9s%n", "command", "count", "errors", "mean ms", "p50 ms", "p99 ms",
+              "p999 ms", "max ms");
+      for (String type : new TreeSet<>(commands.keySet())) {
+        LatencyHistogram h = commands.get(type).latency;
+        out.printf("%-13s %8d %7d %9.3f %9.3f %9.3f %9.3f %9.3f%n", type, h.count(), errors(type), h.mean() / 1e6,
+                h.percentile(0.5) / 1e6, h.percentile(0.99) / 1e6, h.percentile(0.999) / 1e6, h.max() / 1e6);
+      }
+      out.printf("%-13s %8s %9s %7s%n", "transaction", "retries", "deadlocks", "gave up");
+      for (String operation : retriesDuring.keySet()) {
+        out.printf("%-13s %8d %9d %7d%n", operation, retries(operation), deadlocks(operation), failures(operation));
+      }
+      if (violations.isEmpty()) {
+        out.println("No correctness violations");
+      } else {
+        out.println(violations.size() + " correctness violations:");
+        synchronized (violations) {
+          for (String violation : violations) {
+            out.println("  " + violation);
+          }
+        }
+      }
+    }
+  }
+
+  private static class CommandStats {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder errors = new LongAdder();
+  }
+
+  /**
+   * Usage: LoadGenerator [-users N] [-commands N] [-reads PERCENT]
+   * [-threads N] [-routes N] [-seed N] [-clear] [script or directory ...]
+   * <p>
+   * Without scripts the users are generated. A directory stands for all the
+   * .txt files in it. Exits with status 2 if a correctness check failed.
+   */
+  public static void main(String[] args) throws Exception {
+    int users = 1000;
+    int commands = 20;
+    int readPercent = 80;
+    int threads = 0;
+    int routeCount = 100;
+    long seed = 42;
+    boolean clear = false;
+    List<Path> scripts = new ArrayList<>();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        switch (args[i]) {
+          case "-users": users = Integer.parseInt(args[++i]); break;
+          case "-commands": commands = Integer.parseInt(args[++i]); break;
+          case "-reads": readPercent = Integer.parseInt(args[++i]); break;
+          case "-threads": threads = Integer.parseInt(args[++i]); break;
+          case "-routes": routeCount = Integer.parseInt(args[++i]); break;
+          case "-seed": seed = Long.parseLong(args[++i]); break;
+          case "-clear": clear = true; break;
+          default:
+            if (args[i].startsWith("-")) {
+              throw new IllegalArgumentException(args[i]);
+            }
+            scripts.addAll(scriptFiles(Paths.get(args[i])));
+        }
+      }
+    } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+      System.err.println("Usage: load [-users N] [-commands N] [-reads PERCENT] [-threads N] [-routes N] "
+              + "[-seed N] [-clear] [script or directory ...]");
+      System.exit(1);
+    }
+
+    Report report;
+    try (QueryFactory factory = QueryFactory.fromConfig()) {
+      Query query = factory.query();
+      if (clear) {
+        query.clearTables();
+      }
+      List<User> simulated;
+      if (scripts.isEmpty()) {
+        simulated = generated(users, commands, readPercent, routes(factory.pool(), routeCount, seed), seed);
+      } else {
+        List<List<List<String>>> parsed = new ArrayList<>();
+        for (Path script : scripts) {
+          parsed.add(BatchRunner.parse(script));
+        }
+        simulated = scripted(parsed, users);
+      }
+      report = new LoadGenerator(query, factory.pool(), threads).run(simulated);
+    }
+    report.print(System.out);
+    if (!report.violations().isEmpty()) {
+      System.exit(2);
+    }
+  }
+
+  private static List<Path> scriptFiles(Path path) throws IOException {
+    if (!Files.isDirectory(path)) {
+      return Collections.singletonList(path);
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(path, "*.txt")) {
+      List<Path> sorted = new ArrayList<>();
+      files.forEach(sorted::add);
+      Collections.sort(sorted);
+      return sorted;
+    }
+  }
+}
@@ -0,0 +1,369 @@
+package edu.uw.cs;
+
+import javax.management.*;
+import java.io.*;
+import java.lang.management.*;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Latency histograms and counters for commands, SQL statements, retried
+ * failures and password hashing.
+ * <p>
+ * Histograms are named by what they time:
+ * <ul>
+ * <li>command.[name] for each command run through {@link FlightService}</li>
+ * <li>sql.[constant] for each execution of a pooled prepared statement, named
+ * after the constant holding its SQL; a query is timed until its first rows
+ * arrive</li>
+ * <li>retry.[cause] for each failed transaction attempt, by the cause of its
+ * failure (see {@link #cause})</li>
+ * <li>hash.queue_wait for the time each password hash waits for a hashing
+ * thread, and hash.compute for the hash itself</li>
+ * </ul>
+ * Counters named errors.[command] count commands that were not carried out,
+ * whatever their answer says (see {@link Session}), server.shed counts
+ * commands {@link FlightServer} answered as busy without running them, and
+ * hash.rejected counts hashes turned away by a full hashing queue.
+ * Recording only increments atomic counters, so it takes no lock. The same
+ * numbers are exposed over JMX as attributes such as "command.book.p99Micros"
+ * and can be written to a log at a fixed interval.
+ * <p>
+ * Timing statements goes through a {@link TimedStatement} around each of
+ * them, which only adds two clock reads per execution. It can still be left
+ * off while the rest is recorded.
+ */
+public class Metrics implements DynamicMBean, AutoCloseable {
+  public static final String OBJECT_NAME = "edu.uw.cs:type=Metrics";
+
+  // the classes whose SQL constants name the sql.* histograms
+  private static final Class<?>[] STATEMENT_OWNERS = {
+      Query.class, Query.ReadIsolation.class, BatchedTransactions.class, SeatInventory.class,
+      ReservationIdAllocator.class};
+  private static final Map<String, String> STATEMENT_NAMES = statementNames();
+
+  private static final String[] STATISTICS = {
+      "count", "meanMicros", "p50Micros", "p99Micros", "p999Micros", "maxMicros"};
+
+  private final boolean timeStatements;
+  private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+  // the command.* histograms and errors.* counters, looked up once per type
+  // so that recording a command builds no name
+  private final Map<Command.Type, LatencyHistogram> commandLatencies = new EnumMap<>(Command.Type.class);
+  private final Map<Command.Type, LongAdder> commandErrors = new EnumMap<>(Command.Type.class);
+
+  private ObjectName registeredAs;
+  private ScheduledExecutorService logger;
+
+  public Metrics() {
+    this(true);
+  }
+
+  /**
+   * @param timeStatements whether pools should time every SQL statement
+   */
+  public Metrics(boolean timeStatements) {
+    this.timeStatements = timeStatements;
+    for (Command.Type type : Command.Type.values()) {
+      commandLatencies.put(type, histogram("command." + type.keyword));
+      commandErrors.put(type, counter("errors." + type.keyword));
+    }
+  }
+
+  /**
+   * Creates metrics from the hw1.metrics ("off", "commands" or "all"),
+   * hw1.metrics_log_seconds and hw1.metrics_log settings, registered over JMX,
+   * or returns null if they are off
+   */
+  public static Metrics fromConfig(Properties configProps) throws IOException {
+    String level = configProps.getProperty("hw1.metrics", "off").trim();
+    if (level.equalsIgnoreCase("off")) {
+      return null;
+    } else if (!level.equalsIgnoreCase("commands") && !level.equalsIgnoreCase("all")) {
+      throw new IllegalArgumentException("Unknown hw1.metrics setting " + level);
+    }
+    Metrics metrics = new Metrics(level.equalsIgnoreCase("all"));
+    metrics.register(OBJECT_NAME);
+    int logSeconds = ConnectionPool.intSetting(configProps, "hw1.metrics_log_seconds", 0);
+    if (logSeconds > 0) {
+      String log = configProps.getProperty("hw1.metrics_log", "").trim();
+      metrics.logEvery(logSeconds, log.isEmpty() ? System.err
+              : new PrintStream(new FileOutputStream(log, true), true, "UTF-8"));
+    }
+    return metrics;
+  }
+
+  /**
+   * Whether SQL statements are timed as well, see {@link ConnectionPool#setMetrics}
+   */
+  public boolean timesStatements() {
+    return timeStatements;
+  }
+
+  /**
+   * The histogram with the given name, created empty on first use
+   */
+  public LatencyHistogram histogram(String name) {
+    LatencyHistogram histogram = histograms.get(name);
+    return histogram != null ? histogram : histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+  }
+
+  public void record(String name, long nanos) {
+    histogram(name).record(nanos);
+  }
+
+  public void increment(String counter) {
+    counter(counter).increment();
+  }
+
+  private LongAdder counter(String name) {
+    LongAdder adder = counters.get(name);
+    return adder != null ? adder : counters.computeIfAbsent(name, k -> new LongAdder());
+  }
+
+  public long count(String counter) {
+    LongAdder adder = counters.get(counter);
+    return adder == null ? 0 : adder.sum();
+  }
+
+  /**
+   * Records a command's latency, and counts it as an error if it failed
+   */
+  void command(Command.Type type, long nanos, boolean failed) {
+    commandLatencies.get(type).record(nanos);
+    if (failed) {
+      commandErrors.get(type).increment();
+    }
+  }
+
+  /**
+   * Records a failed transaction attempt under the cause of its failure
+   */
+  public void failedAttempt(SQLException e, long nanos) {
+    record("retry." + cause(e), nanos);
+  }
+
+  /**
+   * What made an attempt fail: deadlock, lock_timeout, snapshot_conflict,
+   * connection, transient for other transient failures, or permanent
+   */
+  static String cause(SQLException e) {
+    if (RetryPolicy.isDeadlock(e)) {
+      return "deadlock";
+    }
+    for (SQLException s = e; s != null; s = s.getNextException()) {
+      if (s.getErrorCode() == 1222) {
+        return "lock_timeout";
+      } else if (s.getErrorCode() == 3960) {
+        return "snapshot_conflict";
+      } else if (s.getSQLState() != null && s.getSQLState().startsWith("08")) {
+        return "connection";
+      }
+    }
+    return RetryPolicy.isTransient(e) ? "transient" : "permanent";
+  }
+
+  /**
+   * Wraps the statement so that every execution is recorded under the name of
+   * its SQL
+   */
+  PreparedStatement timed(PreparedStatement statement, String sql) {
+    return new TimedStatement(statement, histogram("sql." + STATEMENT_NAMES.getOrDefault(sql, "other")));
+  }
+
+  // Maps the SQL of each String constant, and of each String field of the
+  // owners' own constant instances, to the constant's name
+  private static Map<String, String> statementNames() {
+    Map<String, String> names = new HashMap<>();
+    try {
+      for (Class<?> owner : STATEMENT_OWNERS) {
+        for (Field field : owner.getDeclaredFields()) {
+          if (!Modifier.isStatic(field.getModifiers())) {
+            continue;
+          }
+          field.setAccessible(true);
+          if (field.getType() == String.class) {
+            names.putIfAbsent((String) field.get(null), field.getName());
+          } else if (field.getType() == owner) {
+            Object instance = field.get(null);
+            for (Field member : owner.getDeclaredFields()) {
+              if (!Modifier.isStatic(member.getModifiers()) && member.getType() == String.class) {
+                member.setAccessible(true);
+                names.putIfAbsent((String) member.get(instance), field.getName() + "." + member.getName());
+              }
+            }
+          }
+        }
+      }
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+    return names;
+  }
+
+  /**
+   * Forgets everything recorded so far
+   */
+  public void reset() {
+    for (LatencyHistogram histogram : histograms.values()) {
+      histogram.reset();
+    }
+    for (LongAdder counter : counters.values()) {
+      counter.reset();
+    }
+  }
+
+  /**
+   * Exposes the metrics over the platform MBean server under the given name
+   */
+  public synchronized void register(String objectName) {
+    try {
+      ObjectName name = new ObjectName(objectName);
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+      registeredAs = name;
+    } catch (JMException e) {
+      throw new IllegalStateException("Cannot register " + objectName, e);
+    }
+  }
+
+  /**
+   * Writes all metrics to the stream every given number of seconds
+   */
+  public synchronized void logEvery(long seconds, PrintStream out) {
+    if (logger != null) {
+      logger.shutdownNow();
+    }
+    logger = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "metrics-log");
+      t.setDaemon(true);
+      return t;
+    });
+    logger.scheduleAtFixedRate(() -> {
+      out.println("Metrics at " + Instant.now());
+      out.print(this);
+      out.flush();
+    }, seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stops the log and unregisters from JMX
+   */
+  @Override
+  public synchronized void close() {
+    if (logger != null) {
+      logger.shutdownNow();
+      logger = null;
+    }
+    if (registeredAs != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+      } catch (JMException e) {
+        // already gone
+      }
+      registeredAs = null;
+    }
+  }
+
+  /**
+   * One line per histogram and counter, sorted by name
+   */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (String name : new TreeSet<>(histograms.keySet())) {
+      sb.append(name).append(' ').append(histograms.get(name)).append('\n');
+    }
+    for (String name : new TreeSet<>(counters.keySet())) {
+      sb.append(name).append(' ').append(count(name)).append('\n');
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    if (counters.containsKey(attribute)) {
+      return count(attribute);
+    }
+    int dot = attribute.lastIndexOf('.');
+    LatencyHistogram histogram = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+    if (histogram == null) {
+      throw new AttributeNotFoundException(attribute);
+    }
+    switch (attribute.substring(dot + 1)) {
+      case "count":
+        return histogram.count();
+      case "meanMicros":
+        return histogram.mean() / 1e3;
+      case "p50Micros":
+        return histogram.percentile(0.5) / 1e3;
+      case "p99Micros":
+        return histogram.percentile(0.99) / 1e3;
+      case "p999Micros":
+        return histogram.percentile(0.999) / 1e3;
+      case "maxMicros":
+        return histogram.max() / 1e3;
+      default:
+        throw new AttributeNotFoundException(attribute);
+    }
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      try {
+        list.add(new Attribute(attribute, getAttribute(attribute)));
+      } catch (AttributeNotFoundException e) {
+        // left out, as the interface expects
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Metrics are read-only");
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+    if (actionName.equals("reset")) {
+      reset();
+      return null;
+    }
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    List<MBeanAttributeInfo> attributes = new ArrayList<>();
+    for (String name : new TreeSet<>(histograms.keySet())) {
+      for (String statistic : STATISTICS) {
+        attributes.add(new MBeanAttributeInfo(name + "." + statistic,
+                statistic.equals("count") ? "long" : "double", statistic + " of " + name, true, false, false));
+      }
+    }
+    for (String name : new TreeSet<>(counters.keySet())) {
+      attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+    }
+    MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Forgets everything recorded so far",
+            new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+    return new MBeanInfo(Metrics.class.getName(), "Flight service latencies and counters",
+            attributes.toArray(new MBeanAttributeInfo[0]), new MBeanConstructorInfo[0],
+            new MBeanOperationInfo[]{reset}, new MBeanNotificationInfo[0]);
+  }
+}
@@ -0,0 +1,190 @@
+package edu.uw.cs;
+
+import java.security.*;
+import java.security.spec.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Runs the PBKDF2 password hashes for login and create on a dedicated, CPU-sized
+ * pool.
+ * <p>
+ * A burst of logins can then only use the hashing threads instead of every
+ * core. When more hashes are waiting than the queue allows, new requests are
+ * rejected right away with {@link RejectedExecutionException} so the caller can
+ * shed the load. Each hashing thread keeps its own {@link SecretKeyFactory}.
+ * The time each hash waits for a thread and the time spent computing it are
+ * recorded separately in {@link Metrics}, and rejections are counted there;
+ * the statistics this class reports are read back from them.
+ */
+public class PasswordHasher implements AutoCloseable {
+  // Password hashing parameter constants
+  private static final int HASH_STRENGTH = 65536;
+  private static final int KEY_LENGTH = 128;
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+
+  private static final int DEFAULT_QUEUE_LIMIT = 256;
+
+  // Hasher used by every Query that was not given one
+  private static volatile PasswordHasher shared;
+
+  private final ThreadPoolExecutor executor;
+  private final ThreadLocal<SecretKeyFactory> factories = ThreadLocal.withInitial(() -> {
+    try {
+      return SecretKeyFactory.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+
+  // the hasher's own until setMetrics is given the application's
+  private volatile Metrics metrics = new Metrics(false);
+
+  /**
+   * @param threads    number of hashing threads
+   * @param queueLimit hashes that may wait for a thread before new ones are
+   *                   rejected
+   */
+  public PasswordHasher(int threads, int queueLimit) {
+    AtomicInteger count = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, queueLimit)), r -> {
+      Thread t = new Thread(r, "password-hasher-" + count.getAndIncrement());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Creates a hasher from the optional hw1.hash_threads and hw1.hash_queue_limit
+   * settings. Defaults to one thread per core.
+   */
+  public static PasswordHasher fromConfig(Properties configProps) {
+    return new PasswordHasher(
+            ConnectionPool.intSetting(configProps, "hw1.hash_threads", Runtime.getRuntime().availableProcessors()),
+            ConnectionPool.intSetting(configProps, "hw1.hash_queue_limit", DEFAULT_QUEUE_LIMIT));
+  }
+
+  /**
+   * The process-wide hasher with default settings
+   */
+  public static PasswordHasher shared() {
+    if (shared == null) {
+      synchronized (PasswordHasher.class) {
+        if (shared == null) {
+          shared = new PasswordHasher(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_LIMIT);
+        }
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Records queue waits under hash.queue_wait, hashes under hash.compute and
+   * rejections under the hash.rejected counter of the given metrics from now
+   * on. Pass null to go back to metrics of the hasher's own.
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics != null ? metrics : new Metrics(false);
+  }
+
+  /**
+   * Hashes the password with the salt on a hashing thread and waits for the
+   * result.
+   *
+   * @throws RejectedExecutionException if too many hashes are already waiting
+   */
+  public byte[] hash(String password, byte[] salt) {
+    Metrics metrics = this.metrics;
+    long submitted = System.nanoTime();
+    Future<byte[]> result;
+    try {
+      result = executor.submit(() -> {
+        long started = System.nanoTime();
+        metrics.record("hash.queue_wait", started - submitted);
+        try {
+          return compute(password, salt);
+        } finally {
+          metrics.record("hash.compute", System.nanoTime() - started);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      metrics.increment("hash.rejected");
+      throw e;
+    }
+
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return result.get();
+        } catch (InterruptedException e) {
+          // the hash is already queued; finish the login before reporting it
+          interrupted = true;
+        } catch (ExecutionException e) {
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private byte[] compute(String password, byte[] salt) {
+    // Specify the hash parameters
+    KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
+
+    // Generate the hash
+    try {
+      return factories.get().generateSecret(spec).getEncoded();
+    } catch (InvalidKeySpecException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /** Number of hashes computed */
+  public long hashes() {
+    return metrics.histogram("hash.compute").count();
+  }
+
+  /** Number of hashes rejected because the queue was full */
+  public long rejected() {
+    return metrics.count("hash.rejected");
+  }
+
+  /** Hashes currently waiting for a thread */
+  public int queued() {
+    return executor.getQueue().size();
+  }
+
+  /** Mean time a hash waited for a thread, in microseconds */
+  public double meanQueueWaitMicros() {
+    return metrics.histogram("hash.queue_wait").mean() / 1000.0;
+  }
+
+  /** Longest time a hash waited for a thread, in microseconds */
+  public double maxQueueWaitMicros() {
+    return metrics.histogram("hash.queue_wait").max() / 1000.0;
+  }
+
+  /** Mean time spent computing a hash, in microseconds */
+  public double meanHashMicros() {
+    return metrics.histogram("hash.compute").mean() / 1000.0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("hashes=%d rejected=%d queued=%d meanQueueWait=%.0fus maxQueueWait=%.0fus meanHash=%.0fus",
+            hashes(), rejected(), queued(), meanQueueWaitMicros(), maxQueueWaitMicros(), meanHashMicros());
+  }
+
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+}
@@ -3,59 +3,98 @@ package edu.uw.cs;
 import java.io.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.security.*;
-import java.security.spec.*;
-import javax.crypto.*;
-import javax.crypto.spec.*;
 
 /**
  * Runs queries against a back-end database
+ * <p>
+ * A Query holds no per-user state of its own: every transaction takes the
+ * {@link Session} it runs for and borrows a pooled connection only while it
+ * runs, so one Query can serve any number of sessions from any number of
+ * threads. The overloads without a session argument act on a session owned by
+ * this Query, for single-user use such as the CLI.
  */
 public class Query {
-  // DB Connection
-  private Connection conn;
+  // DB Connections, borrowed for the duration of each transaction
+  private ConnectionPool pool;
+  // The factory openConnection() built this Query with, closed with it
+  private QueryFactory owner;
 
-  private String user;
-  private ItineraryItem[] itineraries;
+  // In-memory copy of Flights used for searches, null when disabled
+  private volatile FlightCatalog catalog;
 
-  // Password hashing parameter constants
-  private static final int HASH_STRENGTH = 65536;
-  private static final int KEY_LENGTH = 128;
+  // Session used by the methods that do not take one explicitly
+  private final Session session = new Session();
+
+  // Connection pinned by runReadOnly for the reads it runs on this thread
+  private final ThreadLocal<ConnectionPool.Lease> pinned = new ThreadLocal<>();
+
+  /** Response when a request is shed because the server is overloaded */
+  static final String SERVER_BUSY = "Server busy, please retry\n";
+
+  // Password hashes run on this pool rather than on the caller's thread
+  private volatile PasswordHasher hasher = PasswordHasher.shared();
+  // issues resumption tokens on login when set
+  private volatile SessionTokens tokens;
+  private volatile ReservationIdAllocator ids;
+  // maintained seat counts; null counts each flight's reservations instead
+  private volatile SeatInventory seats;
+  private volatile RetryPolicy retry = RetryPolicy.defaults();
+  private volatile ReadIsolation readIsolation = ReadIsolation.READ_COMMITTED;
+  // book, pay and cancel run at READ COMMITTED and check for conflicts themselves
+  private volatile boolean optimisticWrites;
+  // runs book, pay and cancel in one round trip each
+  private volatile boolean batchedTransactions;
+  // answers repeated searches when set
+  private volatile SearchCache searchCache;
+  // answers reservations without a query when set; book, pay and cancel write through
+  private volatile ReservationCache reservationCache;
+  // searches for at least this many itineraries are streamed; 0 never streams
+  private volatile int searchStreamThreshold;
+  // supplies the statements that differ between databases
+  private volatile Dialect dialect = Dialect.SQL_SERVER;
+  // times password hashes when set; see FlightService and ConnectionPool for the rest
+  private volatile Metrics metrics;
+  // holds users and reservations in memory instead of the database when set
+  private volatile BookingEngine engine;
+  private static final SecureRandom RANDOM = new SecureRandom();
 
   // Canned queries
   private static final String BEGIN_TRANSACTION = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
-  private PreparedStatement beginTransactionStatement;
-
-  private static final String COMMIT = "COMMIT TRANSACTION;";
-  private PreparedStatement commitTransactionStatement;
 
-  private static final String ROLLBACK = "ROLLBACK TRANSACTION";
-  private PreparedStatement rollbackTransactionStatement;
+  // optimistic writes: no range locks, conflicts are caught by conditional updates
+  private static final String BEGIN_READ_COMMITTED_TRANSACTION =
+          "SET TRANSACTION ISOLATION LEVEL READ COMMITTED; BEGIN TRANSACTION;";
 
-  private static final String CLEAR_TABLES = "TRUNCATE TABLE Reservations DELETE FROM Users DELETE FROM ReservationID" +
-          " INSERT INTO ReservationID VALUES (1)";
-  private PreparedStatement clearTablesStatement;
+  private static final String[] CLEAR_TABLES = {"TRUNCATE TABLE Reservations", "DELETE FROM Users",
+          "DELETE FROM ReservationID", "INSERT INTO ReservationID VALUES (1)"};
 
   private static final String CHECK_FLIGHT_CAPACITY =
           "SELECT (SELECT capacity FROM Flights WHERE fid = ?) - COUNT(*) AS capacity\n" +
                   "FROM Reservations\n" +
                   "WHERE flight1 = ? OR flight2 = ?";
-  private PreparedStatement checkFlightCapacityStatement;
 
   private static final String GET_LOGIN = "SELECT uname,pwHash, pwSalt FROM Users WHERE uname = ?";
-  private PreparedStatement getLoginStatement;
 
-  private static final String CREATE_USER = "INSERT INTO Users VALUES(?,?,?,?)";
-  private PreparedStatement createUserStatement;
+  // login when session tokens are on, which needs the tokenGeneration column of Users
+  private static final String GET_LOGIN_AND_GENERATION =
+          "SELECT uname,pwHash, pwSalt, tokenGeneration FROM Users WHERE uname = ?";
+
+  private static final String GET_TOKEN_GENERATION = "SELECT tokenGeneration FROM Users WHERE uname = ?";
+
+  private static final String REVOKE_TOKENS = "UPDATE Users SET tokenGeneration = tokenGeneration + 1 " +
+          "WHERE uname = ?";
+
+  private static final String CREATE_USER = "INSERT INTO Users(uname, pwHash, pwSalt, balance) VALUES(?,?,?,?)";
 
   private static final String GET_DIRECT_FLIGHTS =
           "SELECT TOP (?) fid,day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,capacity,price " +
                   "FROM Flights " +
                   "WHERE origin_city = ? AND dest_city = ? AND day_of_month =  ? AND canceled = 0 " +
                   "ORDER BY actual_time ASC, fid ASC";
-  private PreparedStatement getDirectFlightsStatement;
 
-  private static final String GET_INDIRECT_FLIGHTS =
+  private static final String INDIRECT_FLIGHTS =
           "SELECT TOP (?) F1.fid AS fid1,F1.day_of_month AS day_of_month1,F1.carrier_id AS carrier_id1,F1.flight_num "
                   +"AS flight_num1,F1.origin_city AS origin_city1,F1.dest_city AS dest_city1,F1.actual_time AS "
                   +"actual_time1,F1.capacity AS capacity1,F1.price AS price1, "
@@ -64,56 +103,61 @@ public class Query {
                   +"actual_time2,F2.capacity AS capacity2,F2.price AS price2 "
                   +"FROM Flights F1, Flights F2 "
                   +"WHERE F1.origin_city = ? AND F1.dest_city = F2.origin_city AND F2.dest_city = ? AND "
-                  +"F1.canceled = 0 AND F2.canceled = 0 AND F1.day_of_month = ? AND F2.day_of_month = ? "
-                  +"ORDER BY F1.actual_time + F2.actual_time ASC, F1.fid ASC, F2.fid ASC";
-  private PreparedStatement getIndirectFlightsStatement;
+                  +"F1.canceled = 0 AND F2.canceled = 0 AND F1.day_of_month = ? AND F2.day_of_month = ? ";
+
+  private static final String BY_TOTAL_TIME = "ORDER BY F1.actual_time + F2.actual_time ASC, F1.fid ASC, F2.fid ASC";
+
+  static final String GET_INDIRECT_FLIGHTS = INDIRECT_FLIGHTS + BY_TOTAL_TIME;
+
+  // The next page of GET_INDIRECT_FLIGHTS, after the given (total time, fid1, fid2)
+  private static final String GET_INDIRECT_FLIGHTS_AFTER = INDIRECT_FLIGHTS
+          + "AND (F1.actual_time + F2.actual_time > ? OR (F1.actual_time + F2.actual_time = ? "
+          + "AND (F1.fid > ? OR (F1.fid = ? AND F2.fid > ?)))) " + BY_TOTAL_TIME;
+
+  // one-hop itineraries a streamed search reads per connection lease
+  private static final int SEARCH_PAGE_ROWS = 1000;
 
   private static final String GET_SAME_DAY_RESERVATIONS =
           "SELECT COUNT(*) AS totalSame FROM Reservations R, FLIGHTS F1, FLIGHTS F2 " +
                   "WHERE R.uname = ? AND F2.fid = R.flight1 AND F1.fid = ? AND F1.day_of_month = F2.day_of_month";
-  private PreparedStatement getSameDayStatement;
 
   private static final String BOOK_RESERVATION = "INSERT INTO Reservations(rid,paid,uname,flight1,flight2) " +
           "VALUES (?,0,?,?,?)";
-  private PreparedStatement bookReservationStatement;
 
-  private static final String UPDATE_NEXT_ID = "UPDATE ReservationID SET rid = rid + 1";
-  private PreparedStatement updateNextIDStatement;
 
   private static final String GET_RESERVATION_COST = "SELECT balance,SUM(price) AS totalCost " +
           "FROM Users,Reservations,FLIGHTS " +
           "WHERE Users.uname = ? AND Users.uname = Reservations.uname AND rid = ? AND paid = 0 AND " +
           "(flight1 = fid OR flight2 = fid)\n" +
           "GROUP BY balance ";
-  private PreparedStatement getReservationCostStatement;
 
-  private static final String PAY_RESERVATION = "UPDATE Reservations SET paid = 1 WHERE rid = ?";
-  private PreparedStatement payReservationStatement;
+  private static final String PAY_RESERVATION = "UPDATE Reservations SET paid = 1 " +
+          "WHERE rid = ? AND uname = ? AND paid = 0";
+
+  private static final String CHARGE_BALANCE = "UPDATE Users SET balance = balance - ? " +
+          "WHERE uname = ? AND balance >= ?";
+
+  private static final String GET_BALANCE = "SELECT balance FROM Users WHERE uname = ?";
+
+  private static final String GET_USER_VERSION = "SELECT version FROM Users WHERE uname = ?";
 
-  private static final String UPDATE_BALANCE = "UPDATE Users SET balance = ? WHERE uname = ?" ;
-  private PreparedStatement updateBalanceStatement;
+  private static final String BUMP_USER_VERSION = "UPDATE Users SET version = version + 1 " +
+          "WHERE uname = ? AND version = ?";
 
   private static final String GET_RESERVATIONS =
-          "SELECT rid,paid,fid,day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,capacity,price "+
+          "SELECT rid,paid,flight1,fid,day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,capacity,price "+
                   "FROM Reservations,FLIGHTS " +
                   "WHERE uname = ? AND (flight1 = fid OR flight2 = fid) " +
                   "ORDER BY rid ASC";
-  private PreparedStatement getReservationsStatement;
 
-  private static final String GET_CANCELING_INFO = "SELECT paid, price " +
+  private static final String GET_CANCELING_INFO = "SELECT paid, price, fid " +
           "FROM Reservations, FLIGHTS " +
           "WHERE uname = ? AND rid = ? AND (flight1 = fid OR flight2 = fid)";
-  private PreparedStatement getCancelingInfoStatement;
 
   private static final String CANCEL_RESERVATION = "DELETE FROM Reservations " +
-          "WHERE rid = ?; " +
-          "UPDATE Users " +
-          "SET balance = balance + ? " +
-          "WHERE uname = ?;";
-  private PreparedStatement cancelReservationStatement;
+          "WHERE rid = ? AND uname = ? AND paid = ?";
 
-  private static final String GET_ID = "SELECT rid FROM ReservationID";
-  private PreparedStatement getIDStatement;
+  private static final String REFUND_BALANCE = "UPDATE Users SET balance = balance + ? WHERE uname = ?";
 
 
   /**
@@ -124,29 +168,238 @@ public class Query {
    * @throws SQLException
    */
   public void openConnection() throws IOException, SQLException {
-    // Connect to the database with the provided connection configuration
-    Properties configProps = new Properties();
-    configProps.load(new FileInputStream("dbconn.properties"));
-    String serverURL = configProps.getProperty("hw1.server_url");
-    String dbName = configProps.getProperty("hw1.database_name");
-    String adminName = configProps.getProperty("hw1.username");
-    String password = configProps.getProperty("hw1.password");
-    String connectionUrl = String.format("jdbc:sqlserver://%s:1433;databaseName=%s;user=%s;password=%s", serverURL,
-            dbName, adminName, password);
-    conn = DriverManager.getConnection(connectionUrl);
+    openConnection(loadConfig());
+  }
+
+  /**
+   * Same as {@link #openConnection()}, with the given configuration settings.
+   * Everything is set up as in {@link QueryFactory#fromConfig()}, by a factory
+   * that {@link #closeConnection()} closes.
+   */
+  void openConnection(Properties configProps) throws IOException, SQLException {
+    QueryFactory factory = QueryFactory.fromConfig(configProps);
+    try {
+      // connects right away, so that a bad configuration fails here
+      factory.configure(this);
+    } catch (SQLException | RuntimeException e) {
+      factory.close();
+      throw e;
+    }
+    owner = factory;
+  }
+
+  /**
+   * Runs transactions on connections borrowed from the given pool. The pool is
+   * shared and is not closed by {@link #closeConnection()}.
+   */
+  public void openConnection(ConnectionPool pool) {
+    this.pool = pool;
+    this.ids = new ReservationIdAllocator(pool, 1);
+  }
+
+  /**
+   * Serves direct and one-hop searches from the given catalog instead of the
+   * database. Pass null to go back to querying Flights.
+   */
+  public void setFlightCatalog(FlightCatalog catalog) {
+    this.catalog = catalog;
+  }
+
+  /**
+   * Runs password hashes for login and create on the given pool
+   */
+  public void setPasswordHasher(PasswordHasher hasher) {
+    this.hasher = hasher;
+  }
+
+  /**
+   * Issues a resumption token with every successful login and accepts them in
+   * {@link #transaction_resume}. Pass null to turn tokens off.
+   */
+  public void setSessionTokens(SessionTokens tokens) {
+    this.tokens = tokens;
+  }
+
+  /**
+   * Takes reservation IDs from the given allocator, which should share this
+   * Query's pool
+   */
+  public void setReservationIdAllocator(ReservationIdAllocator ids) {
+    this.ids = ids;
+  }
+
+  /**
+   * Checks and takes seats through the SeatsRemaining table instead of counting
+   * reservations. Pass null to go back to counting.
+   */
+  public void setSeatInventory(SeatInventory seats) {
+    this.seats = seats;
+  }
+
+  /**
+   * Retries transactions that hit a deadlock or serialization conflict with the
+   * given policy
+   */
+  public void setRetryPolicy(RetryPolicy retry) {
+    this.retry = retry;
+  }
+
+  /**
+   * Runs search and reservations at the given isolation level. SNAPSHOT needs
+   * ALLOW_SNAPSHOT_ISOLATION to be on for the database.
+   */
+  public void setReadIsolation(ReadIsolation readIsolation) {
+    this.readIsolation = readIsolation;
+  }
+
+  /**
+   * Runs pay, cancel and (with seat counters) book at READ COMMITTED with
+   * conditional updates instead of at SERIALIZABLE. Needs the version column
+   * of Users.
+   */
+  public void setOptimisticWrites(boolean optimisticWrites) {
+    this.optimisticWrites = optimisticWrites;
+  }
+
+  /**
+   * Runs book, pay and cancel as one server-side batch each instead of one
+   * statement per round trip. The batches always run at SERIALIZABLE.
+   */
+  public void setBatchedTransactions(boolean batchedTransactions) {
+    this.batchedTransactions = batchedTransactions;
+  }
+
+  /**
+   * Answers repeated searches from the given cache. Pass null to compute every
+   * search.
+   */
+  public void setSearchCache(SearchCache searchCache) {
+    this.searchCache = searchCache;
+  }
+
+  /**
+   * Answers reservations from the given cache, which book, pay and cancel keep
+   * up to date. Pass null to query every time.
+   */
+  public void setReservationCache(ReservationCache reservationCache) {
+    this.reservationCache = reservationCache;
+  }
+
+  /**
+   * Streams searches for at least the given number of itineraries where the
+   * caller can take a stream (see {@link FlightService#execute(Query, Session,
+   * String, Writer)}). Pass 0 to never stream.
+   */
+  public void setSearchStreamThreshold(int searchStreamThreshold) {
+    this.searchStreamThreshold = searchStreamThreshold;
+  }
+
+  /**
+   * The number of itineraries from which searches are streamed, 0 if never
+   */
+  public int searchStreamThreshold() {
+    return searchStreamThreshold;
+  }
+
+  /**
+   * Issues transaction statements the way the given database expects them.
+   * {@link Dialect#SQL_SERVER} by default.
+   */
+  public void setDialect(Dialect dialect) {
+    this.dialect = dialect;
+  }
+
+  /**
+   * Runs login, create, book, pay, cancel and reservations on the given engine
+   * instead of the database. Pass null to go back to the database.
+   */
+  public void setBookingEngine(BookingEngine engine) {
+    this.engine = engine;
+  }
+
+  /**
+   * The engine users and reservations are kept in, or null if they are in the
+   * database
+   */
+  public BookingEngine bookingEngine() {
+    return engine;
+  }
+
+  /**
+   * Records how long password hashes take. Pass null to stop.
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * The metrics commands are recorded in, or null if there are none
+   */
+  public Metrics metrics() {
+    return metrics;
+  }
+
+  /**
+   * The policy transactions are retried with, and its counts
+   */
+  public RetryPolicy retryPolicy() {
+    return retry;
+  }
+
+  /**
+   * The cache searches are answered from, or null
+   */
+  public SearchCache searchCache() {
+    return searchCache;
+  }
 
-    // By default, automatically commit after each statement
-    conn.setAutoCommit(true);
+  /**
+   * The cache reservations are answered from, or null
+   */
+  public ReservationCache reservationCache() {
+    return reservationCache;
+  }
+
+  /**
+   * Reads the dbconn.properties configuration settings
+   */
+  static Properties loadConfig() throws IOException {
+    Properties configProps = new Properties();
+    try (InputStream in = new FileInputStream("dbconn.properties")) {
+      configProps.load(in);
+    }
+    return configProps;
+  }
 
-    // By default, set the transaction isolation level to serializable
-    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+  /**
+   * Builds the JDBC URL for the database described by the configuration
+   * settings (see {@link Storage})
+   */
+  static String connectionUrl(Properties configProps) {
+    return Storage.fromConfig(configProps).connectionUrl(configProps);
   }
 
   /**
    * Closes the application-to-database connection
    */
   public void closeConnection() throws SQLException {
-    conn.close();
+    if (owner != null) {
+      // openConnection() created the pool, the hasher and the engine
+      QueryFactory factory = owner;
+      owner = null;
+      try {
+        factory.close();
+      } catch (UncheckedIOException e) {
+        throw new SQLException("Cannot close the booking log", e.getCause());
+      }
+    }
+  }
+
+  /**
+   * The session used by the transaction methods that do not take one
+   */
+  public Session session() {
+    return session;
   }
 
   /**
@@ -155,85 +408,254 @@ public class Query {
    * WARNING! Do not drop any tables and do not clear the flights table.
    */
   public void clearTables() {
-    try {
-      beginTransaction();
-      clearTablesStatement.executeUpdate();
-      commitTransaction();
-    } catch (Exception e) {
-      try {
-        rollbackTransaction();
-        clearTables();
+    BookingEngine engine = this.engine;
+    if (engine != null) {
+      engine.clear();
+      if (reservationCache != null) {
+        reservationCache.clear();
       }
-      catch(SQLException err){
+      return;
+    }
+    boolean cleared = retry.run("clear", () -> {
+      try (ConnectionPool.Lease lease = pool.lease()) {
+        beginTransaction(lease);
+        lease.prepare(dialect.batch(CLEAR_TABLES)).executeUpdate();
+        if (seats != null) {
+          seats.clear(lease);
+        }
+        commitTransaction(lease);
+        return true;
       }
+    }, false);
+    if (!cleared) {
+      throw new IllegalStateException("Failed to clear tables");
+    }
+    ids.reset();
+    if (reservationCache != null) {
+      reservationCache.clear();
     }
   }
 
   /*
    * prepare all the SQL statements in this method.
+   * <p>
+   * Statements are cached on each pooled connection, so this only warms up the
+   * connection the next transaction will most likely get.
    */
   public void prepareStatements() throws SQLException {
-    getIDStatement = conn.prepareStatement(GET_ID);
-    beginTransactionStatement = conn.prepareStatement(BEGIN_TRANSACTION);
-    commitTransactionStatement = conn.prepareStatement(COMMIT);
-    rollbackTransactionStatement = conn.prepareStatement(ROLLBACK);
-    clearTablesStatement = conn.prepareStatement(CLEAR_TABLES);
-    checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-    getLoginStatement = conn.prepareStatement(GET_LOGIN);
-    createUserStatement = conn.prepareStatement(CREATE_USER);
-    getDirectFlightsStatement = conn.prepareStatement(GET_DIRECT_FLIGHTS);
-    getIndirectFlightsStatement = conn.prepareStatement(GET_INDIRECT_FLIGHTS);
-    getSameDayStatement = conn.prepareStatement(GET_SAME_DAY_RESERVATIONS);
-    bookReservationStatement = conn.prepareStatement(BOOK_RESERVATION);
-    updateNextIDStatement = conn.prepareStatement(UPDATE_NEXT_ID);
-    getReservationCostStatement = conn.prepareStatement(GET_RESERVATION_COST);
-    payReservationStatement = conn.prepareStatement(PAY_RESERVATION);
-    updateBalanceStatement = conn.prepareStatement(UPDATE_BALANCE);
-    getReservationsStatement = conn.prepareStatement(GET_RESERVATIONS);
-    getCancelingInfoStatement = conn.prepareStatement(GET_CANCELING_INFO);
-    cancelReservationStatement = conn.prepareStatement(CANCEL_RESERVATION);
+    try (ConnectionPool.Lease lease = pool.lease()) {
+      Dialect dialect = this.dialect;
+      for (String sql : new String[]{BEGIN_TRANSACTION, dialect.commit(), dialect.rollback(),
+              dialect.batch(CLEAR_TABLES),
+              CHECK_FLIGHT_CAPACITY, GET_LOGIN, CREATE_USER, GET_DIRECT_FLIGHTS, GET_INDIRECT_FLIGHTS,
+              GET_SAME_DAY_RESERVATIONS, BOOK_RESERVATION, GET_RESERVATION_COST,
+              PAY_RESERVATION, CHARGE_BALANCE, GET_RESERVATIONS, GET_CANCELING_INFO, CANCEL_RESERVATION,
+              REFUND_BALANCE, BEGIN_READ_COMMITTED_TRANSACTION, readIsolation.begin}) {
+        lease.prepare(sql);
+      }
+    }
   }
 
   /**
    * Takes a user's username and password and attempts to log the user in.
    *
+   * @param session  the session to log in
    * @param username user's username
    * @param password user's password
    * @return If someone has already logged in, then return "User already logged
    * in\n" For all other errors, return "Login failed\n". Otherwise,
-   * return "Logged in as [username]\n".
+   * return "Logged in as [username]\n", followed by "Session token:
+   * [token]\n" if session tokens are enabled.
    */
-  public String transaction_login(String username, String password) {
-    if (user!=null){
-      return "User already logged in\n";
+  public String transaction_login(Session session, String username, String password) {
+    if (session.user != null) {
+      return fail(session, "User already logged in\n");
     }
+    String uname;
+    byte[] pwHash;
+    byte[] pwSalt;
+    int generation = 0;
+    SessionTokens tokens = this.tokens;
+    BookingEngine engine = this.engine;
+    if (engine != null) {
+      BookingEngine.Account account = engine.account(username);
+      if (account == null) {
+        return fail(session, "Login failed\n");
+      }
+      uname = account.name;
+      pwHash = account.pwHash;
+      pwSalt = account.pwSalt;
+      if (tokens != null) {
+        generation = engine.tokenGeneration(uname);
+      }
+    } else {
+      try (ConnectionPool.Lease lease = pool.lease()) {
+        beginTransaction(lease);
+        PreparedStatement getLoginStatement = lease.prepare(tokens != null ? GET_LOGIN_AND_GENERATION : GET_LOGIN);
+        getLoginStatement.clearParameters();
+        getLoginStatement.setNString(1, username);
+        ResultSet results = getLoginStatement.executeQuery();
+        if (!results.next()) {
+          commitTransaction(lease);
+          return fail(session, "Login failed\n");
+        }
+        uname = results.getString("uname");
+        pwHash = results.getBytes("pwHash");
+        pwSalt = results.getBytes("pwSalt");
+        if (tokens != null) {
+          generation = results.getInt("tokenGeneration");
+        }
+        results.close();
+        commitTransaction(lease);
+      }
+      catch (SQLException e) {
+        // the pool rolls back whatever the failed attempt left open
+        return fail(session, "Login failed\n");
+      }
+    }
+
+    // hash after giving the connection back, it takes far longer than the query
     try {
-      beginTransaction();
-      getLoginStatement.clearParameters();
-      getLoginStatement.setNString(1, username);
-      ResultSet results = getLoginStatement.executeQuery();
-      if (results.next()) {
-        if (Arrays.equals(results.getBytes("pwHash"),createHash(password, results.getBytes("pwSalt")))) {
+      if (!Arrays.equals(pwHash, createHash(password, pwSalt))) {
+        return fail(session, "Login failed\n");
+      }
+    } catch (RejectedExecutionException e) {
+      return fail(session, SERVER_BUSY);
+    }
+    session.user = uname;
+    session.clearItineraries();
+    if (tokens != null) {
+      tokens.remember(uname, generation);
+      return "Logged in as " + session.user + "\nSession token: " + tokens.issue(session.user, generation) + "\n";
+    }
+    return "Logged in as " + session.user + "\n";
+  }
 
-          user = results.getString("uname");
-          itineraries = null;
-          commitTransaction();
-          return "Logged in as " + user + "\n";
+  public String transaction_login(String username, String password) {
+    return transaction_login(session, username, password);
+  }
+
+  /**
+   * Logs the session back in with a token from an earlier login, without
+   * checking the password again.
+   *
+   * @param session the session to log in
+   * @param token   token returned by a previous login
+   * @return If someone has already logged in, then return "User already logged
+   * in\n". If the token is forged, expired or revoked, or tokens are
+   * disabled, return "Resume failed\n". Otherwise, return "Logged in as
+   * [username]\n".
+   */
+  public String transaction_resume(Session session, String token) {
+    if (session.user != null) {
+      return fail(session, "User already logged in\n");
+    }
+    SessionTokens tokens = this.tokens;
+    SessionTokens.Token verified = tokens == null ? null : tokens.verify(token);
+    if (verified == null) {
+      return fail(session, "Resume failed\n");
+    }
+    // a revocation, here or by another node, bumped the stored generation
+    int generation = tokens.generation(verified.user);
+    if (generation < 0) {
+      generation = storedTokenGeneration(verified.user);
+      if (generation < 0) {
+        return fail(session, "Resume failed\n");
+      }
+      tokens.remember(verified.user, generation);
+    }
+    if (generation != verified.generation) {
+      return fail(session, "Resume failed\n");
+    }
+    session.user = verified.user;
+    session.clearItineraries();
+    return "Logged in as " + verified.user + "\n";
+  }
+
+  // The generation of the user's session tokens where it is stored, or -1 if
+  // the user is gone or it cannot be read
+  private int storedTokenGeneration(String user) {
+    BookingEngine engine = this.engine;
+    if (engine != null) {
+      return engine.tokenGeneration(user);
+    }
+    return retry.run("resume", () -> {
+      try (ConnectionPool.Lease lease = pool.lease()) {
+        beginTransaction(lease, readIsolation.begin);
+        PreparedStatement statement = lease.prepare(GET_TOKEN_GENERATION);
+        statement.clearParameters();
+        statement.setNString(1, user);
+        int generation = -1;
+        try (ResultSet results = statement.executeQuery()) {
+          if (results.next()) {
+            generation = results.getInt("tokenGeneration");
+          }
         }
+        commitTransaction(lease);
+        return generation;
       }
+    }, -1);
+  }
+
+  public String transaction_resume(String token) {
+    return transaction_resume(session, token);
+  }
+
+  /**
+   * Invalidates every session token issued to the logged in user so far.
+   *
+   * @param session the logged in session
+   * @return If no user has logged in, then return "Cannot revoke tokens, not
+   * logged in\n". If the tokens cannot be revoked where the user is stored,
+   * return "Failed to revoke session tokens\n". Otherwise, return "Revoked
+   * session tokens for [username]\n".
+   */
+  public String transaction_revokeTokens(Session session) {
+    if (session.user == null) {
+      return fail(session, "Cannot revoke tokens, not logged in\n");
     }
-    catch (SQLException e) {
+    SessionTokens tokens = this.tokens;
+    if (tokens != null) {
+      if (!revokeStoredTokens(session.user)) {
+        return fail(session, "Failed to revoke session tokens\n");
+      }
+      tokens.forget(session.user);
+    }
+    return "Revoked session tokens for " + session.user + "\n";
+  }
+
+  // Bumps the stored generation of the user's session tokens
+  private boolean revokeStoredTokens(String user) {
+    BookingEngine engine = this.engine;
+    if (engine != null) {
       try {
-        commitTransaction();
-      } catch(SQLException exc){
+        return engine.revokeTokens(user);
+      } catch (IOException e) {
+        return false;
       }
     }
-    return "Login failed\n";
+    // bumping twice after an unknown outcome revokes just the same
+    return retry.run("revoke", () -> {
+      try (ConnectionPool.Lease lease = pool.lease()) {
+        beginTransaction(lease);
+        PreparedStatement statement = lease.prepare(REVOKE_TOKENS);
+        statement.clearParameters();
+        statement.setNString(1, user);
+        int updated = statement.executeUpdate();
+        commitTransaction(lease);
+        return updated == 1;
+      }
+    }, false);
+  }
+
+  public String transaction_revokeTokens() {
+    return transaction_revokeTokens(session);
   }
 
   /**
    * Implement the create user function.
    *
+   * @param session    the session whose command this is
    * @param username   new user's username. User names are unique the system.
    * @param password   new user's password.
    * @param initAmount initial amount to deposit into the user's account, should
@@ -241,34 +663,49 @@ public class Query {
    * @return either "Created user {@code username}\n" or "Failed to create user\n"
    * if failed.
    */
-  public String transaction_createCustomer(String username, String password, int initAmount) {
+  public String transaction_createCustomer(Session session, String username, String password, int initAmount) {
     if (initAmount < 0) {
-      return "Failed to create user\n";
+      return fail(session, "Failed to create user\n");
     }
+    // Generate a random cryptographic salt, and hash before taking a connection
+    byte[] salt = new byte[16];
+    RANDOM.nextBytes(salt);
+    byte[] hash;
     try {
-      beginTransaction();
+      hash = createHash(password, salt);
+    } catch (RejectedExecutionException e) {
+      return fail(session, SERVER_BUSY);
+    }
+    BookingEngine engine = this.engine;
+    if (engine != null) {
+      try {
+        return engine.createCustomer(username, hash, salt, initAmount) ? "Created user " + username + "\n"
+                : fail(session, "Failed to create user\n");
+      } catch (IOException e) {
+        return fail(session, "Failed to create user\n");
+      }
+    }
+    try (ConnectionPool.Lease lease = pool.lease()) {
+      beginTransaction(lease);
+      PreparedStatement createUserStatement = lease.prepare(CREATE_USER);
       createUserStatement.clearParameters();
       createUserStatement.setNString(1, username);
       createUserStatement.setInt(4, initAmount);
-      // Generate a random cryptographic salt
-      SecureRandom random = new SecureRandom();
-      byte[] salt = new byte[16];
-      random.nextBytes(salt);
       createUserStatement.setBytes(3, salt);
-      createUserStatement.setBytes(2, createHash(password, salt));
+      createUserStatement.setBytes(2, hash);
       createUserStatement.executeUpdate();
-      commitTransaction();
+      commitTransaction(lease);
       return "Created user " + username + "\n";
     } catch (SQLException e) {
-      try {
-        rollbackTransaction();
-      }
-      catch(SQLException err){
-      }
-      return "Failed to create user\n";
+      // the pool rolls back whatever the failed attempt left open
+      return fail(session, "Failed to create user\n");
     }
   }
 
+  public String transaction_createCustomer(String username, String password, int initAmount) {
+    return transaction_createCustomer(session, username, password, initAmount);
+  }
+
   /**
    * Implement the search function.
    * <p>
@@ -280,6 +717,7 @@ public class Query {
    * <p>
    * The results are sorted based on total flight time.
    *
+   * @param session             the session whose itineraries are replaced
    * @param originCity
    * @param destinationCity
    * @param directFlight        if true, then only search for direct flights,
@@ -300,26 +738,318 @@ public class Query {
    * start from 0 and increase by 1.
    * @see Flight#toString()
    */
+  public String transaction_search(Session session, String originCity, String destinationCity,
+                                   boolean directFlight, int dayOfMonth, int numberOfItineraries) {
+
+    session.clearItineraries();
+    SearchCache cache = this.searchCache;
+    SearchCache.Key key = null;
+    long stamp = 0;
+    if (cache != null) {
+      key = new SearchCache.Key(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+      ItineraryItem[] cached = cache.get(key);
+      if (cached != null) {
+        session.itineraries = cached;
+        return render(cached);
+      }
+      stamp = cache.beginLoad();
+    }
+    int count = 0;
+    PriorityQueue<ItineraryItem> queue = new PriorityQueue<>(
+            Comparator.comparing(ItineraryItem::getTotalDuration).thenComparing(ItineraryItem::getFlightID1)
+                    .thenComparing(ItineraryItem::getFlightID2));
+    FlightCatalog catalog = this.catalog;
+    if (catalog != null) {
+      //direct results
+      for (Flight curr : catalog.directFlights(originCity, destinationCity, dayOfMonth, numberOfItineraries)) {
+        queue.add(new ItineraryItem(curr));
+        count++;
+      }
+      //if not enough direct flights and allowed indirect flights, then gets indirect flights
+      if (!directFlight && count < numberOfItineraries) {
+        for (Flight[] legs : catalog.connections().indirectFlights(originCity, destinationCity, dayOfMonth,
+                numberOfItineraries - count)) {
+          queue.add(new ItineraryItem(legs[0], legs[1]));
+          count++;
+        }
+      }
+    } else {
+      int found = retry.run("search", () -> searchDatabase(queue, originCity, destinationCity, directFlight,
+              dayOfMonth, numberOfItineraries), -1);
+      if (found < 0) {
+        return fail(session, "Failed to search\n");
+      }
+    }
+    ItineraryItem[] itineraries = new ItineraryItem[queue.size()];
+    for(int i = 0; !queue.isEmpty(); i++){
+      itineraries[i] = queue.remove();
+    }
+    session.itineraries = itineraries;
+    if (cache != null) {
+      cache.put(key, stamp, itineraries);
+    }
+    return render(itineraries);
+  }
+
+  private static String render(ItineraryItem[] itineraries) {
+    if (itineraries.length == 0) {
+      return "No flights match your selection\n";
+    }
+    ResponseWriter out = ResponseWriter.acquire();
+    for (int i = 0; i < itineraries.length; i++) {
+      out.itinerary(i, itineraries[i]);
+    }
+    return out.finish();
+  }
+
   public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
                                    int numberOfItineraries) {
+    return transaction_search(session, originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+  }
 
+  /**
+   * Same as {@link #transaction_search(Session, String, String, boolean, int, int)},
+   * but writes the response to {@code out} while it is computed. Direct and
+   * one-hop itineraries, each already in order, are merged one at a time and
+   * every itinerary is written as soon as it is final, so memory does not grow
+   * with the number of itineraries. The session keeps only the flight IDs
+   * needed to book them, and the search cache is not used. One-hop itineraries
+   * are read from the database in pages, and each page's connection is given
+   * back before the page is written, so a client that reads slowly holds no
+   * connection.
+   * <p>
+   * A failure before the first itinerary is retried like any search. Once
+   * itineraries were written they cannot be taken back, so "Failed to
+   * search\n" follows them and none of them can be booked.
+   */
+  public void transaction_search(Session session, String originCity, String destinationCity, boolean directFlight,
+                                 int dayOfMonth, int numberOfItineraries, Writer out) throws IOException {
+    session.clearItineraries();
+    ResponseWriter writer = ResponseWriter.acquire();
+    int found;
+    try {
+      FlightCatalog catalog = this.catalog;
+      if (catalog != null) {
+        List<Flight> direct = catalog.directFlights(originCity, destinationCity, dayOfMonth, numberOfItineraries);
+        Iterator<Flight[]> oneHop = directFlight ? Collections.emptyIterator()
+                : catalog.connections().indirectIterator(originCity, destinationCity, dayOfMonth);
+        found = streamMerged(session, direct, () -> oneHop.hasNext() ? oneHop.next() : null,
+                numberOfItineraries - direct.size(), writer, out);
+      } else {
+        found = retry.run("search", () -> streamDatabase(session, originCity, destinationCity, directFlight,
+                dayOfMonth, numberOfItineraries, writer, out), -1);
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } catch (SQLException e) {
+      // only the database path throws, and it does so inside the retry policy
+      throw new IllegalStateException(e);
+    } finally {
+      writer.release();
+    }
+    if (found < 0) {
+      session.clearItineraries();
+      session.failed = true;
+      out.write("Failed to search\n");
+    } else if (found == 0) {
+      out.write("No flights match your selection\n");
+    }
+    out.flush();
+  }
 
-    StringBuffer sb = new StringBuffer();
-    itineraries = new ItineraryItem[numberOfItineraries];
+  /**
+   * Next one-hop itinerary in order, as its two legs, or null after the last
+   */
+  private interface OneHopSource {
+    Flight[] next() throws SQLException;
+  }
+
+  // Writes the merge of the direct flights and at most oneHopLimit one-hop
+  // itineraries, remembering each in the session, and returns how many
+  private static int streamMerged(Session session, List<Flight> direct, OneHopSource oneHop, int oneHopLimit,
+                                  ResponseWriter writer, Writer out) throws SQLException {
+    int d = 0;
+    int hops = 0;
+    Flight[] legs = oneHopLimit > 0 ? oneHop.next() : null;
+    try {
+      while (d < direct.size() || legs != null) {
+        int i = d + hops;
+        Flight next = d < direct.size() ? direct.get(d) : null;
+        // order by (total duration, fid1), a direct flight first on a tie
+        if (next != null && (legs == null || next.time < legs[0].time + legs[1].time
+                || (next.time == legs[0].time + legs[1].time && next.fid <= legs[0].fid))) {
+          writer.itinerary(i, next, null);
+          session.addStreamed(next.fid, -1);
+          d++;
+        } else {
+          writer.itinerary(i, legs[0], legs[1]);
+          session.addStreamed(legs[0].fid, legs[1].fid);
+          hops++;
+          legs = hops < oneHopLimit ? oneHop.next() : null;
+        }
+        writer.drainTo(out);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return d + hops;
+  }
+
+  // One attempt of a streamed search against the database
+  private int streamDatabase(Session session, String originCity, String destinationCity, boolean directFlight,
+                             int dayOfMonth, int numberOfItineraries, ResponseWriter writer, Writer out)
+          throws SQLException {
     try {
-      beginTransaction();
+      // direct flights are at most the route's flights on one day: read them all
+      List<Flight> direct = new ArrayList<>();
+      try (ConnectionPool.Lease lease = borrowForRead()) {
+        beginReadTransaction(lease);
+        PreparedStatement getDirectFlightsStatement = lease.prepare(GET_DIRECT_FLIGHTS);
+        getDirectFlightsStatement.clearParameters();
+        getDirectFlightsStatement.setInt(1, numberOfItineraries);
+        getDirectFlightsStatement.setNString(2, originCity);
+        getDirectFlightsStatement.setNString(3, destinationCity);
+        getDirectFlightsStatement.setInt(4, dayOfMonth);
+        try (ResultSet directResults = getDirectFlightsStatement.executeQuery()) {
+          commitReadTransaction(lease);
+          while (directResults.next()) {
+            Flight f = new Flight();
+            readFlight(directResults, f, 1);
+            direct.add(f);
+          }
+        }
+      }
+      if (directFlight || direct.size() >= numberOfItineraries) {
+        return streamMerged(session, direct, () -> null, 0, writer, out);
+      }
+      int oneHopLimit = numberOfItineraries - direct.size();
+      return streamMerged(session, direct, new OneHopPages(originCity, destinationCity, dayOfMonth, oneHopLimit),
+              oneHopLimit, writer, out);
+    } catch (SQLException e) {
+      if (session.streamedCount > 0) {
+        // a retry would write the same itineraries again
+        throw new SQLException("Search failed after " + session.streamedCount + " itineraries were written", e);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * One-hop itineraries read from the database a page at a time. Each page is
+   * read on a connection of its own, given back before its rows are written
+   * out, and every page after the first starts after the last row of the one
+   * before it.
+   */
+  private class OneHopPages implements OneHopSource {
+    private final String originCity;
+    private final String destinationCity;
+    private final int dayOfMonth;
+    // itineraries not read yet
+    private int remaining;
+    // rows are written out before the next page is read, so they are reused
+    private final Flight[][] page;
+    private int size;
+    private int next;
+    private boolean last;
+
+    OneHopPages(String originCity, String destinationCity, int dayOfMonth, int limit) {
+      this.originCity = originCity;
+      this.destinationCity = destinationCity;
+      this.dayOfMonth = dayOfMonth;
+      this.remaining = limit;
+      this.page = new Flight[Math.min(limit, SEARCH_PAGE_ROWS)][];
+    }
+
+    @Override
+    public Flight[] next() throws SQLException {
+      if (next == size) {
+        if (last || remaining == 0) {
+          return null;
+        }
+        read();
+        if (size == 0) {
+          return null;
+        }
+      }
+      return page[next++];
+    }
+
+    private void read() throws SQLException {
+      int limit = Math.min(page.length, remaining);
+      boolean first = size == 0;
+      Flight[] after = first ? null : page[size - 1];
+      try (ConnectionPool.Lease lease = borrowForRead()) {
+        beginReadTransaction(lease);
+        PreparedStatement statement = lease.prepare(first ? GET_INDIRECT_FLIGHTS : GET_INDIRECT_FLIGHTS_AFTER);
+        statement.clearParameters();
+        statement.setInt(1, limit);
+        statement.setNString(2, originCity);
+        statement.setNString(3, destinationCity);
+        statement.setInt(4, dayOfMonth);
+        statement.setInt(5, dayOfMonth);
+        if (!first) {
+          int time = after[0].time + after[1].time;
+          statement.setInt(6, time);
+          statement.setInt(7, time);
+          statement.setInt(8, after[0].fid);
+          statement.setInt(9, after[0].fid);
+          statement.setInt(10, after[1].fid);
+        }
+        size = 0;
+        next = 0;
+        try (ResultSet results = statement.executeQuery()) {
+          commitReadTransaction(lease);
+          while (results.next()) {
+            Flight[] legs = page[size];
+            if (legs == null) {
+              legs = page[size] = new Flight[]{new Flight(), new Flight()};
+            }
+            readFlight(results, legs[0], 1);
+            readFlight(results, legs[1], 10);
+            size++;
+          }
+        }
+      }
+      remaining -= size;
+      last = size < limit;
+    }
+  }
+
+  // Reads the nine flight columns of the current row that start at the given
+  // position, in the order of the SELECT lists of the search queries
+  private static void readFlight(ResultSet results, Flight f, int first) throws SQLException {
+    f.fid = results.getInt(first);
+    f.dayOfMonth = results.getInt(first + 1);
+    f.carrierId = results.getString(first + 2);
+    f.flightNum = results.getString(first + 3);
+    f.originCity = results.getString(first + 4);
+    f.destCity = results.getString(first + 5);
+    f.time = results.getInt(first + 6);
+    f.capacity = results.getInt(first + 7);
+    f.price = results.getInt(first + 8);
+  }
+
+  /**
+   * Adds the direct and, if allowed, one-hop itineraries from the database to
+   * the queue, replacing whatever an earlier attempt left there
+   *
+   * @return the number of itineraries found
+   */
+  private int searchDatabase(PriorityQueue<ItineraryItem> queue, String originCity, String destinationCity,
+                             boolean directFlight, int dayOfMonth, int numberOfItineraries) throws SQLException {
+    queue.clear();
+    int count = 0;
+    try (ConnectionPool.Lease lease = borrowForRead()) {
       //direct results
+      beginReadTransaction(lease);
+      PreparedStatement getDirectFlightsStatement = lease.prepare(GET_DIRECT_FLIGHTS);
       getDirectFlightsStatement.clearParameters();
       getDirectFlightsStatement.setInt(1, numberOfItineraries);
       getDirectFlightsStatement.setNString(2, originCity);
       getDirectFlightsStatement.setNString(3, destinationCity);
       getDirectFlightsStatement.setInt(4, dayOfMonth);
       ResultSet directResults = getDirectFlightsStatement.executeQuery();
-      commitTransaction();
-      int count = 0;
-      PriorityQueue<ItineraryItem> queue = new PriorityQueue<>(
-              Comparator.comparing(ItineraryItem::getTotalDuration).thenComparing(ItineraryItem::getFlightID1)
-                      .thenComparing(ItineraryItem::getFlightID2));
+      commitReadTransaction(lease);
       while (directResults.next()) {
         Flight curr = new Flight();
         curr.fid = directResults.getInt("fid");
@@ -337,7 +1067,8 @@ public class Query {
       directResults.close();
       //if not enough direct flights and allowed indirect flights, then gets indirect flights
       if (!directFlight && count < numberOfItineraries) {
-        beginTransaction();
+        beginReadTransaction(lease);
+        PreparedStatement getIndirectFlightsStatement = lease.prepare(GET_INDIRECT_FLIGHTS);
         getIndirectFlightsStatement.clearParameters();
         getIndirectFlightsStatement.setInt(1, numberOfItineraries - count);
         getIndirectFlightsStatement.setNString(2, originCity);
@@ -345,7 +1076,7 @@ public class Query {
         getIndirectFlightsStatement.setInt(4, dayOfMonth);
         getIndirectFlightsStatement.setInt(5, dayOfMonth);
         ResultSet indirectResults = getIndirectFlightsStatement.executeQuery();
-        commitTransaction();
+        commitReadTransaction(lease);
         while (indirectResults.next()) {
           //first flight of current itinerary
           Flight curr1 = new Flight();
@@ -373,32 +1104,16 @@ public class Query {
           queue.add(new ItineraryItem(curr1,curr2));
           count++;
         }
-      }
-      for(int i = 0; !queue.isEmpty(); i++){
-        itineraries[i] = queue.remove();
-        sb.append("Itinerary " + i + ": " + itineraries[i].size() + " flight(s), " +
-                itineraries[i].totalDuration + " minutes\n");
-        sb.append(itineraries[i]);
-      }
-      if (sb.length() == 0) {
-        return "No flights match your selection\n";
-      } else {
-        return sb.toString();
+        indirectResults.close();
       }
     }
-    catch (SQLException e) {
-      try {
-        commitTransaction();
-      } catch (SQLException err){
-      }
-      return transaction_search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
-    }
-
+    return count;
   }
 
   /**
    * Implements the book itinerary function.
    *
+   * @param session     the session booking the itinerary
    * @param itineraryId ID of the itinerary to book. This must be one that is
    *                    returned by search in the current session.
    * @return If the user is not logged in, then return "Cannot book reservations,
@@ -411,37 +1126,120 @@ public class Query {
    * And if booking succeeded, return "Booked flight(s), reservation ID:
    * [reservationId]\n" where reservationId is a unique number in the
    * reservation system that starts from 1 and increments by 1 each time a
-   * successful reservation is made by any user in the system.
+   * successful reservation is made by any user in the system. With a
+   * reservation ID block size above 1, IDs are unique but may have gaps.
    */
-  public String transaction_book(int itineraryId) {
+  public String transaction_book(Session session, int itineraryId) {
+    String user = session.user;
     if (user == null) {
-      return "Cannot book reservations, not logged in\n";
-    } else if (itineraries == null || itineraryId > itineraries.length) {
-      return "No such itinerary " + itineraryId + "\n";
+      return fail(session, "Cannot book reservations, not logged in\n");
     }
+    ItineraryItem itinerary = session.itinerary(itineraryId);
+    if (itinerary == null) {
+      return fail(session, "No such itinerary " + itineraryId + "\n");
+    }
+    BookingEngine engine = this.engine;
+    if (engine != null) {
+      return bookInMemory(session, engine, user, itinerary);
+    }
+    String response = retry.runWrite("book", () -> writeThrough(user, () -> book(session, user, itinerary)), null);
+    return response != null ? response : fail(session, "Booking failed\n");
+  }
+
+  private String bookInMemory(Session session, BookingEngine engine, String user, ItineraryItem itinerary) {
+    Flight flight2 = itinerary.flight2;
+    BatchedTransactions.Outcome outcome;
     try {
-      beginTransaction();
+      outcome = engine.book(user, itinerary.flight1.fid, flight2 == null ? -1 : flight2.fid);
+    } catch (IOException e) {
+      return fail(session, "Booking failed\n");
+    }
+    return bookResponse(session, user, itinerary, outcome);
+  }
+
+  /**
+   * Answers a booking made by the engine or a batch, and caches it if it
+   * succeeded
+   */
+  String bookResponse(Session session, String user, ItineraryItem itinerary, BatchedTransactions.Outcome outcome) {
+    switch (outcome.status) {
+      case BatchedTransactions.OK:
+        cacheBooking(user, outcome.value, itinerary);
+        return "Booked flight(s), reservation ID: " + outcome.value + "\n";
+      case BatchedTransactions.SAME_DAY:
+        return fail(session, "You cannot book two flights in the same day\n");
+      default:
+        return fail(session, "Booking failed\n");
+    }
+  }
+
+  private String book(Session session, String user, ItineraryItem itinerary) throws SQLException {
+    ReservationIdAllocator ids = this.ids;
+    // in block mode the ID comes from memory, taken before the connection
+    // since reserving a new block borrows one of its own
+    int reservedId = ids.isStrict() ? -1 : ids.next();
+    // the ID goes back to the block only if it was surely not committed; one
+    // whose commit failed part way is dropped, since it may be in the table
+    boolean unused = true;
+    SeatInventory seats = this.seats;
+    if (batchedTransactions) {
+      try (ConnectionPool.Lease lease = pool.lease()) {
+        Flight flight2 = itinerary.flight2;
+        // the batch commits itself, so until it answers the ID may be taken
+        unused = false;
+        BatchedTransactions.Outcome outcome = BatchedTransactions.of(seats != null).book(lease, user,
+                itinerary.flight1.fid, flight2 == null ? null : flight2.fid, reservedId < 0 ? null : reservedId);
+        unused = outcome.status != BatchedTransactions.OK;
+        return bookResponse(session, user, itinerary, outcome);
+      } catch (SQLException e) {
+        if (RetryPolicy.isRolledBack(e)) {
+          unused = true;
+        }
+        throw e;
+      } finally {
+        if (unused && reservedId >= 0) {
+          ids.giveBack(reservedId);
+        }
+      }
+    }
+    // without seat counts only range locks keep a flight from being overbooked
+    boolean optimistic = optimisticWrites && seats != null;
+    try (ConnectionPool.Lease lease = pool.lease()) {
+      beginTransaction(lease, optimistic ? BEGIN_READ_COMMITTED_TRANSACTION : BEGIN_TRANSACTION);
+      // a concurrent booking by the same user bumps the version, so the
+      // same-day check below cannot go stale unnoticed
+      int version = optimistic ? userVersion(lease, user) : 0;
+      PreparedStatement getSameDayStatement = lease.prepare(GET_SAME_DAY_RESERVATIONS);
       getSameDayStatement.clearParameters();
       getSameDayStatement.setNString(1, user);
-      getSameDayStatement.setInt(2, itineraries[itineraryId].flight1.fid);
+      getSameDayStatement.setInt(2, itinerary.flight1.fid);
       ResultSet result = getSameDayStatement.executeQuery();
       if(!result.next()){
-        commitTransaction();
-        return "Booking failed\n";
+        commitTransaction(lease);
+        return fail(session, "Booking failed\n");
       }
       else if(result.getInt("totalSame") > 0){
-        commitTransaction();
-        return "You cannot book two flights in the same day\n";
+        commitTransaction(lease);
+        return fail(session, "You cannot book two flights in the same day\n");
       }
       else{
-        int fid1 = itineraries[itineraryId].flight1.fid;
-        Flight flight2 = itineraries[itineraryId].flight2;
+        int fid1 = itinerary.flight1.fid;
+        Flight flight2 = itinerary.flight2;
 
         //check capacity of both flights
-        if(checkFlightCapacity(fid1) <= 0 || (flight2 != null && checkFlightCapacity(flight2.fid) <= 0)){
-          commitTransaction();
-          return "Booking failed\n";
+        if (seats != null) {
+          if (!seats.reserve(lease, fid1) || (flight2 != null && !seats.reserve(lease, flight2.fid))) {
+            // gives back the first seat if only the second flight is full
+            rollbackTransaction(lease);
+            return fail(session, "Booking failed\n");
+          }
         }
+        else if(checkFlightCapacity(lease, fid1) <= 0 ||
+                (flight2 != null && checkFlightCapacity(lease, flight2.fid) <= 0)){
+          commitTransaction(lease);
+          return fail(session, "Booking failed\n");
+        }
+        PreparedStatement bookReservationStatement = lease.prepare(BOOK_RESERVATION);
         bookReservationStatement.clearParameters();
         bookReservationStatement.setNString(2, user);
         bookReservationStatement.setInt(3,fid1);
@@ -452,35 +1250,45 @@ public class Query {
         else {
           bookReservationStatement.setInt(4, flight2.fid);
         }
-        ResultSet nextIdResults = getIDStatement.executeQuery();
-        int nextId;
-        if(nextIdResults.next()){
-          nextId = nextIdResults.getInt("rid");
-          updateNextIDStatement.executeUpdate();
-        }
-        else{
-          rollbackTransaction();
-          return "Booking failed\n";
+        int nextId = ids.isStrict() ? ids.nextInTransaction(lease) : reservedId;
+        if(nextId < 0){
+          rollbackTransaction(lease);
+          return fail(session, "Booking failed\n");
         }
         bookReservationStatement.setInt(1,nextId);
         bookReservationStatement.executeUpdate();
-        commitTransaction();
+        if (optimistic) {
+          bumpUserVersion(lease, user, version);
+        }
+        // a failure from here on may come after the commit took effect
+        unused = false;
+        commitTransaction(lease);
+        cacheBooking(user, nextId, itinerary);
         return "Booked flight(s), reservation ID: " + nextId + "\n";
       }
     }
-    catch (SQLException e){
-      try {
-        rollbackTransaction();
+    catch (SQLException e) {
+      if (RetryPolicy.isRolledBack(e)) {
+        unused = true;
       }
-      catch(SQLException err){
+      throw e;
+    }
+    finally {
+      // the pool rolls back whatever a failed attempt left open
+      if (unused && reservedId >= 0) {
+        ids.giveBack(reservedId);
       }
-      return transaction_book(itineraryId);
     }
   }
 
+  public String transaction_book(int itineraryId) {
+    return transaction_book(session, itineraryId);
+  }
+
   /**
    * Implements the pay function.
    *
+   * @param session       the session paying for the reservation
    * @param reservationId the reservation to pay for.
    * @return If no user has logged in, then return "Cannot pay, not logged in\n"
    * If the reservation is not found / not under the logged in user's
@@ -494,12 +1302,57 @@ public class Query {
    * balance: [balance]\n" where [balance] is the remaining balance in the
    * user's account.
    */
-  public String transaction_pay(int reservationId) {
+  public String transaction_pay(Session session, int reservationId) {
+    String user = session.user;
     if (user == null) {
-      return "Cannot pay, not logged in\n";
+      return fail(session, "Cannot pay, not logged in\n");
+    }
+    BookingEngine engine = this.engine;
+    if (engine != null) {
+      return payInMemory(session, engine, user, reservationId);
     }
+    String response = retry.runWrite("pay", () -> writeThrough(user, () -> pay(session, user, reservationId)), null);
+    return response != null ? response : fail(session, "Failed to pay for reservation " + reservationId + "\n");
+  }
+
+  private String payInMemory(Session session, BookingEngine engine, String user, int reservationId) {
+    BatchedTransactions.Outcome outcome;
     try {
-      beginTransaction();
+      outcome = engine.pay(user, reservationId);
+    } catch (IOException e) {
+      return fail(session, "Failed to pay for reservation " + reservationId + "\n");
+    }
+    return payResponse(session, user, reservationId, outcome);
+  }
+
+  /**
+   * Answers a payment made by the engine or a batch, and caches it if it
+   * succeeded
+   */
+  String payResponse(Session session, String user, int reservationId, BatchedTransactions.Outcome outcome) {
+    switch (outcome.status) {
+      case BatchedTransactions.OK:
+        cachePayment(user, reservationId);
+        return "Paid reservation: " + reservationId + " remaining balance: " + outcome.value + "\n";
+      case BatchedTransactions.INSUFFICIENT_FUNDS:
+        return fail(session,
+                "User has only " + outcome.value + " in account but itinerary costs " + outcome.cost + "\n");
+      default:
+        return fail(session, "Cannot find unpaid reservation " + reservationId + " under user: " + user + "\n");
+    }
+  }
+
+  private String pay(Session session, String user, int reservationId) throws SQLException {
+    if (batchedTransactions) {
+      try (ConnectionPool.Lease lease = pool.lease()) {
+        return payResponse(session, user, reservationId,
+                BatchedTransactions.of(seats != null).pay(lease, user, reservationId));
+      }
+    }
+    boolean optimistic = optimisticWrites;
+    try (ConnectionPool.Lease lease = pool.lease()) {
+      beginTransaction(lease, optimistic ? BEGIN_READ_COMMITTED_TRANSACTION : BEGIN_TRANSACTION);
+      PreparedStatement getReservationCostStatement = lease.prepare(GET_RESERVATION_COST);
       getReservationCostStatement.clearParameters();
       getReservationCostStatement.setNString(1, user);
       getReservationCostStatement.setInt(2, reservationId);
@@ -509,37 +1362,48 @@ public class Query {
         int balance = results.getInt("balance");
         results.close();
         if(cost > balance){
-          commitTransaction();
-          return "User has only " + balance + " in account but itinerary costs " + cost + "\n";
+          commitTransaction(lease);
+          return fail(session, "User has only " + balance + " in account but itinerary costs " + cost + "\n");
         }
         else{
+          // both updates only apply to the state read above: never pay twice,
+          // never overdraw
+          PreparedStatement payReservationStatement = lease.prepare(PAY_RESERVATION);
           payReservationStatement.clearParameters();
           payReservationStatement.setInt(1,reservationId);
-          payReservationStatement.executeUpdate();
-          updateBalanceStatement.clearParameters();
-          updateBalanceStatement.setInt(1,balance - cost);
-          updateBalanceStatement.setNString(2, user);
-          updateBalanceStatement.executeUpdate();
-          commitTransaction();
-          return "Paid reservation: " + reservationId + " remaining balance: "+ (balance - cost) + "\n";
+          payReservationStatement.setNString(2, user);
+          if (payReservationStatement.executeUpdate() != 1) {
+            throw conflict("Reservation " + reservationId + " changed concurrently");
+          }
+          PreparedStatement chargeBalanceStatement = lease.prepare(CHARGE_BALANCE);
+          chargeBalanceStatement.clearParameters();
+          chargeBalanceStatement.setInt(1, cost);
+          chargeBalanceStatement.setNString(2, user);
+          chargeBalanceStatement.setInt(3, cost);
+          if (chargeBalanceStatement.executeUpdate() != 1) {
+            throw conflict("Balance of " + user + " changed concurrently");
+          }
+          // the balance may have moved since it was read; the row is ours now
+          int remaining = optimistic ? balance(lease, user) : balance - cost;
+          commitTransaction(lease);
+          cachePayment(user, reservationId);
+          return "Paid reservation: " + reservationId + " remaining balance: "+ remaining + "\n";
         }
       } else {
-        commitTransaction();
-        return "Cannot find unpaid reservation " + reservationId + " under user: " + user + "\n";
-      }
-    } catch (SQLException e) {
-      try {
-        rollbackTransaction();
-      }
-      catch(SQLException err){
+        commitTransaction(lease);
+        return fail(session, "Cannot find unpaid reservation " + reservationId + " under user: " + user + "\n");
       }
-      return transaction_pay(reservationId);
     }
   }
 
+  public String transaction_pay(int reservationId) {
+    return transaction_pay(session, reservationId);
+  }
+
   /**
    * Implements the reservations function.
    *
+   * @param session the session whose user's reservations are listed
    * @return If no user has logged in, then return "Cannot view reservations, not
    * logged in\n" If the user has no reservations, then return "No
    * reservations found\n" For all other errors, return "Failed to
@@ -556,22 +1420,57 @@ public class Query {
    * {@code Flight} class.
    * @see Flight#toString()
    */
-  public String transaction_reservations() {
+  public String transaction_reservations(Session session) {
+    String user = session.user;
     if(user == null){
-      return "Cannot view reservations, not logged in\n";
+      return fail(session, "Cannot view reservations, not logged in\n");
     }
-    try {
-      beginTransaction();
-      StringBuffer sb = new StringBuffer();
+    String response = retry.run("reservations", () -> reservations(user), null);
+    return response != null ? response : fail(session, "Failed to retrieve reservations\n");
+  }
+
+  private String reservations(String user) throws SQLException {
+    BookingEngine engine = this.engine;
+    if (engine != null) {
+      return render(engine.reservations(user));
+    }
+    ReservationCache cache = this.reservationCache;
+    if (cache == null) {
+      return render(loadReservations(user));
+    }
+    List<ReservationCache.Reservation> cached = cache.get(user);
+    if (cached != null) {
+      return render(cached);
+    }
+    long stamp = cache.beginLoad();
+    List<ReservationCache.Reservation> loaded = loadReservations(user);
+    cache.load(user, stamp, loaded);
+    return render(loaded);
+  }
+
+  private List<ReservationCache.Reservation> loadReservations(String user) throws SQLException {
+    try (ConnectionPool.Lease lease = borrowForRead()) {
+      beginReadTransaction(lease);
+      PreparedStatement getReservationsStatement = lease.prepare(GET_RESERVATIONS);
       getReservationsStatement.clearParameters();
       getReservationsStatement.setNString(1,user);
       ResultSet results = getReservationsStatement.executeQuery();
-      commitTransaction();
+      commitReadTransaction(lease);
+      List<ReservationCache.Reservation> reservations = new ArrayList<>();
+      // rows arrive ordered by rid, one per flight, in no particular flight order
       int currRid = -1;
+      boolean paid = false;
+      Flight flight1 = null;
+      Flight flight2 = null;
       while(results.next()){
         if(currRid != results.getInt("rid")){
+          if (flight1 != null) {
+            reservations.add(new ReservationCache.Reservation(currRid, paid, flight1, flight2));
+          }
           currRid = results.getInt("rid");
-          sb.append("Reservation " + currRid + " paid: " + results.getBoolean("paid") + ":\n");
+          paid = results.getBoolean("paid");
+          flight1 = null;
+          flight2 = null;
         }
         Flight f = new Flight();
         f.fid = results.getInt("fid");
@@ -583,23 +1482,36 @@ public class Query {
         f.time = results.getInt("actual_time");
         f.capacity = results.getInt("capacity");
         f.price = results.getInt("price");
-        sb.append(f + "\n");
+        if (f.fid == results.getInt("flight1")) {
+          flight1 = f;
+        } else {
+          flight2 = f;
+        }
+      }
+      results.close();
+      if (flight1 != null) {
+        reservations.add(new ReservationCache.Reservation(currRid, paid, flight1, flight2));
       }
-      return sb.toString();
+      return reservations;
     }
-    catch (SQLException e){
-      try {
-        commitTransaction();
-      } catch (SQLException err){
+  }
 
-      }
-      return transaction_reservations();
+  private static String render(List<ReservationCache.Reservation> reservations) {
+    ResponseWriter out = ResponseWriter.acquire();
+    for (ReservationCache.Reservation r : reservations) {
+      out.reservation(r);
     }
+    return out.finish();
+  }
+
+  public String transaction_reservations() {
+    return transaction_reservations(session);
   }
 
   /**
    * Implements the cancel operation.
    *
+   * @param session       the session canceling the reservation
    * @param reservationId the reservation ID to cancel
    * @return If no user has logged in, then return "Cannot cancel reservations,
    * not logged in\n" For all other errors, return "Failed to cancel
@@ -610,68 +1522,155 @@ public class Query {
    * Even though a reservation has been canceled, its ID should not be
    * reused by the system.
    */
-  public String transaction_cancel(int reservationId) {
+  public String transaction_cancel(Session session, int reservationId) {
+    String user = session.user;
     if (user == null) {
-      return "Cannot cancel reservations, not logged in\n";
+      return fail(session, "Cannot cancel reservations, not logged in\n");
     }
-    try {
-      beginTransaction();
+    BookingEngine engine = this.engine;
+    if (engine != null) {
+      try {
+        return cancelResponse(session, user, reservationId, engine.cancel(user, reservationId));
+      } catch (IOException e) {
+        return fail(session, "Failed to cancel reservation " + reservationId + "\n");
+      }
+    }
+    String response = retry.runWrite("cancel", () -> writeThrough(user, () -> cancel(session, user, reservationId)), null);
+    return response != null ? response : fail(session, "Failed to cancel reservation " + reservationId + "\n");
+  }
+
+  /**
+   * Answers a cancellation made by the engine or a batch, and caches it if it
+   * succeeded
+   */
+  String cancelResponse(Session session, String user, int reservationId, BatchedTransactions.Outcome outcome) {
+    if (outcome.status == BatchedTransactions.OK) {
+      cacheCancellation(user, reservationId);
+      return "Canceled reservation " + reservationId + "\n";
+    }
+    return fail(session, "Failed to cancel reservation " + reservationId + "\n");
+  }
+
+  private String cancel(Session session, String user, int reservationId) throws SQLException {
+    if (batchedTransactions) {
+      try (ConnectionPool.Lease lease = pool.lease()) {
+        return cancelResponse(session, user, reservationId,
+                BatchedTransactions.of(seats != null).cancel(lease, user, reservationId));
+      }
+    }
+    try (ConnectionPool.Lease lease = pool.lease()) {
+      beginTransaction(lease, optimisticWrites ? BEGIN_READ_COMMITTED_TRANSACTION : BEGIN_TRANSACTION);
+      PreparedStatement getCancelingInfoStatement = lease.prepare(GET_CANCELING_INFO);
       getCancelingInfoStatement.clearParameters();
       getCancelingInfoStatement.setNString(1, user);
       getCancelingInfoStatement.setInt(2, reservationId);
       ResultSet results = getCancelingInfoStatement.executeQuery();
       int refund = 0;
-      boolean empty = true;
+      boolean paid = false;
+      List<Integer> fids = new ArrayList<>(2);
       while (results.next()) {
-        if (results.getBoolean("paid")) {
+        paid = results.getBoolean("paid");
+        if (paid) {
           refund += results.getInt("price");
         }
-        empty = false;
+        fids.add(results.getInt("fid"));
       }
-      if (empty) {
-        commitTransaction();
-        return "Failed to cancel reservation " + reservationId + "\n";
+      results.close();
+      if (fids.isEmpty()) {
+        commitTransaction(lease);
+        return fail(session, "Failed to cancel reservation " + reservationId + "\n");
       } else {
+        PreparedStatement cancelReservationStatement = lease.prepare(CANCEL_RESERVATION);
         cancelReservationStatement.clearParameters();
         cancelReservationStatement.setInt(1, reservationId);
-        cancelReservationStatement.setInt(2, refund);
-        cancelReservationStatement.setNString(3, user);
-        cancelReservationStatement.executeUpdate();
-        commitTransaction();
+        cancelReservationStatement.setNString(2, user);
+        cancelReservationStatement.setBoolean(3, paid);
+        // the refund is only right if nobody paid or canceled in between
+        if (cancelReservationStatement.executeUpdate() != 1) {
+          throw conflict("Reservation " + reservationId + " changed concurrently");
+        }
+        if (refund > 0) {
+          PreparedStatement refundBalanceStatement = lease.prepare(REFUND_BALANCE);
+          refundBalanceStatement.clearParameters();
+          refundBalanceStatement.setInt(1, refund);
+          refundBalanceStatement.setNString(2, user);
+          refundBalanceStatement.executeUpdate();
+        }
+        SeatInventory seats = this.seats;
+        if (seats != null) {
+          for (int fid : fids) {
+            seats.release(lease, fid);
+          }
+        }
+        commitTransaction(lease);
+        cacheCancellation(user, reservationId);
         return "Canceled reservation " + reservationId + "\n";
       }
+    }
+  }
+
+  public String transaction_cancel(int reservationId) {
+    return transaction_cancel(session, reservationId);
+  }
+
+  // Write-through after book, pay and cancel commit
+
+  // Runs an attempt at book, pay or cancel. One that failed without the
+  // database rolling it back, as when COMMIT itself fails, may have taken
+  // effect, so the user's list is reloaded on its next read.
+  private String writeThrough(String user, RetryPolicy.Attempt<String> attempt) throws SQLException {
+    try {
+      return attempt.run();
     } catch (SQLException e) {
-      try {
-        rollbackTransaction();
-      }
-      catch(SQLException err){
+      ReservationCache cache = this.reservationCache;
+      if (cache != null && !RetryPolicy.isRolledBack(e)) {
+        cache.invalidate(user);
       }
-      return transaction_cancel(reservationId);
+      throw e;
     }
   }
 
-  private byte[] createHash(String password, byte[] salt) {
+  private void cacheBooking(String user, int rid, ItineraryItem itinerary) {
+    ReservationCache cache = this.reservationCache;
+    if (cache == null) {
+      return;
+    }
+    if (itinerary.idsOnly) {
+      // a streamed itinerary has no flight details to list
+      cache.invalidate(user);
+    } else {
+      cache.booked(user, new ReservationCache.Reservation(rid, false, itinerary.flight1, itinerary.flight2));
+    }
+  }
 
-    // Specify the hash parameters
-    KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
+  private void cachePayment(String user, int rid) {
+    ReservationCache cache = this.reservationCache;
+    if (cache != null) {
+      cache.paid(user, rid);
+    }
+  }
 
-    // Generate the hash
-    SecretKeyFactory factory = null;
-    byte[] hash = null;
-    try {
-      factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-      hash = factory.generateSecret(spec).getEncoded();
-    } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
-      throw new IllegalStateException();
+  private void cacheCancellation(String user, int rid) {
+    ReservationCache cache = this.reservationCache;
+    if (cache != null) {
+      cache.canceled(user, rid);
     }
-    return hash;
+  }
 
+  /**
+   * Hashes on the password hashing pool
+   *
+   * @throws RejectedExecutionException if too many hashes are already waiting
+   */
+  private byte[] createHash(String password, byte[] salt) {
+    return hasher.hash(password, salt);
   }
 
   /**
    * Example utility function that uses prepared statements
    */
-  private int checkFlightCapacity(int fid) throws SQLException {
+  private int checkFlightCapacity(ConnectionPool.Lease lease, int fid) throws SQLException {
+    PreparedStatement checkFlightCapacityStatement = lease.prepare(CHECK_FLIGHT_CAPACITY);
     checkFlightCapacityStatement.clearParameters();
     checkFlightCapacityStatement.setInt(1, fid);
     checkFlightCapacityStatement.setInt(2, fid);
@@ -683,25 +1682,139 @@ public class Query {
     return capacity;
   }
 
-  public void beginTransaction() throws SQLException {
-    conn.setAutoCommit(false);
-    beginTransactionStatement.executeUpdate();
+  private int userVersion(ConnectionPool.Lease lease, String user) throws SQLException {
+    PreparedStatement getUserVersionStatement = lease.prepare(GET_USER_VERSION);
+    getUserVersionStatement.clearParameters();
+    getUserVersionStatement.setNString(1, user);
+    try (ResultSet results = getUserVersionStatement.executeQuery()) {
+      if (!results.next()) {
+        throw new SQLException("No such user " + user);
+      }
+      return results.getInt("version");
+    }
+  }
+
+  private void bumpUserVersion(ConnectionPool.Lease lease, String user, int version) throws SQLException {
+    PreparedStatement bumpUserVersionStatement = lease.prepare(BUMP_USER_VERSION);
+    bumpUserVersionStatement.clearParameters();
+    bumpUserVersionStatement.setNString(1, user);
+    bumpUserVersionStatement.setInt(2, version);
+    if (bumpUserVersionStatement.executeUpdate() != 1) {
+      throw conflict("User " + user + " changed concurrently");
+    }
+  }
+
+  private int balance(ConnectionPool.Lease lease, String user) throws SQLException {
+    PreparedStatement getBalanceStatement = lease.prepare(GET_BALANCE);
+    getBalanceStatement.clearParameters();
+    getBalanceStatement.setNString(1, user);
+    try (ResultSet results = getBalanceStatement.executeQuery()) {
+      results.next();
+      return results.getInt("balance");
+    }
+  }
+
+  // A lost optimistic check; the retry policy runs the transaction again
+  private static SQLException conflict(String reason) {
+    return new SQLTransactionRollbackException(reason, "40001");
+  }
+
+  /**
+   * Runs read-only work, such as a group of search and reservations commands,
+   * on one connection. The reads inside skip their own BEGIN and COMMIT and run
+   * as single statements in auto-commit mode at the read isolation level,
+   * which is what each of them did in its own transaction anyway. That saves a
+   * pool checkout and two round trips per command.
+   */
+  public <T> T runReadOnly(Callable<T> work) throws Exception {
+    if (pinned.get() != null) {
+      return work.call();
+    }
+    try (ConnectionPool.Lease lease = pool.lease()) {
+      // a write may have left the session at another level
+      lease.prepare(readIsolation.set).executeUpdate();
+      pinned.set(lease);
+      return work.call();
+    } finally {
+      pinned.remove();
+    }
+  }
+
+  // Lease for a read: the connection pinned by runReadOnly if there is one
+  private ConnectionPool.Lease borrowForRead() throws SQLException {
+    ConnectionPool.Lease lease = pinned.get();
+    return lease != null ? lease.share() : pool.lease();
+  }
+
+  private void beginReadTransaction(ConnectionPool.Lease lease) throws SQLException {
+    if (!lease.isShared()) {
+      beginTransaction(lease, readIsolation.begin);
+    }
+  }
+
+  private void commitReadTransaction(ConnectionPool.Lease lease) throws SQLException {
+    if (!lease.isShared()) {
+      commitTransaction(lease);
+    }
   }
 
-  public void commitTransaction() throws SQLException {
-    commitTransactionStatement.executeUpdate();
-    conn.setAutoCommit(true);
+  private void beginTransaction(ConnectionPool.Lease lease) throws SQLException {
+    beginTransaction(lease, BEGIN_TRANSACTION);
   }
 
-  public void rollbackTransaction() throws SQLException {
-    rollbackTransactionStatement.executeUpdate();
-    conn.setAutoCommit(true);
+  private void beginTransaction(ConnectionPool.Lease lease, String begin) throws SQLException {
+    lease.connection().setAutoCommit(false);
+    lease.prepare(begin).executeUpdate();
+  }
+
+  private void commitTransaction(ConnectionPool.Lease lease) throws SQLException {
+    lease.prepare(dialect.commit()).executeUpdate();
+    lease.connection().setAutoCommit(true);
+  }
+
+  private void rollbackTransaction(ConnectionPool.Lease lease) throws SQLException {
+    lease.prepare(dialect.rollback()).executeUpdate();
+    lease.connection().setAutoCommit(true);
+  }
+
+  // Marks the session's command as failed (see Session#failed) and returns
+  // its response
+  private static String fail(Session session, String response) {
+    session.failed = true;
+    return response;
+  }
+
+  /**
+   * Isolation level for the read-only search and reservations transactions
+   */
+  public enum ReadIsolation {
+    SERIALIZABLE("SERIALIZABLE"), READ_COMMITTED("READ COMMITTED"), SNAPSHOT("SNAPSHOT");
+
+    final String set;
+    final String begin;
+
+    ReadIsolation(String level) {
+      this.set = "SET TRANSACTION ISOLATION LEVEL " + level + ";";
+      this.begin = set + " BEGIN TRANSACTION;";
+    }
+
+    /**
+     * Parses a setting such as "read_committed"
+     */
+    public static ReadIsolation fromSetting(String value) {
+      return valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
   }
 
-  private class ItineraryItem {
+  /**
+   * A search result: one direct flight or two connecting flights
+   */
+  static class ItineraryItem {
     public Flight flight1;
     public Flight flight2;
     public int totalDuration;
+    // only the fids of the flights are known (see Session#itinerary)
+    boolean idsOnly;
 
     public ItineraryItem(Flight flight1, Flight flight2) {
       this.flight1 = flight1;
@@ -715,6 +1828,25 @@ public class Query {
     public ItineraryItem(Flight flight1) {
       this(flight1, null);
     }
+
+    /**
+     * An itinerary that is only good for booking: its flights have nothing
+     * but their fid
+     *
+     * @param fid2 second flight, or -1 for a direct itinerary
+     */
+    static ItineraryItem ofIds(int fid1, int fid2) {
+      Flight flight1 = new Flight();
+      flight1.fid = fid1;
+      Flight flight2 = null;
+      if (fid2 >= 0) {
+        flight2 = new Flight();
+        flight2.fid = fid2;
+      }
+      ItineraryItem itinerary = new ItineraryItem(flight1, flight2);
+      itinerary.idsOnly = true;
+      return itinerary;
+    }
     public int size(){
       if(flight2 == null){
         return 1;
@@ -729,11 +1861,7 @@ public class Query {
     }
     @Override
     public String toString() {
-      String results = flight1.toString() + "\n";
-      if(flight2 != null){
-        results += flight2.toString() + "\n";
-      }
-      return results;
+      return ResponseWriter.flights(new StringBuilder(256), this).toString();
     }
 
     public int getFlightID1() {
@@ -748,7 +1876,7 @@ public class Query {
   /**
    * A class to store flight information.
    */
-  class Flight {
+  static class Flight {
     public int fid;
     public int dayOfMonth;
     public String carrierId;
@@ -761,8 +1889,7 @@ public class Query {
 
     @Override
     public String toString() {
-      return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId + " Number: " + flightNum + " Origin: "
-              + originCity + " Dest: " + destCity + " Duration: " + time + " Capacity: " + capacity + " Price: " + price;
+      return ResponseWriter.flight(new StringBuilder(128), this).toString();
     }
   }
 }
@@ -0,0 +1,320 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Hands out {@link Query} engines and {@link Session}s that share one
+ * {@link ConnectionPool}.
+ * <p>
+ * Sessions hold no database resources; every transaction borrows a pooled
+ * connection whose statements are usually already prepared, so the number of
+ * database connections is bounded by the pool rather than by the number of
+ * users.
+ */
+public class QueryFactory implements AutoCloseable {
+  private final ConnectionPool pool;
+  private final boolean useCatalog;
+  // the catalog is read from and written to this file when set
+  private volatile Path catalogSnapshot;
+  private final PasswordHasher hasher;
+  private SessionTokens tokens;
+  private ReservationIdAllocator ids;
+  private SeatInventory seats;
+  private RetryPolicy retry = RetryPolicy.defaults();
+  private Query.ReadIsolation readIsolation = Query.ReadIsolation.READ_COMMITTED;
+  private boolean optimisticWrites;
+  private boolean batchedTransactions;
+  private SearchCache searchCache;
+  private ReservationCache reservationCache;
+  private int searchStreamThreshold;
+  private Dialect dialect = Dialect.SQL_SERVER;
+  private Metrics metrics;
+  private BookingEngine engine;
+  private final Query query;
+  private volatile FlightCatalog catalog;
+  private final Lock catalogLock = new ReentrantLock();
+
+  public QueryFactory(ConnectionPool pool, boolean useCatalog) {
+    this(pool, useCatalog, PasswordHasher.shared());
+  }
+
+  public QueryFactory(ConnectionPool pool, boolean useCatalog, PasswordHasher hasher) {
+    this.pool = pool;
+    this.useCatalog = useCatalog;
+    this.hasher = hasher;
+    this.query = new Query();
+    query.openConnection(pool);
+    query.setPasswordHasher(hasher);
+    query.setRetryPolicy(retry);
+    this.ids = new ReservationIdAllocator(pool, 1);
+    query.setReservationIdAllocator(ids);
+  }
+
+  /**
+   * Creates a factory from the dbconn.properties configuration settings, on
+   * the storage they select (see {@link Storage})
+   */
+  public static QueryFactory fromConfig() throws IOException, SQLException {
+    return fromConfig(Query.loadConfig());
+  }
+
+  /**
+   * Same as {@link #fromConfig()}, with the given configuration settings
+   */
+  static QueryFactory fromConfig(Properties configProps) throws IOException, SQLException {
+    Storage storage = Storage.fromConfig(configProps);
+    ConnectionPool pool = ConnectionPool.fromConfig(configProps);
+    storage.initialize(pool, configProps);
+    QueryFactory factory = new QueryFactory(pool,
+            Boolean.parseBoolean(configProps.getProperty("hw1.flight_catalog", "false").trim()),
+            PasswordHasher.fromConfig(configProps));
+    factory.setDialect(storage.dialect());
+    factory.setCatalogSnapshot(CatalogSnapshot.fromConfig(configProps));
+    factory.setSessionTokens(SessionTokens.fromConfig(configProps));
+    factory.setReservationIdAllocator(ReservationIdAllocator.fromConfig(factory.pool, configProps));
+    factory.setSeatInventory(SeatInventory.fromConfig(pool, configProps));
+    factory.setRetryPolicy(RetryPolicy.fromConfig(configProps));
+    factory.setIsolation(
+            Query.ReadIsolation.fromSetting(configProps.getProperty("hw1.read_isolation", "read_committed")),
+            Boolean.parseBoolean(configProps.getProperty("hw1.optimistic_writes", "false").trim()));
+    factory.setBatchedTransactions(
+            Boolean.parseBoolean(configProps.getProperty("hw1.batched_transactions", "false").trim()));
+    factory.setSearchCache(SearchCache.fromConfig(configProps));
+    factory.setReservationCache(ReservationCache.fromConfig(configProps));
+    factory.setSearchStreamThreshold(ConnectionPool.intSetting(configProps, "hw1.search_stream_threshold", 0));
+    factory.setMetrics(Metrics.fromConfig(configProps));
+    factory.setBookingEngine(BookingEngine.fromConfig(pool, configProps));
+    return factory;
+  }
+
+  /**
+   * Loads the flight catalog from the given {@link CatalogSnapshot} file, or
+   * writes it there if the file is missing or out of date (see
+   * {@link FlightCatalog#load(Connection, Path, Dialect)}). Only matters until
+   * the catalog is first loaded.
+   */
+  public void setCatalogSnapshot(Path catalogSnapshot) {
+    this.catalogSnapshot = catalogSnapshot;
+  }
+
+  /**
+   * Issues and accepts session tokens in every Query handed out, including ones
+   * already handed out by {@link #query()}. Pass null to turn tokens off.
+   */
+  public void setSessionTokens(SessionTokens tokens) {
+    this.tokens = tokens;
+    query.setSessionTokens(tokens);
+  }
+
+  /**
+   * Allocates reservation IDs with the given allocator in every Query handed
+   * out, so that they all draw from the same blocks
+   */
+  public void setReservationIdAllocator(ReservationIdAllocator ids) {
+    this.ids = ids;
+    query.setReservationIdAllocator(ids);
+  }
+
+  /**
+   * Checks seats through the SeatsRemaining table in every Query handed out
+   */
+  public void setSeatInventory(SeatInventory seats) {
+    this.seats = seats;
+    query.setSeatInventory(seats);
+  }
+
+  /**
+   * Retries transactions with the given policy in every Query handed out, so
+   * that its counts cover all of them
+   */
+  public void setRetryPolicy(RetryPolicy retry) {
+    this.retry = retry;
+    retry.setMetrics(metrics);
+    query.setRetryPolicy(retry);
+  }
+
+  /**
+   * Sets the read isolation level and optimistic writes (see
+   * {@link Query#setOptimisticWrites}) of every Query handed out
+   */
+  public void setIsolation(Query.ReadIsolation readIsolation, boolean optimisticWrites) {
+    this.readIsolation = readIsolation;
+    this.optimisticWrites = optimisticWrites;
+    query.setReadIsolation(readIsolation);
+    query.setOptimisticWrites(optimisticWrites);
+  }
+
+  /**
+   * Runs book, pay and cancel as single server-side batches in every Query
+   * handed out
+   */
+  public void setBatchedTransactions(boolean batchedTransactions) {
+    this.batchedTransactions = batchedTransactions;
+    query.setBatchedTransactions(batchedTransactions);
+  }
+
+  /**
+   * Answers searches of every Query handed out from the given cache, so that
+   * they all share its entries. Pass null to compute every search.
+   */
+  public void setSearchCache(SearchCache searchCache) {
+    this.searchCache = searchCache;
+    query.setSearchCache(searchCache);
+  }
+
+  /**
+   * Answers reservations of every Query handed out from the given cache. It
+   * must be shared so that each Query's writes reach the others' reads.
+   */
+  public void setReservationCache(ReservationCache reservationCache) {
+    this.reservationCache = reservationCache;
+    query.setReservationCache(reservationCache);
+  }
+
+  /**
+   * Streams searches for at least the given number of itineraries in every
+   * Query handed out. Pass 0 to never stream.
+   */
+  public void setSearchStreamThreshold(int searchStreamThreshold) {
+    this.searchStreamThreshold = searchStreamThreshold;
+    query.setSearchStreamThreshold(searchStreamThreshold);
+  }
+
+  /**
+   * Issues transaction statements for the given database in every Query
+   * handed out
+   */
+  public void setDialect(Dialect dialect) {
+    this.dialect = dialect;
+    query.setDialect(dialect);
+  }
+
+  /**
+   * Records commands, statements, retries and hashes of every Query handed out
+   * in the given metrics. Statements already prepared by the pool are not
+   * timed. Pass null to stop recording.
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+    pool.setMetrics(metrics != null && metrics.timesStatements() ? metrics : null);
+    retry.setMetrics(metrics);
+    hasher.setMetrics(metrics);
+    query.setMetrics(metrics);
+  }
+
+  public Metrics metrics() {
+    return metrics;
+  }
+
+  public Dialect dialect() {
+    return dialect;
+  }
+
+  /**
+   * Keeps users and reservations of every Query handed out in the given
+   * engine, which is closed with this factory. Pass null to use the database.
+   */
+  public void setBookingEngine(BookingEngine engine) {
+    this.engine = engine;
+    query.setBookingEngine(engine);
+  }
+
+  public BookingEngine bookingEngine() {
+    return engine;
+  }
+
+  /**
+   * The shared, thread-safe engine. Pass it a {@link Session} per client.
+   */
+  public Query query() throws SQLException {
+    if (useCatalog) {
+      query.setFlightCatalog(catalog());
+    }
+    return query;
+  }
+
+  /**
+   * Opens a new single-user Query with its own session, backed by the pool.
+   * {@link Query#closeConnection()} leaves the shared pool open.
+   */
+  public Query newQuery() throws SQLException {
+    Query q = new Query();
+    configure(q);
+    return q;
+  }
+
+  // Gives the Query this factory's pool and settings, and prepares its
+  // statements
+  void configure(Query q) throws SQLException {
+    q.openConnection(pool);
+    q.setPasswordHasher(hasher);
+    q.setSessionTokens(tokens);
+    q.setReservationIdAllocator(ids);
+    q.setSeatInventory(seats);
+    q.setRetryPolicy(retry);
+    q.setReadIsolation(readIsolation);
+    q.setOptimisticWrites(optimisticWrites);
+    q.setBatchedTransactions(batchedTransactions);
+    q.setSearchCache(searchCache);
+    q.setReservationCache(reservationCache);
+    q.setSearchStreamThreshold(searchStreamThreshold);
+    q.setDialect(dialect);
+    q.setMetrics(metrics);
+    q.setBookingEngine(engine);
+    q.prepareStatements();
+    if (useCatalog) {
+      q.setFlightCatalog(catalog());
+    }
+  }
+
+  // Loads the catalog on first use. Guarded by a lock rather than a monitor,
+  // so a virtual thread loading it does not pin its carrier thread, and only
+  // taken until the catalog is loaded.
+  private FlightCatalog catalog() throws SQLException {
+    FlightCatalog loaded = catalog;
+    if (loaded != null) {
+      return loaded;
+    }
+    catalogLock.lock();
+    try {
+      if (catalog == null) {
+        try (ConnectionPool.Lease lease = pool.lease()) {
+          catalog = FlightCatalog.getShared(lease.connection(), catalogSnapshot, dialect);
+        }
+      }
+      return catalog;
+    } finally {
+      catalogLock.unlock();
+    }
+  }
+
+  public ConnectionPool pool() {
+    return pool;
+  }
+
+  public PasswordHasher hasher() {
+    return hasher;
+  }
+
+  @Override
+  public void close() {
+    if (metrics != null) {
+      metrics.close();
+    }
+    pool.close();
+    if (hasher != PasswordHasher.shared()) {
+      hasher.close();
+    }
+    if (engine != null) {
+      try {
+        engine.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
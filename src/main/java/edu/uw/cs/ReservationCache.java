@@ -0,0 +1,297 @@
+package edu.uw.cs;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+/**
+ * Each user's reservations, kept in memory so that the reservations command
+ * is answered without joining Reservations and Flights again.
+ * <p>
+ * A user's list is loaded from the database the first time it is asked for,
+ * and from then on book, pay and cancel update it right after they commit.
+ * In {@link Consistency#LOCAL} mode this process is assumed to be the only
+ * writer and lists are served until the tables are cleared. In
+ * {@link Consistency#SHARED} mode other processes may book, pay and cancel as
+ * well, so a list is reloaded once it was last read from the database longer
+ * than the maximum age ago.
+ * <p>
+ * A load that overlaps a write for the same user is not kept, since it may
+ * have read the database before the write committed.
+ * <p>
+ * At most the capacity's users are kept, the least recently used one being
+ * evicted to make room. A load that overlaps the write of an evicted user is
+ * not kept either, since the write it should be checked against is gone.
+ */
+public class ReservationCache {
+  /**
+   * Who else may change the reservations
+   */
+  public enum Consistency {
+    /** Only this process writes; cached lists never go stale */
+    LOCAL,
+    /** Other processes write too; lists are reloaded after the maximum age */
+    SHARED;
+
+    /**
+     * Parses a setting such as "local"
+     */
+    public static Consistency fromSetting(String value) {
+      return valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+  }
+
+  private final Consistency consistency;
+  private final int capacity;
+  private final long maxAgeMillis;
+  private final LongSupplier clock;
+
+  // a lock rather than a monitor, so virtual threads do not pin their carrier
+  private final ReentrantLock lock = new ReentrantLock();
+  private final LinkedHashMap<String, Entry> entries;
+  // stamps every write, so that a load can tell whether one overlapped it
+  private final AtomicLong writes = new AtomicLong();
+  // written under the lock
+  private volatile long clearedAt;
+  // the latest write of an evicted user; written under the lock
+  private long evictedWrite;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder loads = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param capacity     most users whose lists are kept
+   * @param maxAgeMillis in SHARED mode, how long a list is served after it was
+   *                     read from the database; ignored in LOCAL mode
+   */
+  public ReservationCache(Consistency consistency, int capacity, long maxAgeMillis) {
+    this(consistency, capacity, maxAgeMillis, System::currentTimeMillis);
+  }
+
+  ReservationCache(Consistency consistency, int capacity, long maxAgeMillis, LongSupplier clock) {
+    this.consistency = consistency;
+    this.capacity = capacity;
+    this.maxAgeMillis = maxAgeMillis;
+    this.clock = clock;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() > ReservationCache.this.capacity) {
+          evictedWrite = Math.max(evictedWrite, eldest.getValue().lastWrite);
+          evictions.increment();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Creates a cache from the hw1.reservation_cache ("off", "local" or
+   * "shared"), hw1.reservation_cache_size and
+   * hw1.reservation_cache_max_age_ms settings, or returns null if it is off
+   */
+  public static ReservationCache fromConfig(Properties configProps) {
+    String mode = configProps.getProperty("hw1.reservation_cache", "off").trim();
+    if (mode.equalsIgnoreCase("off")) {
+      return null;
+    }
+    return new ReservationCache(Consistency.fromSetting(mode),
+            ConnectionPool.intSetting(configProps, "hw1.reservation_cache_size", 10_000),
+            ConnectionPool.intSetting(configProps, "hw1.reservation_cache_max_age_ms", 1000));
+  }
+
+  public Consistency consistency() {
+    return consistency;
+  }
+
+  /**
+   * The user's reservations ordered by ID, or null if they must be loaded from
+   * the database. The list is shared and must not be modified.
+   */
+  public List<Reservation> get(String user) {
+    Entry entry;
+    lock.lock();
+    try {
+      entry = entries.get(user);
+    } finally {
+      lock.unlock();
+    }
+    if (entry == null || entry.reservations == null
+            || (consistency == Consistency.SHARED && clock.getAsLong() - entry.loadedAt >= maxAgeMillis)) {
+      return null;
+    }
+    hits.increment();
+    return entry.reservations;
+  }
+
+  /**
+   * Call before reading the user's reservations from the database, and pass
+   * the result to {@link #load}
+   */
+  public long beginLoad() {
+    return writes.get();
+  }
+
+  /**
+   * Caches the reservations read from the database, unless a write was
+   * recorded for the user since {@link #beginLoad()} returned the stamp
+   */
+  public void load(String user, long stamp, List<Reservation> reservations) {
+    loads.increment();
+    List<Reservation> sorted = new ArrayList<>(reservations);
+    sorted.sort(Comparator.comparingInt(r -> r.rid));
+    Entry loaded = new Entry(Collections.unmodifiableList(sorted), stamp, clock.getAsLong());
+    lock.lock();
+    try {
+      Entry entry = entries.get(user);
+      if (stamp < clearedAt || stamp < evictedWrite || (entry != null && entry.lastWrite > stamp)) {
+        return;
+      }
+      entries.put(user, loaded);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adds a reservation the user just booked
+   */
+  public void booked(String user, Reservation reservation) {
+    update(user, list -> {
+      list.removeIf(r -> r.rid == reservation.rid);
+      int i = 0;
+      while (i < list.size() && list.get(i).rid < reservation.rid) {
+        i++;
+      }
+      list.add(i, reservation);
+    });
+  }
+
+  /**
+   * Marks a reservation the user just paid for
+   */
+  public void paid(String user, int rid) {
+    update(user, list -> list.replaceAll(r -> r.rid == rid ? r.withPaid() : r));
+  }
+
+  /**
+   * Drops a reservation the user just canceled
+   */
+  public void canceled(String user, int rid) {
+    update(user, list -> list.removeIf(r -> r.rid == rid));
+  }
+
+  /**
+   * Forgets the user's list after a write whose result is not known in full,
+   * so that the next read loads it again
+   */
+  public void invalidate(String user) {
+    lock.lock();
+    try {
+      entries.put(user, new Entry(null, writes.incrementAndGet(), 0));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Forgets every list, after the reservations were cleared
+   */
+  public void clear() {
+    lock.lock();
+    try {
+      // loads still running read the tables before they were cleared
+      clearedAt = writes.incrementAndGet();
+      entries.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Applies a committed write to the user's list, if one is cached
+  private void update(String user, Consumer<List<Reservation>> change) {
+    lock.lock();
+    try {
+      long stamp = writes.incrementAndGet();
+      Entry entry = entries.get(user);
+      if (entry == null || entry.reservations == null) {
+        // remember the write so that an overlapping load is not kept
+        entries.put(user, new Entry(null, stamp, 0));
+        return;
+      }
+      List<Reservation> list = new ArrayList<>(entry.reservations);
+      change.accept(list);
+      entries.put(user, new Entry(Collections.unmodifiableList(list), stamp, entry.loadedAt));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Reservations commands answered from memory */
+  public long hits() {
+    return hits.sum();
+  }
+
+  /** Reservations commands that read the database */
+  public long loads() {
+    return loads.sum();
+  }
+
+  /** Users dropped to make room */
+  public long evictions() {
+    return evictions.sum();
+  }
+
+  public int size() {
+    lock.lock();
+    try {
+      return entries.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s users=%d hits=%d loads=%d evictions=%d", consistency.name().toLowerCase(Locale.ROOT),
+            size(), hits(), loads(), evictions());
+  }
+
+  /**
+   * One reservation: its ID, whether it is paid, and its one or two flights
+   */
+  public static final class Reservation {
+    public final int rid;
+    public final boolean paid;
+    public final Query.Flight flight1;
+    // null for a direct itinerary
+    public final Query.Flight flight2;
+
+    public Reservation(int rid, boolean paid, Query.Flight flight1, Query.Flight flight2) {
+      this.rid = rid;
+      this.paid = paid;
+      this.flight1 = flight1;
+      this.flight2 = flight2;
+    }
+
+    Reservation withPaid() {
+      return paid ? this : new Reservation(rid, true, flight1, flight2);
+    }
+  }
+
+  private static class Entry {
+    // null if the user has written but the list was not loaded
+    final List<Reservation> reservations;
+    final long lastWrite;
+    final long loadedAt;
+
+    Entry(List<Reservation> reservations, long lastWrite, long loadedAt) {
+      this.reservations = reservations;
+      this.lastWrite = lastWrite;
+      this.loadedAt = loadedAt;
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Hands out reservation IDs from the one-row ReservationID table.
+ * <p>
+ * With a block size of 1 every ID is taken inside the booking transaction, so
+ * IDs are contiguous but every booking in the system queues on that row. With
+ * a larger block size the allocator reserves a range of IDs in one short
+ * transaction of its own and hands them out in-process without touching the
+ * database again (hi/lo). IDs given back by failed bookings are reused, but
+ * IDs still unused when the process stops leave a gap, and IDs are no longer
+ * ordered by booking time across processes.
+ */
+public class ReservationIdAllocator {
+  private static final String GET_ID = "SELECT rid FROM ReservationID";
+  private static final String UPDATE_NEXT_ID = "UPDATE ReservationID SET rid = rid + 1";
+  private static final String RESERVE_BLOCK = "UPDATE ReservationID SET rid = rid + ?";
+  private static final int MAX_RESERVE_ATTEMPTS = 5;
+
+  private final ConnectionPool pool;
+  private final int blockSize;
+
+  private final ReentrantLock refillLock = new ReentrantLock();
+  private volatile Block block = new Block(0, 0);
+  // IDs taken by bookings that did not go through
+  private final Queue<Integer> returned = new ConcurrentLinkedQueue<>();
+
+  /**
+   * @param pool      pool to borrow a connection from when a block runs out
+   * @param blockSize IDs reserved per trip to the database; 1 allocates every ID
+   *                  inside the booking transaction
+   */
+  public ReservationIdAllocator(ConnectionPool pool, int blockSize) {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("Block size must be at least 1");
+    }
+    this.pool = pool;
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Creates an allocator with the optional hw1.reservation_id_block_size
+   * setting, strict by default
+   */
+  public static ReservationIdAllocator fromConfig(ConnectionPool pool, Properties configProps) {
+    return new ReservationIdAllocator(pool,
+            ConnectionPool.intSetting(configProps, "hw1.reservation_id_block_size", 1));
+  }
+
+  /**
+   * True if IDs are taken inside the booking transaction with
+   * {@link #nextInTransaction}, false if they come from {@link #next()}
+   */
+  public boolean isStrict() {
+    return blockSize == 1;
+  }
+
+  /**
+   * Takes the next ID inside the caller's open transaction. The ID is only
+   * used up if that transaction commits.
+   *
+   * @return the ID, or -1 if the ReservationID table is empty
+   */
+  public int nextInTransaction(ConnectionPool.Lease lease) throws SQLException {
+    // update first: the row lock then keeps two bookings from reading the same
+    // ID at any isolation level
+    if (lease.prepare(UPDATE_NEXT_ID).executeUpdate() == 0) {
+      return -1;
+    }
+    ResultSet results = lease.prepare(GET_ID).executeQuery();
+    results.next();
+    int id = results.getInt("rid") - 1;
+    results.close();
+    return id;
+  }
+
+  /**
+   * Takes an ID from the current block, reserving a new block first if it ran
+   * out. Call before borrowing the connection for the booking, and give the ID
+   * back if the booking does not commit.
+   */
+  public int next() throws SQLException {
+    Integer reused = returned.poll();
+    if (reused != null) {
+      return reused;
+    }
+    while (true) {
+      Block current = block;
+      int id = current.take();
+      if (id >= 0) {
+        return id;
+      }
+      refillLock.lock();
+      try {
+        // another thread may have refilled it while we waited
+        if (block == current) {
+          block = reserveRetrying();
+        }
+      } finally {
+        refillLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Returns an ID taken with {@link #next()} that was not used
+   */
+  public void giveBack(int id) {
+    returned.add(id);
+  }
+
+  /**
+   * Forgets every reserved ID, after the ReservationID table was reset
+   */
+  public void reset() {
+    refillLock.lock();
+    try {
+      block = new Block(0, 0);
+      returned.clear();
+    } finally {
+      refillLock.unlock();
+    }
+  }
+
+  // Two processes refilling at once can deadlock on the counter row
+  private Block reserveRetrying() throws SQLException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return reserve();
+      } catch (SQLException e) {
+        if (attempt == MAX_RESERVE_ATTEMPTS || !"40001".equals(e.getSQLState())) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  private Block reserve() throws SQLException {
+    try (ConnectionPool.Lease lease = pool.lease()) {
+      Connection conn = lease.connection();
+      int isolation = conn.getTransactionIsolation();
+      // no other refill may read the counter between our update and read
+      conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+      conn.setAutoCommit(false);
+      try {
+        PreparedStatement reserve = lease.prepare(RESERVE_BLOCK);
+        reserve.clearParameters();
+        reserve.setInt(1, blockSize);
+        reserve.executeUpdate();
+        ResultSet results = lease.prepare(GET_ID).executeQuery();
+        if (!results.next()) {
+          throw new SQLException("ReservationID table is empty");
+        }
+        int end = results.getInt("rid");
+        results.close();
+        conn.commit();
+        return new Block(end - blockSize, end);
+      } catch (SQLException | RuntimeException e) {
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.setAutoCommit(true);
+        conn.setTransactionIsolation(isolation);
+      }
+    }
+  }
+
+  /**
+   * A range of reserved IDs, handed out with a single atomic increment
+   */
+  private static class Block {
+    final AtomicInteger next;
+    final int end;
+
+    Block(int start, int end) {
+      this.next = new AtomicInteger(start);
+      this.end = end;
+    }
+
+    // Returns -1 once the block is used up
+    int take() {
+      if (next.get() >= end) {
+        return -1;
+      }
+      int id = next.getAndIncrement();
+      return id < end ? id : -1;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Builds search and reservations responses in a reusable buffer.
+ * <p>
+ * Flights, itinerary headers and reservation headers are appended field by
+ * field, so no intermediate string is created per row and the only allocation
+ * of a response is its final String. Writers are pooled rather than kept per
+ * thread, since server commands may each run on a new virtual thread. Buffers
+ * that grew past {@link #MAX_RETAINED_CHARS} are not kept, so one huge search
+ * does not pin its memory.
+ */
+final class ResponseWriter {
+  static final int MAX_RETAINED_CHARS = 1 << 16;
+  private static final int MAX_POOLED = 64;
+  // an array-backed queue, so returning a writer allocates nothing
+  private static final BlockingQueue<ResponseWriter> POOL = new ArrayBlockingQueue<>(MAX_POOLED);
+
+  private final StringBuilder sb = new StringBuilder(4096);
+  // staging for drainTo, since Writer takes chars but not a StringBuilder
+  private char[] chars;
+
+  private ResponseWriter() {
+  }
+
+  /**
+   * A writer with an empty buffer. Call {@link #finish()} when done with it.
+   */
+  static ResponseWriter acquire() {
+    ResponseWriter writer = POOL.poll();
+    return writer != null ? writer : new ResponseWriter();
+  }
+
+  /**
+   * Appends "Itinerary [i]: [n] flight(s), [minutes] minutes\n" followed by
+   * each flight on its own line
+   */
+  ResponseWriter itinerary(int i, Query.ItineraryItem itinerary) {
+    return itinerary(i, itinerary.flight1, itinerary.flight2);
+  }
+
+  /**
+   * Same as {@link #itinerary(int, Query.ItineraryItem)} for the given flights,
+   * where flight2 is null for a direct itinerary
+   */
+  ResponseWriter itinerary(int i, Query.Flight flight1, Query.Flight flight2) {
+    sb.append("Itinerary ").append(i).append(": ").append(flight2 == null ? 1 : 2).append(" flight(s), ")
+            .append(flight2 == null ? flight1.time : flight1.time + flight2.time).append(" minutes\n");
+    flight(sb, flight1).append('\n');
+    if (flight2 != null) {
+      flight(sb, flight2).append('\n');
+    }
+    return this;
+  }
+
+  /**
+   * Appends "Reservation [rid] paid: [paid]:\n" followed by each flight on its
+   * own line
+   */
+  ResponseWriter reservation(ReservationCache.Reservation r) {
+    sb.append("Reservation ").append(r.rid).append(" paid: ").append(r.paid).append(":\n");
+    flight(sb, r.flight1).append('\n');
+    if (r.flight2 != null) {
+      flight(sb, r.flight2).append('\n');
+    }
+    return this;
+  }
+
+  ResponseWriter append(String s) {
+    sb.append(s);
+    return this;
+  }
+
+  int length() {
+    return sb.length();
+  }
+
+  /**
+   * Writes out what was appended so far and empties the buffer
+   */
+  void drainTo(Writer out) throws IOException {
+    int length = sb.length();
+    if (chars == null || chars.length < length) {
+      chars = new char[Math.max(length, 1024)];
+    }
+    sb.getChars(0, length, chars, 0);
+    out.write(chars, 0, length);
+    sb.setLength(0);
+  }
+
+  /**
+   * The response, after which the writer goes back to the pool and must not
+   * be used again
+   */
+  String finish() {
+    String response = sb.toString();
+    release();
+    return response;
+  }
+
+  /**
+   * Puts the writer back in the pool without building a response
+   */
+  void release() {
+    if (sb.capacity() <= MAX_RETAINED_CHARS && (chars == null || chars.length <= MAX_RETAINED_CHARS)) {
+      sb.setLength(0);
+      POOL.offer(this);
+    }
+  }
+
+  /**
+   * Appends the flight in the format of {@link Query.Flight#toString()}
+   */
+  static StringBuilder flight(StringBuilder sb, Query.Flight f) {
+    return sb.append("ID: ").append(f.fid)
+            .append(" Day: ").append(f.dayOfMonth)
+            .append(" Carrier: ").append(f.carrierId)
+            .append(" Number: ").append(f.flightNum)
+            .append(" Origin: ").append(f.originCity)
+            .append(" Dest: ").append(f.destCity)
+            .append(" Duration: ").append(f.time)
+            .append(" Capacity: ").append(f.capacity)
+            .append(" Price: ").append(f.price);
+  }
+
+  /**
+   * Appends the itinerary's flights, each followed by a newline, as in
+   * {@link Query.ItineraryItem#toString()}
+   */
+  static StringBuilder flights(StringBuilder sb, Query.ItineraryItem itinerary) {
+    flight(sb, itinerary.flight1).append('\n');
+    if (itinerary.flight2 != null) {
+      flight(sb, itinerary.flight2).append('\n');
+    }
+    return sb;
+  }
+}
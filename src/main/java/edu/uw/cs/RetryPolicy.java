@@ -0,0 +1,248 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Reruns a transaction that lost a deadlock or serialization conflict.
+ * <p>
+ * Only failures that a second try can fix are retried: deadlock victims,
+ * serialization and snapshot conflicts, lock timeouts and broken connections.
+ * Transactions that write are only retried when the database rolled them
+ * back (see {@link #runWrite}), since a connection that broke during COMMIT
+ * leaves unknown whether their changes were kept.
+ * Between attempts the caller sleeps for a random time up to an exponentially
+ * growing, capped delay, so that transactions that collided do not collide
+ * again right away. A transaction is given up after a maximum number of
+ * attempts or once the deadline has passed. Attempts, retries, deadlocks and
+ * give-ups are counted per operation.
+ */
+public class RetryPolicy {
+  // SQL Server error codes worth another attempt
+  private static final int DEADLOCK_VICTIM = 1205;
+  private static final int LOCK_TIMEOUT = 1222;
+  private static final int SNAPSHOT_CONFLICT = 3960;
+
+  private final int maxAttempts;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+  private final long deadlineMillis;
+  private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>();
+  private volatile Metrics metrics;
+
+  /**
+   * One try of a transaction
+   */
+  public interface Attempt<T> {
+    T run() throws SQLException;
+  }
+
+  /**
+   * @param maxAttempts     tries before giving up, including the first
+   * @param baseDelayMillis longest sleep before the first retry; doubles with
+   *                        every further retry
+   * @param maxDelayMillis  cap on the sleep between two attempts
+   * @param deadlineMillis  no retry is started after this much time since the
+   *                        first attempt
+   */
+  public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, long deadlineMillis) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("At least one attempt is needed");
+    }
+    this.maxAttempts = maxAttempts;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.deadlineMillis = deadlineMillis;
+  }
+
+  /**
+   * Records every failed attempt by its cause. Pass null to stop.
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * The policy used when none is configured
+   */
+  public static RetryPolicy defaults() {
+    return new RetryPolicy(10, 5, 500, 10_000);
+  }
+
+  /**
+   * Creates a policy from the optional hw1.retry_* settings
+   */
+  public static RetryPolicy fromConfig(Properties configProps) {
+    return new RetryPolicy(ConnectionPool.intSetting(configProps, "hw1.retry_max_attempts", 10),
+            ConnectionPool.intSetting(configProps, "hw1.retry_base_delay_ms", 5),
+            ConnectionPool.intSetting(configProps, "hw1.retry_max_delay_ms", 500),
+            ConnectionPool.intSetting(configProps, "hw1.retry_deadline_ms", 10_000));
+  }
+
+  /**
+   * Runs the attempt until it succeeds, fails permanently, or runs out of
+   * attempts or time.
+   *
+   * @param operation name the attempts are counted under
+   * @param onFailure returned when the transaction is given up
+   */
+  public <T> T run(String operation, Attempt<T> attempt, T onFailure) {
+    return run(operation, attempt, onFailure, RetryPolicy::isTransient);
+  }
+
+  /**
+   * Same as {@link #run}, for a transaction that is not safe to repeat once it
+   * may have committed: only retried after the database rolled it back.
+   */
+  public <T> T runWrite(String operation, Attempt<T> attempt, T onFailure) {
+    return run(operation, attempt, onFailure, RetryPolicy::isRolledBack);
+  }
+
+  private <T> T run(String operation, Attempt<T> attempt, T onFailure, Predicate<SQLException> retryable) {
+    Stats counts = stats.computeIfAbsent(operation, k -> new Stats());
+    long start = System.nanoTime();
+    for (int tries = 1; ; tries++) {
+      counts.attempts.increment();
+      Metrics metrics = this.metrics;
+      long attemptStart = metrics != null ? System.nanoTime() : 0;
+      try {
+        return attempt.run();
+      } catch (SQLException e) {
+        if (metrics != null) {
+          metrics.failedAttempt(e, System.nanoTime() - attemptStart);
+        }
+        if (isDeadlock(e)) {
+          counts.deadlocks.increment();
+        }
+        if (!retryable.test(e) || tries >= maxAttempts) {
+          counts.failures.increment();
+          return onFailure;
+        }
+      }
+      long delay = ThreadLocalRandom.current().nextLong(backoffMillis(tries) + 1);
+      if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + delay > deadlineMillis) {
+        counts.failures.increment();
+        return onFailure;
+      }
+      counts.retries.increment();
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        counts.failures.increment();
+        return onFailure;
+      }
+    }
+  }
+
+  // Longest sleep after the given failed attempt
+  long backoffMillis(int failedAttempts) {
+    int shift = Math.min(failedAttempts - 1, 30);
+    return Math.min(maxDelayMillis, baseDelayMillis << shift);
+  }
+
+  /**
+   * True if the failure came from contention or a lost connection, and the
+   * same transaction may succeed when run again
+   */
+  public static boolean isTransient(SQLException e) {
+    for (SQLException s = e; s != null; s = s.getNextException()) {
+      if (s instanceof SQLTransientException) {
+        return true;
+      }
+      int code = s.getErrorCode();
+      if (code == DEADLOCK_VICTIM || code == LOCK_TIMEOUT || code == SNAPSHOT_CONFLICT) {
+        return true;
+      }
+      // class 40 is transaction rollback, class 08 a connection exception
+      String state = s.getSQLState();
+      if (state != null && (state.startsWith("40") || state.startsWith("08"))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * True if the database rolled the transaction back because it lost a
+   * deadlock, serialization or snapshot conflict, so none of it was kept
+   */
+  public static boolean isRolledBack(SQLException e) {
+    for (SQLException s = e; s != null; s = s.getNextException()) {
+      if (s.getErrorCode() == DEADLOCK_VICTIM || s.getErrorCode() == SNAPSHOT_CONFLICT) {
+        return true;
+      }
+      // class 40 is transaction rollback
+      String state = s.getSQLState();
+      if (state != null && state.startsWith("40")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * True if the transaction was chosen as a deadlock victim or failed to
+   * serialize with a concurrent one
+   */
+  static boolean isDeadlock(SQLException e) {
+    for (SQLException s = e; s != null; s = s.getNextException()) {
+      if (s.getErrorCode() == DEADLOCK_VICTIM || "40001".equals(s.getSQLState())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Attempts made for the operation, including first tries */
+  public long attempts(String operation) {
+    Stats counts = stats.get(operation);
+    return counts == null ? 0 : counts.attempts.sum();
+  }
+
+  /** Attempts of the operation that were repeated after a transient failure */
+  public long retries(String operation) {
+    Stats counts = stats.get(operation);
+    return counts == null ? 0 : counts.retries.sum();
+  }
+
+  /** Attempts of the operation that lost a deadlock or serialization conflict */
+  public long deadlocks(String operation) {
+    Stats counts = stats.get(operation);
+    return counts == null ? 0 : counts.deadlocks.sum();
+  }
+
+  /** Transactions of the operation that were given up */
+  public long failures(String operation) {
+    Stats counts = stats.get(operation);
+    return counts == null ? 0 : counts.failures.sum();
+  }
+
+  /** Every operation that was run at least once */
+  public Set<String> operations() {
+    return new TreeSet<>(stats.keySet());
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (String operation : operations()) {
+      if (sb.length() > 0) {
+        sb.append(' ');
+      }
+      sb.append(String.format("%s=%d/%d/%d", operation, attempts(operation), retries(operation),
+              failures(operation)));
+    }
+    return "attempts/retries/failures " + sb;
+  }
+
+  private static class Stats {
+    final LongAdder attempts = new LongAdder();
+    final LongAdder retries = new LongAdder();
+    final LongAdder deadlocks = new LongAdder();
+    final LongAdder failures = new LongAdder();
+  }
+}
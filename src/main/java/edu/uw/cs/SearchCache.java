@@ -0,0 +1,223 @@
+package edu.uw.cs;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+/**
+ * Bounded cache of search results, keyed by (origin, destination, direct, day,
+ * number of itineraries).
+ * <p>
+ * Entries hold the itineraries themselves rather than the rendered text, so a
+ * hit also gives the session the itineraries it may book, and the flights are
+ * shared with the catalog instead of copied. The least recently used entry is
+ * evicted once the cache is full and entries expire after the TTL. Flights
+ * are not changed while the application runs, so nothing else drops them. A
+ * search computed while {@link #clear} ran is not cached, so it cannot bring
+ * a dropped result back.
+ */
+public class SearchCache {
+  private final int capacity;
+  private final long ttlMillis;
+  private final LongSupplier clock;
+
+  // a lock rather than a monitor, so virtual threads do not pin their carrier
+  private final ReentrantLock lock = new ReentrantLock();
+  private final LinkedHashMap<Key, Result> entries;
+  // bumped by every clear, so that a put can tell whether one overlapped its
+  // search; written under the lock
+  private volatile long clearedAt;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder expirations = new LongAdder();
+
+  /**
+   * @param capacity  most searches kept
+   * @param ttlMillis how long a result is served after it was computed
+   */
+  public SearchCache(int capacity, long ttlMillis) {
+    this(capacity, ttlMillis, System::currentTimeMillis);
+  }
+
+  SearchCache(int capacity, long ttlMillis, LongSupplier clock) {
+    this.capacity = capacity;
+    this.ttlMillis = ttlMillis;
+    this.clock = clock;
+    this.entries = new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+        if (size() > SearchCache.this.capacity) {
+          evictions.increment();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Creates a cache from the hw1.search_cache_size and
+   * hw1.search_cache_ttl_seconds settings, or returns null if the size is 0
+   */
+  public static SearchCache fromConfig(Properties configProps) {
+    int capacity = ConnectionPool.intSetting(configProps, "hw1.search_cache_size", 0);
+    if (capacity <= 0) {
+      return null;
+    }
+    return new SearchCache(capacity, TimeUnit.SECONDS.toMillis(
+            ConnectionPool.intSetting(configProps, "hw1.search_cache_ttl_seconds", 60)));
+  }
+
+  /**
+   * The itineraries found for the search, or null if they are not cached. The
+   * array is shared and must not be modified.
+   */
+  public Query.ItineraryItem[] get(Key key) {
+    long now = clock.getAsLong();
+    lock.lock();
+    try {
+      Result entry = entries.get(key);
+      if (entry == null) {
+        misses.increment();
+        return null;
+      }
+      if (now >= entry.expiresAt) {
+        entries.remove(key);
+        expirations.increment();
+        misses.increment();
+        return null;
+      }
+      hits.increment();
+      return entry.itineraries;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Call before computing a search, and pass the result to {@link #put}
+   */
+  public long beginLoad() {
+    return clearedAt;
+  }
+
+  /**
+   * Caches the itineraries found for the search, unless the cache was
+   * cleared since {@link #beginLoad()} returned the stamp. The array must
+   * not be modified afterwards.
+   */
+  public void put(Key key, long stamp, Query.ItineraryItem[] itineraries) {
+    Result entry = new Result(itineraries, clock.getAsLong() + ttlMillis);
+    lock.lock();
+    try {
+      if (stamp == clearedAt) {
+        entries.put(key, entry);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops every cached search
+   */
+  public void clear() {
+    lock.lock();
+    try {
+      clearedAt++;
+      entries.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int size() {
+    lock.lock();
+    try {
+      return entries.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Searches answered from the cache */
+  public long hits() {
+    return hits.sum();
+  }
+
+  /** Searches that had to be computed, including ones whose entry expired */
+  public long misses() {
+    return misses.sum();
+  }
+
+  /** Entries dropped to make room */
+  public long evictions() {
+    return evictions.sum();
+  }
+
+  /** Entries dropped because they outlived the TTL */
+  public long expirations() {
+    return expirations.sum();
+  }
+
+  @Override
+  public String toString() {
+    long lookups = hits() + misses();
+    return String.format("size=%d hits=%d misses=%d hitRate=%.1f%% evictions=%d expirations=%d",
+            size(), hits(), misses(), lookups == 0 ? 0.0 : 100.0 * hits() / lookups, evictions(), expirations());
+  }
+
+  /**
+   * The parameters of a search
+   */
+  public static final class Key {
+    private final String originCity;
+    private final String destinationCity;
+    private final boolean directFlight;
+    private final int dayOfMonth;
+    private final int numberOfItineraries;
+
+    public Key(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+               int numberOfItineraries) {
+      this.originCity = originCity;
+      this.destinationCity = destinationCity;
+      this.directFlight = directFlight;
+      this.dayOfMonth = dayOfMonth;
+      this.numberOfItineraries = numberOfItineraries;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return directFlight == k.directFlight && dayOfMonth == k.dayOfMonth
+              && numberOfItineraries == k.numberOfItineraries && originCity.equals(k.originCity)
+              && destinationCity.equals(k.destinationCity);
+    }
+
+    @Override
+    public int hashCode() {
+      int h = originCity.hashCode();
+      h = 31 * h + destinationCity.hashCode();
+      h = 31 * h + (directFlight ? 1 : 0);
+      h = 31 * h + dayOfMonth;
+      return 31 * h + numberOfItineraries;
+    }
+  }
+
+  private static class Result {
+    final Query.ItineraryItem[] itineraries;
+    final long expiresAt;
+
+    Result(Query.ItineraryItem[] itineraries, long expiresAt) {
+      this.itineraries = itineraries;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
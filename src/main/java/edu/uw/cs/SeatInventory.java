@@ -0,0 +1,119 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Seats left on each flight, kept in the SeatsRemaining table so that a
+ * booking checks and takes a seat with one primary key update instead of
+ * counting the flight's reservations.
+ * <p>
+ * A flight's row is created the first time it is booked, from its capacity
+ * minus the reservations it already has, so the table can be emptied at any
+ * time. Bookings made while counters were off do not update the table, so
+ * {@link #open} empties it to start from fresh counts. Every change runs
+ * inside the caller's transaction and is undone with it. The row is created
+ * only if it is still missing, under a key-range lock on SQL Server, so two
+ * first bookings of a flight at READ COMMITTED do not both insert it.
+ */
+public class SeatInventory {
+  private static final String TAKE_SEAT =
+          "UPDATE SeatsRemaining SET seats = seats - 1 WHERE fid = ? AND seats > 0";
+
+  private static final String RETURN_SEAT = "UPDATE SeatsRemaining SET seats = seats + 1 WHERE fid = ?";
+
+  // H2 accepts the table hints in MSSQLServer mode and ignores them
+  private static final String CREATE_ROW =
+          "INSERT INTO SeatsRemaining(fid, seats) " +
+                  "SELECT fid, capacity - (SELECT COUNT(*) FROM Reservations WHERE flight1 = ? OR flight2 = ?) " +
+                  "FROM Flights WHERE fid = ? " +
+                  "AND NOT EXISTS (SELECT 1 FROM SeatsRemaining WITH (UPDLOCK, HOLDLOCK) WHERE fid = ?)";
+
+  // duplicate key in SQL Server, and in H2
+  private static final int DUPLICATE_KEY = 2627;
+  private static final int DUPLICATE_INDEX_KEY = 2601;
+  private static final String H2_DUPLICATE_KEY = "23505";
+
+  private static final String CLEAR = "DELETE FROM SeatsRemaining";
+
+  /**
+   * Starts counting seats on the pool's database. The counts left from an
+   * earlier run are dropped, since bookings may have been made since without
+   * them; each flight is counted again on its next booking.
+   */
+  public static SeatInventory open(ConnectionPool pool) throws SQLException {
+    SeatInventory seats = new SeatInventory();
+    try (ConnectionPool.Lease lease = pool.lease()) {
+      seats.clear(lease);
+    }
+    return seats;
+  }
+
+  /**
+   * Opens the inventory if the hw1.seat_counters setting is true, or returns
+   * null
+   */
+  public static SeatInventory fromConfig(ConnectionPool pool, Properties configProps) throws SQLException {
+    return Boolean.parseBoolean(configProps.getProperty("hw1.seat_counters", "false").trim()) ? open(pool) : null;
+  }
+
+  /**
+   * Takes a seat on the flight.
+   *
+   * @return false if the flight is full or does not exist
+   */
+  public boolean reserve(ConnectionPool.Lease lease, int fid) throws SQLException {
+    if (takeSeat(lease, fid)) {
+      return true;
+    }
+    // maybe the first booking of this flight: count its seats once
+    PreparedStatement createRow = lease.prepare(CREATE_ROW);
+    createRow.clearParameters();
+    createRow.setInt(1, fid);
+    createRow.setInt(2, fid);
+    createRow.setInt(3, fid);
+    createRow.setInt(4, fid);
+    try {
+      // inserts nothing if the row exists: the flight is full, or another
+      // booking created the row since the update above
+      createRow.executeUpdate();
+    } catch (SQLException e) {
+      // H2 ignores the lock hints, so a concurrent first booking may insert
+      // the row first; it exists now either way
+      if (!isDuplicateKey(e)) {
+        throw e;
+      }
+    }
+    return takeSeat(lease, fid);
+  }
+
+  /**
+   * Gives back a seat on the flight, for a canceled reservation
+   */
+  public void release(ConnectionPool.Lease lease, int fid) throws SQLException {
+    PreparedStatement returnSeat = lease.prepare(RETURN_SEAT);
+    returnSeat.clearParameters();
+    returnSeat.setInt(1, fid);
+    // no row yet means the count is taken after the cancellation anyway
+    returnSeat.executeUpdate();
+  }
+
+  /**
+   * Forgets every count, after the reservations were cleared
+   */
+  public void clear(ConnectionPool.Lease lease) throws SQLException {
+    lease.prepare(CLEAR).executeUpdate();
+  }
+
+  private static boolean isDuplicateKey(SQLException e) {
+    return e.getErrorCode() == DUPLICATE_KEY || e.getErrorCode() == DUPLICATE_INDEX_KEY
+            || H2_DUPLICATE_KEY.equals(e.getSQLState());
+  }
+
+  private boolean takeSeat(ConnectionPool.Lease lease, int fid) throws SQLException {
+    PreparedStatement takeSeat = lease.prepare(TAKE_SEAT);
+    takeSeat.clearParameters();
+    takeSeat.setInt(1, fid);
+    return takeSeat.executeUpdate() == 1;
+  }
+}
@@ -0,0 +1,77 @@
+package edu.uw.cs;
+
+import java.util.*;
+
+/**
+ * Per-client state: who is logged in and the itineraries returned by the last
+ * search. A streamed search keeps only the flight IDs of its itineraries.
+ * <p>
+ * A session holds no database resources. {@link Query} borrows a connection
+ * only for the duration of each transaction, so an idle session costs a few
+ * object headers and nothing else. A session must only be used by one thread
+ * at a time.
+ */
+public class Session {
+  // logged in user, null if nobody has logged in
+  String user;
+  // results of the last search, null if there was none since login
+  Query.ItineraryItem[] itineraries;
+  // fid1, fid2 pairs of the last search if it was streamed; fid2 is -1 for a
+  // direct flight
+  int[] streamedFids;
+  int streamedCount;
+  // the command being run, reused for every line
+  final Command command = new Command();
+  // whether the command being run failed; cleared before each command and
+  // set where its failure is answered, for the error counts of Metrics
+  boolean failed;
+
+  /**
+   * Forgets the itineraries of the last search
+   */
+  void clearItineraries() {
+    itineraries = null;
+    streamedFids = null;
+    streamedCount = 0;
+  }
+
+  /**
+   * Remembers the next itinerary of a streamed search
+   */
+  void addStreamed(int fid1, int fid2) {
+    if (streamedFids == null) {
+      streamedFids = new int[64];
+    } else if (2 * streamedCount == streamedFids.length) {
+      streamedFids = Arrays.copyOf(streamedFids, 2 * streamedFids.length);
+    }
+    streamedFids[2 * streamedCount] = fid1;
+    streamedFids[2 * streamedCount + 1] = fid2;
+    streamedCount++;
+  }
+
+  /**
+   * The itinerary with the given number from the last search, or null. A
+   * streamed itinerary only has the IDs of its flights.
+   */
+  Query.ItineraryItem itinerary(int id) {
+    Query.ItineraryItem[] itineraries = this.itineraries;
+    if (itineraries != null) {
+      return id >= 0 && id < itineraries.length ? itineraries[id] : null;
+    }
+    if (id < 0 || id >= streamedCount) {
+      return null;
+    }
+    return Query.ItineraryItem.ofIds(streamedFids[2 * id], streamedFids[2 * id + 1]);
+  }
+
+  /**
+   * The logged in user, or null if nobody has logged in
+   */
+  public String user() {
+    return user;
+  }
+
+  public boolean isLoggedIn() {
+    return user != null;
+  }
+}
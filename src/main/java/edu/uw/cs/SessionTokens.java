@@ -0,0 +1,193 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Signed, expiring session tokens that let a client log back in without
+ * another password check.
+ * <p>
+ * A token is the base64url encoding of (username, expiry, generation) followed
+ * by an HMAC-SHA256 of those bytes. Checking one costs a single HMAC instead of
+ * a PBKDF2 hash. Revoking a user's tokens bumps that user's generation, which
+ * invalidates every token issued before. Generations are stored with the user
+ * (see {@link Query#transaction_revokeTokens}), so revocation survives a
+ * restart and reaches every node sharing the secret; this class only
+ * remembers the ones it was told for at most the recheck interval, after
+ * which a revocation by another node is seen here too.
+ */
+public class SessionTokens {
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+  // users whose generation is remembered; past this they are all forgotten
+  private static final int MAX_REMEMBERED = 100_000;
+
+  private final long ttlMillis;
+  private final long recheckMillis;
+  private final LongSupplier clock;
+  // initialized with the key and cloned for each signature, since server
+  // commands may each run on a new virtual thread
+  private final Mac prototype;
+  private final ConcurrentMap<String, Generation> generations = new ConcurrentHashMap<>();
+
+  /**
+   * @param secret        HMAC key, shared by every node that should accept the
+   *                      tokens
+   * @param ttlMillis     how long a token stays valid after it is issued
+   * @param recheckMillis how long a user's stored generation is remembered
+   */
+  public SessionTokens(byte[] secret, long ttlMillis, long recheckMillis) {
+    this(secret, ttlMillis, recheckMillis, System::currentTimeMillis);
+  }
+
+  SessionTokens(byte[] secret, long ttlMillis, long recheckMillis, LongSupplier clock) {
+    this.ttlMillis = ttlMillis;
+    this.recheckMillis = recheckMillis;
+    this.clock = clock;
+    try {
+      prototype = Mac.getInstance(ALGORITHM);
+      prototype.init(new SecretKeySpec(secret, ALGORITHM));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Creates the token service from the configuration settings, or returns null
+   * if hw1.session_tokens is not enabled. Without hw1.session_token_secret a
+   * random key is used, so tokens do not survive a restart.
+   */
+  public static SessionTokens fromConfig(Properties configProps) {
+    if (!Boolean.parseBoolean(configProps.getProperty("hw1.session_tokens", "false").trim())) {
+      return null;
+    }
+    String secret = configProps.getProperty("hw1.session_token_secret", "").trim();
+    byte[] key;
+    if (secret.isEmpty()) {
+      key = new byte[32];
+      new SecureRandom().nextBytes(key);
+    } else {
+      key = Base64.getDecoder().decode(secret);
+    }
+    long ttl = TimeUnit.SECONDS.toMillis(ConnectionPool.intSetting(configProps, "hw1.session_token_ttl_seconds",
+            3600));
+    return new SessionTokens(key, ttl,
+            ConnectionPool.intSetting(configProps, "hw1.session_token_recheck_ms", 1000));
+  }
+
+  /**
+   * Issues a token for the user and its current generation that expires after
+   * the configured TTL
+   */
+  public String issue(String user, int generation) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeUTF(user);
+      out.writeLong(clock.getAsLong() + ttlMillis);
+      out.writeInt(generation);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    byte[] payload = bytes.toByteArray();
+    return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(sign(payload));
+  }
+
+  /**
+   * Returns the user and generation the token was issued for, or null if the
+   * token is malformed, forged or expired. Whether it was revoked is up to
+   * the caller, by comparing the generation with the stored one.
+   */
+  public Token verify(String token) {
+    int dot = token.indexOf('.');
+    if (dot < 0) {
+      return null;
+    }
+    byte[] payload;
+    byte[] signature;
+    try {
+      payload = DECODER.decode(token.substring(0, dot).getBytes(StandardCharsets.US_ASCII));
+      signature = DECODER.decode(token.substring(dot + 1).getBytes(StandardCharsets.US_ASCII));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    if (!MessageDigest.isEqual(sign(payload), signature)) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+      String user = in.readUTF();
+      long expires = in.readLong();
+      int generation = in.readInt();
+      if (clock.getAsLong() > expires) {
+        return null;
+      }
+      return new Token(user, generation);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * The user's generation as last remembered, or -1 if it must be read again
+   */
+  public int generation(String user) {
+    Generation g = generations.get(user);
+    return g == null || clock.getAsLong() - g.readAt > recheckMillis ? -1 : g.value;
+  }
+
+  /**
+   * Remembers the user's generation as just read from where it is stored
+   */
+  public void remember(String user, int generation) {
+    if (generations.size() >= MAX_REMEMBERED) {
+      generations.clear();
+    }
+    generations.put(user, new Generation(generation, clock.getAsLong()));
+  }
+
+  /**
+   * Forgets the user's generation, after it was bumped
+   */
+  public void forget(String user) {
+    generations.remove(user);
+  }
+
+  private byte[] sign(byte[] payload) {
+    Mac mac;
+    try {
+      mac = (Mac) prototype.clone();
+    } catch (CloneNotSupportedException e) {
+      throw new IllegalStateException(ALGORITHM + " cannot be cloned", e);
+    }
+    return mac.doFinal(payload);
+  }
+
+  /**
+   * The user and generation a token was issued for
+   */
+  public static final class Token {
+    public final String user;
+    public final int generation;
+
+    Token(String user, int generation) {
+      this.user = user;
+      this.generation = generation;
+    }
+  }
+
+  private static final class Generation {
+    final int value;
+    final long readAt;
+
+    Generation(int value, long readAt) {
+      this.value = value;
+      this.readAt = readAt;
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package edu.uw.cs;
+
+import java.util.*;
+
+/**
+ * A SQL Server (or Azure SQL) database reached over the network. Its tables
+ * are created beforehand by running createTables.sql against it.
+ */
+public class SqlServerStorage implements Storage {
+  static final String NAME = "sqlserver";
+
+  @Override
+  public String name() {
+    return NAME;
+  }
+
+  @Override
+  public Dialect dialect() {
+    return Dialect.SQL_SERVER;
+  }
+
+  /**
+   * Builds the URL from hw1.server_url, hw1.database_name, hw1.username,
+   * hw1.password, hw1.encrypt and hw1.trust_server_certificate
+   */
+  @Override
+  public String connectionUrl(Properties configProps) {
+    String serverURL = configProps.getProperty("hw1.server_url");
+    String dbName = configProps.getProperty("hw1.database_name");
+    String adminName = configProps.getProperty("hw1.username");
+    String password = configProps.getProperty("hw1.password");
+    String encrypt = configProps.getProperty("hw1.encrypt", "true").trim();
+    String trust = configProps.getProperty("hw1.trust_server_certificate", "false").trim();
+    return String.format("jdbc:sqlserver://%s:1433;databaseName=%s;user=%s;password=%s;encrypt=%s;"
+            + "trustServerCertificate=%s", serverURL, dbName, adminName, password, encrypt, trust);
+  }
+
+  @Override
+  public void initialize(ConnectionPool pool, Properties configProps) {
+    // the tables already exist on the server
+  }
+}
@@ -0,0 +1,68 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Where the tables live: how to connect to them, what to do with a database
+ * before first use, and which {@link Dialect} it speaks.
+ * <p>
+ * The hw1.storage setting picks the backend by name. "sqlserver" and
+ * "embedded" are built in; other backends are found with
+ * {@link ServiceLoader}, listed in META-INF/services/edu.uw.cs.Storage. Their
+ * {@link Dialect} supplies the statements their database writes differently.
+ */
+public interface Storage {
+  /**
+   * The hw1.storage value that selects this backend
+   */
+  String name();
+
+  Dialect dialect();
+
+  /**
+   * The JDBC URL of the database described by the configuration settings
+   */
+  String connectionUrl(Properties configProps);
+
+  /**
+   * Makes a newly opened database ready for use, such as by creating missing
+   * tables. Called once per process, before the first transaction.
+   */
+  void initialize(ConnectionPool pool, Properties configProps) throws SQLException, IOException;
+
+  /**
+   * The backend named by the hw1.storage setting, "sqlserver" by default
+   *
+   * @throws IllegalArgumentException if no backend has that name, or the
+   *                                  settings ask for something its dialect
+   *                                  cannot do
+   */
+  static Storage fromConfig(Properties configProps) {
+    String name = configProps.getProperty("hw1.storage", "sqlserver").trim();
+    Storage storage = named(name);
+    if (!storage.dialect().supportsBatchedTransactions()
+            && Boolean.parseBoolean(configProps.getProperty("hw1.batched_transactions", "false").trim())) {
+      throw new IllegalArgumentException("hw1.batched_transactions is not supported by " + name + " storage");
+    }
+    return storage;
+  }
+
+  /**
+   * The backend with the given name
+   */
+  static Storage named(String name) {
+    if (name.isEmpty() || name.equals(SqlServerStorage.NAME)) {
+      return new SqlServerStorage();
+    } else if (name.equals(EmbeddedStorage.NAME)) {
+      return new EmbeddedStorage();
+    }
+    for (Storage storage : ServiceLoader.load(Storage.class)) {
+      if (storage.name().equals(name)) {
+        return storage;
+      }
+    }
+    throw new IllegalArgumentException("Unknown storage " + name);
+  }
+}
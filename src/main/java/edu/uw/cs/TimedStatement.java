@@ -0,0 +1,674 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.math.*;
+import java.net.*;
+import java.sql.*;
+import java.sql.Date;
+import java.util.*;
+
+/**
+ * A pooled prepared statement that records how long each execution takes (see
+ * {@link Metrics#timed}). Everything else goes straight to the statement.
+ * <p>
+ * A plain class rather than a {@link java.lang.reflect.Proxy}: calls such as
+ * setInt and clearParameters, several per execution, cost one more virtual
+ * call instead of a reflective invocation with its argument array.
+ */
+final class TimedStatement implements PreparedStatement {
+  private final PreparedStatement statement;
+  private final LatencyHistogram histogram;
+
+  TimedStatement(PreparedStatement statement, LatencyHistogram histogram) {
+    this.statement = statement;
+    this.histogram = histogram;
+  }
+
+  // Executions are timed until they return; a query until its first rows arrive
+  @Override
+  public ResultSet executeQuery() throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.executeQuery();
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public int executeUpdate() throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.executeUpdate();
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public long executeLargeUpdate() throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.executeLargeUpdate();
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public boolean execute() throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.execute();
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public int[] executeBatch() throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.executeBatch();
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public long[] executeLargeBatch() throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.executeLargeBatch();
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public ResultSet executeQuery(String sql) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.executeQuery(sql);
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public int executeUpdate(String sql) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.executeUpdate(sql);
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.executeUpdate(sql, autoGeneratedKeys);
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.executeUpdate(sql, columnIndexes);
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.executeUpdate(sql, columnNames);
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public long executeLargeUpdate(String sql) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.executeLargeUpdate(sql);
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.executeLargeUpdate(sql, autoGeneratedKeys);
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.executeLargeUpdate(sql, columnIndexes);
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.executeLargeUpdate(sql, columnNames);
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public boolean execute(String sql) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.execute(sql);
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.execute(sql, autoGeneratedKeys);
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.execute(sql, columnIndexes);
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public boolean execute(String sql, String[] columnNames) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return statement.execute(sql, columnNames);
+    } finally {
+      histogram.record(System.nanoTime() - start);
+    }
+  }
+
+  // The rest only passes calls on
+  @Override
+  public void clearParameters() throws SQLException {
+    statement.clearParameters();
+  }
+
+  @Override
+  public void setNull(int parameterIndex, int sqlType) throws SQLException {
+    statement.setNull(parameterIndex, sqlType);
+  }
+
+  @Override
+  public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
+    statement.setNull(parameterIndex, sqlType, typeName);
+  }
+
+  @Override
+  public void setBoolean(int parameterIndex, boolean x) throws SQLException {
+    statement.setBoolean(parameterIndex, x);
+  }
+
+  @Override
+  public void setByte(int parameterIndex, byte x) throws SQLException {
+    statement.setByte(parameterIndex, x);
+  }
+
+  @Override
+  public void setShort(int parameterIndex, short x) throws SQLException {
+    statement.setShort(parameterIndex, x);
+  }
+
+  @Override
+  public void setInt(int parameterIndex, int x) throws SQLException {
+    statement.setInt(parameterIndex, x);
+  }
+
+  @Override
+  public void setLong(int parameterIndex, long x) throws SQLException {
+    statement.setLong(parameterIndex, x);
+  }
+
+  @Override
+  public void setFloat(int parameterIndex, float x) throws SQLException {
+    statement.setFloat(parameterIndex, x);
+  }
+
+  @Override
+  public void setDouble(int parameterIndex, double x) throws SQLException {
+    statement.setDouble(parameterIndex, x);
+  }
+
+  @Override
+  public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException {
+    statement.setBigDecimal(parameterIndex, x);
+  }
+
+  @Override
+  public void setString(int parameterIndex, String x) throws SQLException {
+    statement.setString(parameterIndex, x);
+  }
+
+  @Override
+  public void setNString(int parameterIndex, String x) throws SQLException {
+    statement.setNString(parameterIndex, x);
+  }
+
+  @Override
+  public void setBytes(int parameterIndex, byte[] x) throws SQLException {
+    statement.setBytes(parameterIndex, x);
+  }
+
+  @Override
+  public void setDate(int parameterIndex, Date x) throws SQLException {
+    statement.setDate(parameterIndex, x);
+  }
+
+  @Override
+  public void setTime(int parameterIndex, Time x) throws SQLException {
+    statement.setTime(parameterIndex, x);
+  }
+
+  @Override
+  public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
+    statement.setTimestamp(parameterIndex, x);
+  }
+
+  @Override
+  public void setURL(int parameterIndex, URL x) throws SQLException {
+    statement.setURL(parameterIndex, x);
+  }
+
+  @Override
+  public void setArray(int parameterIndex, Array x) throws SQLException {
+    statement.setArray(parameterIndex, x);
+  }
+
+  @Override
+  public void setRef(int parameterIndex, Ref x) throws SQLException {
+    statement.setRef(parameterIndex, x);
+  }
+
+  @Override
+  public void setBlob(int parameterIndex, Blob x) throws SQLException {
+    statement.setBlob(parameterIndex, x);
+  }
+
+  @Override
+  public void setClob(int parameterIndex, Clob x) throws SQLException {
+    statement.setClob(parameterIndex, x);
+  }
+
+  @Override
+  public void setNClob(int parameterIndex, NClob x) throws SQLException {
+    statement.setNClob(parameterIndex, x);
+  }
+
+  @Override
+  public void setRowId(int parameterIndex, RowId x) throws SQLException {
+    statement.setRowId(parameterIndex, x);
+  }
+
+  @Override
+  public void setSQLXML(int parameterIndex, SQLXML x) throws SQLException {
+    statement.setSQLXML(parameterIndex, x);
+  }
+
+  @Override
+  public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException {
+    statement.setDate(parameterIndex, x, cal);
+  }
+
+  @Override
+  public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException {
+    statement.setTime(parameterIndex, x, cal);
+  }
+
+  @Override
+  public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException {
+    statement.setTimestamp(parameterIndex, x, cal);
+  }
+
+  @Override
+  public void setObject(int parameterIndex, Object x) throws SQLException {
+    statement.setObject(parameterIndex, x);
+  }
+
+  @Override
+  public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
+    statement.setObject(parameterIndex, x, targetSqlType);
+  }
+
+  @Override
+  public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength) throws SQLException {
+    statement.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+  }
+
+  @Override
+  public void setObject(int parameterIndex, Object x, SQLType targetSqlType) throws SQLException {
+    statement.setObject(parameterIndex, x, targetSqlType);
+  }
+
+  @Override
+  public void setObject(int parameterIndex, Object x, SQLType targetSqlType, int scaleOrLength) throws SQLException {
+    statement.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+  }
+
+  @Override
+  public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
+    statement.setAsciiStream(parameterIndex, x);
+  }
+
+  @Override
+  public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException {
+    statement.setAsciiStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException {
+    statement.setAsciiStream(parameterIndex, x, length);
+  }
+
+  @Deprecated
+  @Override
+  public void setUnicodeStream(int parameterIndex, InputStream x, int length) throws SQLException {
+    statement.setUnicodeStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
+    statement.setBinaryStream(parameterIndex, x);
+  }
+
+  @Override
+  public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException {
+    statement.setBinaryStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setBinaryStream(int parameterIndex, InputStream x, long length) throws SQLException {
+    statement.setBinaryStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setCharacterStream(int parameterIndex, Reader reader) throws SQLException {
+    statement.setCharacterStream(parameterIndex, reader);
+  }
+
+  @Override
+  public void setCharacterStream(int parameterIndex, Reader reader, int length) throws SQLException {
+    statement.setCharacterStream(parameterIndex, reader, length);
+  }
+
+  @Override
+  public void setCharacterStream(int parameterIndex, Reader reader, long length) throws SQLException {
+    statement.setCharacterStream(parameterIndex, reader, length);
+  }
+
+  @Override
+  public void setNCharacterStream(int parameterIndex, Reader value) throws SQLException {
+    statement.setNCharacterStream(parameterIndex, value);
+  }
+
+  @Override
+  public void setNCharacterStream(int parameterIndex, Reader value, long length) throws SQLException {
+    statement.setNCharacterStream(parameterIndex, value, length);
+  }
+
+  @Override
+  public void setBlob(int parameterIndex, InputStream inputStream) throws SQLException {
+    statement.setBlob(parameterIndex, inputStream);
+  }
+
+  @Override
+  public void setBlob(int parameterIndex, InputStream inputStream, long length) throws SQLException {
+    statement.setBlob(parameterIndex, inputStream, length);
+  }
+
+  @Override
+  public void setClob(int parameterIndex, Reader reader) throws SQLException {
+    statement.setClob(parameterIndex, reader);
+  }
+
+  @Override
+  public void setClob(int parameterIndex, Reader reader, long length) throws SQLException {
+    statement.setClob(parameterIndex, reader, length);
+  }
+
+  @Override
+  public void setNClob(int parameterIndex, Reader reader) throws SQLException {
+    statement.setNClob(parameterIndex, reader);
+  }
+
+  @Override
+  public void setNClob(int parameterIndex, Reader reader, long length) throws SQLException {
+    statement.setNClob(parameterIndex, reader, length);
+  }
+
+  @Override
+  public ResultSetMetaData getMetaData() throws SQLException {
+    return statement.getMetaData();
+  }
+
+  @Override
+  public ParameterMetaData getParameterMetaData() throws SQLException {
+    return statement.getParameterMetaData();
+  }
+
+  @Override
+  public void addBatch() throws SQLException {
+    statement.addBatch();
+  }
+
+  @Override
+  public void addBatch(String sql) throws SQLException {
+    statement.addBatch(sql);
+  }
+
+  @Override
+  public void clearBatch() throws SQLException {
+    statement.clearBatch();
+  }
+
+  @Override
+  public ResultSet getResultSet() throws SQLException {
+    return statement.getResultSet();
+  }
+
+  @Override
+  public int getUpdateCount() throws SQLException {
+    return statement.getUpdateCount();
+  }
+
+  @Override
+  public long getLargeUpdateCount() throws SQLException {
+    return statement.getLargeUpdateCount();
+  }
+
+  @Override
+  public boolean getMoreResults() throws SQLException {
+    return statement.getMoreResults();
+  }
+
+  @Override
+  public boolean getMoreResults(int current) throws SQLException {
+    return statement.getMoreResults(current);
+  }
+
+  @Override
+  public ResultSet getGeneratedKeys() throws SQLException {
+    return statement.getGeneratedKeys();
+  }
+
+  @Override
+  public int getMaxFieldSize() throws SQLException {
+    return statement.getMaxFieldSize();
+  }
+
+  @Override
+  public void setMaxFieldSize(int max) throws SQLException {
+    statement.setMaxFieldSize(max);
+  }
+
+  @Override
+  public int getMaxRows() throws SQLException {
+    return statement.getMaxRows();
+  }
+
+  @Override
+  public void setMaxRows(int max) throws SQLException {
+    statement.setMaxRows(max);
+  }
+
+  @Override
+  public long getLargeMaxRows() throws SQLException {
+    return statement.getLargeMaxRows();
+  }
+
+  @Override
+  public void setLargeMaxRows(long max) throws SQLException {
+    statement.setLargeMaxRows(max);
+  }
+
+  @Override
+  public int getQueryTimeout() throws SQLException {
+    return statement.getQueryTimeout();
+  }
+
+  @Override
+  public void setQueryTimeout(int seconds) throws SQLException {
+    statement.setQueryTimeout(seconds);
+  }
+
+  @Override
+  public int getFetchDirection() throws SQLException {
+    return statement.getFetchDirection();
+  }
+
+  @Override
+  public void setFetchDirection(int direction) throws SQLException {
+    statement.setFetchDirection(direction);
+  }
+
+  @Override
+  public int getFetchSize() throws SQLException {
+    return statement.getFetchSize();
+  }
+
+  @Override
+  public void setFetchSize(int rows) throws SQLException {
+    statement.setFetchSize(rows);
+  }
+
+  @Override
+  public void setEscapeProcessing(boolean enable) throws SQLException {
+    statement.setEscapeProcessing(enable);
+  }
+
+  @Override
+  public void setCursorName(String name) throws SQLException {
+    statement.setCursorName(name);
+  }
+
+  @Override
+  public int getResultSetConcurrency() throws SQLException {
+    return statement.getResultSetConcurrency();
+  }
+
+  @Override
+  public int getResultSetType() throws SQLException {
+    return statement.getResultSetType();
+  }
+
+  @Override
+  public int getResultSetHoldability() throws SQLException {
+    return statement.getResultSetHoldability();
+  }
+
+  @Override
+  public boolean isPoolable() throws SQLException {
+    return statement.isPoolable();
+  }
+
+  @Override
+  public void setPoolable(boolean poolable) throws SQLException {
+    statement.setPoolable(poolable);
+  }
+
+  @Override
+  public void closeOnCompletion() throws SQLException {
+    statement.closeOnCompletion();
+  }
+
+  @Override
+  public boolean isCloseOnCompletion() throws SQLException {
+    return statement.isCloseOnCompletion();
+  }
+
+  @Override
+  public SQLWarning getWarnings() throws SQLException {
+    return statement.getWarnings();
+  }
+
+  @Override
+  public void clearWarnings() throws SQLException {
+    statement.clearWarnings();
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    return statement.getConnection();
+  }
+
+  @Override
+  public void cancel() throws SQLException {
+    statement.cancel();
+  }
+
+  @Override
+  public boolean isClosed() throws SQLException {
+    return statement.isClosed();
+  }
+
+  @Override
+  public void close() throws SQLException {
+    statement.close();
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    return iface.isInstance(this) ? iface.cast(this) : statement.unwrap(iface);
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> iface) throws SQLException {
+    return iface.isInstance(this) || statement.isWrapperFor(iface);
+  }
+}
@@ -0,0 +1,48 @@
+package edu.uw.cs;
+
+import java.lang.invoke.*;
+import java.util.concurrent.*;
+
+/**
+ * Access to virtual threads when the runtime has them.
+ * <p>
+ * The project compiles for JDK 17, so the JDK 21 API is looked up at run time.
+ * On older runtimes {@link #isSupported()} is false and callers fall back to
+ * platform threads.
+ */
+public class VirtualThreads {
+  private static final MethodHandle NEW_EXECUTOR = lookup();
+
+  private VirtualThreads() {
+  }
+
+  private static MethodHandle lookup() {
+    try {
+      return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+              MethodType.methodType(ExecutorService.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      return null;
+    }
+  }
+
+  public static boolean isSupported() {
+    return NEW_EXECUTOR != null;
+  }
+
+  /**
+   * An executor that starts a new virtual thread for each task
+   *
+   * @throws UnsupportedOperationException if the runtime has no virtual threads
+   */
+  public static ExecutorService newThreadPerTaskExecutor() {
+    if (NEW_EXECUTOR == null) {
+      throw new UnsupportedOperationException("Virtual threads need JDK 21 or newer, running on "
+              + System.getProperty("java.version"));
+    }
+    try {
+      return (ExecutorService) NEW_EXECUTOR.invokeExact();
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
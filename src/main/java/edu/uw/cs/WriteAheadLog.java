@@ -0,0 +1,273 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.zip.*;
+
+/**
+ * An append-only log of records in a memory-mapped file.
+ * <p>
+ * Each record is its length, the CRC32 of its bytes and the bytes. The length
+ * is written last, so a record that was cut short by a crash is either
+ * missing its length or fails its checksum, and replay stops there.
+ * Everything after that point is zeroed before the first append: pages of the
+ * mapping can reach the disk out of order, so an intact record that was never
+ * acknowledged may follow the torn one, and a new record ending exactly where
+ * it starts would bring it back.
+ * The mapping starts at {@link #INITIAL_SIZE} and doubles when full; the part
+ * of the file not yet written is zeros, which also ends a replay. A mapping
+ * holds at most 2 GB, so the owner of the log must {@link #rewrite} it as the
+ * records of its current state before it gets there.
+ * <p>
+ * Appending copies into the mapping, so a record survives the process being
+ * killed as soon as {@link #append} returns. {@link #sync} forces it to disk.
+ * Threads that sync while another one is forcing wait for it, and then
+ * usually find their records already forced with it, so one force covers a
+ * group of commits.
+ */
+final class WriteAheadLog implements AutoCloseable {
+  static final int INITIAL_SIZE = 1 << 20;
+  private static final int HEADER = 8;
+  private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(1 << 16);
+
+  private final Path file;
+  // replaced by a rewrite, as is the mapping
+  private FileChannel channel;
+  // guards the mapping and position
+  private final Lock appendLock = new ReentrantLock();
+  // held while forcing, so that only one thread forces at a time
+  private final Lock syncLock = new ReentrantLock();
+  private final CRC32 crc = new CRC32();
+  private MappedByteBuffer buffer;
+  private volatile int position;
+  // everything before this was forced
+  private volatile int durable;
+
+  private WriteAheadLog(Path file, FileChannel channel, MappedByteBuffer buffer) {
+    this.file = file;
+    this.channel = channel;
+    this.buffer = buffer;
+  }
+
+  /**
+   * Opens the log in the file, creating it if needed, and passes every intact
+   * record to the replay in order until it returns false for one. New records
+   * are appended in place of the first record not replayed.
+   */
+  static WriteAheadLog open(Path file, Predicate<ByteBuffer> replay) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    try {
+      long size = Math.max(INITIAL_SIZE, Long.highestOneBit(Math.max(1, channel.size() - 1)) << 1);
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException(file + " is too large for a log");
+      }
+      WriteAheadLog log = new WriteAheadLog(file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+      log.replay(replay);
+      return log;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private void replay(Predicate<ByteBuffer> replay) {
+    CRC32 check = new CRC32();
+    int at = 0;
+    while (at + HEADER <= buffer.capacity()) {
+      int length = buffer.getInt(at);
+      if (length <= 0 || length > buffer.capacity() - at - HEADER) {
+        break;
+      }
+      ByteBuffer record = buffer.slice(at + HEADER, length);
+      check.reset();
+      check.update(record.duplicate());
+      if ((int) check.getValue() != buffer.getInt(at + 4)) {
+        break;
+      }
+      if (!replay.test(record.asReadOnlyBuffer())) {
+        break;
+      }
+      at += HEADER + length;
+    }
+    // nothing after the replayed records may be read again, whatever the next
+    // appends overwrite
+    zero(at, buffer.capacity());
+    position = at;
+    durable = at;
+  }
+
+  // Zeroes the part of the mapping between from and to and forces it, writing
+  // only the chunks that are not zero already so that a fresh file stays sparse
+  private void zero(int from, int to) {
+    for (int at = from; at < to; at += ZEROS.capacity()) {
+      int length = Math.min(ZEROS.capacity(), to - at);
+      if (buffer.slice(at, length).mismatch(ZEROS.slice(0, length)) >= 0) {
+        buffer.put(at, ZEROS, 0, length);
+      }
+    }
+    buffer.force(from, to - from);
+  }
+
+  /**
+   * Appends the remaining bytes of the buffer as one record
+   *
+   * @return the end of the record in the log, for {@link #sync}
+   */
+  int append(ByteBuffer record) throws IOException {
+    int length = record.remaining();
+    appendLock.lock();
+    try {
+      int at = position;
+      if ((long) at + HEADER + length > buffer.capacity()) {
+        grow((long) at + HEADER + length);
+      }
+      crc.reset();
+      crc.update(record.duplicate());
+      buffer.put(at + HEADER, record, record.position(), length);
+      buffer.putInt(at + 4, (int) crc.getValue());
+      buffer.putInt(at, length);
+      position = at + HEADER + length;
+      return position;
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  // Maps a larger part of the file, after forcing the old mapping since a
+  // later sync only forces the new one
+  private void grow(long needed) throws IOException {
+    long size = buffer.capacity();
+    while (size < needed) {
+      size <<= 1;
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Log is full: " + file + " cannot hold more than " + Integer.MAX_VALUE + " bytes");
+    }
+    buffer.force();
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+  }
+
+  /**
+   * Waits until everything up to the given end of a record is on disk
+   */
+  void sync(int end) {
+    if (durable >= end) {
+      return;
+    }
+    syncLock.lock();
+    try {
+      // whoever held the lock may have forced this record already
+      if (durable >= end) {
+        return;
+      }
+      MappedByteBuffer forced;
+      int target;
+      appendLock.lock();
+      try {
+        forced = buffer;
+        target = position;
+      } finally {
+        appendLock.unlock();
+      }
+      int from = durable;
+      forced.force(from, target - from);
+      durable = target;
+    } finally {
+      syncLock.unlock();
+    }
+  }
+
+  /**
+   * Replaces the records in the log with the given ones. They are written to
+   * a file next to the log, which is then renamed over it, so a crash leaves
+   * either all the old records or all the new ones.
+   */
+  void rewrite(Iterable<ByteBuffer> records) throws IOException {
+    syncLock.lock();
+    appendLock.lock();
+    try {
+      Path next = file.resolveSibling(file.getFileName() + ".new");
+      Files.deleteIfExists(next);
+      WriteAheadLog log = open(next, r -> true);
+      try {
+        for (ByteBuffer record : records) {
+          log.append(record);
+        }
+        log.buffer.force();
+        Files.move(next, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException | RuntimeException e) {
+        log.channel.close();
+        Files.deleteIfExists(next);
+        throw e;
+      }
+      forceDirectory(file.toAbsolutePath().getParent());
+      channel.close();
+      channel = log.channel;
+      buffer = log.buffer;
+      position = log.position;
+      durable = position;
+    } finally {
+      appendLock.unlock();
+      syncLock.unlock();
+    }
+  }
+
+  // Forces the rename to disk, so that records appended after it are not
+  // lost with it. Windows cannot open a directory, but NTFS journals the
+  // rename anyway.
+  private static void forceDirectory(Path dir) {
+    try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // nothing more to do
+    }
+  }
+
+  /**
+   * Empties the log
+   */
+  void clear() {
+    syncLock.lock();
+    appendLock.lock();
+    try {
+      // as after a replay, nothing beyond the end of the log may come back
+      zero(0, buffer.capacity());
+      position = 0;
+      durable = 0;
+    } finally {
+      appendLock.unlock();
+      syncLock.unlock();
+    }
+  }
+
+  /**
+   * Bytes of records in the log
+   */
+  int size() {
+    return position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    syncLock.lock();
+    appendLock.lock();
+    try {
+      buffer.force();
+      channel.close();
+    } finally {
+      appendLock.unlock();
+      syncLock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.ROOT, "WriteAheadLog[%d bytes]", position);
+  }
+}
@@ -0,0 +1,65 @@
+package edu.uw.cs;
+
+import org.junit.*;
+import org.junit.rules.*;
+
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays a small cases-style script. Searches come from an in-memory catalog
+ * and the other commands fail before touching the database.
+ */
+public class BatchRunnerTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void writesSessionsInInputOrder() throws Exception {
+    Path input = folder.newFile("input.txt").toPath();
+    Files.write(input, Arrays.asList(
+        "# user 1",
+        "search \"Seattle WA\" \"Boston MA\" 1 1 1",
+        "reservations  # not logged in",
+        "book 0",
+        "quit",
+        "*",
+        "expected output is ignored",
+        "*",
+        "# user 2",
+        "pay 3",
+        "search \"Boston MA\" \"Seattle WA\" 1 1 1",
+        "*",
+        "*"), StandardCharsets.UTF_8);
+    Path output = folder.getRoot().toPath().resolve("output.txt");
+
+    try (ConnectionPool pool = new ConnectionPool("jdbc:h2:mem:batchtest", 1, 8, 60_000, 1_000)) {
+      Query query = new Query();
+      query.openConnection(pool);
+      query.setFlightCatalog(FlightCatalog.of(Collections.singletonList(
+          FlightCatalogTest.flight(3, 1, "Seattle WA", "Boston MA", 297))));
+      assertEquals(6, new BatchRunner(query, 4).run(input, output));
+    }
+
+    assertEquals("Itinerary 0: 1 flight(s), 297 minutes\n"
+        + "ID: 3 Day: 1 Carrier: AS Number: 3 Origin: Seattle WA Dest: Boston MA Duration: 297 Capacity: 10 Price: 103\n"
+        + "Cannot view reservations, not logged in\n"
+        + "Cannot book reservations, not logged in\n"
+        + "Goodbye\n"
+        + "*\n"
+        + "Cannot pay, not logged in\n"
+        + "No flights match your selection\n"
+        + "*\n", new String(Files.readAllBytes(output), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void treatsAFileWithoutDelimitersAsOneSession() throws Exception {
+    Path input = folder.newFile("plain.txt").toPath();
+    Files.write(input, Arrays.asList("login a b", "search x y 1 1 1", "quit"), StandardCharsets.UTF_8);
+    assertEquals(Collections.singletonList(Arrays.asList("login a b", "search x y 1 1 1", "quit")),
+        BatchRunner.parse(input));
+  }
+}
@@ -0,0 +1,263 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.function.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the book, pay and cancel batches against the SQL Server database in
+ * dbconn.properties, with and without seat counters, and checks how their
+ * outcomes are answered. The batches are T-SQL only, so their tests are skipped
+ * when no server is configured.
+ * <p>
+ * Like FlightServiceTest, this empties the Users, Reservations, ReservationID
+ * and SeatsRemaining tables of that database.
+ */
+public class BatchedTransactionsTest {
+  private static ConnectionPool pool;
+  private static boolean unavailable;
+
+  // flights read from the server: two on one day, one on another day
+  private static int fid;
+  private static int capacity;
+  private static int price;
+  private static int sameDayFid;
+  private static int otherDayFid;
+
+  @AfterClass
+  public static void closePool() {
+    if (pool != null) {
+      pool.close();
+    }
+  }
+
+  private static ConnectionPool.Lease lease() throws Exception {
+    if (pool == null && !unavailable) {
+      unavailable = true;
+      Properties configProps = Query.loadConfig();
+      Storage storage = Storage.fromConfig(configProps);
+      if (!(storage instanceof SqlServerStorage) || configProps.getProperty("hw1.server_url", "").trim().isEmpty()) {
+        Assume.assumeTrue("no SQL Server configured", false);
+      }
+      pool = new ConnectionPool(storage.connectionUrl(configProps), 4, 32, 60_000, 30_000);
+      try (ConnectionPool.Lease lease = pool.lease()) {
+        findFlights(lease.connection());
+      }
+      unavailable = false;
+    }
+    Assume.assumeFalse("no SQL Server configured", unavailable);
+    return pool.lease();
+  }
+
+  private static void findFlights(Connection conn) throws SQLException {
+    try (Statement s = conn.createStatement()) {
+      try (ResultSet r = s.executeQuery("SELECT TOP 1 F.fid, F.capacity, F.price, F.day_of_month FROM Flights F "
+          + "WHERE F.canceled = 0 AND F.capacity BETWEEN 2 AND 5 AND EXISTS (SELECT * FROM Flights G "
+          + "WHERE G.day_of_month = F.day_of_month AND G.fid <> F.fid AND G.capacity > 0) ORDER BY F.fid")) {
+        Assume.assumeTrue("no small flight to fill", r.next());
+        fid = r.getInt(1);
+        capacity = r.getInt(2);
+        price = r.getInt(3);
+      }
+      sameDayFid = single(s, "SELECT TOP 1 fid FROM Flights WHERE capacity > 0 AND fid <> " + fid
+          + " AND day_of_month = (SELECT day_of_month FROM Flights WHERE fid = " + fid + ") ORDER BY fid");
+      otherDayFid = single(s, "SELECT TOP 1 fid FROM Flights WHERE capacity > 0"
+          + " AND day_of_month <> (SELECT day_of_month FROM Flights WHERE fid = " + fid + ") ORDER BY fid");
+    }
+  }
+
+  private static int single(Statement s, String sql) throws SQLException {
+    try (ResultSet r = s.executeQuery(sql)) {
+      Assume.assumeTrue(sql, r.next());
+      return r.getInt(1);
+    }
+  }
+
+  private static int single(ConnectionPool.Lease lease, String sql) throws SQLException {
+    try (Statement s = lease.connection().createStatement()) {
+      return single(s, sql);
+    }
+  }
+
+  private static void clear(ConnectionPool.Lease lease, String... users) throws SQLException {
+    try (Statement s = lease.connection().createStatement()) {
+      s.execute("DELETE FROM Reservations; DELETE FROM Users; DELETE FROM SeatsRemaining; "
+          + "DELETE FROM ReservationID; INSERT INTO ReservationID VALUES (1);");
+    }
+    for (String user : users) {
+      PreparedStatement create = lease.connection().prepareStatement(
+          "INSERT INTO Users(uname, pwHash, pwSalt, balance) VALUES (?, 0x00, 0x00, 0)");
+      create.setString(1, user);
+      create.executeUpdate();
+      create.close();
+    }
+  }
+
+  private static void setBalance(ConnectionPool.Lease lease, String user, int balance) throws SQLException {
+    try (PreparedStatement update = lease.connection().prepareStatement(
+        "UPDATE Users SET balance = ? WHERE uname = ?")) {
+      update.setInt(1, balance);
+      update.setString(2, user);
+      update.executeUpdate();
+    }
+  }
+
+  private static int balance(ConnectionPool.Lease lease, String user) throws SQLException {
+    return single(lease, "SELECT balance FROM Users WHERE uname = '" + user + "'");
+  }
+
+  @Test
+  public void bookReportsEachOutcome() throws Exception {
+    for (boolean seatCounters : new boolean[]{false, true}) {
+      BatchedTransactions batches = BatchedTransactions.of(seatCounters);
+      try (ConnectionPool.Lease lease = lease()) {
+        String[] users = new String[capacity + 2];
+        for (int i = 0; i < users.length; i++) {
+          users[i] = "batchuser" + i;
+        }
+        clear(lease, users);
+
+        BatchedTransactions.Outcome booked = batches.book(lease, users[0], fid, null, null);
+        assertEquals(BatchedTransactions.OK, booked.status);
+        assertEquals(1, booked.value);
+        assertEquals(BatchedTransactions.SAME_DAY, batches.book(lease, users[0], sameDayFid, null, null).status);
+        assertEquals(BatchedTransactions.FULL, batches.book(lease, users[1], -1, null, null).status);
+        assertEquals(BatchedTransactions.FULL, batches.book(lease, users[1], otherDayFid, -1, null).status);
+
+        // fill the flight
+        for (int i = 1; i < capacity; i++) {
+          assertEquals(BatchedTransactions.OK, batches.book(lease, users[i], fid, null, null).status);
+        }
+        assertEquals(BatchedTransactions.FULL, batches.book(lease, users[capacity], fid, null, null).status);
+        assertEquals(capacity, single(lease, "SELECT COUNT(*) FROM Reservations WHERE flight1 = " + fid));
+
+        // an ID taken in advance is used as is
+        booked = batches.book(lease, users[capacity], otherDayFid, null, 500);
+        assertEquals(BatchedTransactions.OK, booked.status);
+        assertEquals(500, booked.value);
+
+        // no ID left: nothing is written, not even the seat count
+        try (Statement s = lease.connection().createStatement()) {
+          s.execute("DELETE FROM ReservationID");
+        }
+        assertEquals(BatchedTransactions.NOT_FOUND,
+            batches.book(lease, users[capacity + 1], sameDayFid, null, null).status);
+        assertEquals(0, single(lease, "SELECT COUNT(*) FROM Reservations WHERE uname = '" + users[capacity + 1]
+            + "'"));
+        assertEquals(0, single(lease, "SELECT COUNT(*) FROM SeatsRemaining WHERE fid = " + sameDayFid));
+      }
+    }
+  }
+
+  @Test
+  public void payReportsEachOutcome() throws Exception {
+    for (boolean seatCounters : new boolean[]{false, true}) {
+      BatchedTransactions batches = BatchedTransactions.of(seatCounters);
+      try (ConnectionPool.Lease lease = lease()) {
+        clear(lease, "payer", "other");
+        int rid = batches.book(lease, "payer", fid, null, null).value;
+
+        BatchedTransactions.Outcome paid = batches.pay(lease, "payer", rid);
+        assertEquals(BatchedTransactions.INSUFFICIENT_FUNDS, paid.status);
+        assertEquals(0, paid.value);
+        assertEquals(price, paid.cost);
+
+        setBalance(lease, "payer", price + 10);
+        paid = batches.pay(lease, "payer", rid);
+        assertEquals(BatchedTransactions.OK, paid.status);
+        assertEquals(10, paid.value);
+        assertEquals(10, balance(lease, "payer"));
+
+        assertEquals(BatchedTransactions.NOT_FOUND, batches.pay(lease, "payer", rid).status);
+        assertEquals(BatchedTransactions.NOT_FOUND, batches.pay(lease, "payer", rid + 100).status);
+        int otherRid = batches.book(lease, "other", fid, null, null).value;
+        assertEquals(BatchedTransactions.NOT_FOUND, batches.pay(lease, "payer", otherRid).status);
+      }
+    }
+  }
+
+  @Test
+  public void cancelRefundsAndGivesSeatsBack() throws Exception {
+    for (boolean seatCounters : new boolean[]{false, true}) {
+      BatchedTransactions batches = BatchedTransactions.of(seatCounters);
+      try (ConnectionPool.Lease lease = lease()) {
+        clear(lease, "canceler", "other");
+        setBalance(lease, "canceler", price);
+        int rid = batches.book(lease, "canceler", fid, null, null).value;
+        assertEquals(BatchedTransactions.OK, batches.pay(lease, "canceler", rid).status);
+        assertEquals(0, balance(lease, "canceler"));
+
+        assertEquals(BatchedTransactions.NOT_FOUND, batches.cancel(lease, "other", rid).status);
+        assertEquals(BatchedTransactions.OK, batches.cancel(lease, "canceler", rid).status);
+        assertEquals(price, balance(lease, "canceler"));
+        assertEquals(0, single(lease, "SELECT COUNT(*) FROM Reservations"));
+        if (seatCounters) {
+          assertEquals(capacity, single(lease, "SELECT seats FROM SeatsRemaining WHERE fid = " + fid));
+        }
+        assertEquals(BatchedTransactions.NOT_FOUND, batches.cancel(lease, "canceler", rid).status);
+
+        // an unpaid reservation is canceled without a refund
+        rid = batches.book(lease, "canceler", fid, null, null).value;
+        assertEquals(BatchedTransactions.OK, batches.cancel(lease, "canceler", rid).status);
+        assertEquals(price, balance(lease, "canceler"));
+      }
+    }
+  }
+
+  @Test
+  public void failedBatchLeavesNothingBehind() throws Exception {
+    for (boolean seatCounters : new boolean[]{false, true}) {
+      BatchedTransactions batches = BatchedTransactions.of(seatCounters);
+      try (ConnectionPool.Lease lease = lease()) {
+        clear(lease);
+        try {
+          // the reservation's user does not exist
+          batches.book(lease, "nobody", fid, null, null);
+          fail("booked for a missing user");
+        } catch (SQLException expected) {
+        }
+        assertEquals(0, single(lease, "SELECT @@TRANCOUNT"));
+        assertEquals(1, single(lease, "SELECT rid FROM ReservationID"));
+        assertEquals(0, single(lease, "SELECT COUNT(*) FROM SeatsRemaining"));
+      }
+    }
+  }
+
+  @Test
+  public void outcomesAreAnswered() {
+    Query query = new Query();
+    Query.ItineraryItem itinerary = new Query.ItineraryItem(
+        FlightCatalogTest.flight(1, 1, "Seattle WA", "Boston MA", 100));
+    assertAnswer("Booked flight(s), reservation ID: 7\n", false, session ->
+        query.bookResponse(session, "u", itinerary, new BatchedTransactions.Outcome(BatchedTransactions.OK, 7, 0)));
+    assertAnswer("You cannot book two flights in the same day\n", true, session -> query.bookResponse(session, "u",
+        itinerary, new BatchedTransactions.Outcome(BatchedTransactions.SAME_DAY, 0, 0)));
+    assertAnswer("Booking failed\n", true, session ->
+        query.bookResponse(session, "u", itinerary, new BatchedTransactions.Outcome(BatchedTransactions.FULL, 0, 0)));
+    assertAnswer("Booking failed\n", true, session -> query.bookResponse(session, "u", itinerary,
+        new BatchedTransactions.Outcome(BatchedTransactions.NOT_FOUND, 0, 0)));
+
+    assertAnswer("Paid reservation: 3 remaining balance: 40\n", false, session ->
+        query.payResponse(session, "u", 3, new BatchedTransactions.Outcome(BatchedTransactions.OK, 40, 60)));
+    assertAnswer("User has only 40 in account but itinerary costs 60\n", true, session -> query.payResponse(session,
+        "u", 3, new BatchedTransactions.Outcome(BatchedTransactions.INSUFFICIENT_FUNDS, 40, 60)));
+    assertAnswer("Cannot find unpaid reservation 3 under user: u\n", true, session ->
+        query.payResponse(session, "u", 3, new BatchedTransactions.Outcome(BatchedTransactions.NOT_FOUND, 0, 0)));
+
+    assertAnswer("Canceled reservation 3\n", false, session ->
+        query.cancelResponse(session, "u", 3, new BatchedTransactions.Outcome(BatchedTransactions.OK, 0, 0)));
+    assertAnswer("Failed to cancel reservation 3\n", true, session ->
+        query.cancelResponse(session, "u", 3, new BatchedTransactions.Outcome(BatchedTransactions.NOT_FOUND, 0, 0)));
+  }
+
+  // the answer, and whether it marks the command failed for the metrics
+  private static void assertAnswer(String expected, boolean failed, Function<Session, String> answer) {
+    Session session = new Session();
+    assertEquals(expected, answer.apply(session));
+    assertEquals(expected, failed, session.failed);
+  }
+}
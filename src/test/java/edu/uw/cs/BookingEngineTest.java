@@ -0,0 +1,272 @@
+package edu.uw.cs;
+
+import org.junit.*;
+import org.junit.rules.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the transactions on the in-memory engine, and replays its log after a
+ * restart and after the process writing it was killed
+ */
+public class BookingEngineTest {
+  private static final int USERS = 20;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static List<Query.Flight> flights() {
+    List<Query.Flight> flights = new ArrayList<>();
+    // two direct flights on each of days 1 to 3, and a connection on day 1
+    for (int fid = 1; fid <= 6; fid++) {
+      flights.add(flight(fid, (fid + 1) / 2, "Seattle WA", "Boston MA", 3, 100 * fid));
+    }
+    flights.add(flight(7, 1, "Boston MA", "Miami FL", 1, 50));
+    return flights;
+  }
+
+  private static Query.Flight flight(int fid, int day, String origin, String dest, int capacity, int price) {
+    Query.Flight f = new Query.Flight();
+    f.fid = fid;
+    f.dayOfMonth = day;
+    f.carrierId = "AS";
+    f.flightNum = String.valueOf(fid);
+    f.originCity = origin;
+    f.destCity = dest;
+    f.time = 100 + fid;
+    f.capacity = capacity;
+    f.price = price;
+    return f;
+  }
+
+  @Test
+  public void followsTheTransactionRules() throws Exception {
+    try (ConnectionPool pool = new ConnectionPool(EmbeddedStorage.inMemoryUrl("enginetest"), 1, 16, 60_000, 1_000);
+         BookingEngine engine = BookingEngine.open(flights(), folder.getRoot().toPath().resolve("log"))) {
+      // the pool is never used: searches come from the catalog, the rest from the engine
+      Query query = new Query();
+      query.openConnection(pool);
+      query.setFlightCatalog(FlightCatalog.of(flights()));
+      query.setBookingEngine(engine);
+
+      assertEquals("Created user Alice\n", query.transaction_createCustomer("Alice", "pw", 250));
+      assertEquals("Failed to create user\n", query.transaction_createCustomer("alice", "pw", 10));
+      assertEquals("Failed to create user\n", query.transaction_createCustomer("bob", "pw", -1));
+      Session session = new Session();
+      assertEquals("Login failed\n", query.transaction_login(session, "alice", "wrong"));
+      assertEquals("Logged in as Alice\n", query.transaction_login(session, "alice", "pw"));
+
+      assertTrue(query.transaction_search(session, "Seattle WA", "Miami FL", false, 1, 5)
+              .startsWith("Itinerary 0: 2 flight(s), 208 minutes\n"));
+      assertEquals("Booked flight(s), reservation ID: 1\n", query.transaction_book(session, 0));
+      assertEquals(1, engine.booked(7));
+      assertEquals("You cannot book two flights in the same day\n", query.transaction_book(session, 0));
+      assertEquals("Paid reservation: 1 remaining balance: 100\n", query.transaction_pay(session, 1));
+      assertEquals("Cannot find unpaid reservation 1 under user: Alice\n", query.transaction_pay(session, 1));
+      assertTrue(query.transaction_reservations(session).startsWith("Reservation 1 paid: true:\nID: 1 Day: 1"));
+
+      // flight 7 has one seat
+      Session bob = new Session();
+      query.transaction_createCustomer("bob", "pw", 100);
+      query.transaction_login(bob, "bob", "pw");
+      query.transaction_search(bob, "Seattle WA", "Miami FL", false, 1, 5);
+      assertEquals("Booking failed\n", query.transaction_book(bob, 0));
+      assertEquals("Failed to cancel reservation 1\n", query.transaction_cancel(bob, 1));
+
+      assertEquals("Canceled reservation 1\n", query.transaction_cancel(session, 1));
+      assertEquals(250, engine.balance("alice"));
+      assertEquals(0, engine.booked(7));
+      assertEquals("Booked flight(s), reservation ID: 2\n", query.transaction_book(bob, 0));
+      assertEquals("User has only 100 in account but itinerary costs 150\n", query.transaction_pay(bob, 2));
+    }
+  }
+
+  @Test
+  public void concurrentBookingsNeverOverbook() throws Exception {
+    try (BookingEngine engine = BookingEngine.open(flights(), folder.getRoot().toPath().resolve("log"))) {
+      int users = 50;
+      for (int i = 0; i < users; i++) {
+        engine.createCustomer("user" + i, new byte[1], new byte[1], 1000);
+      }
+      ExecutorService pool = Executors.newFixedThreadPool(8);
+      List<Future<BatchedTransactions.Outcome>> outcomes = new ArrayList<>();
+      for (int i = 0; i < users; i++) {
+        String user = "user" + i;
+        outcomes.add(pool.submit(() -> engine.book(user, 1, -1)));
+      }
+      Set<Integer> rids = new HashSet<>();
+      for (Future<BatchedTransactions.Outcome> outcome : outcomes) {
+        BatchedTransactions.Outcome o = outcome.get();
+        if (o.status == BatchedTransactions.OK) {
+          assertTrue(rids.add(o.value));
+        } else {
+          assertEquals(BatchedTransactions.FULL, o.status);
+        }
+      }
+      pool.shutdown();
+      assertEquals(3, rids.size());
+      assertEquals(3, engine.booked(1));
+    }
+  }
+
+  @Test
+  public void restartsWhereItLeftOff() throws Exception {
+    Path log = folder.getRoot().toPath().resolve("log");
+    String before;
+    try (BookingEngine engine = BookingEngine.open(flights(), log)) {
+      workload(engine, 400, step -> { });
+      before = state(engine);
+      assertTrue(engine.revokeTokens("user0"));
+    }
+    try (BookingEngine engine = BookingEngine.open(flights(), log)) {
+      assertEquals(before, state(engine));
+      assertEquals(1, engine.tokenGeneration("user0"));
+      engine.compact();
+    }
+    try (BookingEngine engine = BookingEngine.open(flights(), log)) {
+      assertEquals(before, state(engine));
+      assertEquals(1, engine.tokenGeneration("user0"));
+      engine.clear();
+      assertEquals("", state(engine).replaceAll("(booked \\d+ 0;|balance -1;)", ""));
+    }
+    try (BookingEngine engine = BookingEngine.open(flights(), log)) {
+      assertEquals(-1, engine.balance("user0"));
+      // IDs start over after clear
+      engine.createCustomer("user0", new byte[1], new byte[1], 10);
+      assertEquals(1, engine.book("user0", 1, -1).value);
+    }
+  }
+
+  @Test
+  public void compactsTheLogWithoutChangingTheState() throws Exception {
+    Path log = folder.getRoot().toPath().resolve("log");
+    String expected;
+    int nextId;
+    try (BookingEngine engine = BookingEngine.open(flights(), folder.newFile().toPath())) {
+      workload(engine, 2000, step -> { });
+      expected = state(engine);
+      engine.createCustomer("last", new byte[1], new byte[1], 1000);
+      nextId = engine.book("last", 1, -1).value;
+    }
+    try (BookingEngine engine = BookingEngine.open(flights(), log, 4096)) {
+      workload(engine, 2000, step -> { });
+      assertEquals(expected, state(engine));
+      // the whole history would be far larger
+      assertTrue(String.valueOf(engine.logSize()), engine.logSize() < 2 * 4096);
+    }
+    assertFalse(Files.exists(log.resolveSibling("log.new")));
+    try (BookingEngine engine = BookingEngine.open(flights(), log)) {
+      assertEquals(expected, state(engine));
+      engine.compact();
+      assertEquals(expected, state(engine));
+      engine.createCustomer("last", new byte[1], new byte[1], 1000);
+      // IDs of reservations canceled before the compaction are not handed out again
+      assertEquals(nextId, engine.book("last", 1, -1).value);
+    }
+  }
+
+  @Test
+  public void recoversEveryAcknowledgedChangeAfterBeingKilled() throws Exception {
+    Path log = folder.getRoot().toPath().resolve("log");
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    Path out = folder.newFile("steps").toPath();
+    Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+            BookingEngineTest.class.getName(), log.toString()).redirectOutput(out.toFile()).start();
+    try {
+      // kill it mid-load
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+      while (acknowledged(out) < 300 && child.isAlive() && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+    } finally {
+      child.destroyForcibly();
+      child.waitFor();
+    }
+    int acknowledged = acknowledged(out);
+    assertTrue("the child acknowledged " + acknowledged + " steps", acknowledged >= 300);
+
+    String recovered;
+    try (BookingEngine engine = BookingEngine.open(flights(), log)) {
+      recovered = state(engine);
+    }
+    // the step after the last acknowledged one may or may not have reached the log
+    List<String> expected = new ArrayList<>();
+    for (int steps : new int[]{acknowledged + 1, acknowledged + 2}) {
+      try (BookingEngine engine = BookingEngine.open(flights(), folder.newFile().toPath())) {
+        workload(engine, steps, step -> { });
+        expected.add(state(engine));
+      }
+    }
+    assertTrue(recovered, expected.contains(recovered));
+  }
+
+  // The last step the child printed in full
+  private static int acknowledged(Path out) throws IOException {
+    String steps = new String(Files.readAllBytes(out), StandardCharsets.UTF_8);
+    int end = steps.lastIndexOf('\n');
+    return end < 0 ? -1 : Integer.parseInt(steps.substring(steps.lastIndexOf('\n', end - 1) + 1, end));
+  }
+
+  /**
+   * Runs the workload on the log file given as the argument until killed,
+   * printing the number of each step once it is acknowledged
+   */
+  public static void main(String[] args) throws IOException {
+    try (BookingEngine engine = BookingEngine.open(flights(), Paths.get(args[0]))) {
+      workload(engine, Integer.MAX_VALUE, step -> {
+        System.out.println(step);
+        System.out.flush();
+      });
+    }
+  }
+
+  // Creates the users, then books, pays and cancels at random with a fixed
+  // seed, so that the same number of steps always leaves the same state
+  private static void workload(BookingEngine engine, int steps, IntConsumer acknowledged) throws IOException {
+    Random random = new Random(42);
+    List<int[]> booked = new ArrayList<>();
+    for (int step = 0; step < steps; step++) {
+      if (step < USERS) {
+        engine.createCustomer("user" + step, new byte[]{(byte) step}, new byte[]{1}, 1000);
+      } else if (booked.isEmpty() || random.nextInt(3) == 0) {
+        int user = random.nextInt(USERS);
+        int fid1 = 1 + random.nextInt(6);
+        int fid2 = fid1 <= 2 && random.nextBoolean() ? 7 : -1;
+        BatchedTransactions.Outcome o = engine.book("user" + user, fid1, fid2);
+        if (o.status == BatchedTransactions.OK) {
+          booked.add(new int[]{user, o.value});
+        }
+      } else {
+        int[] reservation = booked.get(random.nextInt(booked.size()));
+        if (random.nextBoolean()) {
+          engine.pay("user" + reservation[0], reservation[1]);
+        } else if (engine.cancel("user" + reservation[0], reservation[1]).status == BatchedTransactions.OK) {
+          booked.remove(reservation);
+        }
+      }
+      acknowledged.accept(step);
+    }
+  }
+
+  private static String state(BookingEngine engine) {
+    StringBuilder sb = new StringBuilder();
+    for (Query.Flight f : flights()) {
+      sb.append("booked ").append(f.fid).append(' ').append(engine.booked(f.fid)).append(';');
+    }
+    for (int user = 0; user < USERS; user++) {
+      sb.append("balance ").append(engine.balance("user" + user)).append(';');
+      for (ReservationCache.Reservation r : engine.reservations("user" + user)) {
+        sb.append(r.rid).append(r.paid ? " paid " : " unpaid ").append(r.flight1.fid).append(' ')
+                .append(r.flight2 == null ? -1 : r.flight2.fid).append(';');
+      }
+    }
+    return sb.toString();
+  }
+}
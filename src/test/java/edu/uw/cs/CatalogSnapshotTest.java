@@ -0,0 +1,132 @@
+package edu.uw.cs;
+
+import org.junit.*;
+import org.junit.rules.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes and reads catalog snapshots, and rejects damaged or foreign ones
+ */
+public class CatalogSnapshotTest {
+  private static final CatalogSnapshot.Key KEY = new CatalogSnapshot.Key(50, 1234);
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static List<Query.Flight> flights() {
+    List<Query.Flight> flights = new ArrayList<>();
+    for (int fid = 1; fid <= 50; fid++) {
+      flights.add(FlightCatalogTest.flight(fid, 1 + fid % 3, fid % 2 == 0 ? "Seattle WA" : "Zürich ZH",
+          "Boston MA", 100 + fid));
+    }
+    flights.get(7).carrierId = null;
+    return flights;
+  }
+
+  @Test
+  public void readsWhatWasWritten() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("catalog");
+    List<Query.Flight> flights = flights();
+    CatalogSnapshot.write(flights, KEY, file);
+    List<Query.Flight> read = CatalogSnapshot.read(file);
+    assertEquals(flights.size(), read.size());
+    for (int i = 0; i < flights.size(); i++) {
+      assertEquals(flights.get(i).toString(), read.get(i).toString());
+    }
+    // dictionary strings are shared between flights
+    assertSame(read.get(1).originCity, read.get(3).originCity);
+    assertEquals(KEY, CatalogSnapshot.readKey(file));
+
+    CatalogSnapshot.write(Collections.emptyList(), KEY, file);
+    assertTrue(CatalogSnapshot.read(file).isEmpty());
+  }
+
+  @Test
+  public void rejectsDamagedAndForeignFiles() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("catalog");
+    CatalogSnapshot.write(flights(), KEY, file);
+    byte[] good = Files.readAllBytes(file);
+
+    assertRejected(file, good, 100, "checksum");
+    assertRejected(file, good, 7, "version");
+    assertRejected(file, good, 0, "magic");
+    Files.write(file, Arrays.copyOf(good, good.length - 1));
+    assertRejected(file, "length");
+  }
+
+  private static void assertRejected(Path file, byte[] good, int at, String reason) throws IOException {
+    byte[] bad = good.clone();
+    bad[at]++;
+    Files.write(file, bad);
+    assertRejected(file, reason);
+  }
+
+  private static void assertRejected(Path file, String reason) {
+    try {
+      CatalogSnapshot.read(file);
+      fail("accepted a file with a bad " + reason);
+    } catch (IOException expected) {
+      assertTrue(expected.getMessage(), expected.getMessage().contains(reason));
+    }
+  }
+
+  @Test
+  public void writesTheSnapshotOnFirstLoadAndReadsItAfter() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("catalog");
+    try (ConnectionPool pool = new ConnectionPool(EmbeddedStorage.inMemoryUrl("snapshottest"), 1, 16, 60_000,
+        1_000); ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement()) {
+      s.execute("DROP ALL OBJECTS");
+      s.execute(EmbeddedStorage.CREATE_FLIGHTS);
+      s.execute("INSERT INTO Flights VALUES (1, 3, 'AS', 24, 'Seattle WA', 'Boston MA', 0, 297, 14, 140), "
+          + "(2, 3, 'AS', 25, 'Seattle WA', 'Boston MA', 1, 310, 0, 150)");
+
+      FlightCatalog catalog = FlightCatalog.load(lease.connection(), file, Dialect.H2);
+      assertEquals(1, catalog.size());
+      assertTrue(Files.exists(file));
+
+      // any change to the flights makes it out of date, even one that keeps
+      // their number and highest fid
+      s.execute("UPDATE Flights SET price = 200 WHERE fid = 1");
+      String direct = "ID: 1 Day: 3 Carrier: AS Number: 24 Origin: Seattle WA Dest: Boston MA Duration: 297 "
+          + "Capacity: 14 Price: ";
+      assertEquals(direct + "200", FlightCatalog.load(lease.connection(), file, Dialect.H2)
+          .directFlights("Seattle WA", "Boston MA", 3, 5).get(0).toString());
+      assertEquals(direct + "200", CatalogSnapshot.read(file).get(0).toString());
+      s.execute("UPDATE Flights SET canceled = 1 - canceled");
+      assertEquals(310, FlightCatalog.load(lease.connection(), file, Dialect.H2)
+          .directFlights("Seattle WA", "Boston MA", 3, 5).get(0).time);
+      assertEquals(2, CatalogSnapshot.read(file).get(0).fid);
+      assertEquals(1, FlightCatalog.export(lease.connection(), file, Dialect.H2));
+
+      // added and removed flights make it out of date
+      s.execute("UPDATE Flights SET canceled = 0 WHERE fid = 1");
+      assertEquals(2, FlightCatalog.load(lease.connection(), file, Dialect.H2).size());
+      assertEquals(2, CatalogSnapshot.read(file).size());
+      s.execute("DELETE FROM Flights");
+      assertEquals(0, FlightCatalog.load(lease.connection(), file, Dialect.H2).size());
+      assertTrue(CatalogSnapshot.read(file).isEmpty());
+      s.execute("INSERT INTO Flights VALUES (1, 3, 'AS', 24, 'Seattle WA', 'Boston MA', 0, 297, 14, 140)");
+      assertEquals(1, FlightCatalog.load(lease.connection(), file, Dialect.H2).size());
+
+      // a damaged snapshot is replaced from the table
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+        channel.write(ByteBuffer.wrap(new byte[]{0x7f}), 30);
+      }
+      assertEquals(1, FlightCatalog.load(lease.connection(), file, Dialect.H2).size());
+      assertEquals(1, CatalogSnapshot.read(file).size());
+
+      // a snapshot that cannot be written does not keep the flights from being served
+      Path unwritable = folder.getRoot().toPath().resolve("missing").resolve("catalog");
+      assertEquals(1, FlightCatalog.load(lease.connection(), unwritable, Dialect.H2).size());
+      assertFalse(Files.exists(unwritable));
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the parser against the regex it replaced, and the answers to
+ * commands that never reach the database
+ */
+public class CommandTest {
+  // what FlightService used to split commands with
+  private static final Pattern TOKEN = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
+  private static List<String> regexTokens(String line) {
+    List<String> tokens = new ArrayList<>();
+    Matcher m = TOKEN.matcher(line);
+    while (m.find()) {
+      tokens.add(m.group(1) != null ? m.group(1) : m.group(2));
+    }
+    return tokens;
+  }
+
+  @Test
+  public void splitsLikeTheRegex() throws IOException {
+    List<String> lines = new ArrayList<>(Arrays.asList(
+        "", "   ", "quit", "  book   12  ", "search \"Seattle WA\" \"Boston MA\" 0 14 10",
+        "search \"\" \"a\"b c", "say \"unclosed quote", "ab\"cd ef\"", "\"a b\"\"c d\"x", "tab\there\r\nnew",
+        "login \"spaced user\" pw", "\"", "\"\"", "a \" b"));
+    try (DirectoryStream<Path> cases = Files.newDirectoryStream(Paths.get("cases"), "*.txt")) {
+      for (Path file : cases) {
+        lines.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+      }
+    }
+    Command command = new Command();
+    for (String line : lines) {
+      command.parse(line);
+      List<String> tokens = new ArrayList<>();
+      for (int i = 0; i < command.count(); i++) {
+        tokens.add(command.token(i));
+      }
+      assertEquals(line, regexTokens(line), tokens);
+      assertEquals(line, regexTokens(line), Arrays.asList(FlightService.tokenize(line)));
+    }
+  }
+
+  @Test
+  public void readsIntsLikeParseInt() {
+    Command command = new Command();
+    for (String token : new String[]{"0", "12", "-7", "+7", "007", "2147483647", "-2147483648", "2147483648",
+        "-2147483649", "99999999999", "", "-", "+", "1x", "x1", "1.5", "١٢"}) {
+      command.parse("pay \"" + token + "\"");
+      int value = command.intToken(1);
+      try {
+        assertEquals(token, Integer.parseInt(token), value);
+        assertFalse(token, command.isMalformed());
+      } catch (NumberFormatException e) {
+        assertTrue(token, command.isMalformed());
+      }
+    }
+  }
+
+  @Test
+  public void answersWithoutTheDatabase() {
+    // no pool: none of these commands reach the database
+    Query query = new Query();
+    Session session = new Session();
+    assertEquals("Please enter a command", FlightService.execute(query, session, "  "));
+    assertEquals("Error: unrecognized command 'fly'", FlightService.execute(query, session, "fly \"Seattle WA\""));
+    assertEquals("Error: unrecognized command 'Book'", FlightService.execute(query, session, "Book 1"));
+    assertEquals("Goodbye\n", FlightService.execute(query, session, "quit now"));
+    assertEquals("Error: Please provide an itinerary_id", FlightService.execute(query, session, "book"));
+    assertEquals("Error: Please provide a reservation_id", FlightService.execute(query, session, "pay 1 2"));
+
+    // malformed numbers get an answer instead of an exception
+    assertEquals("Failed to parse integer", FlightService.execute(query, session, "book one"));
+    assertEquals("Failed to parse integer", FlightService.execute(query, session, "pay 99999999999"));
+    assertEquals("Failed to parse integer", FlightService.execute(query, session, "cancel 1x"));
+    assertEquals("Failed to parse integer", FlightService.execute(query, session, "create alice pw lots"));
+    assertEquals("Failed to parse integer",
+        FlightService.execute(query, session, "search \"Seattle WA\" \"Boston MA\" 1 ten 5"));
+
+    // the flag is cleared for the next line
+    assertEquals("Cannot book reservations, not logged in\n", FlightService.execute(query, session, "book 0"));
+    assertEquals("Cannot pay, not logged in\n", FlightService.execute(query, session, "pay +3"));
+    assertEquals("Cannot cancel reservations, not logged in\n", FlightService.execute(query, session, "cancel 3"));
+    assertEquals("Cannot view reservations, not logged in\n",
+        FlightService.execute(query, session, "reservations"));
+  }
+
+  @Test
+  public void namesCommandsForMetrics() {
+    Command command = new Command();
+    assertEquals("search", command.parse("search a b 1 2 3").type().keyword);
+    assertTrue(command.type().isReadOnly());
+    assertEquals("other", command.parse("").type().keyword);
+    assertEquals("other", command.parse("searches").type().keyword);
+    assertEquals(Command.Type.RESERVATIONS, command.parse("reservations").type());
+    assertFalse(command.parse("book 1").type().isReadOnly());
+    assertTrue(command.parse("search \"Seattle WA\" \"Boston MA\" 1 14 10").direct());
+    assertFalse(command.parse("search \"Seattle WA\" \"Boston MA\" 10 14 10").direct());
+  }
+}
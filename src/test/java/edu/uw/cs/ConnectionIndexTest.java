@@ -0,0 +1,103 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Compares the connection index against a brute-force version of the
+ * GET_INDIRECT_FLIGHTS self-join
+ */
+public class ConnectionIndexTest {
+  private static final String[] CITIES = {"Seattle WA", "Boston MA", "Chicago IL", "Denver CO", "Austin TX"};
+
+  private static List<Query.Flight> randomFlights(Random random, int n) {
+    List<Query.Flight> flights = new ArrayList<>();
+    for (int fid = 1; fid <= n; fid++) {
+      String origin = CITIES[random.nextInt(CITIES.length)];
+      String dest = CITIES[random.nextInt(CITIES.length)];
+      // few distinct durations so that ties on total time are common
+      flights.add(FlightCatalogTest.flight(fid, 1 + random.nextInt(3), origin, dest, 10 * (1 + random.nextInt(6))));
+    }
+    return flights;
+  }
+
+  private static List<String> join(List<Query.Flight> flights, String origin, String dest, int day, int limit) {
+    List<Query.Flight[]> pairs = new ArrayList<>();
+    for (Query.Flight f1 : flights) {
+      for (Query.Flight f2 : flights) {
+        if (f1.originCity.equals(origin) && f1.destCity.equals(f2.originCity) && f2.destCity.equals(dest)
+            && f1.dayOfMonth == day && f2.dayOfMonth == day) {
+          pairs.add(new Query.Flight[]{f1, f2});
+        }
+      }
+    }
+    pairs.sort(Comparator.comparingInt((Query.Flight[] p) -> p[0].time + p[1].time)
+        .thenComparingInt(p -> p[0].fid).thenComparingInt(p -> p[1].fid));
+    return render(pairs.subList(0, Math.min(limit, pairs.size())));
+  }
+
+  private static List<String> render(List<Query.Flight[]> pairs) {
+    List<String> out = new ArrayList<>();
+    for (Query.Flight[] p : pairs) {
+      out.add(p[0].fid + "," + p[1].fid);
+    }
+    return out;
+  }
+
+  @Test
+  public void matchesSelfJoin() {
+    Random random = new Random(42);
+    List<Query.Flight> flights = randomFlights(random, 400);
+    ConnectionIndex index = FlightCatalog.of(flights).connections();
+    for (String origin : CITIES) {
+      for (String dest : CITIES) {
+        for (int day = 0; day <= 4; day++) {
+          for (int limit : new int[]{0, 1, 7, 50, 100000}) {
+            assertEquals(origin + " -> " + dest + " day " + day + " limit " + limit,
+                join(flights, origin, dest, day, limit),
+                render(index.indirectFlights(origin, dest, day, limit)));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void unknownCitiesHaveNoConnections() {
+    ConnectionIndex index = FlightCatalog.of(randomFlights(new Random(1), 20)).connections();
+    assertEquals(0, index.indirectFlights("Nowhere XX", "Boston MA", 1, 10).size());
+    assertEquals(0, index.indirectFlights("Seattle WA", "Nowhere XX", 1, 10).size());
+  }
+
+  @Test
+  public void streamedSearchesMatchBufferedSearches() throws Exception {
+    Query query = new Query();
+    query.setFlightCatalog(FlightCatalog.of(randomFlights(new Random(7), 400)));
+    for (String origin : CITIES) {
+      for (String dest : CITIES) {
+        for (int n : new int[]{1, 3, 40, 100000}) {
+          Session buffered = new Session();
+          Session streamed = new Session();
+          StringWriter out = new StringWriter();
+          query.transaction_search(streamed, origin, dest, false, 2, n, out);
+          assertEquals(origin + " -> " + dest + " n " + n,
+              query.transaction_search(buffered, origin, dest, false, 2, n), out.toString());
+          // the streamed session keeps just enough to book the same itineraries
+          for (int i = 0; i < buffered.itineraries.length; i++) {
+            Query.ItineraryItem expected = buffered.itineraries[i];
+            Query.ItineraryItem handle = streamed.itinerary(i);
+            assertEquals(expected.flight1.fid, handle.flight1.fid);
+            assertEquals(expected.flight2 == null ? -1 : expected.flight2.fid,
+                handle.flight2 == null ? -1 : handle.flight2.fid);
+          }
+          assertNull(streamed.itinerary(buffered.itineraries.length));
+        }
+      }
+    }
+  }
+}
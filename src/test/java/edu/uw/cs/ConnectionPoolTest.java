@@ -0,0 +1,78 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.sql.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exercises the connection pool against an in-memory H2 database
+ */
+public class ConnectionPoolTest {
+  private static final String URL = "jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1";
+
+  @Test
+  public void reusesConnectionsAndStatements() throws Exception {
+    try (ConnectionPool pool = new ConnectionPool(URL, 2, 8, 60_000, 1_000)) {
+      Connection first;
+      PreparedStatement statement;
+      try (ConnectionPool.Lease lease = pool.lease()) {
+        first = lease.connection();
+        statement = lease.prepare("SELECT 1");
+        assertSame(statement, lease.prepare("SELECT 1"));
+      }
+      try (ConnectionPool.Lease lease = pool.lease()) {
+        assertSame(first, lease.connection());
+        assertSame(statement, lease.prepare("SELECT 1"));
+      }
+      assertEquals(1, pool.size());
+    }
+  }
+
+  @Test
+  public void blocksWhenFullAndTimesOut() throws Exception {
+    try (ConnectionPool pool = new ConnectionPool(URL, 1, 8, 60_000, 100)) {
+      try (ConnectionPool.Lease lease = pool.lease()) {
+        assertNotNull(lease.connection());
+        try {
+          pool.lease();
+          fail("pool should be exhausted");
+        } catch (SQLException e) {
+          assertEquals(1, pool.size());
+        }
+      }
+      pool.lease().close();
+    }
+  }
+
+  @Test
+  public void rollsBackUnfinishedTransactions() throws Exception {
+    try (ConnectionPool pool = new ConnectionPool(URL, 1, 8, 60_000, 1_000)) {
+      try (ConnectionPool.Lease lease = pool.lease()) {
+        lease.connection().createStatement().execute("CREATE TABLE IF NOT EXISTS T(x INT)");
+        lease.connection().setAutoCommit(false);
+        lease.connection().createStatement().execute("INSERT INTO T VALUES (1)");
+      }
+      try (ConnectionPool.Lease lease = pool.lease()) {
+        assertTrue(lease.connection().getAutoCommit());
+        ResultSet rs = lease.connection().createStatement().executeQuery("SELECT COUNT(*) FROM T");
+        rs.next();
+        assertEquals(0, rs.getInt(1));
+      }
+    }
+  }
+
+  @Test
+  public void evictsIdleConnections() throws Exception {
+    try (ConnectionPool pool = new ConnectionPool(URL, 2, 8, 50, 1_000)) {
+      pool.lease().close();
+      assertEquals(1, pool.size());
+      long deadline = System.currentTimeMillis() + 5_000;
+      while (pool.size() > 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+      assertEquals(0, pool.size());
+    }
+  }
+}
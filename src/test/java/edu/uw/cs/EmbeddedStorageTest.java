@@ -0,0 +1,220 @@
+package edu.uw.cs;
+
+import org.junit.*;
+import org.junit.rules.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sets up the embedded database and runs transactions on it through the
+ * configuration settings
+ */
+public class EmbeddedStorageTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void createsTablesOnceAndLoadsFlights() throws Exception {
+    Path csv = folder.newFile("flights.csv").toPath();
+    Files.write(csv, Arrays.asList(
+        "fid,month_id,day_of_month,carrier_id,flight_num,origin_city,dest_city,canceled,actual_time,capacity,price",
+        "1,7,3,AS,24,Seattle WA,Boston MA,0,297,14,140",
+        "2,7,3,AS,25,Boston MA,Seattle WA,0,310,0,150"), StandardCharsets.UTF_8);
+    Properties configProps = new Properties();
+    configProps.setProperty("hw1.storage", "embedded");
+    configProps.setProperty("hw1.embedded_path", folder.getRoot().toPath().resolve("db").toString());
+    configProps.setProperty("hw1.embedded_flights", csv.toString());
+
+    Storage storage = Storage.fromConfig(configProps);
+    assertEquals(Dialect.H2, storage.dialect());
+    String url = storage.connectionUrl(configProps);
+    try (ConnectionPool pool = new ConnectionPool(url, 2, 16, 60_000, 1_000)) {
+      storage.initialize(pool, configProps);
+      // a second start finds the tables and leaves them alone
+      storage.initialize(pool, configProps);
+
+      QueryFactory factory = new QueryFactory(pool, false);
+      factory.setDialect(storage.dialect());
+      Query query = factory.query();
+      Session session = new Session();
+      assertEquals("Created user alice\n", query.transaction_createCustomer("alice", "pw", 1000));
+      assertEquals("Logged in as alice\n", query.transaction_login(session, "alice", "pw"));
+      assertEquals("Itinerary 0: 1 flight(s), 297 minutes\n"
+              + "ID: 1 Day: 3 Carrier: AS Number: 24 Origin: Seattle WA Dest: Boston MA Duration: 297 "
+              + "Capacity: 14 Price: 140\n",
+          query.transaction_search(session, "Seattle WA", "Boston MA", true, 3, 5));
+      assertEquals("Booked flight(s), reservation ID: 1\n", query.transaction_book(session, 0));
+
+      try (ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement();
+           ResultSet results = s.executeQuery("SELECT COUNT(*) FROM ReservationID")) {
+        results.next();
+        assertEquals(1, results.getInt(1));
+      }
+    }
+  }
+
+  @Test
+  public void opensASingleQueryOnTheConfiguredStorage() throws Exception {
+    Path csv = folder.newFile("flights.csv").toPath();
+    Files.write(csv, Arrays.asList(
+        "fid,month_id,day_of_month,carrier_id,flight_num,origin_city,dest_city,canceled,actual_time,capacity,price",
+        "1,7,3,AS,24,Seattle WA,Boston MA,0,297,14,140"), StandardCharsets.UTF_8);
+    Properties configProps = new Properties();
+    configProps.setProperty("hw1.storage", "embedded");
+    configProps.setProperty("hw1.embedded_path", folder.getRoot().toPath().resolve("db").toString());
+    configProps.setProperty("hw1.embedded_flights", csv.toString());
+    configProps.setProperty("hw1.metrics", "commands");
+
+    Query query = new Query();
+    // the CLI's path: prepares the statements in the storage's dialect
+    query.openConnection(configProps);
+    try {
+      assertNotNull(query.metrics());
+      assertEquals("Created user alice\n", query.transaction_createCustomer("alice", "pw", 1000));
+      assertEquals("Logged in as alice\n", query.transaction_login("alice", "pw"));
+      query.transaction_search("Seattle WA", "Boston MA", true, 3, 5);
+      assertEquals("Booked flight(s), reservation ID: 1\n", query.transaction_book(0));
+    } finally {
+      query.closeConnection();
+    }
+  }
+
+  @Test
+  public void keepsRevokedTokensRevokedAfterARestart() throws Exception {
+    Path csv = folder.newFile("flights.csv").toPath();
+    Files.write(csv, Collections.singletonList(
+        "fid,month_id,day_of_month,carrier_id,flight_num,origin_city,dest_city,canceled,actual_time,capacity,price"),
+        StandardCharsets.UTF_8);
+    Properties configProps = new Properties();
+    configProps.setProperty("hw1.storage", "embedded");
+    configProps.setProperty("hw1.embedded_path", folder.getRoot().toPath().resolve("db").toString());
+    configProps.setProperty("hw1.embedded_flights", csv.toString());
+    Storage storage = Storage.fromConfig(configProps);
+    byte[] secret = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    try (ConnectionPool pool = new ConnectionPool(storage.connectionUrl(configProps), 2, 16, 60_000, 1_000)) {
+      storage.initialize(pool, configProps);
+      QueryFactory beforeFactory = new QueryFactory(pool, false);
+      beforeFactory.setDialect(storage.dialect());
+      beforeFactory.setSessionTokens(new SessionTokens(secret, 60_000, 60_000));
+      Query before = beforeFactory.newQuery();
+      assertEquals("Created user alice\n", before.transaction_createCustomer("alice", "pw", 1000));
+      String login = before.transaction_login("alice", "pw");
+      String token = login.substring(login.indexOf("Session token: ") + 15, login.length() - 1);
+      assertEquals("Revoked session tokens for alice\n", before.transaction_revokeTokens());
+
+      // a restarted process, or another one with the same secret, starts with no generations
+      QueryFactory afterFactory = new QueryFactory(pool, false);
+      afterFactory.setDialect(storage.dialect());
+      afterFactory.setSessionTokens(new SessionTokens(secret, 60_000, 60_000));
+      Query after = afterFactory.newQuery();
+      Session session = new Session();
+      assertEquals("Resume failed\n", after.transaction_resume(session, token));
+      login = after.transaction_login(session, "alice", "pw");
+      token = login.substring(login.indexOf("Session token: ") + 15, login.length() - 1);
+      assertEquals("Logged in as alice\n", before.transaction_resume(new Session(), token));
+    }
+  }
+
+  @Test
+  public void streamsLongSearchesWithoutHoldingAConnection() throws Exception {
+    // one connection: if the search kept it while writing, the writer could not lease it
+    try (ConnectionPool pool = new ConnectionPool(EmbeddedStorage.inMemoryUrl("streamed"), 1, 16, 60_000, 500)) {
+      try (ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement()) {
+        s.execute(EmbeddedStorage.CREATE_FLIGHTS);
+        int fid = 1;
+        // 3 cities with 20 flights in and 20 out make 1200 one-hop itineraries, more than a page
+        for (int hub = 0; hub < 3; hub++) {
+          for (int i = 0; i < 20; i++) {
+            s.execute(insert(fid++, "Seattle WA", "Hub " + hub, 100 + i * 3));
+            s.execute(insert(fid++, "Hub " + hub, "Boston MA", 200 + i * 7 + hub));
+          }
+        }
+        s.execute(insert(fid++, "Seattle WA", "Boston MA", 250));
+        s.execute(insert(fid, "Seattle WA", "Boston MA", 400));
+      }
+
+      QueryFactory factory = new QueryFactory(pool, false);
+      factory.setDialect(Dialect.H2);
+      Query query = factory.query();
+      String expected = query.transaction_search(new Session(), "Seattle WA", "Boston MA", false, 3, 1500);
+      StringWriter streamed = new StringWriter() {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+          try {
+            pool.lease().close();
+          } catch (SQLException e) {
+            throw new AssertionError("the search holds the connection while writing", e);
+          }
+          super.write(cbuf, off, len);
+        }
+      };
+      query.transaction_search(new Session(), "Seattle WA", "Boston MA", false, 3, 1500, streamed);
+      assertEquals(1202, expected.split("Itinerary ").length - 1);
+      assertEquals(expected, streamed.toString());
+    }
+  }
+
+  @Test
+  public void dropsAReservationIdWhoseCommitFailed() throws Exception {
+    try (ConnectionPool pool = new ConnectionPool(EmbeddedStorage.inMemoryUrl("commitfails"), 2, 16, 60_000, 500)) {
+      new EmbeddedStorage().initialize(pool, new Properties());
+      try (ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement()) {
+        s.execute(insert(1, "Seattle WA", "Boston MA", 100));
+        s.execute(insert(2, "Seattle WA", "Boston MA", 200));
+        s.execute("INSERT INTO Flights VALUES (3, 4, 'AS', 3, 'Seattle WA', 'Boston MA', 0, 300, 10, 100)");
+      }
+      QueryFactory factory = new QueryFactory(pool, false);
+      factory.setDialect(Dialect.H2);
+      factory.setReservationIdAllocator(new ReservationIdAllocator(pool, 10));
+      Query query = factory.query();
+      Session session = new Session();
+      query.transaction_createCustomer(session, "alice", "pw", 1000);
+      query.transaction_login(session, "alice", "pw");
+
+      query.transaction_search(session, "Seattle WA", "Boston MA", true, 3, 5);
+      // a failed commit may or may not have taken effect; here it did not, but the ID cannot tell
+      query.setDialect(new Dialect() {
+        @Override
+        public String commit() {
+          return "COMMIT BROKEN;";
+        }
+      });
+      assertEquals("Booking failed\n", query.transaction_book(session, 0));
+
+      query.setDialect(Dialect.H2);
+      query.transaction_search(session, "Seattle WA", "Boston MA", true, 3, 5);
+      assertEquals("Booked flight(s), reservation ID: 2\n", query.transaction_book(session, 0));
+      query.transaction_search(session, "Seattle WA", "Boston MA", true, 4, 5);
+      assertEquals("Booked flight(s), reservation ID: 3\n", query.transaction_book(session, 0));
+    }
+  }
+
+  private static String insert(int fid, String origin, String dest, int time) {
+    return "INSERT INTO Flights VALUES (" + fid + ", 3, 'AS', " + fid + ", '" + origin + "', '" + dest + "', 0, "
+        + time + ", 10, 100)";
+  }
+
+  @Test
+  public void rejectsWhatTheDialectCannotDo() {
+    Properties configProps = new Properties();
+    configProps.setProperty("hw1.storage", "embedded");
+    configProps.setProperty("hw1.batched_transactions", "true");
+    try {
+      Storage.fromConfig(configProps);
+      fail("batched transactions need T-SQL");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      Storage.named("oracle");
+      fail("no such storage");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(Dialect.SQL_SERVER, Storage.fromConfig(new Properties()).dialect());
+  }
+}
@@ -0,0 +1,85 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the in-memory catalog returns flights in GET_DIRECT_FLIGHTS order
+ */
+public class FlightCatalogTest {
+
+  static Query.Flight flight(int fid, int day, String origin, String dest, int time) {
+    Query.Flight f = new Query.Flight();
+    f.fid = fid;
+    f.dayOfMonth = day;
+    f.carrierId = "AS";
+    f.flightNum = String.valueOf(fid % 1000);
+    f.originCity = origin;
+    f.destCity = dest;
+    f.time = time;
+    f.capacity = 10;
+    f.price = 100 + fid % 50;
+    return f;
+  }
+
+  @Test
+  public void bucketsAreSortedByTimeThenFid() {
+    FlightCatalog catalog = FlightCatalog.of(Arrays.asList(
+        flight(5, 1, "Seattle WA", "Boston MA", 300),
+        flight(3, 1, "Seattle WA", "Boston MA", 297),
+        flight(4, 1, "Seattle WA", "Boston MA", 297),
+        flight(1, 2, "Seattle WA", "Boston MA", 100),
+        flight(2, 1, "Boston MA", "Seattle WA", 100)));
+
+    List<Query.Flight> flights = catalog.directFlights("Seattle WA", "Boston MA", 1, 10);
+    assertEquals(3, flights.size());
+    assertEquals(3, flights.get(0).fid);
+    assertEquals(4, flights.get(1).fid);
+    assertEquals(5, flights.get(2).fid);
+    assertEquals(2, catalog.directFlights("Seattle WA", "Boston MA", 1, 2).size());
+    assertEquals(5, catalog.size());
+  }
+
+  @Test
+  public void citiesMatchIgnoringCaseLikeTheDatabase() {
+    FlightCatalog catalog = FlightCatalog.of(Arrays.asList(
+        flight(1, 1, "Seattle WA", "Chicago IL", 100),
+        flight(2, 1, "CHICAGO IL", "Boston MA", 100),
+        flight(3, 1, "seattle wa", "Boston MA", 400),
+        flight(4, 1, "Seattle WA", "boston ma", 300)));
+
+    List<Query.Flight> direct = catalog.directFlights("seattle WA", "BOSTON MA", 1, 10);
+    assertEquals(2, direct.size());
+    assertEquals(4, direct.get(0).fid);
+    assertEquals(3, direct.get(1).fid);
+    // flights keep the cities as they were stored
+    assertEquals("boston ma", direct.get(0).destCity);
+
+    List<Query.Flight[]> indirect = catalog.connections().indirectFlights("SEATTLE wa", "Boston ma", 1, 10);
+    assertEquals(1, indirect.size());
+    assertEquals(1, indirect.get(0)[0].fid);
+    assertEquals(2, indirect.get(0)[1].fid);
+  }
+
+  @Test
+  public void missingRoutesAreEmpty() {
+    FlightCatalog catalog = FlightCatalog.of(Collections.singletonList(flight(1, 3, "Seattle WA", "Boston MA", 10)));
+    assertEquals(0, catalog.directFlights("Boston MA", "Seattle WA", 3, 5).size());
+    assertEquals(0, catalog.directFlights("Seattle WA", "Boston MA", 31, 5).size());
+    assertEquals(0, catalog.directFlights("Seattle WA", "Boston MA", 3, 0).size());
+  }
+
+  @Test
+  public void flightsRenderLikeTheDatabasePath() {
+    Query.Flight f = flight(60454, 1, "Seattle WA", "Boston MA", 297);
+    f.flightNum = "24";
+    f.capacity = 14;
+    f.price = 140;
+    FlightCatalog catalog = FlightCatalog.of(Collections.singletonList(f));
+    assertEquals("ID: 60454 Day: 1 Carrier: AS Number: 24 Origin: Seattle WA Dest: Boston MA Duration: 297 "
+        + "Capacity: 14 Price: 140", catalog.directFlights("Seattle WA", "Boston MA", 1, 1).get(0).toString());
+  }
+}
@@ -0,0 +1,266 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the network server with local socket clients. Searches are served from
+ * an in-memory catalog and the other commands used here fail before touching
+ * the database, so no server is needed.
+ */
+public class FlightServerTest {
+  private static final String SEARCH = "search \"Seattle WA\" \"Boston MA\" 1 1 2\n";
+  private static final String SEARCH_RESULT =
+      "Itinerary 0: 1 flight(s), 297 minutes\n"
+          + "ID: 3 Day: 1 Carrier: AS Number: 3 Origin: Seattle WA Dest: Boston MA Duration: 297 Capacity: 10 Price: 103\n"
+          + "Itinerary 1: 1 flight(s), 300 minutes\n"
+          + "ID: 5 Day: 1 Carrier: AS Number: 5 Origin: Seattle WA Dest: Boston MA Duration: 300 Capacity: 10 Price: 105\n";
+
+  private ConnectionPool pool;
+  private FlightServer server;
+
+  @Before
+  public void startServer() throws Exception {
+    pool = new ConnectionPool("jdbc:h2:mem:servertest", 2, 8, 60_000, 1_000);
+    Query query = new Query();
+    query.openConnection(pool);
+    query.setFlightCatalog(FlightCatalog.of(Arrays.asList(
+        FlightCatalogTest.flight(5, 1, "Seattle WA", "Boston MA", 300),
+        FlightCatalogTest.flight(3, 1, "Seattle WA", "Boston MA", 297))));
+    server = new FlightServer(query, 0, 4, 1024);
+    server.start();
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    server.shutdown(10, TimeUnit.SECONDS);
+    pool.close();
+  }
+
+  /**
+   * Sends everything at once and reads until the server closes the connection
+   */
+  private String converse(String input) throws IOException {
+    try (Socket socket = new Socket("localhost", server.port())) {
+      socket.setSoTimeout(30_000);
+      socket.getOutputStream().write(input.getBytes(StandardCharsets.UTF_8));
+      socket.getOutputStream().flush();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      InputStream in = socket.getInputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, n);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  public void answersPipelinedCommandsInOrder() throws Exception {
+    String input = SEARCH + "book 0\r\nreservations\nfly away\n" + SEARCH + "quit\nbook 1\n";
+    String expected = SEARCH_RESULT + "Cannot book reservations, not logged in\n"
+        + "Cannot view reservations, not logged in\n" + "Error: unrecognized command 'fly'"
+        + SEARCH_RESULT + "Goodbye\n";
+    assertEquals(expected, converse(input));
+  }
+
+  @Test
+  public void rejectsOverlongLines() throws Exception {
+    char[] padding = new char[FlightServer.MAX_LINE_LENGTH];
+    Arrays.fill(padding, ' ');
+    // cut off at the limit, the overlong line would still run as "book 0"
+    String input = "book 0" + new String(padding) + "1\n" + new String(padding, 0, 100) + SEARCH + "quit\n";
+    assertEquals("Error: command is longer than " + FlightServer.MAX_LINE_LENGTH + " bytes" + SEARCH_RESULT
+        + "Goodbye\n", converse(input));
+  }
+
+  @Test
+  public void runsCommandsOnVirtualThreads() throws Exception {
+    Assume.assumeTrue(VirtualThreads.isSupported());
+    server.shutdown(10, TimeUnit.SECONDS);
+    Query query = new Query();
+    query.openConnection(pool);
+    query.setFlightCatalog(FlightCatalog.of(Collections.singletonList(
+        FlightCatalogTest.flight(3, 1, "Seattle WA", "Boston MA", 297))));
+    server = new FlightServer(query, 0, VirtualThreads.newThreadPerTaskExecutor(), 1024);
+    server.start();
+    assertEquals("Itinerary 0: 1 flight(s), 297 minutes\n"
+        + "ID: 3 Day: 1 Carrier: AS Number: 3 Origin: Seattle WA Dest: Boston MA Duration: 297 Capacity: 10 Price: 103\n"
+        + "Goodbye\n", converse(SEARCH + "quit\n"));
+  }
+
+  @Test
+  public void virtualThreadSettingWorksOnAnyRuntime() throws Exception {
+    // falls back to platform workers where virtual threads are missing
+    server.shutdown(10, TimeUnit.SECONDS);
+    Query query = new Query();
+    query.openConnection(pool);
+    query.setFlightCatalog(FlightCatalog.of(Collections.singletonList(
+        FlightCatalogTest.flight(3, 1, "Seattle WA", "Boston MA", 297))));
+    Properties configProps = new Properties();
+    configProps.setProperty("hw1.server_port", "0");
+    configProps.setProperty("hw1.server_threads", "virtual");
+    server = FlightServer.fromConfig(query, configProps);
+    server.start();
+    assertEquals("Goodbye\n", converse("quit\n"));
+  }
+
+  @Test
+  public void hidesUnexpectedErrorsFromClients() throws Exception {
+    server.shutdown(10, TimeUnit.SECONDS);
+    Query query = new Query() {
+      @Override
+      public String transaction_search(Session session, String originCity, String destinationCity,
+                                       boolean directFlight, int dayOfMonth, int numberOfItineraries) {
+        throw new IllegalStateException("jdbc:sqlserver://db;password=secret");
+      }
+    };
+    query.openConnection(pool);
+    server = new FlightServer(query, 0, 4, 1024);
+    server.start();
+    assertEquals(FlightServer.INTERNAL_ERROR + "Goodbye\n", converse(SEARCH + "quit\n"));
+  }
+
+  @Test
+  public void servesManyConcurrentClients() throws Exception {
+    int clients = 200;
+    StringBuilder input = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 20; i++) {
+      input.append(SEARCH).append("cancel ").append(i).append('\n');
+      expected.append(SEARCH_RESULT).append("Cannot cancel reservations, not logged in\n");
+    }
+    input.append("quit\n");
+    expected.append("Goodbye\n");
+
+    ExecutorService pool = Executors.newFixedThreadPool(50);
+    try {
+      List<Future<String>> outputs = new ArrayList<>();
+      for (int i = 0; i < clients; i++) {
+        outputs.add(pool.submit(() -> converse(input.toString())));
+      }
+      for (Future<String> output : outputs) {
+        assertEquals(expected.toString(), output.get(60, TimeUnit.SECONDS));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void streamsLargeSearchesInChunks() throws Exception {
+    server.shutdown(10, TimeUnit.SECONDS);
+    List<Query.Flight> flights = new ArrayList<>();
+    for (int fid = 1; fid <= 2000; fid++) {
+      flights.add(FlightCatalogTest.flight(fid, 1, "Seattle WA", "Boston MA", fid % 97));
+    }
+    Query query = new Query();
+    query.openConnection(pool);
+    query.setFlightCatalog(FlightCatalog.of(flights));
+    String large = "search \"Seattle WA\" \"Boston MA\" 1 1 2000\n";
+    String small = "search \"Seattle WA\" \"Boston MA\" 1 1 2\n";
+    Session session = new Session();
+    String expected = FlightService.execute(query, session, large) + FlightService.execute(query, session, small)
+        + "Goodbye\n";
+    assertTrue(expected.length() > 100_000);
+
+    query.setSearchStreamThreshold(100);
+    server = new FlightServer(query, 0, 4, 1024);
+    server.start();
+    assertEquals(expected, converse(large + small + "quit\n"));
+  }
+
+  @Test
+  public void shutdownClosesIdleConnections() throws Exception {
+    try (Socket socket = new Socket("localhost", server.port())) {
+      socket.setSoTimeout(30_000);
+      socket.getOutputStream().write(SEARCH.getBytes(StandardCharsets.UTF_8));
+      BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+          StandardCharsets.UTF_8));
+      assertEquals("Itinerary 0: 1 flight(s), 297 minutes", reader.readLine());
+
+      int port = server.port();
+      server.shutdown(10, TimeUnit.SECONDS);
+      // the rest of the response was flushed before the connection was closed
+      assertEquals(3, countLines(reader));
+      try {
+        new Socket("localhost", port).close();
+        fail("server should no longer accept connections");
+      } catch (ConnectException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void shutdownAnswersCommandsThatDidNotRun() throws Exception {
+    server.shutdown(10, TimeUnit.SECONDS);
+    CountDownLatch running = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Query query = new Query() {
+      @Override
+      public String transaction_search(Session session, String originCity, String destinationCity,
+                                       boolean directFlight, int dayOfMonth, int numberOfItineraries) {
+        running.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        return super.transaction_search(session, originCity, destinationCity, directFlight, dayOfMonth,
+            numberOfItineraries);
+      }
+    };
+    query.openConnection(pool);
+    query.setFlightCatalog(FlightCatalog.of(Arrays.asList(
+        FlightCatalogTest.flight(5, 1, "Seattle WA", "Boston MA", 300),
+        FlightCatalogTest.flight(3, 1, "Seattle WA", "Boston MA", 297))));
+    server = new FlightServer(query, 0, 4, 1024);
+    server.start();
+    int port = server.port();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<String> output = executor.submit(() -> converse(SEARCH + SEARCH + "quit\n"));
+      assertTrue(running.await(30, TimeUnit.SECONDS));
+      Thread stopper = new Thread(() -> {
+        try {
+          server.shutdown(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+      });
+      stopper.start();
+      // the server socket is closed once the shutdown has begun
+      while (true) {
+        try {
+          new Socket("localhost", port).close();
+          Thread.sleep(10);
+        } catch (ConnectException e) {
+          break;
+        }
+      }
+      release.countDown();
+      assertEquals(SEARCH_RESULT + FlightServer.SHUTTING_DOWN + FlightServer.SHUTTING_DOWN,
+          output.get(30, TimeUnit.SECONDS));
+      stopper.join();
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  private static int countLines(BufferedReader reader) throws IOException {
+    int lines = 0;
+    while (reader.readLine() != null) {
+      lines++;
+    }
+    return lines;
+  }
+}
@@ -25,6 +25,8 @@ public class FlightServiceTest {
   private static final int RESPONSE_TIME = 60;
   /** Thread pool used to run different users */
   private static ExecutorService pool;
+  /** Hands out sessions that share pooled database connections */
+  private static QueryFactory queries;
   /** Folder name and path that contains the test cases */
   private static String casesFolder;
 
@@ -40,13 +42,13 @@ public class FlightServiceTest {
    */
   static class User implements Callable<String> {
     private Query q;
+    private Session session;
     private List<String> cmds; // commands that this user will execute
     private List<String> results; // the expected results from those commands
 
     public User(List<String> cmds, List<String> results) throws IOException, SQLException {
-      this.q = new Query();
-      q.openConnection();
-      q.prepareStatements();
+      this.q = queries.query();
+      this.session = new Session();
       this.cmds = cmds;
       this.results = results;
     }
@@ -59,14 +61,14 @@ public class FlightServiceTest {
     public String call() {
       StringBuffer sb = new StringBuffer();
       for (String cmd : cmds) {
-        sb.append(FlightService.execute(q, cmd));
+        sb.append(FlightService.execute(q, session, cmd));
       }
 
       return sb.toString();
     }
 
     public void shutdown() throws Exception {
-      this.q.closeConnection();
+      // the session holds no connection; the shared pool is closed in teardown
     }
   }
 
@@ -155,9 +157,19 @@ public class FlightServiceTest {
    * Creates the thread pool to execute test cases with multiple users.
    */
   @BeforeClass
-  public static void setup() {
+  public static void setup() throws IOException, SQLException {
     System.out.println("running setup");
     pool = Executors.newFixedThreadPool(MAX_USERS);
+    queries = QueryFactory.fromConfig();
+  }
+
+  /**
+   * Closes the pooled database connections
+   */
+  @AfterClass
+  public static void teardown() {
+    pool.shutdown();
+    queries.close();
   }
 
   /** A file that will be parsed as a test case scenario */
@@ -187,11 +199,7 @@ public class FlightServiceTest {
   @Before
   public void clearDB() {
     try {
-      Query q = new Query();
-      q.openConnection();
-      q.prepareStatements();
-      q.clearTables();
-      q.closeConnection();
+      queries.query().clearTables();
     } catch (Exception e) {
       e.printStackTrace();
     }
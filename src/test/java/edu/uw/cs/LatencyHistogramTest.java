@@ -0,0 +1,44 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks bucket boundaries and percentiles of the latency histogram
+ */
+public class LatencyHistogramTest {
+
+  @Test
+  public void bucketsCoverEveryValueWithinTheirBounds() {
+    long[] values = {0, 1, 63, 64, 65, 127, 128, 1_000, 123_456_789, Long.MAX_VALUE};
+    for (long value : values) {
+      int bucket = LatencyHistogram.bucket(value);
+      assertTrue(value + " above its bucket", value <= LatencyHistogram.highestValue(bucket));
+      if (bucket > 0) {
+        assertTrue(value + " below its bucket", value > LatencyHistogram.highestValue(bucket - 1));
+      }
+    }
+    // buckets are at most 1/32 of their value wide
+    int bucket = LatencyHistogram.bucket(1_000_000);
+    assertTrue(LatencyHistogram.highestValue(bucket) - LatencyHistogram.highestValue(bucket - 1) <= 1_000_000 / 32);
+  }
+
+  @Test
+  public void percentilesAreWithinABucket() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1_000L);
+    }
+    assertEquals(1000, histogram.count());
+    assertEquals(1_000_000, histogram.max());
+    assertEquals(500_500, histogram.mean(), 0.001);
+    assertEquals(500_000, histogram.percentile(0.5), 500_000 / 32);
+    assertEquals(990_000, histogram.percentile(0.99), 990_000 / 32);
+    assertEquals(1_000_000, histogram.percentile(1));
+
+    histogram.reset();
+    assertEquals(0, histogram.count());
+    assertEquals(0, histogram.percentile(0.99));
+  }
+}
@@ -0,0 +1,114 @@
+package edu.uw.cs;
+
+import org.junit.*;
+import org.junit.rules.*;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs generated and scripted users against the embedded storage, and checks
+ * that the checks after a run find overbooking
+ */
+public class LoadGeneratorTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ConnectionPool pool;
+  private QueryFactory factory;
+
+  @Before
+  public void createTables() throws Exception {
+    pool = new ConnectionPool(EmbeddedStorage.inMemoryUrl("loadtest"), 4, 64, 60_000, 10_000);
+    try (ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement()) {
+      s.execute("DROP ALL OBJECTS");
+    }
+    new EmbeddedStorage().initialize(pool, new Properties());
+    try (ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement()) {
+      s.execute("INSERT INTO Flights VALUES (1, 1, 'AS', 1, 'Seattle WA', 'Boston MA', 0, 300, 2, 100), "
+          + "(2, 1, 'AS', 2, 'Seattle WA', 'Boston MA', 0, 310, 1, 200), "
+          + "(3, 2, 'AS', 3, 'Boston MA', 'Seattle WA', 0, 320, 3, 150), "
+          + "(4, 2, 'AS', 4, 'Seattle WA', 'Chicago IL', 0, 200, 5, 90)");
+    }
+    factory = new QueryFactory(pool, false);
+    factory.setDialect(Dialect.H2);
+  }
+
+  @After
+  public void closePool() {
+    factory.close();
+  }
+
+  @Test
+  public void generatedUsersDoNotOverbook() throws Exception {
+    List<LoadGenerator.Route> routes = LoadGenerator.routes(pool, 10, 1);
+    assertEquals(3, routes.size());
+
+    LoadGenerator.Report report = new LoadGenerator(factory.query(), pool, 0)
+        .run(LoadGenerator.generated(40, 10, 50, routes, 7));
+    assertEquals(40, report.users());
+    // create, login and quit besides the random commands
+    assertEquals(40 * 13, report.commands());
+    assertEquals(40, report.latency("create").count());
+    assertNotNull(report.latency("search"));
+    assertNotNull(report.latency("book"));
+    assertEquals(Collections.emptyList(), report.violations());
+  }
+
+  @Test
+  public void scriptsAreCopiedWithTheirOwnUserNames() throws Exception {
+    List<String> user1 = Arrays.asList("create user1 user1 10000", "login user1 user1",
+        "search \"Seattle WA\" \"Boston MA\" 1 1 2", "book 1", "quit");
+    List<String> user2 = Arrays.asList("create user2 user2 10000", "login user2 user2",
+        "search \"Seattle WA\" \"Boston MA\" 1 1 2", "book 1", "quit");
+    List<LoadGenerator.User> users = LoadGenerator.scripted(
+        Collections.singletonList(Arrays.asList(user1, user2)), 15);
+    // whole copies of the script
+    assertEquals(16, users.size());
+    assertEquals("login user1_a user1", LoadGenerator.rename(new Command(), "login user1 user1", "_a"));
+
+    LoadGenerator.Report report = new LoadGenerator(factory.query(), pool, 4).run(users);
+    assertEquals(16 * 5, report.commands());
+    assertEquals(0, report.errors("create"));
+    assertEquals(Collections.emptyList(), report.violations());
+    try (ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement();
+         ResultSet results = s.executeQuery("SELECT COUNT(*) FROM Reservations WHERE flight1 = 2")) {
+      results.next();
+      // every user wanted the last seat on flight 2
+      assertEquals(1, results.getInt(1));
+    }
+  }
+
+  @Test
+  public void findsOverbookedFlights() throws Exception {
+    try (ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement()) {
+      s.execute("INSERT INTO Users(uname, balance) VALUES ('a', -5)");
+      s.execute("INSERT INTO Reservations VALUES (1, 0, 'a', 2, NULL), (2, 0, 'a', 2, NULL)");
+    }
+    LoadGenerator.Report report = new LoadGenerator(factory.query(), pool, 1)
+        .run(Collections.emptyList());
+    assertEquals(Arrays.asList("Flight 2 has 2 reservations but capacity 1", "User a has balance -5",
+        "User a has 2 reservations on day 1"), report.violations());
+  }
+
+  @Test
+  public void checksTheBookingEngineWhenItHoldsTheBookings() throws Exception {
+    try (ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement()) {
+      // the tables are not where the bookings are, so this is not looked at
+      s.execute("INSERT INTO Users(uname, balance) VALUES ('a', -5)");
+    }
+    // closed with the factory
+    BookingEngine engine = BookingEngine.open(pool, folder.getRoot().toPath().resolve("log"));
+    factory.setBookingEngine(engine);
+    LoadGenerator.Report report = new LoadGenerator(factory.query(), pool, 0)
+        .run(LoadGenerator.generated(40, 10, 50, LoadGenerator.routes(pool, 10, 1), 7));
+    assertEquals(Collections.emptyList(), report.violations());
+    assertTrue(engine.booked(1) + engine.booked(2) + engine.booked(3) > 0);
+
+    engine.createCustomer("B", new byte[0], new byte[0], -5);
+    report = new LoadGenerator(factory.query(), pool, 1).run(Collections.emptyList());
+    assertEquals(Collections.singletonList("User B has balance -5"), report.violations());
+  }
+}
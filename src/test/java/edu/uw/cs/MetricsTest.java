@@ -0,0 +1,97 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import javax.management.*;
+import java.lang.management.*;
+import java.sql.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks what the metrics record and that they can be read over JMX
+ */
+public class MetricsTest {
+  private final Metrics metrics = new Metrics();
+
+  @After
+  public void close() {
+    metrics.close();
+  }
+
+  @Test
+  public void timesStatementsByTheNameOfTheirConstant() throws Exception {
+    try (ConnectionPool pool = new ConnectionPool("jdbc:h2:mem:metricstest", 1, 8, 60_000, 1_000)) {
+      pool.setMetrics(metrics);
+      try (ConnectionPool.Lease lease = pool.lease()) {
+        lease.prepare("CREATE TABLE Users(uname VARCHAR(20), balance INT)").execute();
+        PreparedStatement getBalance = lease.prepare("SELECT balance FROM Users WHERE uname = ?");
+        getBalance.setString(1, "a");
+        getBalance.executeQuery().close();
+        getBalance.executeQuery().close();
+      }
+    }
+    assertEquals(2, metrics.histogram("sql.GET_BALANCE").count());
+    assertEquals(1, metrics.histogram("sql.other").count());
+  }
+
+  @Test
+  public void recordsFailedAttemptsByCause() {
+    RetryPolicy retry = new RetryPolicy(3, 1, 1, 10_000);
+    retry.setMetrics(metrics);
+    retry.run("book", () -> {
+      throw new SQLException("deadlock", "40001", 1205);
+    }, "failed");
+    retry.run("pay", () -> {
+      throw new SQLException("duplicate key", "23000", 2627);
+    }, "failed");
+    assertEquals(3, metrics.histogram("retry.deadlock").count());
+    assertEquals(1, metrics.histogram("retry.permanent").count());
+
+    assertEquals("lock_timeout", Metrics.cause(new SQLException("timeout", "S0001", 1222)));
+    assertEquals("connection", Metrics.cause(new SQLException("link failure", "08S01")));
+  }
+
+  @Test
+  public void countsCommandsThatFailedWhateverTheySay() {
+    Query query = new Query();
+    query.setMetrics(metrics);
+    Session session = new Session();
+    FlightService.execute(query, session, "book 0");
+    FlightService.execute(query, session, "pay 1");
+    FlightService.execute(query, session, "pay x");
+    FlightService.execute(query, session, "cancel");
+    FlightService.execute(query, session, "create alice pw -5");
+    FlightService.execute(query, session, "quit");
+    FlightService.execute(query, session, "fly away");
+    FlightService.execute(query, session, "");
+    assertEquals(1, metrics.count("errors.book"));
+    assertEquals(2, metrics.count("errors.pay"));
+    assertEquals(1, metrics.count("errors.cancel"));
+    assertEquals(1, metrics.count("errors.create"));
+    assertEquals(0, metrics.count("errors.quit"));
+    assertEquals(1, metrics.count("errors.other"));
+  }
+
+  @Test
+  public void commandsAreReadableOverJmx() throws Exception {
+    Query query = new Query();
+    query.setMetrics(metrics);
+    Session session = new Session();
+    FlightService.execute(query, session, "quit");
+    FlightService.execute(query, session, "quit");
+    FlightService.execute(query, session, "fly away");
+
+    metrics.register("edu.uw.cs:type=Metrics,name=test");
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("edu.uw.cs:type=Metrics,name=test");
+    assertEquals(2L, server.getAttribute(name, "command.quit.count"));
+    assertEquals(1L, server.getAttribute(name, "command.other.count"));
+    assertTrue((Double) server.getAttribute(name, "command.quit.p99Micros") >= 0);
+
+    server.invoke(name, "reset", new Object[0], new String[0]);
+    assertEquals(0L, server.getAttribute(name, "command.quit.count"));
+    metrics.close();
+    assertFalse(server.isRegistered(name));
+  }
+}
@@ -0,0 +1,90 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the hashing pool against a direct PBKDF2 computation and its load
+ * shedding
+ */
+public class PasswordHasherTest {
+
+  @Test
+  public void matchesDirectComputation() throws Exception {
+    byte[] salt = new byte[16];
+    new Random(7).nextBytes(salt);
+    byte[] expected = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1")
+        .generateSecret(new PBEKeySpec("hunter2".toCharArray(), salt, 65536, 128)).getEncoded();
+    try (PasswordHasher hasher = new PasswordHasher(2, 4)) {
+      assertArrayEquals(expected, hasher.hash("hunter2", salt));
+      assertArrayEquals(expected, hasher.hash("hunter2", salt));
+      assertEquals(2, hasher.hashes());
+      assertTrue(hasher.meanHashMicros() > 0);
+    }
+  }
+
+  @Test
+  public void rejectsWhenTheQueueIsFull() throws Exception {
+    int callers = 16;
+    try (PasswordHasher hasher = new PasswordHasher(1, 1)) {
+      ExecutorService pool = Executors.newFixedThreadPool(callers);
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int i = 0; i < callers; i++) {
+        results.add(pool.submit(() -> {
+          start.await();
+          try {
+            hasher.hash("password", new byte[16]);
+            return true;
+          } catch (RejectedExecutionException e) {
+            return false;
+          }
+        }));
+      }
+      start.countDown();
+      int accepted = 0;
+      for (Future<Boolean> result : results) {
+        if (result.get()) {
+          accepted++;
+        }
+      }
+      pool.shutdown();
+      assertTrue(accepted >= 1);
+      assertTrue(accepted < callers);
+      assertEquals(callers - accepted, hasher.rejected());
+    }
+  }
+
+  @Test
+  public void recordsQueueWaitAndHashTimeSeparately() throws Exception {
+    Metrics metrics = new Metrics(false);
+    try (PasswordHasher hasher = new PasswordHasher(1, 1)) {
+      hasher.setMetrics(metrics);
+      ExecutorService pool = Executors.newFixedThreadPool(4);
+      List<Future<?>> results = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        results.add(pool.submit(() -> {
+          try {
+            hasher.hash("password", new byte[16]);
+          } catch (RejectedExecutionException e) {
+            // counted below
+          }
+        }));
+      }
+      for (Future<?> result : results) {
+        result.get();
+      }
+      pool.shutdown();
+      assertEquals(hasher.hashes(), metrics.histogram("hash.compute").count());
+      assertEquals(hasher.hashes(), metrics.histogram("hash.queue_wait").count());
+      assertEquals(hasher.rejected(), metrics.count("hash.rejected"));
+      assertEquals(4, hasher.hashes() + hasher.rejected());
+    }
+  }
+}
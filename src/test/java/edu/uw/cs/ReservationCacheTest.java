@@ -0,0 +1,104 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks write-through updates, eviction and the staleness rules of the
+ * reservations cache
+ */
+public class ReservationCacheTest {
+  private final AtomicLong now = new AtomicLong();
+
+  private static ReservationCache.Reservation reservation(int rid) {
+    return new ReservationCache.Reservation(rid, false,
+        FlightCatalogTest.flight(rid * 10, 1, "Seattle WA", "Boston MA", 100), null);
+  }
+
+  private static List<Integer> rids(List<ReservationCache.Reservation> reservations) {
+    List<Integer> rids = new ArrayList<>();
+    for (ReservationCache.Reservation r : reservations) {
+      rids.add(r.rid);
+    }
+    return rids;
+  }
+
+  @Test
+  public void writesUpdateALoadedList() {
+    ReservationCache cache = new ReservationCache(ReservationCache.Consistency.LOCAL, 10, 0, now::get);
+    assertNull(cache.get("alice"));
+    cache.load("alice", cache.beginLoad(), Arrays.asList(reservation(3), reservation(1)));
+    assertEquals(Arrays.asList(1, 3), rids(cache.get("alice")));
+
+    cache.booked("alice", reservation(2));
+    cache.paid("alice", 3);
+    cache.canceled("alice", 1);
+    List<ReservationCache.Reservation> cached = cache.get("alice");
+    assertEquals(Arrays.asList(2, 3), rids(cached));
+    assertFalse(cached.get(0).paid);
+    assertTrue(cached.get(1).paid);
+    assertNull(cache.get("bob"));
+  }
+
+  @Test
+  public void loadOverlappingAWriteIsNotKept() {
+    ReservationCache cache = new ReservationCache(ReservationCache.Consistency.LOCAL, 10, 0, now::get);
+    long stamp = cache.beginLoad();
+    cache.booked("alice", reservation(1));
+    cache.load("alice", stamp, Collections.emptyList());
+    assertNull(cache.get("alice"));
+
+    // another user's write does not matter
+    stamp = cache.beginLoad();
+    cache.booked("bob", reservation(2));
+    cache.load("alice", stamp, Collections.singletonList(reservation(1)));
+    assertEquals(Collections.singletonList(1), rids(cache.get("alice")));
+
+    stamp = cache.beginLoad();
+    cache.clear();
+    cache.load("alice", stamp, Collections.singletonList(reservation(1)));
+    assertNull(cache.get("alice"));
+  }
+
+  @Test
+  public void sharedListsAreReloadedAfterTheMaximumAge() {
+    ReservationCache cache = new ReservationCache(ReservationCache.Consistency.SHARED, 10, 100, now::get);
+    cache.load("alice", cache.beginLoad(), Collections.singletonList(reservation(1)));
+    now.set(99);
+    cache.paid("alice", 1);
+    assertNotNull(cache.get("alice"));
+    now.set(100);
+    assertNull(cache.get("alice"));
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.loads());
+
+    ReservationCache local = new ReservationCache(ReservationCache.Consistency.LOCAL, 10, 100, now::get);
+    local.load("alice", local.beginLoad(), Collections.emptyList());
+    now.set(1_000_000);
+    assertNotNull(local.get("alice"));
+  }
+
+  @Test
+  public void leastRecentlyUsedUserIsEvicted() {
+    ReservationCache cache = new ReservationCache(ReservationCache.Consistency.LOCAL, 2, 0, now::get);
+    cache.load("alice", cache.beginLoad(), Collections.singletonList(reservation(1)));
+    cache.load("bob", cache.beginLoad(), Collections.singletonList(reservation(2)));
+    assertNotNull(cache.get("alice"));
+    long stamp = cache.beginLoad();
+    cache.booked("carol", reservation(3));
+    assertNull(cache.get("bob"));
+    assertNotNull(cache.get("alice"));
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.evictions());
+
+    // evicting carol forgets her write, so a load that overlapped it is not kept
+    cache.load("dave", cache.beginLoad(), Collections.emptyList());
+    cache.load("erin", cache.beginLoad(), Collections.emptyList());
+    cache.load("carol", stamp, Collections.emptyList());
+    assertNull(cache.get("carol"));
+  }
+}
@@ -0,0 +1,74 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exercises strict and block reservation ID allocation against an in-memory H2
+ * ReservationID table
+ */
+public class ReservationIdAllocatorTest {
+  private static final String URL = "jdbc:h2:mem:ridtest;DB_CLOSE_DELAY=-1";
+
+  private ConnectionPool pool;
+
+  @Before
+  public void createTable() throws Exception {
+    pool = new ConnectionPool(URL, 4, 8, 60_000, 1_000);
+    try (ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement()) {
+      s.execute("DROP TABLE IF EXISTS ReservationID");
+      s.execute("CREATE TABLE ReservationID(rid INT PRIMARY KEY)");
+      s.execute("INSERT INTO ReservationID VALUES (1)");
+    }
+  }
+
+  @After
+  public void closePool() {
+    pool.close();
+  }
+
+  @Test
+  public void strictIdsFollowTheTransaction() throws Exception {
+    ReservationIdAllocator ids = new ReservationIdAllocator(pool, 1);
+    assertTrue(ids.isStrict());
+    try (ConnectionPool.Lease lease = pool.lease()) {
+      lease.connection().setAutoCommit(false);
+      assertEquals(1, ids.nextInTransaction(lease));
+      lease.connection().rollback();
+      assertEquals(1, ids.nextInTransaction(lease));
+      lease.connection().commit();
+      assertEquals(2, ids.nextInTransaction(lease));
+      lease.connection().commit();
+    }
+  }
+
+  @Test
+  public void blocksHandOutUniqueIds() throws Exception {
+    ReservationIdAllocator first = new ReservationIdAllocator(pool, 10);
+    ReservationIdAllocator second = new ReservationIdAllocator(pool, 10);
+    ExecutorService threads = Executors.newFixedThreadPool(8);
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      ReservationIdAllocator ids = i % 2 == 0 ? first : second;
+      results.add(threads.submit(ids::next));
+    }
+    Set<Integer> seen = new HashSet<>();
+    for (Future<Integer> result : results) {
+      assertTrue(seen.add(result.get()));
+    }
+    threads.shutdown();
+    assertEquals(200, seen.size());
+    assertTrue(Collections.min(seen) >= 1);
+    assertTrue(Collections.max(seen) <= 220);
+
+    // a given-back ID is handed out again before the block moves on
+    int id = first.next();
+    first.giveBack(id);
+    assertEquals(id, first.next());
+  }
+}
@@ -0,0 +1,57 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the response writer reproduces the concatenated response format
+ */
+public class ResponseWriterTest {
+
+  private static String concatenated(Query.Flight f) {
+    return "ID: " + f.fid + " Day: " + f.dayOfMonth + " Carrier: " + f.carrierId + " Number: " + f.flightNum
+        + " Origin: " + f.originCity + " Dest: " + f.destCity + " Duration: " + f.time + " Capacity: "
+        + f.capacity + " Price: " + f.price;
+  }
+
+  @Test
+  public void itinerariesMatchTheConcatenatedFormat() {
+    Query.Flight f1 = FlightCatalogTest.flight(60454, 1, "Seattle WA", "Chicago IL", 200);
+    Query.Flight f2 = FlightCatalogTest.flight(-7, 1, "Chicago IL", "Boston MA", 97);
+    Query.ItineraryItem direct = new Query.ItineraryItem(f1);
+    Query.ItineraryItem oneHop = new Query.ItineraryItem(f1, f2);
+
+    String expected = "Itinerary 0: 1 flight(s), 200 minutes\n" + concatenated(f1) + "\n"
+        + "Itinerary 1: 2 flight(s), 297 minutes\n" + concatenated(f1) + "\n" + concatenated(f2) + "\n";
+    assertEquals(expected, ResponseWriter.acquire().itinerary(0, direct).itinerary(1, oneHop).finish());
+    assertEquals(concatenated(f1), f1.toString());
+    assertEquals(concatenated(f1) + "\n" + concatenated(f2) + "\n", oneHop.toString());
+  }
+
+  @Test
+  public void reservationsMatchTheConcatenatedFormat() {
+    Query.Flight f1 = FlightCatalogTest.flight(3, 2, "Seattle WA", "Boston MA", 300);
+    f1.carrierId = null;
+    ReservationCache.Reservation r = new ReservationCache.Reservation(12, true, f1, null);
+    assertEquals("Reservation 12 paid: true:\n" + concatenated(f1) + "\n",
+        ResponseWriter.acquire().reservation(r).finish());
+  }
+
+  @Test
+  public void finishedWritersStartEmpty() {
+    Query.Flight f = FlightCatalogTest.flight(1, 1, "Seattle WA", "Boston MA", 10);
+    ResponseWriter.acquire().append("leftover").finish();
+    ResponseWriter writer = ResponseWriter.acquire();
+    assertEquals(0, writer.length());
+    assertEquals("Itinerary 0: 1 flight(s), 10 minutes\n" + concatenated(f) + "\n",
+        writer.itinerary(0, new Query.ItineraryItem(f)).finish());
+
+    StringBuilder huge = new StringBuilder();
+    while (huge.length() <= ResponseWriter.MAX_RETAINED_CHARS) {
+      huge.append("0123456789");
+    }
+    assertEquals(huge.toString(), ResponseWriter.acquire().append(huge.toString()).finish());
+    assertEquals(0, ResponseWriter.acquire().length());
+  }
+}
@@ -0,0 +1,100 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.concurrent.atomic.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which failures are retried and that retries stop at the limits
+ */
+public class RetryPolicyTest {
+
+  @Test
+  public void classifiesFailures() {
+    assertTrue(RetryPolicy.isTransient(new SQLException("deadlock", "40001", 1205)));
+    assertTrue(RetryPolicy.isTransient(new SQLException("snapshot", "S0001", 3960)));
+    assertTrue(RetryPolicy.isTransient(new SQLException("link failure", "08S01")));
+    assertTrue(RetryPolicy.isTransient(new SQLTransientConnectionException("reset")));
+    assertFalse(RetryPolicy.isTransient(new SQLException("duplicate key", "23000", 2627)));
+    assertFalse(RetryPolicy.isTransient(new SQLException("Timed out waiting for a database connection")));
+
+    SQLException chained = new SQLException("batch failed", "S0001", 3621);
+    chained.setNextException(new SQLException("deadlock", "40001", 1205));
+    assertTrue(RetryPolicy.isTransient(chained));
+
+    // a write may have committed before its connection broke
+    assertTrue(RetryPolicy.isRolledBack(new SQLException("deadlock", "40001", 1205)));
+    assertTrue(RetryPolicy.isRolledBack(new SQLException("snapshot", "S0001", 3960)));
+    assertTrue(RetryPolicy.isRolledBack(chained));
+    assertFalse(RetryPolicy.isRolledBack(new SQLException("link failure", "08S01")));
+    assertFalse(RetryPolicy.isRolledBack(new SQLTransientConnectionException("reset")));
+    assertFalse(RetryPolicy.isRolledBack(new SQLException("lock timeout", "S0001", 1222)));
+  }
+
+  @Test
+  public void retriesTransientFailuresUntilSuccess() {
+    RetryPolicy retry = new RetryPolicy(5, 1, 4, 10_000);
+    AtomicInteger calls = new AtomicInteger();
+    String result = retry.run("book", () -> {
+      if (calls.incrementAndGet() < 3) {
+        throw new SQLException("deadlock", "40001", 1205);
+      }
+      return "ok";
+    }, "failed");
+    assertEquals("ok", result);
+    assertEquals(3, retry.attempts("book"));
+    assertEquals(2, retry.retries("book"));
+    assertEquals(2, retry.deadlocks("book"));
+    assertEquals(0, retry.failures("book"));
+  }
+
+  @Test
+  public void stopsAtTheLimits() {
+    RetryPolicy retry = new RetryPolicy(4, 1, 2, 10_000);
+    assertEquals("failed", retry.run("pay", () -> {
+      throw new SQLException("deadlock", "40001", 1205);
+    }, "failed"));
+    assertEquals(4, retry.attempts("pay"));
+    assertEquals(1, retry.failures("pay"));
+
+    // permanent errors are not retried at all
+    assertEquals("failed", retry.run("cancel", () -> {
+      throw new SQLException("duplicate key", "23000", 2627);
+    }, "failed"));
+    assertEquals(1, retry.attempts("cancel"));
+
+    // nor are writes whose connection broke
+    assertEquals("failed", retry.runWrite("book", () -> {
+      throw new SQLTransientConnectionException("reset after commit");
+    }, "failed"));
+    assertEquals(1, retry.attempts("book"));
+    assertEquals("ok", retry.runWrite("book", () -> {
+      if (retry.attempts("book") < 3) {
+        throw new SQLException("deadlock", "40001", 1205);
+      }
+      return "ok";
+    }, "failed"));
+
+    // no attempt starts after the deadline
+    RetryPolicy strict = new RetryPolicy(1000, 50, 50, 100);
+    long start = System.nanoTime();
+    assertEquals("failed", strict.run("search", () -> {
+      throw new SQLException("deadlock", "40001", 1205);
+    }, "failed"));
+    assertTrue(System.nanoTime() - start < 1_000_000_000L);
+    assertTrue(strict.attempts("search") < 1000);
+  }
+
+  @Test
+  public void backoffDoublesUpToTheCap() {
+    RetryPolicy retry = new RetryPolicy(50, 5, 100, 10_000);
+    assertEquals(5, retry.backoffMillis(1));
+    assertEquals(10, retry.backoffMillis(2));
+    assertEquals(80, retry.backoffMillis(5));
+    assertEquals(100, retry.backoffMillis(6));
+    assertEquals(100, retry.backoffMillis(49));
+  }
+}
@@ -0,0 +1,77 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.util.concurrent.atomic.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks eviction, expiry and clearing of cached search results
+ */
+public class SearchCacheTest {
+  private final AtomicLong now = new AtomicLong();
+
+  private static SearchCache.Key key(int day) {
+    return new SearchCache.Key("Seattle WA", "Boston MA", false, day, 5);
+  }
+
+  private static Query.ItineraryItem[] itineraries(int... fids) {
+    Query.ItineraryItem[] items = new Query.ItineraryItem[fids.length];
+    for (int i = 0; i < fids.length; i++) {
+      items[i] = new Query.ItineraryItem(FlightCatalogTest.flight(fids[i], 1, "Seattle WA", "Boston MA", 100));
+    }
+    return items;
+  }
+
+  @Test
+  public void leastRecentlyUsedIsEvicted() {
+    SearchCache cache = new SearchCache(2, 1000, now::get);
+    cache.put(key(1), cache.beginLoad(), itineraries(1));
+    cache.put(key(2), cache.beginLoad(), itineraries(2));
+    assertNotNull(cache.get(key(1)));
+    cache.put(key(3), cache.beginLoad(), itineraries(3));
+
+    assertNull(cache.get(key(2)));
+    assertNotNull(cache.get(key(1)));
+    assertNotNull(cache.get(key(3)));
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.evictions());
+    assertEquals(3, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  public void entriesExpireAfterTheTtl() {
+    SearchCache cache = new SearchCache(10, 1000, now::get);
+    Query.ItineraryItem[] found = itineraries(1, 2);
+    cache.put(key(1), cache.beginLoad(), found);
+    now.set(999);
+    assertSame(found, cache.get(key(1)));
+    now.set(1000);
+    assertNull(cache.get(key(1)));
+    assertEquals(0, cache.size());
+    assertEquals(1, cache.expirations());
+  }
+
+  @Test
+  public void keysCompareAllParameters() {
+    assertEquals(key(1), key(1));
+    assertEquals(key(1).hashCode(), key(1).hashCode());
+    assertNotEquals(key(1), new SearchCache.Key("Seattle WA", "Boston MA", true, 1, 5));
+    assertNotEquals(key(1), new SearchCache.Key("Seattle WA", "Boston MA", false, 1, 4));
+    assertNotEquals(key(1), new SearchCache.Key("Boston MA", "Seattle WA", false, 1, 5));
+  }
+
+  @Test
+  public void searchesOverlappingAClearAreNotCached() {
+    SearchCache cache = new SearchCache(10, 1000, now::get);
+    long stamp = cache.beginLoad();
+    cache.clear();
+    cache.put(key(1), stamp, itineraries(1));
+    assertNull(cache.get(key(1)));
+
+    cache.put(key(1), cache.beginLoad(), itineraries(1));
+    assertNotNull(cache.get(key(1)));
+  }
+}
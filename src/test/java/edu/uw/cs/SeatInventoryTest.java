@@ -0,0 +1,134 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exercises the SeatsRemaining counts against in-memory H2 tables
+ */
+public class SeatInventoryTest {
+  private static final String URL = EmbeddedStorage.inMemoryUrl("seattest");
+
+  private ConnectionPool pool;
+  private final SeatInventory seats = new SeatInventory();
+
+  @Before
+  public void createTables() throws Exception {
+    pool = new ConnectionPool(URL, 8, 16, 60_000, 1_000);
+    try (ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement()) {
+      s.execute("DROP ALL OBJECTS");
+      s.execute("CREATE TABLE Flights(fid INT PRIMARY KEY, capacity INT)");
+      s.execute("CREATE TABLE Reservations(rid INT PRIMARY KEY, flight1 INT, flight2 INT)");
+      s.execute("CREATE TABLE SeatsRemaining(fid INT PRIMARY KEY, seats INT)");
+      s.execute("INSERT INTO Flights VALUES (1, 3), (2, 1)");
+      s.execute("INSERT INTO Reservations VALUES (1, 1, NULL), (2, 2, 1)");
+    }
+  }
+
+  @After
+  public void closePool() {
+    pool.close();
+  }
+
+  @Test
+  public void countsExistingReservationsOnFirstUse() throws Exception {
+    try (ConnectionPool.Lease lease = pool.lease()) {
+      // flight 1 has 3 seats and 2 reservations
+      assertTrue(seats.reserve(lease, 1));
+      assertFalse(seats.reserve(lease, 1));
+      // flight 2 is already full, flight 3 does not exist
+      assertFalse(seats.reserve(lease, 2));
+      assertFalse(seats.reserve(lease, 3));
+
+      seats.release(lease, 1);
+      assertTrue(seats.reserve(lease, 1));
+
+      seats.clear(lease);
+      assertTrue(seats.reserve(lease, 1));
+    }
+  }
+
+  @Test
+  public void recountsAfterBookingsMadeWithoutCounters() throws Exception {
+    try (ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement()) {
+      s.execute("INSERT INTO Flights VALUES (10, 2)");
+      // one booking with counters on leaves one seat in the table
+      assertTrue(seats.reserve(lease, 10));
+      s.execute("INSERT INTO Reservations VALUES (3, 10, NULL)");
+      // then one with them off takes the last seat without telling it
+      s.execute("INSERT INTO Reservations VALUES (4, 10, NULL)");
+    }
+    Properties configProps = new Properties();
+    assertNull(SeatInventory.fromConfig(pool, configProps));
+    configProps.setProperty("hw1.seat_counters", "true");
+    SeatInventory restarted = SeatInventory.fromConfig(pool, configProps);
+    try (ConnectionPool.Lease lease = pool.lease()) {
+      assertFalse(restarted.reserve(lease, 10));
+      // flight 1 has 3 seats and 2 reservations
+      assertTrue(restarted.reserve(lease, 1));
+    }
+  }
+
+  @Test
+  public void rollbackGivesTheSeatBack() throws Exception {
+    try (ConnectionPool.Lease lease = pool.lease()) {
+      Connection conn = lease.connection();
+      conn.setAutoCommit(false);
+      assertTrue(seats.reserve(lease, 1));
+      assertFalse(seats.reserve(lease, 1));
+      conn.rollback();
+      conn.setAutoCommit(true);
+      assertTrue(seats.reserve(lease, 1));
+      assertFalse(seats.reserve(lease, 1));
+    }
+  }
+
+  @Test
+  public void concurrentFirstBookingsCreateTheRowOnce() throws Exception {
+    int bookers = 8;
+    try (ConnectionPool.Lease lease = pool.lease(); Statement s = lease.connection().createStatement()) {
+      for (int fid = 10; fid < 30; fid++) {
+        s.execute("INSERT INTO Flights VALUES (" + fid + ", 5)");
+      }
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(bookers);
+    try {
+      for (int fid = 10; fid < 30; fid++) {
+        int flight = fid;
+        CyclicBarrier start = new CyclicBarrier(bookers);
+        List<Future<Boolean>> booked = new ArrayList<>();
+        for (int i = 0; i < bookers; i++) {
+          booked.add(executor.submit(() -> {
+            try (ConnectionPool.Lease lease = pool.lease()) {
+              Connection conn = lease.connection();
+              conn.setAutoCommit(false);
+              conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+              try {
+                start.await();
+                boolean reserved = seats.reserve(lease, flight);
+                conn.commit();
+                return reserved;
+              } finally {
+                conn.setAutoCommit(true);
+              }
+            }
+          }));
+        }
+        int taken = 0;
+        for (Future<Boolean> result : booked) {
+          if (result.get(30, TimeUnit.SECONDS)) {
+            taken++;
+          }
+        }
+        assertEquals("flight " + flight, 5, taken);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that session tokens round-trip, that forged and expired tokens are
+ * refused, and that remembered generations are read again after the recheck
+ * interval
+ */
+public class SessionTokensTest {
+  private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes();
+
+  @Test
+  public void acceptsOwnTokens() {
+    SessionTokens tokens = new SessionTokens(SECRET, 60_000, 1000);
+    SessionTokens.Token token = tokens.verify(tokens.issue("alice", 3));
+    assertEquals("alice", token.user);
+    assertEquals(3, token.generation);
+    // another node with the same secret accepts it too
+    assertEquals("bob", new SessionTokens(SECRET, 60_000, 1000).verify(tokens.issue("bob", 0)).user);
+  }
+
+  @Test
+  public void refusesForgedAndExpiredTokens() {
+    SessionTokens tokens = new SessionTokens(SECRET, 60_000, 1000);
+    String token = tokens.issue("alice", 0);
+    String bobs = tokens.issue("bob", 0);
+    String forged = Base64.getUrlEncoder().withoutPadding().encodeToString(
+            Base64.getUrlDecoder().decode(bobs.substring(0, bobs.indexOf('.'))))
+            + token.substring(token.indexOf('.'));
+    assertNull(tokens.verify(forged));
+    assertNull(tokens.verify("garbage"));
+    assertNull(tokens.verify("not*base64.at*all"));
+    assertNull(new SessionTokens("another secret".getBytes(), 60_000, 1000).verify(token));
+    assertNull(new SessionTokens(SECRET, -1, 1000).verify(new SessionTokens(SECRET, -1, 1000).issue("alice", 0)));
+  }
+
+  @Test
+  public void remembersGenerationsUntilTheRecheck() {
+    long[] now = {0};
+    SessionTokens tokens = new SessionTokens(SECRET, 60_000, 1000, () -> now[0]);
+    assertEquals(-1, tokens.generation("alice"));
+    tokens.remember("alice", 2);
+    now[0] = 1000;
+    assertEquals(2, tokens.generation("alice"));
+    now[0] = 1001;
+    assertEquals(-1, tokens.generation("alice"));
+    tokens.remember("alice", 3);
+    tokens.forget("alice");
+    assertEquals(-1, tokens.generation("alice"));
+  }
+}
@@ -0,0 +1,166 @@
+package edu.uw.cs;
+
+import org.junit.*;
+import org.junit.rules.*;
+
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Appends to, replays and damages log files in a temporary folder
+ */
+public class WriteAheadLogTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void replaysRecordsInOrder() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("log");
+    try (WriteAheadLog log = WriteAheadLog.open(file, r -> {
+      fail("new log is empty");
+      return true;
+    })) {
+      for (int i = 0; i < 3; i++) {
+        log.sync(log.append(record(i, 10)));
+      }
+    }
+    List<Integer> replayed = new ArrayList<>();
+    try (WriteAheadLog log = WriteAheadLog.open(file, r -> replayed.add(r.getInt()))) {
+      assertEquals(Arrays.asList(0, 1, 2), replayed);
+      log.append(record(3, 10));
+    }
+    replayed.clear();
+    WriteAheadLog.open(file, r -> replayed.add(r.getInt())).close();
+    assertEquals(Arrays.asList(0, 1, 2, 3), replayed);
+  }
+
+  @Test
+  public void stopsAtATornRecord() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("log");
+    int end;
+    try (WriteAheadLog log = WriteAheadLog.open(file, r -> true)) {
+      end = log.append(record(0, 10));
+      log.append(record(1, 100));
+    }
+    // damage the payload of the second record, as a crash halfway through it would
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}), end + 50);
+    }
+    List<Integer> replayed = new ArrayList<>();
+    try (WriteAheadLog log = WriteAheadLog.open(file, r -> replayed.add(r.getInt()))) {
+      assertEquals(Collections.singletonList(0), replayed);
+      assertEquals(end, log.size());
+      // a shorter record takes its place; the rest of the torn one is ignored
+      log.append(record(2, 10));
+    }
+    replayed.clear();
+    WriteAheadLog.open(file, r -> replayed.add(r.getInt())).close();
+    assertEquals(Arrays.asList(0, 2), replayed);
+  }
+
+  @Test
+  public void forgetsRecordsAfterATornOne() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("log");
+    int end;
+    try (WriteAheadLog log = WriteAheadLog.open(file, r -> true)) {
+      end = log.append(record(0, 5));
+      log.append(record(1, 5));
+      log.append(record(2, 5));
+    }
+    // the second record is torn while the third one reached the disk intact
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[]{9}), end + 8 + 4);
+    }
+    List<Integer> replayed = new ArrayList<>();
+    try (WriteAheadLog log = WriteAheadLog.open(file, r -> replayed.add(r.getInt()))) {
+      assertEquals(Collections.singletonList(0), replayed);
+      // a record of the same length ends exactly where the third one starts
+      log.append(record(3, 5));
+    }
+    replayed.clear();
+    WriteAheadLog.open(file, r -> replayed.add(r.getInt())).close();
+    assertEquals(Arrays.asList(0, 3), replayed);
+  }
+
+  @Test
+  public void stopsWhereTheReplayRejectsARecord() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("log");
+    try (WriteAheadLog log = WriteAheadLog.open(file, r -> true)) {
+      for (int i = 0; i < 3; i++) {
+        log.append(record(i, 10));
+      }
+    }
+    List<Integer> replayed = new ArrayList<>();
+    try (WriteAheadLog log = WriteAheadLog.open(file, r -> {
+      int n = r.getInt();
+      return n != 1 && replayed.add(n);
+    })) {
+      assertEquals(Collections.singletonList(0), replayed);
+      assertEquals(8 + 10, log.size());
+    }
+    replayed.clear();
+    WriteAheadLog.open(file, r -> replayed.add(r.getInt())).close();
+    assertEquals(Collections.singletonList(0), replayed);
+  }
+
+  @Test
+  public void growsAndClears() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("log");
+    int records = 3 * WriteAheadLog.INITIAL_SIZE / 1000;
+    try (WriteAheadLog log = WriteAheadLog.open(file, r -> true)) {
+      int end = 0;
+      for (int i = 0; i < records; i++) {
+        end = log.append(record(i, 1000));
+      }
+      log.sync(end);
+    }
+    int[] count = new int[1];
+    try (WriteAheadLog log = WriteAheadLog.open(file, r -> {
+      assertEquals(count[0]++, r.getInt());
+      return true;
+    })) {
+      assertEquals(records, count[0]);
+      log.clear();
+      assertEquals(0, log.size());
+    }
+    WriteAheadLog.open(file, r -> {
+      fail("cleared");
+      return true;
+    }).close();
+  }
+
+  @Test
+  public void rewritesTheRecords() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("log");
+    try (WriteAheadLog log = WriteAheadLog.open(file, r -> true)) {
+      for (int i = 0; i < 10; i++) {
+        log.append(record(i, 100));
+      }
+      log.rewrite(Arrays.asList(record(7, 10), record(8, 10)));
+      assertEquals(2 * (8 + 10), log.size());
+      log.sync(log.append(record(9, 10)));
+    }
+    List<Integer> replayed = new ArrayList<>();
+    WriteAheadLog.open(file, r -> replayed.add(r.getInt())).close();
+    assertEquals(Arrays.asList(7, 8, 9), replayed);
+    assertEquals(Collections.singletonList(file), listFolder());
+  }
+
+  private List<Path> listFolder() throws Exception {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> dir = Files.newDirectoryStream(folder.getRoot().toPath())) {
+      dir.forEach(files::add);
+    }
+    return files;
+  }
+
+  private static ByteBuffer record(int n, int size) {
+    ByteBuffer record = ByteBuffer.allocate(size);
+    record.putInt(n).position(size).flip();
+    return record;
+  }
+}